@@ -10,6 +10,7 @@ import org.apache.log4j.Logger;
 import client.KVCommInterface;
 import client.KVStore;
 import logger.LogSetup;
+import shared.messages.ConsistencyLevel;
 import shared.messages.KVMessage;
 
 public class KVClient implements IKVClient {
@@ -21,6 +22,7 @@ public class KVClient implements IKVClient {
 	private BufferedReader stdin;
 	private String serverAddress;
 	private int serverPort;
+	private ConsistencyLevel consistency;
 
     @Override
     public void newConnection(String hostname, int port) throws Exception{
@@ -62,16 +64,16 @@ public class KVClient implements IKVClient {
 
     public void put(String key, String value) {
         try {
-            KVMessage response = kvStore.put(key, value);
+            KVMessage response = kvStore.put(key, value, consistency);
             switch (response.getStatus()) {
                 case PUT_SUCCESS:
-                    printMsg("Successfully put <" + key + ", " + value + ">");
+                    printMsg("Successfully put <" + key + ", " + value + ">" + describeConsistency(response));
                     break;
                 case PUT_UPDATE:
-                    printMsg("Successfully updated <" + key + ", " + value + ">");
+                    printMsg("Successfully updated <" + key + ", " + value + ">" + describeConsistency(response));
                     break;
                 case DELETE_SUCCESS:
-                    printMsg("Successfully deleted <" + key + ">");
+                    printMsg("Successfully deleted <" + key + ">" + describeConsistency(response));
                     break;
                 case DELETE_ERROR:
                     printError("Error deleting <" + key + ">");
@@ -90,9 +92,25 @@ public class KVClient implements IKVClient {
         }
     }
 
+    private String describeConsistency(KVMessage response) {
+        if (response.getConsistency() == null) {
+            return "";
+        }
+        return String.format(" (%s, %d replica acks)", response.getConsistency(), response.getReplicaAcks());
+    }
+
+    public void setConsistency(String level) {
+        try {
+            consistency = ConsistencyLevel.valueOf(level.toUpperCase());
+            printMsg("Read/write consistency set to " + consistency);
+        } catch (IllegalArgumentException e) {
+            printError("Invalid consistency level, use ONE, QUORUM or ALL");
+        }
+    }
+
     public void get(String key) {
         try {
-            KVMessage response = kvStore.get(key);
+            KVMessage response = kvStore.get(key, consistency);
             switch (response.getStatus()) {
                 case GET_SUCCESS:
                     printMsg("Value for <" + key + ">: " + response.getValue());
@@ -179,6 +197,13 @@ public class KVClient implements IKVClient {
                         printError("Invalid number of parameters, usage: get <key>");
                     }
                     break;
+                case "consistency":
+                    if (tokens.length == 2) {
+                        setConsistency(tokens[1]);
+                    } else {
+                        printError("Invalid number of parameters, usage: consistency <ONE|QUORUM|ALL>");
+                    }
+                    break;
                 case "logLevel":
                     if (tokens.length == 2) {
                         logLevel(tokens[1]);
@@ -214,6 +239,7 @@ public class KVClient implements IKVClient {
         sb.append(PROMPT).append(String.format("%-25s%-50s\n", "disconnect", "Disconnect from the server"));
         sb.append(PROMPT).append(String.format("%-25s%-50s\n", "put <key> <value>", "Insert/Update a key-value pair"));
         sb.append(PROMPT).append(String.format("%-25s%-50s\n", "get <key>", "Retrieve the value of a key"));
+        sb.append(PROMPT).append(String.format("%-25s%-50s\n", "consistency <level>", "Copies to reach on get/put: ONE, QUORUM or ALL"));
         sb.append(PROMPT).append(String.format("%-25s%-50s\n", "logLevel <level>", "Set the log level:"));
         sb.append(PROMPT).append(String.format("%-25s%-50s\n", "", LogSetup.getPossibleLogLevels()));
         sb.append(PROMPT).append(String.format("%-25s%-50s\n", "help", "Show this help message"));
@@ -10,18 +10,31 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import com.fasterxml.jackson.databind.JsonMappingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import ecs.ECSNode;
 import ecs.IECSNode;
 import shared.BST;
 import shared.Heartbeat;
+import shared.MetadataDelta;
+import shared.ReadRoute;
+import shared.comm.PeerConnectionPool;
 import shared.messages.ECSMessage;
 import shared.messages.ECSMessage.ActionType;
+import shared.messages.LoadStats;
+import shared.messages.MessageCodec;
+import shared.messages.ReplicationMode;
 import shared.utils.HashUtils;
+import shared.utils.PhiAccrualDetector;
 import logger.LogSetup;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -38,17 +51,69 @@ public class ECSClient implements IECSClient, Runnable, Serializable {
     UniqueRandomNumberGenerator randomNumberGen = new UniqueRandomNumberGenerator();
     private final Lock lock = new ReentrantLock();
     private Heartbeat heartbeat;
+    private final PeerConnectionPool peerPool;
+    private final ExecutorService migrationPool = Executors.newCachedThreadPool();
+    private static final long HEARTBEAT_TIMEOUT_MS = 3000;
+    // A server is suspected while its suspicion level is above PHI_THRESHOLD, and removed after it has
+    // been suspected for SUSPECT_ROUNDS heartbeat rounds in a row.
+    static final double PHI_THRESHOLD = 8;
+    static final int SUSPECT_ROUNDS = 2;
+    private static final long MIN_HEARTBEAT_STD_DEV_MS = 200;
+    private final PhiAccrualDetector failureDetector = new PhiAccrualDetector(Heartbeat.HEARTBEAT_INTERVAL_MS,
+            MIN_HEARTBEAT_STD_DEV_MS, Heartbeat.HEARTBEAT_INTERVAL_MS);
+    private final ExecutorService heartbeatPool = Executors.newCachedThreadPool();
+    // Server name -> heartbeat rounds in a row it has been suspected; only used by the heartbeat thread
+    private final Map<String, Integer> suspectedRounds = new HashMap<>();
+    // Servers being removed after they failed
+    private final Set<String> failing = ConcurrentHashMap.newKeySet();
+    private long lastHeartbeatRound = 0;
+    // Whether the servers' gossip finds failed servers; the ECS then only polls load when it needs it.
+    private volatile boolean gossip = true;
+    // Set while read routes and rebalancing are being planned from the last round's counts
+    private final AtomicBoolean planning = new AtomicBoolean();
+    // Below this many recent requests the cluster is idle enough that load differences are noise.
+    private static final long MIN_ROUTED_REQUESTS = 1000;
+    // A server whose slowest replica trails it by longer than this is reported with its load.
+    private static final long REPLICA_LAG_WARN_MS = 5000;
+    // Cap in MB/s pushed to servers for migrations and replica syncs; 0 means unlimited.
+    private double bandwidthMBps = 0;
+    // A streamed move is given until its source's data would have gone through at this rate, or at this
+    // share of the cap, as the servers' throttles back off below it under load.
+    private static final double UNCAPPED_TRANSFER_MBPS = 8;
+    private static final double CAPPED_TRANSFER_SHARE = 0.5;
+    // Server name -> the request counts it reported with its last heartbeat; guards heartbeatRound too.
+    private final Map<String, Map<String, long[]>> reportedRequests = new HashMap<>();
+    // Ring position -> {reads, writes} reported since the counts were last planned with
+    private Map<String, long[]> heartbeatRound = new HashMap<>();
+    // Ring position -> {reads, writes} per heartbeat round, older rounds weighing half as much each.
+    private Map<String, long[]> recentRequests = new HashMap<>();
+    // Server id -> the load it reported with its last heartbeat.
+    private final Map<String, LoadStats> loadStats = new ConcurrentHashMap<>();
+    private final Rebalancer rebalancer = new Rebalancer();
+    // The metadata as last pushed to the servers, which later updates are sent as deltas against.
+    private BST broadcast;
+    private volatile boolean autoRebalance = false;
+    // How long a join waits for other servers to join with it, so a batch moves data and sends metadata once.
+    static final long DEFAULT_JOIN_WINDOW_MS = 300;
+    private static final int AWAIT_NODES_TIMEOUT_MS = 60000;
+    private volatile long joinWindowMs = DEFAULT_JOIN_WINDOW_MS;
+    // Server name -> servers that announced themselves and wait for their batch; guards the join fields below.
+    private final Map<String, Join> pendingJoins = new LinkedHashMap<>();
+    // Set by setupNodes: hold the batch until this many servers joined.
+    private int expectedJoins = 0;
+    // Servers joined since the last setupNodes, and the primary nodes of them
+    private int appliedJoins = 0;
+    private final List<IECSNode> joinedNodes = new ArrayList<>();
 
     public ECSClient(String address, int port) {
 
         nodes = new BST();
         this.port = port;
         this.address = address;
+        this.peerPool = new PeerConnectionPool("ecs-" + address + ":" + port);
         startServer();
         heartbeat = new Heartbeat(this);
-        new Thread(() -> {
-            heartbeat.start();
-        }).start();
+        heartbeat.start();
     }
 
     public ECSClient(String address, int port, BST metadata) {
@@ -56,13 +121,12 @@ public class ECSClient implements IECSClient, Runnable, Serializable {
         nodes = new BST();
         this.port = port;
         this.address = address;
+        this.peerPool = new PeerConnectionPool("ecs-" + address + ":" + port);
         startServer();
         nodes = metadata;
         updateAllNodesMetaData();
         heartbeat = new Heartbeat(this);
-        new Thread(() -> {
-            heartbeat.start();
-        }).start();
+        heartbeat.start();
     }
 
     @Override
@@ -90,6 +154,9 @@ public class ECSClient implements IECSClient, Runnable, Serializable {
         logger.info("ECS: Killing server.");
         running = false;
         heartbeat.stop();
+        heartbeatPool.shutdownNow();
+        peerPool.close();
+        migrationPool.shutdownNow();
         try {
             serverSocket.close();
             for (ServerConnection connection : clientConnections) {
@@ -283,32 +350,67 @@ public class ECSClient implements IECSClient, Runnable, Serializable {
         return nodes.max();
     }
 
+    /**
+     * Servers start on their own machines and announce themselves to the ECS, which cannot launch them, so
+     * this gathers the next count servers that join into one batch and waits for them. The servers choose
+     * their own cache.
+     *
+     * @return the servers that joined, fewer than count if the wait timed out
+     */
     @Override
     public Collection<IECSNode> addNodes(int count, String cacheStrategy, int cacheSize) {
-        // TODO
-        //just for testing, disregard below code, but don't uncomment
-        /*ECSNode node = new ECSNode("h","h", 890,null,9,"g", "k");
-        nodes.put("this", node );
-        Iterator<IECSNode> iterator = nodes.values().iterator();
-        while (iterator.hasNext()) {
-            IECSNode iecsNode = iterator.next();
-            if (iecsNode instanceof ECSNode) {
-                ECSNode node1 = (ECSNode) iecsNode;
-                node1.startServer();
-            }*/
-        return null;
+        setupNodes(count, cacheStrategy, cacheSize);
+        try {
+            awaitNodes(count, AWAIT_NODES_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (pendingJoins) {
+            return new ArrayList<>(joinedNodes);
+        }
     }
 
+    /**
+     * Holds the joins of the next count servers until all of them announced themselves, so they join in
+     * one batch; awaitNodes must follow.
+     *
+     * @return the servers already waiting to join
+     */
     @Override
     public Collection<IECSNode> setupNodes(int count, String cacheStrategy, int cacheSize) {
-        // TODO
-        return null;
+        synchronized (pendingJoins) {
+            expectedJoins = count;
+            appliedJoins = 0;
+            joinedNodes.clear();
+            List<IECSNode> waiting = new ArrayList<>();
+            for (Join join : pendingJoins.values()) {
+                waiting.add(new ECSNode(join.nodeName(), join.address, join.port, null));
+            }
+            pendingJoins.notifyAll();
+            return waiting;
+        }
     }
 
+    /**
+     * Waits until count servers joined since setupNodes. On timeout the servers that did announce
+     * themselves join without waiting for the rest.
+     */
     @Override
-    public boolean awaitNodes(int count, int timeout) throws Exception {
-        // TODO
-        return false;
+    public boolean awaitNodes(int count, int timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (pendingJoins) {
+            while (appliedJoins < count) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    logger.info(String.format("ECS: %d of %d servers joined in time.", appliedJoins, count));
+                    expectedJoins = 0;
+                    pendingJoins.notifyAll();
+                    return false;
+                }
+                pendingJoins.wait(left);
+            }
+            return true;
+        }
     }
 
     @Override
@@ -325,60 +427,127 @@ public class ECSClient implements IECSClient, Runnable, Serializable {
 
     public boolean removeNode(String nodeName, List<String> dataToTransfer) throws Exception {
         synchronized (lock) {
-            ECSNode removeNode = null;
-            String removeNodeHash = null;
-            for (String keyNode : nodes.keys()) {
-                ECSNode ecsNode = (ECSNode) nodes.get(keyNode);
-                if (ecsNode.getNodeName().compareTo(nodeName) == 0) {
-                    removeNode = ecsNode;
-                    removeNodeHash = keyNode;
-                }
-            }
-
-            if (removeNode == null) {
+            List<String> tokens = nodes.tokensOf(nodeName);
+            if (tokens.isEmpty()) {
                 return false;
             }
-
-            if (nodes.size() == 1) {
-                nodes.delete(removeNodeHash);
+            ECSNode removeNode = (ECSNode) nodes.get(nodes.nodeIdOf(tokens.get(0)));
+            nodes.removeServer(nodeName);
+            if (nodes.isEmpty()) {
                 return true;
             }
-
-            String hashOfSuccessor = getSuccessor(removeNodeHash);
-            ECSNode successorNode = (ECSNode) nodes.get(hashOfSuccessor);
-            sendMessage(successorNode, new ECSMessage(ActionType.SET_WRITE_LOCK, true, null, null, nodes));
-            sendMessage(successorNode, new ECSMessage(ActionType.APPEND, true, dataToTransfer, null, nodes));
-            sendMessage(successorNode, new ECSMessage(ActionType.UNSET_WRITE_LOCK, true, null, null, nodes));
-            successorNode.getNodeHashRange()[0] = removeNode.getNodeHashRange()[0];
-            nodes.delete(removeNodeHash);
+            // A leaving server normally bulk-transfers its ranges to their new owners itself and sends none here.
+            if (dataToTransfer != null && !dataToTransfer.isEmpty()) {
+                appendToOwners(dataToTransfer);
+            }
+            peerPool.closePeer(removeNode.getNodeHost(), removeNode.getNodePort());
             updateAllNodesMetaData();
             logger.info("Removed a node from the bst, current state of bst: \n" + nodes.print());
             return true;
         }
     }
 
+    private void appendToOwners(List<String> data) {
+        Map<String, List<String>> dataByOwner = new HashMap<>();
+        Map<String, Set<String>> positionsByOwner = new HashMap<>();
+        for (String line : data) {
+            String keyHash = HashUtils.getHash(line.split(" ", 2)[0]);
+            String owner = nodes.coordinatorOf(keyHash);
+            dataByOwner.computeIfAbsent(owner, k -> new ArrayList<>()).add(line);
+            positionsByOwner.computeIfAbsent(owner, k -> new TreeSet<>()).add(nodes.positionOf(keyHash));
+        }
+        for (Map.Entry<String, List<String>> owned : dataByOwner.entrySet()) {
+            ECSNode owner = (ECSNode) nodes.get(owned.getKey());
+            List<String[]> ranges = new ArrayList<>();
+            for (String position : positionsByOwner.get(owned.getKey())) {
+                ranges.add(nodes.get(position).getNodeHashRange());
+            }
+            String[] range = ECSMessage.flattenRanges(ranges);
+            sendMessage(owner, new ECSMessage(ActionType.SET_WRITE_LOCK, true, null, range, nodes), PeerConnectionPool.DEFAULT_REQUEST_TIMEOUT_MS);
+            sendMessage(owner, new ECSMessage(ActionType.APPEND, true, owned.getValue(), null, nodes), PeerConnectionPool.DEFAULT_REQUEST_TIMEOUT_MS);
+            sendMessage(owner, new ECSMessage(ActionType.UNSET_WRITE_LOCK, true, null, range, nodes), PeerConnectionPool.DEFAULT_REQUEST_TIMEOUT_MS);
+        }
+    }
+
+    /**
+     * Takes a failed server off the ring. Its ranges pass to the owners of the following positions, which
+     * get the data from the failed server's replicas: a new owner that is itself a replica promotes its own
+     * copy, the others are sent theirs by the replicas in turn, all in parallel.
+     */
     public boolean removeNodeForForceShutdown(ECSNode removeNode) throws Exception {
         synchronized (lock) {
-            String removeNodeHash = removeNode.getNodeHashRange()[1];
-
-            if (nodes.size() == 1) {
-                nodes.delete(removeNodeHash);
+            String nodeName = removeNode.getNodeName();
+            if (nodes.tokensOf(nodeName).isEmpty()) {
+                return false;
+            }
+            if (nodes.serverCount() == 1) {
+                nodes.removeServer(nodeName);
                 return true;
             }
 
-            String hashOfSuccessor = getSuccessor(removeNodeHash);
-            ECSNode successorNode = (ECSNode) nodes.get(hashOfSuccessor);
-            sendMessage(successorNode, new ECSMessage(ActionType.SET_WRITE_LOCK, true, null, null, nodes));
-            sendMessage(successorNode, new ECSMessage(ActionType.INTERNAL_TRANSFER, true, null, null, nodes, removeNodeHash));
-            sendMessage(successorNode, new ECSMessage(ActionType.UNSET_WRITE_LOCK, true, null, null, nodes));
-            successorNode.getNodeHashRange()[0] = removeNode.getNodeHashRange()[0];
-            nodes.delete(removeNodeHash);
+            String removedId = BST.token(nodeName, 0);
+            List<String> replicas = nodes.successors(removedId, nodes.replicaCount());
+            Map<String, List<String[]>> heirs = nodes.rangesHandedOffBy(nodeName);
+            if (replicas.isEmpty()) {
+                logger.error("No replica holds the data of " + nodeName + ", its ranges start out empty.");
+            } else {
+                recoverRanges(removedId, replicas, heirs);
+            }
+            nodes.removeServer(nodeName);
+            peerPool.closePeer(removeNode.getNodeHost(), removeNode.getNodePort());
             updateAllNodesMetaData();
             logger.info("Removed a node from the bst, current state of bst: \n" + nodes.print());
             return true;
         }
     }
 
+    private void recoverRanges(String removedId, List<String> replicas, Map<String, List<String[]>> heirs) {
+        List<Callable<Boolean>> recoveries = new ArrayList<>();
+        int next = 0;
+        for (Map.Entry<String, List<String[]>> heir : heirs.entrySet()) {
+            ECSNode heirNode = (ECSNode) nodes.get(heir.getKey());
+            boolean local = replicas.contains(heir.getKey());
+            ECSNode source = local ? heirNode : (ECSNode) nodes.get(replicas.get(next++ % replicas.size()));
+            ECSMessage promote = new ECSMessage(ActionType.INTERNAL_TRANSFER, true, null,
+                    ECSMessage.flattenRanges(heir.getValue()), null, removedId);
+            if (!local) {
+                promote.setServerInfo(heirNode.getNodeHost(), heirNode.getNodePort());
+            }
+            recoveries.add(() -> {
+                acquireWriteLock(heirNode, promote.range);
+                ECSMessage response = sendMessage(source, promote, PeerConnectionPool.DEFAULT_REQUEST_TIMEOUT_MS);
+                releaseWriteLock(heirNode, promote.range);
+                boolean success = response != null && response.success;
+                logger.info(String.format("Recovery of %d ranges from %s to %s %s.", heir.getValue().size(),
+                        source.getNodeName(), heirNode.getNodeName(), success ? "succeeded" : "failed"));
+                return success;
+            });
+        }
+        runInParallel(recoveries);
+    }
+
+    /**
+     * Runs the migration steps concurrently and waits for all of them.
+     *
+     * @return the results, in the order of the steps
+     */
+    private List<Boolean> runInParallel(List<Callable<Boolean>> steps) {
+        List<Boolean> results = new ArrayList<>();
+        try {
+            for (Future<Boolean> step : migrationPool.invokeAll(steps)) {
+                try {
+                    results.add(step.get());
+                } catch (ExecutionException e) {
+                    logger.error("Migration step failed", e.getCause());
+                    results.add(false);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return results;
+    }
+
     private void transferDataForRemovedNode(ECSNode removeNode, ECSNode successorNode) {
         try {
             ECSMessage msg = sendMessage(removeNode, new ECSMessage(ActionType.TRANSFER, true, null, null, nodes));
@@ -411,35 +580,177 @@ public class ECSClient implements IECSClient, Runnable, Serializable {
         return nodes.get(Key);
     }
 
-    public void onMessageReceived(String message, int port, String address) {
+    public void onMessageReceived(String message, int port, String address, double weight) {
+        if (!message.equals("New Node")) {
+            logger.info("Unknown message type: " + message);
+            return;
+        }
+        String nodeName = address + ":" + port;
+        weight = weight > 0 ? weight : 1;
         synchronized (lock) {
-            if (message.equals("New Node")) {
-                String hashCode = HashUtils.getHash(address + ":" + port);
-                String[] hashRange = {getStartNodeHash(hashCode), hashCode};
-                ECSNode newNode = new ECSNode(address + ":" + port, address, port, hashRange);
-                newNode.priorityNum = nodes.getMaxPriorityNum() + 1;
-                List<String> kvToTransfer = new ArrayList<String>();
-                nodes.put(hashCode, newNode);
-                if (nodes.size() > 1) {
-                    ECSNode successorNode = (ECSNode) nodes.get(getSuccessor(hashCode));
-                    successorNode.getNodeHashRange()[0] = hashCode;
-                    if (dataTransfer(newNode, successorNode)) {
-                        logger.info("ECS: Added new node to the bst, current state of bst: \n" + nodes.print());
-                        updateAllNodesMetaData();
-                    }
-                    ECSMessage sucNodeMsg = new ECSMessage();
-                    sucNodeMsg.setAction(ActionType.UNSET_WRITE_LOCK);
-                    try {
-                        sendMessage(successorNode, sucNodeMsg);
-                    } catch (Exception e) {
-                        logger.error("Couldn't UNSET write lock.");
+            if (!nodes.tokensOf(nodeName).isEmpty()) {
+                reweight(nodeName, weight);
+                return;
+            }
+        }
+        synchronized (pendingJoins) {
+            boolean first = pendingJoins.isEmpty();
+            pendingJoins.put(nodeName, new Join(address, port, weight));
+            pendingJoins.notifyAll();
+            if (!first) {
+                // The first server of the batch adds this one too.
+                return;
+            }
+        }
+        addPendingServers();
+    }
+
+    private static class Join {
+        final String address;
+        final int port;
+        final double weight;
+
+        Join(String address, int port, double weight) {
+            this.address = address;
+            this.port = port;
+            this.weight = weight;
+        }
+
+        String nodeName() {
+            return address + ":" + port;
+        }
+    }
+
+    /**
+     * Waits out the join window, or for the servers setupNodes expects, and then adds every server that
+     * announced itself meanwhile in one step.
+     */
+    private void addPendingServers() {
+        List<Join> batch;
+        synchronized (pendingJoins) {
+            long deadline = System.currentTimeMillis() + joinWindowMs;
+            try {
+                while (true) {
+                    long left = deadline - System.currentTimeMillis();
+                    if (expectedJoins > 0 ? pendingJoins.size() >= expectedJoins : left <= 0) {
+                        break;
                     }
+                    pendingJoins.wait(expectedJoins > 0 ? 0 : left);
                 }
-                logger.info("Added new node to the bst, current state of bst: \n" + nodes.print());
-                updateAllNodesMetaData();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-            logger.info("Unknown message type: " + message);
-            updateAllNodesMetaData();
+            batch = new ArrayList<>(pendingJoins.values());
+            pendingJoins.clear();
+            expectedJoins = 0;
+        }
+        List<IECSNode> added;
+        synchronized (lock) {
+            added = addServers(batch);
+        }
+        synchronized (pendingJoins) {
+            appliedJoins += added.size();
+            joinedNodes.addAll(added);
+            pendingJoins.notifyAll();
+        }
+    }
+
+    /**
+     * Puts servers that joined together on the ring at once. Every range moves straight to its final
+     * owner, all in parallel, and one metadata update goes out at the end.
+     *
+     * @return the primary nodes of the servers added
+     */
+    private List<IECSNode> addServers(List<Join> joins) {
+        List<IECSNode> added = new ArrayList<>();
+        List<String> tokens = new ArrayList<>();
+        for (Join join : joins) {
+            if (!nodes.tokensOf(join.nodeName()).isEmpty()) {
+                reweight(join.nodeName(), join.weight);
+                continue;
+            }
+            List<String> joined = nodes.addServer(join.address, join.port, nodes.tokensForWeight(join.weight),
+                    nodes.getMaxPriorityNum() + 1);
+            applyWeight(join.nodeName(), join.weight);
+            tokens.addAll(joined);
+            added.add(nodes.get(joined.get(0)));
+        }
+        logger.info(String.format("Added %d servers at %d positions, current state of bst: \n%s", added.size(),
+                tokens.size(), nodes.print()));
+        List<Move> moves = new ArrayList<>();
+        for (Map.Entry<String, Map<String, List<String[]>>> source : nodes.rangesTakenByServers(tokens).entrySet()) {
+            for (Map.Entry<String, List<String[]>> target : source.getValue().entrySet()) {
+                moves.add(new Move((ECSNode) nodes.get(source.getKey()), (ECSNode) nodes.get(target.getKey()),
+                        target.getValue()));
+            }
+        }
+        migrate(moves);
+        return added;
+    }
+
+    /**
+     * Resizes a server to the number of ring positions its new weight calls for. Added positions take
+     * their ranges from the previous owners, removed ones hand theirs to the servers that follow.
+     */
+    private void reweight(String nodeName, double weight) {
+        ECSNode node = (ECSNode) nodes.get(BST.token(nodeName, 0));
+        double previousWeight = node.weight;
+        int tokenCount = nodes.tokensForWeight(weight);
+        int current = nodes.tokensOf(nodeName).size();
+        applyWeight(nodeName, weight);
+        List<Move> moves = new ArrayList<>();
+        Runnable undo = () -> applyWeight(nodeName, previousWeight);
+        if (tokenCount > current) {
+            List<String> added = nodes.addServer(node.getNodeHost(), node.getNodePort(), tokenCount, node.priorityNum);
+            applyWeight(nodeName, weight);
+            moves = movesFrom(nodes.rangesTakenBy(added), node);
+            undo = () -> {
+                for (String token : added) {
+                    nodes.delete(token);
+                }
+                nodes.updateRanges();
+                applyWeight(nodeName, previousWeight);
+            };
+        } else if (tokenCount < current) {
+            List<String> removed = nodes.tokensFrom(nodeName, tokenCount);
+            moves = movesTo(node, nodes.rangesHandedOffBy(removed));
+            for (String token : removed) {
+                nodes.delete(token);
+            }
+            nodes.updateRanges();
+            undo = () -> {
+                for (String token : removed) {
+                    nodes.assignPosition(token, node.nodeId);
+                }
+                applyWeight(nodeName, previousWeight);
+            };
+        }
+        logger.info(String.format("ECS: %s has weight %s, %d positions instead of %d.", nodeName, weight,
+                tokenCount, current));
+        if (!migrate(moves, undo).isEmpty()) {
+            logger.info(String.format("ECS: %s keeps weight %s and its %d positions.", nodeName, previousWeight, current));
+        }
+    }
+
+    /**
+     * Changes the weight of a server in the ring, e.g. after its hardware changed, and moves data to match.
+     */
+    public void setWeight(String nodeName, double weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("Weight must be positive: " + weight);
+        }
+        synchronized (lock) {
+            if (nodes.tokensOf(nodeName).isEmpty()) {
+                logger.info("ECS: No server named " + nodeName);
+                return;
+            }
+            reweight(nodeName, weight);
+        }
+    }
+
+    private void applyWeight(String nodeName, double weight) {
+        for (String token : nodes.tokensOf(nodeName)) {
+            ((ECSNode) nodes.get(token)).weight = weight;
         }
     }
 
@@ -503,73 +814,254 @@ public class ECSClient implements IECSClient, Runnable, Serializable {
 //        return null;
 //    }
 
-    private boolean dataTransfer(ECSNode newNode, ECSNode sucNode) {
-        try {
-            ECSMessage newNodeMsg = new ECSMessage();
-            ECSMessage sucNodeMsg = new ECSMessage();
-            newNodeMsg.setAction(ActionType.SET_WRITE_LOCK);
-            sucNodeMsg.setAction(ActionType.SET_WRITE_LOCK);
-            ECSMessage newNodeResponse = sendMessage(newNode, newNodeMsg);
-            if (!newNodeResponse.success) {
-                logger.error("Set write lock failed on: " + newNode.getNodeName());
-                return false;
+    // Ranges moving from one server to another in a migration.
+    private static class Move {
+        final ECSNode source;
+        final ECSNode target;
+        final String[] ranges;
+        // The bulk transfer that streams the ranges, under which the target can drop them again.
+        String transferId;
+
+        Move(ECSNode source, ECSNode target, List<String[]> ranges) {
+            this.source = source;
+            this.target = target;
+            this.ranges = ECSMessage.flattenRanges(ranges);
+        }
+    }
+
+    private List<Move> movesFrom(Map<String, List<String[]>> rangesBySource, ECSNode target) {
+        List<Move> moves = new ArrayList<>();
+        for (Map.Entry<String, List<String[]>> ranges : rangesBySource.entrySet()) {
+            moves.add(new Move((ECSNode) nodes.get(ranges.getKey()), target, ranges.getValue()));
+        }
+        return moves;
+    }
+
+    private List<Move> movesTo(ECSNode source, Map<String, List<String[]>> rangesByTarget) {
+        List<Move> moves = new ArrayList<>();
+        for (Map.Entry<String, List<String[]>> ranges : rangesByTarget.entrySet()) {
+            moves.add(new Move(source, (ECSNode) nodes.get(ranges.getKey()), ranges.getValue()));
+        }
+        return moves;
+    }
+
+    /**
+     * Carries out a ring change whose new metadata is already in nodes. Each source streams its ranges to
+     * its target while they stay open to writes, then the ranges are locked on the source and the writes
+     * made during the stream follow, all moves in parallel. Only the moving ranges are ever locked, and
+     * only from the catch-up until the new metadata is out, so no write lands on a server that just gave
+     * its range up and writes elsewhere never wait.
+     */
+    private void migrate(List<Move> moves) {
+        migrate(moves, null);
+    }
+
+    /**
+     * Like migrate, for a ring change that may as well not happen. If any move fails, undo puts nodes back
+     * as it was before the change and the moves that did get through are taken back too, before the
+     * metadata goes out, so every range stays with a server that holds its data.
+     *
+     * @return the moves that failed
+     */
+    private List<Move> migrate(List<Move> moves, Runnable undo) {
+        List<Callable<Boolean>> transfers = new ArrayList<>();
+        for (Move move : moves) {
+            transfers.add(() -> streamRanges(move));
+        }
+        List<Boolean> streamed = runInParallel(transfers);
+        List<Move> failed = new ArrayList<>();
+        for (int i = 0; i < streamed.size(); i++) {
+            if (!streamed.get(i)) {
+                failed.add(moves.get(i));
             }
-            ECSMessage sucNodeResponse = sendMessage(sucNode, sucNodeMsg);
-            if (!sucNodeResponse.success) {
-                logger.error("Set write lock failed on: " + sucNode.getNodeName());
-                return false;
+        }
+        boolean undone = undo != null && !failed.isEmpty();
+        if (undone) {
+            logger.info(String.format("ECS: %d of %d moves failed, undoing the ring change.", failed.size(), moves.size()));
+            undo.run();
+        }
+        updateAllNodesMetaData();
+        for (int i = 0; i < streamed.size(); i++) {
+            if (!streamed.get(i)) {
+                continue;
             }
-            sucNodeMsg.setAction(ActionType.TRANSFER);
-            sucNodeMsg.setRange(newNode.nodeHashRange);
-            sucNodeMsg.setServerInfo(newNode.getNodeHost(), newNode.getNodePort());
-            sucNodeResponse = sendMessage(sucNode, sucNodeMsg);
-            if (sucNodeResponse.getAction() == ActionType.TRANSFER & sucNodeResponse.success) {
-                logger.info(String.format("Transfer data from %s to %s success.", sucNode.getNodeName(),
-                        newNode.getNodeName()));
-                // Unset write lock for new node
-                newNodeMsg.setAction(ActionType.UNSET_WRITE_LOCK);
-                sendMessage(newNode, newNodeMsg);
-                // Remove transferred data from successor node
-                sucNodeMsg.setAction(ActionType.REMOVE);
-                sucNodeResponse = sendMessage(sucNode, sucNodeMsg);
-                if (sucNodeResponse.getAction() == ActionType.REMOVE & sucNodeResponse.success) {
-                    logger.info(String.format("Remove data from %s success.", sucNode.getNodeName()));
-                    return true;
-                } else {
-                    logger.info(String.format("Remove data from %s failed.", sucNode.getNodeName()));
-                    return false;
-                }
+            if (undone) {
+                releaseWriteLock(moves.get(i).source, moves.get(i).ranges);
+                abortTransfer(moves.get(i));
             } else {
-                logger.info(String.format("Transfer data from %s to %s failed.", sucNode.getNodeName(),
-                        newNode.getNodeName()));
-                return false;
+                dropRanges(moves.get(i));
             }
-        } catch (Exception ex) {
-            logger.error(ex);
+        }
+        return failed;
+    }
+
+    /**
+     * Copies the ranges of a move to its target: the snapshot while the source keeps taking writes, then,
+     * with the ranges locked on the source, the writes made in the meantime. On success both servers are
+     * left holding a write lock on the ranges.
+     */
+    private boolean streamRanges(Move move) {
+        if (!acquireWriteLock(move.target, move.ranges)) {
+            logger.error("Set write lock failed on: " + move.target.getNodeName());
+            return false;
+        }
+        ECSMessage transfer = new ECSMessage(ActionType.TRANSFER, true, null, move.ranges, null);
+        transfer.setServerInfo(move.target.getNodeHost(), move.target.getNodePort());
+        transfer.bandwidthMBps = bandwidthMBps;
+        transfer.online = true;
+        move.transferId = UUID.randomUUID().toString();
+        transfer.transferId = move.transferId;
+        long transferStart = System.currentTimeMillis();
+        ECSMessage response = sendMessage(move.source, transfer, transferTimeoutMs(move.source));
+        if (response == null || !response.success) {
+            // The sender already retried and resumed the stream; the data stays where it is.
+            logger.info(String.format("Transfer of %d ranges from %s to %s failed.", move.ranges.length / 2,
+                    move.source.getNodeName(), move.target.getNodeName()));
+            endTail(move);
+            abortTransfer(move);
+            return false;
+        }
+        long cutoverStart = System.currentTimeMillis();
+        if (!acquireWriteLock(move.source, move.ranges)) {
+            logger.error("Set write lock failed on: " + move.source.getNodeName());
+            endTail(move);
+            abortTransfer(move);
+            return false;
+        }
+        response = sendMessage(move.source, new ECSMessage(ActionType.TRANSFER_TAIL, true, null, move.ranges, null),
+                PeerConnectionPool.DEFAULT_REQUEST_TIMEOUT_MS);
+        List<String> tail = response != null && response.success ? response.getData() : null;
+        if (tail == null || (!tail.isEmpty() && !sendSucceeded(move.target,
+                new ECSMessage(ActionType.APPLY_TAIL, true, tail, null, null)))) {
+            logger.info(String.format("Catch-up of %s from %s failed.", move.target.getNodeName(),
+                    move.source.getNodeName()));
+            if (tail == null) {
+                endTail(move);
+            }
+            releaseWriteLock(move.source, move.ranges);
+            abortTransfer(move);
             return false;
         }
+        logger.info(String.format("Transfer of %d ranges from %s to %s success in %d ms, %d writes caught up in %d ms.",
+                move.ranges.length / 2, move.source.getNodeName(), move.target.getNodeName(),
+                cutoverStart - transferStart, tail.size(), System.currentTimeMillis() - cutoverStart));
+        return true;
+    }
+
+    /**
+     * How long the source of a move may take to answer its TRANSFER: the usual request timeout plus the
+     * time its data takes at the rate a migration can be expected to keep up.
+     */
+    private long transferTimeoutMs(ECSNode source) {
+        ECSMessage response = sendMessage(source, new ECSMessage(ActionType.HEARTBEAT, true, null, null, null),
+                HEARTBEAT_TIMEOUT_MS);
+        LoadStats load = response != null && response.load != null ? response.load
+                : loadStats.get(BST.token(source.getNodeName(), 0));
+        double mbps = bandwidthMBps > 0 ? bandwidthMBps * CAPPED_TRANSFER_SHARE : UNCAPPED_TRANSFER_MBPS;
+        long bytes = load == null ? 0 : load.bytesStored;
+        return PeerConnectionPool.DEFAULT_REQUEST_TIMEOUT_MS + (long) (bytes / (mbps * 1024 * 1024) * 1000);
+    }
+
+    /**
+     * Makes the source of a failed move stop tracking writes to its ranges. If this does not get through,
+     * the source drops the tail itself after a while.
+     */
+    private void endTail(Move move) {
+        if (!sendSucceeded(move.source, new ECSMessage(ActionType.TRANSFER_TAIL, true, null, move.ranges, null))) {
+            logger.error(String.format("Unable to end the transfer tail on %s.", move.source.getNodeName()));
+        }
+    }
+
+    /**
+     * Gives up on a streamed move: the target refuses the rest of the stream, drops what it received and
+     * opens the ranges again.
+     */
+    private void abortTransfer(Move move) {
+        ECSMessage abort = new ECSMessage(ActionType.ABORT_TRANSFER, true, null, move.ranges, null);
+        abort.transferId = move.transferId;
+        if (!sendSucceeded(move.target, abort)) {
+            logger.error(String.format("Unable to drop the transferred data on %s.", move.target.getNodeName()));
+        }
+        releaseWriteLock(move.target, move.ranges);
     }
 
+    /**
+     * Once the new metadata is out, drops the ranges of a streamed move from its source and opens them to
+     * writes again on both servers.
+     */
+    private void dropRanges(Move move) {
+        if (sendSucceeded(move.source, new ECSMessage(ActionType.REMOVE, true, null, move.ranges, null))) {
+            logger.info(String.format("Remove data from %s success.", move.source.getNodeName()));
+        } else {
+            logger.info(String.format("Remove data from %s failed.", move.source.getNodeName()));
+        }
+        releaseWriteLock(move.source, move.ranges);
+        releaseWriteLock(move.target, move.ranges);
+    }
+
+    private boolean sendSucceeded(ECSNode node, ECSMessage message) {
+        ECSMessage response = sendMessage(node, message, PeerConnectionPool.DEFAULT_REQUEST_TIMEOUT_MS);
+        return response != null && response.success;
+    }
+
+    private boolean acquireWriteLock(ECSNode node, String[] range) {
+        return sendSucceeded(node, new ECSMessage(ActionType.SET_WRITE_LOCK, true, null, range, null));
+    }
+
+    private void releaseWriteLock(ECSNode node, String[] range) {
+        try {
+            sendMessage(node, new ECSMessage(ActionType.UNSET_WRITE_LOCK, true, null, range, null));
+        } catch (Exception e) {
+            logger.error("Could not release write lock on: " + node.getNodeName());
+        }
+    }
+
+    /**
+     * Pushes the current metadata to all servers in parallel under a new epoch. A server that has the
+     * previous broadcast gets only what changed since; a new or lagging one gets the whole ring.
+     */
     public void updateAllNodesMetaData() {
         updateSuccessorAndPredecessorsInfo();
         logger.info("Starting update of meta data of all nodes ...");
-        for (ECSNode node : nodes.values()) {
-            try {
-                ECSMessage ecsMessage  = new ECSMessage(ActionType.UPDATE_METADATA, true, null, null, nodes);
-                ecsMessage.ecsPort = this.port;
-                ecsMessage.ecsHost = this.address;
-                sendMessage(node, ecsMessage);
-            } catch (Exception e) {
-                logger.error("Could not successfully update the metadata of all nodes, error: " + e);
+        nodes.epoch++;
+        MetadataDelta delta = broadcast == null ? null : nodes.deltaFrom(broadcast);
+        BST snapshot = nodes.copy();
+        List<Callable<Boolean>> updates = new ArrayList<>();
+        for (ECSNode node : nodes.servers()) {
+            boolean known = broadcast != null && broadcast.contains(BST.token(node.getNodeName(), 0));
+            updates.add(() -> pushMetadata(node, known ? delta : null, snapshot));
+        }
+        List<Boolean> results = runInParallel(updates);
+        broadcast = snapshot;
+        logger.info(String.format("Finished updating meta data of all nodes to epoch %d, %d of %d succeeded.",
+                nodes.epoch, Collections.frequency(results, true), updates.size()));
+    }
+
+    private boolean pushMetadata(ECSNode node, MetadataDelta delta, BST snapshot) {
+        if (delta != null) {
+            ECSMessage update = metadataMessage(null);
+            update.delta = delta;
+            if (sendSucceeded(node, update)) {
+                return true;
             }
+            logger.info("Sending the whole metadata to " + node.getNodeName() + ", the delta did not apply.");
         }
-        logger.info("Finished updating meta data of all nodes ...");
+        return sendSucceeded(node, metadataMessage(snapshot));
+    }
+
+    private ECSMessage metadataMessage(BST metadata) {
+        ECSMessage message = new ECSMessage(ActionType.UPDATE_METADATA, true, null, null, metadata);
+        message.ecsPort = this.port;
+        message.bandwidthMBps = bandwidthMBps;
+        message.ecsHost = this.address;
+        return message;
     }
 
     private void updateSuccessorAndPredecessorsInfo() {
         if (nodes.isEmpty()){
             return;
         }
+        // Replicas are chosen per server, so every position of a server carries the same lists.
         Collection<ECSNode> currentNodes = nodes.values();
         for (ECSNode node : currentNodes) {
             try {
@@ -583,58 +1075,23 @@ public class ECSClient implements IECSClient, Runnable, Serializable {
     }
 
     private List<String> getPredecessorsList(ECSNode node) {
-        List<String> predecessorsList = new ArrayList<>();
-        if (nodes.size() == 1){
-            return predecessorsList;
-        }
-        if (nodes.size() == 2){
-            predecessorsList.add(getPredecessor(node.getNodeHashRange()[1]));
-            return predecessorsList;
-        }
-        predecessorsList.add(getPredecessor(node.getNodeHashRange()[1]));
-        predecessorsList.add(getPredecessor(predecessorsList.get(0)));
-        return predecessorsList;
+        return nodes.predecessors(node.getNodeHashRange()[1], nodes.replicaCount());
     }
 
     private List<String> getSucessorsList(ECSNode node) {
-        List<String> getSuccessorsList = new ArrayList<>();
-        if (nodes.size() == 1){
-            return getSuccessorsList;
-        }
-        if (nodes.size() == 2){
-            getSuccessorsList.add(getSuccessor(node.getNodeHashRange()[1]));
-            return getSuccessorsList;
-        }
-        getSuccessorsList.add(getSuccessor(node.getNodeHashRange()[1]));
-        getSuccessorsList.add(getSuccessor(getSuccessorsList.get(0)));
-        return getSuccessorsList;
+        return nodes.successors(node.getNodeHashRange()[1], nodes.replicaCount());
     }
 
     public ECSMessage sendMessage(ECSNode node, ECSMessage msg) throws Exception {
-        try (Socket ECSSocket = new Socket(node.getNodeHost(), node.getNodePort())) {
-            // Setup input and output streams
-            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(ECSSocket.getOutputStream(), StandardCharsets.UTF_8));
-            BufferedReader in = new BufferedReader(new InputStreamReader(ECSSocket.getInputStream(), StandardCharsets.UTF_8));
-
-            ObjectMapper mapper = new ObjectMapper();
-            String jsonString = mapper.writeValueAsString(msg);
-
-            logger.info("Send message: " + jsonString);
-
-//            out.writeObject(msg);
-            out.write(jsonString);
-            out.newLine();
-            out.flush();
+        return sendMessage(node, msg, PeerConnectionPool.DEFAULT_REQUEST_TIMEOUT_MS);
+    }
 
-            // Wait for a response from the central server
-            String response = in.readLine();
-            try {
-                return new ObjectMapper().readValue(response, ECSMessage.class);
-            } catch (JsonMappingException ex) {
-                logger.error("Error during message deserialization.", ex);
-            }
-        } catch (Exception ex) {
-            logger.error("While trying to receive/send message received error");
+    private ECSMessage sendMessage(ECSNode node, ECSMessage msg, long timeoutMs) {
+        try {
+            logger.info("Send message: " + msg.getAction() + " to " + node.getNodeName());
+            return peerPool.sendECSMessage(node.getNodeHost(), node.getNodePort(), msg, timeoutMs);
+        } catch (IOException ex) {
+            logger.error("While trying to receive/send message received error: " + ex.getMessage());
         }
         return null;
     }
@@ -675,6 +1132,14 @@ public class ECSClient implements IECSClient, Runnable, Serializable {
         String address = "localhost";
         String logFile = "logs/ecsserver.log";
         Level logLevel = Level.ALL;
+        double bandwidthMBps = 0;
+        int replicationFactor = BST.DEFAULT_REPLICATION_FACTOR;
+        ReplicationMode replicationMode = ReplicationMode.FAN_OUT;
+        int virtualNodes = BST.DEFAULT_VIRTUAL_NODES;
+        double loadBound = 0;
+        boolean autoRebalance = false;
+        long joinWindowMs = DEFAULT_JOIN_WINDOW_MS;
+        boolean gossip = true;
 
         if (args.length > 0 && args[0].equals("-h")) {
             System.out.println(helpString);
@@ -702,6 +1167,51 @@ public class ECSClient implements IECSClient, Runnable, Serializable {
                             System.exit(1);
                         }
                         break;
+                    case "-bw":
+                        bandwidthMBps = Double.parseDouble(args[i + 1]);
+                        break;
+                    case "-r":
+                        replicationFactor = Integer.parseInt(args[i + 1]);
+                        if (replicationFactor < 1) {
+                            System.out.println("Invalid replication factor: " + args[i + 1]);
+                            System.out.println(helpString);
+                            System.exit(1);
+                        }
+                        break;
+                    case "-rm":
+                        replicationMode = ReplicationMode.valueOf(args[i + 1].toUpperCase());
+                        break;
+                    case "-vn":
+                        virtualNodes = Integer.parseInt(args[i + 1]);
+                        if (virtualNodes < 1) {
+                            System.out.println("Invalid number of virtual nodes: " + args[i + 1]);
+                            System.out.println(helpString);
+                            System.exit(1);
+                        }
+                        break;
+                    case "-jw":
+                        long joinWindow = Long.parseLong(args[i + 1]);
+                        if (joinWindow < 0) {
+                            System.out.println("Invalid join window: " + args[i + 1]);
+                            System.out.println(helpString);
+                            System.exit(1);
+                        }
+                        joinWindowMs = joinWindow;
+                        break;
+                    case "-ar":
+                        autoRebalance = Boolean.parseBoolean(args[i + 1]);
+                        break;
+                    case "-g":
+                        gossip = Boolean.parseBoolean(args[i + 1]);
+                        break;
+                    case "-lb":
+                        loadBound = Double.parseDouble(args[i + 1]);
+                        if (loadBound < 0) {
+                            System.out.println("Invalid load bound: " + args[i + 1]);
+                            System.out.println(helpString);
+                            System.exit(1);
+                        }
+                        break;
                     default:
                         System.out.println("Invalid argument: " + args[i]);
                         System.out.println(helpString);
@@ -725,6 +1235,14 @@ public class ECSClient implements IECSClient, Runnable, Serializable {
         try {
             new LogSetup(logFile, logLevel);
             final ECSClient escClient = new ECSClient(address, port);
+            escClient.setBandwidthMBps(bandwidthMBps);
+            escClient.setReplicationFactor(replicationFactor);
+            escClient.setReplicationMode(replicationMode);
+            escClient.setVirtualNodes(virtualNodes);
+            escClient.setLoadBound(loadBound);
+            escClient.setAutoRebalance(autoRebalance);
+            escClient.setJoinWindow(joinWindowMs);
+            escClient.setGossip(gossip);
             Runtime.getRuntime().addShutdownHook(new Thread() {
                 public void run() {
                     escClient.close();
@@ -739,8 +1257,166 @@ public class ECSClient implements IECSClient, Runnable, Serializable {
         }
     }
 
+    public void setBandwidthMBps(double bandwidthMBps) {
+        this.bandwidthMBps = bandwidthMBps;
+    }
+
+    /**
+     * Sets how many nodes hold a copy of each key and pushes the new replica sets to all servers, which
+     * create, fill and drop replica files accordingly. Values above the node count keep a copy on every node.
+     */
+    public void setReplicationFactor(int replicationFactor) {
+        synchronized (lock) {
+            nodes.setReplicationFactor(replicationFactor);
+            logger.info("Replication factor set to " + replicationFactor);
+            if (!nodes.isEmpty()) {
+                updateAllNodesMetaData();
+            }
+        }
+    }
+
+    /**
+     * Sets how many ring positions (virtual nodes) each server gets when it joins. More positions spread
+     * keys more evenly and let a join or leave move many small ranges from and to many servers in
+     * parallel. Servers already on the ring keep their positions.
+     */
+    public void setVirtualNodes(int virtualNodes) {
+        synchronized (lock) {
+            nodes.setVirtualNodes(virtualNodes);
+            logger.info("Virtual nodes per server set to " + virtualNodes);
+        }
+    }
+
+    /**
+     * Switches how coordinators ship writes to their replicas and pushes the change to all servers.
+     */
+    public void setReplicationMode(ReplicationMode replicationMode) {
+        synchronized (lock) {
+            nodes.setReplicationMode(replicationMode);
+            logger.info("Replication mode set to " + replicationMode);
+            if (!nodes.isEmpty()) {
+                updateAllNodesMetaData();
+            }
+        }
+    }
+
+    /**
+     * Turns bounded-load read routing on with the given epsilon, or off with 0. While it is on, the
+     * servers' request counts are checked after every heartbeat round; when a server is over the bound,
+     * or the ring changed under the routes, they are replanned and pushed with the metadata.
+     */
+    public void setLoadBound(double epsilon) {
+        synchronized (lock) {
+            nodes.setLoadBound(epsilon);
+            logger.info("Bounded-load read routing " + (epsilon > 0 ? "set to epsilon " + epsilon : "off"));
+            if (!nodes.isEmpty()) {
+                updateAllNodesMetaData();
+            }
+        }
+    }
+
+    private void recordRequests(String nodeName, Map<String, long[]> counts, Map<String, long[]> round) {
+        if (counts == null) {
+            return;
+        }
+        Map<String, long[]> previous = reportedRequests.getOrDefault(nodeName, Collections.emptyMap());
+        for (Map.Entry<String, long[]> entry : counts.entrySet()) {
+            long[] before = previous.getOrDefault(entry.getKey(), new long[2]);
+            long[] total = round.computeIfAbsent(entry.getKey(), k -> new long[2]);
+            for (int i = 0; i < 2; i++) {
+                // A restarted server counts from zero again.
+                long delta = entry.getValue()[i] - before[i];
+                total[i] += delta >= 0 ? delta : entry.getValue()[i];
+            }
+        }
+        reportedRequests.put(nodeName, counts);
+    }
+
+    private void updateReadRoutes(Map<String, long[]> round) {
+        for (Map.Entry<String, long[]> entry : recentRequests.entrySet()) {
+            long[] total = round.computeIfAbsent(entry.getKey(), k -> new long[2]);
+            for (int i = 0; i < 2; i++) {
+                total[i] += entry.getValue()[i] / 2;
+            }
+        }
+        recentRequests = round;
+        long total = 0;
+        for (long[] requests : round.values()) {
+            total += requests[0] + requests[1];
+        }
+        synchronized (lock) {
+            if (nodes.getLoadBound() == 0 || nodes.isEmpty() || total < MIN_ROUTED_REQUESTS
+                    || nodes.withinLoadBound(recentRequests)) {
+                return;
+            }
+            TreeMap<String, ReadRoute> routes = nodes.planReadRoutes(recentRequests);
+            if (!routes.equals(nodes.readRoutes)) {
+                nodes.readRoutes = routes;
+                logger.info(String.format("ECS: Read routes changed, %d positions spill over: %s", routes.size(), routes));
+                updateAllNodesMetaData();
+            }
+        }
+    }
+
+    /**
+     * Sets how long a joining server waits for others to join with it; 0 adds every server on its own.
+     */
+    public void setJoinWindow(long joinWindowMs) {
+        this.joinWindowMs = joinWindowMs;
+        logger.info("Join window set to " + joinWindowMs + " ms");
+    }
+
+    /**
+     * Turns gossip-based failure detection on or off. While it is off the ECS heartbeats every server in
+     * every round and detects failures itself.
+     */
+    public void setGossip(boolean gossip) {
+        this.gossip = gossip;
+        logger.info("Gossip failure detection " + (gossip ? "on" : "off"));
+    }
+
+    /**
+     * Turns automatic rebalancing on or off. While it is on, ring positions move from servers that stay
+     * overloaded to the least loaded server, see Rebalancer.
+     */
+    public void setAutoRebalance(boolean autoRebalance) {
+        this.autoRebalance = autoRebalance;
+        logger.info("Automatic rebalancing " + (autoRebalance ? "on" : "off"));
+    }
+
+    private void rebalance() {
+        synchronized (lock) {
+            Rebalancer.Step step = rebalancer.plan(nodes, loadStats, recentRequests, System.currentTimeMillis());
+            if (step == null) {
+                return;
+            }
+            ECSNode source = (ECSNode) nodes.get(step.from);
+            ECSNode target = (ECSNode) nodes.get(step.to);
+            String position = step.splitAt != null ? step.splitAt : step.token;
+            nodes.assignPosition(position, step.to);
+            String[] range = nodes.get(position).getNodeHashRange();
+            logger.info(String.format("ECS: Rebalancing, %s (%s) hands range %s-%s to %s (%s)%s.", source.getNodeName(),
+                    loadStats.get(step.from), range[0], range[1], target.getNodeName(), loadStats.get(step.to),
+                    step.splitAt != null ? ", split off position " + step.token : ""));
+            migrate(Collections.singletonList(new Move(source, target, Collections.singletonList(range))), () -> {
+                // Nobody asked for this move, so the position stays where its data is.
+                if (step.splitAt != null) {
+                    nodes.delete(position);
+                    nodes.updateRanges();
+                } else {
+                    nodes.assignPosition(position, step.from);
+                }
+            });
+        }
+    }
+
     public void close() {
+        running = false;
         try {
+            heartbeat.stop();
+            heartbeatPool.shutdownNow();
+            peerPool.close();
+            migrationPool.shutdownNow();
             serverSocket.close();
             logger.info("Successfully closed ECSClient");
         } catch (IOException e) {
@@ -755,6 +1431,14 @@ public class ECSClient implements IECSClient, Runnable, Serializable {
                 + "  -a <address>       Address for the KVServer (default: localhost)\n"
                 + "  -l <logFile>       File path for the log file (default: ./server.log)\n"
                 + "  -ll <logLevel>     Log level for the server (default: ALL)\n"
+                + "  -bw <MB/s>         Bandwidth cap pushed to servers for migrations, 0 = unlimited (default: 0)\n"
+                + "  -r <copies>        Nodes holding a copy of each key, 1 to the node count (default: 3)\n"
+                + "  -rm <mode>         How writes reach replicas: FAN_OUT or CHAIN (default: FAN_OUT)\n"
+                + "  -vn <tokens>       Ring positions per server, applies to servers joining later (default: 1)\n"
+                + "  -lb <epsilon>      Route reads so no server exceeds (1 + epsilon) times the average load, 0 = off (default: 0)\n"
+                + "  -ar <true|false>   Move ring positions away from servers that stay overloaded (default: false)\n"
+                + "  -jw <ms>           How long a joining server waits for others to join with it (default: 300)\n"
+                + "  -g <true|false>    Let the servers find failed servers by gossip instead of ECS heartbeats (default: true)\n"
                 + "Example:\n"
                 + "  java KVServer -p 8080 -a 127.0.0.1  -l /path/to/server.log -ll INFO";
     }
@@ -769,25 +1453,158 @@ public class ECSClient implements IECSClient, Runnable, Serializable {
     }
 
 
-    public synchronized void sendHeartbeats() {
-            logger.info("Sending HeartBeats");
-            if(nodes.isEmpty()){
-                return;
+    /**
+     * Runs one heartbeat round: removes the servers that stayed suspected, sends every other server a
+     * heartbeat without waiting for it, and plans read routes and rebalancing from the counts reported
+     * since the last round. With gossip on, failures are reported by the servers instead, and servers
+     * are only heartbeated for their load while read routing or rebalancing uses it. A lone server has
+     * no one to gossip with and is always heartbeated.
+     */
+    public void sendHeartbeats() {
+        if (!heartbeat.isRunning()) {
+            // A round that was already due when the ECS shut down; its pools are gone.
+            return;
+        }
+        logger.debug("Sending HeartBeats");
+        List<IECSNode> servers = new ArrayList<>(nodes.servers());
+        if (gossip && servers.size() > 1) {
+            // Start over once the ECS has to detect failures itself again.
+            failureDetector.retain(Collections.emptySet());
+            suspectedRounds.clear();
+            lastHeartbeatRound = 0;
+            if (nodes.getLoadBound() > 0 || autoRebalance) {
+                for (IECSNode node : servers) {
+                    heartbeatPool.submit(() -> heartbeat((ECSNode) node));
+                }
+                planFromLastRound();
             }
-            for (IECSNode node : nodes.values()) {
-                try {
-                    ECSMessage heartbeatMsg = new ECSMessage(ActionType.HEARTBEAT, true, null, null, null);
-                    ECSMessage response = this.sendMessage((ECSNode) node, heartbeatMsg);
-                    if (response == null || !response.success) {
-                        logger.info("Failed to receive heartbeat response from: " + node.getNodeName());
-                        onServerDown((ECSNode) node);
-                    } else {
-                        logger.info("Received heartbeat response from: " + node.getNodeName());
-                    }
-                } catch (Exception e) {
-                    logger.error("Error sending heartbeat to " + node.getNodeName());
+            return;
+        }
+        long now = System.currentTimeMillis();
+        // Silence while this thread was held up, e.g. by a long pause, is not the servers' fault.
+        boolean stalled = lastHeartbeatRound > 0 && now - lastHeartbeatRound > 2 * Heartbeat.HEARTBEAT_INTERVAL_MS;
+        lastHeartbeatRound = now;
+        Set<String> names = new HashSet<>();
+        for (IECSNode node : servers) {
+            names.add(node.getNodeName());
+        }
+        failureDetector.retain(names);
+        suspectedRounds.keySet().retainAll(names);
+        for (IECSNode node : servers) {
+            String name = node.getNodeName();
+            if (failing.contains(name)) {
+                continue;
+            }
+            failureDetector.watch(name, now);
+            double phi = stalled ? 0 : failureDetector.phi(name, now);
+            if (phi < PHI_THRESHOLD) {
+                suspectedRounds.remove(name);
+            } else if (suspectedRounds.merge(name, 1, Integer::sum) >= SUSPECT_ROUNDS) {
+                logger.info(String.format("ECS: %s suspected for %d rounds (phi %.1f), removing it.", name,
+                        SUSPECT_ROUNDS, phi));
+                suspectedRounds.remove(name);
+                removeFailedServer((ECSNode) node);
+                continue;
+            } else {
+                logger.info(String.format("ECS: %s suspected (phi %.1f).", name, phi));
+            }
+            heartbeatPool.submit(() -> heartbeat((ECSNode) node));
+        }
+        planFromLastRound();
+    }
+
+    private void planFromLastRound() {
+        if (!planning.compareAndSet(false, true)) {
+            return;
+        }
+        Map<String, long[]> round;
+        synchronized (reportedRequests) {
+            round = heartbeatRound;
+            heartbeatRound = new HashMap<>();
+        }
+        // Planning waits for the ring lock, which a migration can hold for long.
+        migrationPool.submit(() -> {
+            try {
+                updateReadRoutes(round);
+                if (autoRebalance) {
+                    rebalance();
                 }
+            } catch (Exception e) {
+                logger.error("Planning read routes and rebalancing failed", e);
+            } finally {
+                planning.set(false);
             }
+        });
+    }
+
+    private void heartbeat(ECSNode node) {
+        ECSMessage heartbeatMsg = new ECSMessage(ActionType.HEARTBEAT, true, null, null, null);
+        ECSMessage response = sendMessage(node, heartbeatMsg, HEARTBEAT_TIMEOUT_MS);
+        if (response == null || !response.success) {
+            logger.info("Failed to receive heartbeat response from: " + node.getNodeName());
+            return;
         }
+        failureDetector.heartbeat(node.getNodeName(), System.currentTimeMillis());
+        logger.debug("Received heartbeat response from: " + node.getNodeName());
+        synchronized (reportedRequests) {
+            recordRequests(node.getNodeName(), response.requestCounts, heartbeatRound);
+        }
+        if (response.load != null) {
+            loadStats.put(BST.token(node.getNodeName(), 0), response.load);
+            logger.debug(String.format("Load of %s: %s", node.getNodeName(), response.load));
+            if (response.load.replicaLagMillis > REPLICA_LAG_WARN_MS) {
+                logger.warn(String.format("A replica of %s lags by %d entries, %d ms.", node.getNodeName(),
+                        response.load.replicaLagEntries, response.load.replicaLagMillis));
+            }
+        }
+    }
+
+    /**
+     * Handles a server's report that gossip found another one dead. The ECS removes it only if it does not
+     * answer the ECS's own heartbeat either, so a server cut off from its peers alone stays on the ring.
+     */
+    public void onServerReportedDown(String nodeName) {
+        ECSNode node = null;
+        for (ECSNode server : nodes.servers()) {
+            if (server.getNodeName().equals(nodeName)) {
+                node = server;
+            }
+        }
+        if (node == null || failing.contains(nodeName)) {
+            return;
+        }
+        logger.info("ECS: Gossip reports " + nodeName + " dead, confirming.");
+        ECSNode reported = node;
+        heartbeatPool.submit(() -> {
+            ECSMessage heartbeatMsg = new ECSMessage(ActionType.HEARTBEAT, true, null, null, null);
+            ECSMessage response = sendMessage(reported, heartbeatMsg, HEARTBEAT_TIMEOUT_MS);
+            if (response != null && response.success) {
+                logger.info("ECS: " + nodeName + " still answers, keeping it.");
+                return;
+            }
+            removeFailedServer(reported);
+        });
+    }
+
+    private void removeFailedServer(ECSNode node) {
+        String name = node.getNodeName();
+        if (!failing.add(name)) {
+            return;
+        }
+        synchronized (reportedRequests) {
+            reportedRequests.remove(name);
+        }
+        loadStats.remove(BST.token(name, 0));
+        migrationPool.submit(() -> {
+            try {
+                onServerDown(node);
+            } catch (Exception e) {
+                logger.error("Removing failed server " + name + " failed", e);
+            } finally {
+                failureDetector.forget(name);
+                failing.remove(name);
+            }
+        });
     }
 
+}
@@ -0,0 +1,142 @@
+package app_kvECS;
+
+import ecs.ECSNode;
+import shared.BST;
+import shared.messages.LoadStats;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Decides when the ECS moves load between servers, from the statistics servers report with their
+ * heartbeats. A server is hot when its request rate per unit of weight is more than HOT_FACTOR times
+ * the cluster average, or when it has requests queued and its p99 latency is more than HOT_FACTOR times
+ * the cluster median. Only a server that stayed hot for HOT_ROUNDS heartbeat rounds in a row is
+ * relieved, and moves are at least MIN_MOVE_INTERVAL_MS apart, so spikes and the shift caused by a move
+ * itself do not make the ring thrash.
+ *
+ * A move hands the hot server's busiest ring position that fits into half the rate gap to the coolest
+ * server. When no position fits, or only the server's primary position is left, the busiest one is
+ * split at its midpoint and the lower half moves instead.
+ */
+public class Rebalancer {
+    static final double HOT_FACTOR = 1.5;
+    static final int HOT_ROUNDS = 3;
+    static final long MIN_MOVE_INTERVAL_MS = 30000;
+    // Below this average rate the cluster is idle enough that load differences are noise.
+    static final double MIN_OPS_PER_SECOND = 20;
+
+    /*
+     * A ring position moving from one server to another; splitAt is the new position to create in
+     * front of token, or null if token itself moves.
+     */
+    public static class Step {
+        public final String from;
+        public final String to;
+        public final String token;
+        public final String splitAt;
+
+        Step(String from, String to, String token, String splitAt) {
+            this.from = from;
+            this.to = to;
+            this.token = token;
+            this.splitAt = splitAt;
+        }
+    }
+
+    // Server id -> heartbeat rounds in a row it has been hot
+    private final Map<String, Integer> hotRounds = new HashMap<>();
+    private long lastMove = 0;
+
+    /**
+     * @param stats server id (primary token) -> load it reported last
+     * @param requests ring position -> {reads, writes} recently served for it
+     * @return the move to make now, or null
+     */
+    public Step plan(BST ring, Map<String, LoadStats> stats, Map<String, long[]> requests, long now) {
+        Map<String, Double> rates = new HashMap<>();
+        List<Double> latencies = new ArrayList<>();
+        double total = 0;
+        for (ECSNode server : ring.servers()) {
+            String id = BST.token(server.getNodeName(), 0);
+            LoadStats load = stats.get(id);
+            if (load == null) {
+                continue;
+            }
+            rates.put(id, load.opsPerSecond / (server.weight > 0 ? server.weight : 1));
+            total += load.opsPerSecond;
+            if (load.p99Millis >= 0) {
+                latencies.add(load.p99Millis);
+            }
+        }
+        hotRounds.keySet().retainAll(rates.keySet());
+        if (rates.size() < 2 || total / rates.size() < MIN_OPS_PER_SECOND) {
+            hotRounds.clear();
+            return null;
+        }
+        double average = 0;
+        for (double rate : rates.values()) {
+            average += rate / rates.size();
+        }
+        Collections.sort(latencies);
+        double medianLatency = latencies.isEmpty() ? 0 : latencies.get(latencies.size() / 2);
+
+        String hottest = null;
+        String coolest = null;
+        for (Map.Entry<String, Double> rate : rates.entrySet()) {
+            LoadStats load = stats.get(rate.getKey());
+            boolean hot = rate.getValue() > HOT_FACTOR * average || (load.queueDepth > 0 && medianLatency > 0
+                    && load.p99Millis > HOT_FACTOR * medianLatency);
+            if (!hot) {
+                hotRounds.remove(rate.getKey());
+            } else if (hotRounds.merge(rate.getKey(), 1, Integer::sum) >= HOT_ROUNDS
+                    && (hottest == null || rate.getValue() > rates.get(hottest))) {
+                hottest = rate.getKey();
+            }
+            if (coolest == null || rate.getValue() < rates.get(coolest)) {
+                coolest = rate.getKey();
+            }
+        }
+        if (hottest == null || hottest.equals(coolest) || rates.get(coolest) >= average
+                || now - lastMove < MIN_MOVE_INTERVAL_MS) {
+            return null;
+        }
+
+        double hotRate = stats.get(hottest).opsPerSecond;
+        Step step = pickPosition(ring, hottest, coolest, requests, hotRate,
+                (hotRate - stats.get(coolest).opsPerSecond) / 2);
+        if (step != null) {
+            lastMove = now;
+            hotRounds.remove(hottest);
+        }
+        return step;
+    }
+
+    private Step pickPosition(BST ring, String hot, String cool, Map<String, long[]> requests, double hotRate,
+                              double budget) {
+        List<String> positions = ring.tokensOf(ring.get(hot).getNodeName());
+        Map<String, Long> counts = new HashMap<>();
+        long served = 0;
+        for (String token : positions) {
+            long[] count = requests.getOrDefault(token, new long[2]);
+            counts.put(token, count[0] + count[1]);
+            served += count[0] + count[1];
+        }
+        positions.sort((a, b) -> Long.compare(counts.get(b), counts.get(a)));
+        double opsPerRequest = served == 0 ? 0 : hotRate / served;
+        for (String token : positions) {
+            if (!token.equals(hot) && counts.get(token) > 0 && counts.get(token) * opsPerRequest <= budget) {
+                return new Step(hot, cool, token, null);
+            }
+        }
+        String busiest = positions.get(0);
+        String splitAt = BST.midpoint(ring.get(busiest).getNodeHashRange()[0], busiest);
+        if (ring.contains(splitAt) || splitAt.equals(ring.get(busiest).getNodeHashRange()[0])) {
+            return null;
+        }
+        return new Step(hot, cool, busiest, splitAt);
+    }
+}
@@ -2,13 +2,13 @@ package app_kvECS;
 
 import app_kvECS.ECSClient;
 import com.fasterxml.jackson.databind.JsonMappingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import ecs.IECSNode;
 import org.apache.log4j.*;
 
 import shared.messages.ECSMessage;
 import shared.messages.KVMessage;
 import shared.messages.KVMessageImpl;
+import shared.messages.MessageCodec;
 import shared.utils.CommUtils;
 
 import java.net.Socket;
@@ -64,7 +64,7 @@ public class ServerConnection implements Runnable{
 			}
 
 			try {
-				ECSMessage obj = new ObjectMapper().readValue(msg, ECSMessage.class);
+				ECSMessage obj = MessageCodec.decodeECSMessage(msg);
 				handleECSMessage(obj);
 			} catch (JsonMappingException ex) {
 				logger.error("Error during message deserialization.", ex);
@@ -90,7 +90,7 @@ public class ServerConnection implements Runnable{
 					String address = msg.getServerInfo()[0];
 					try {
 						int port = Integer.parseInt(msg.getServerInfo()[1]);
-						ecsServer.onMessageReceived("New Node", port,address);
+						ecsServer.onMessageReceived("New Node", port, address, msg.weight);
 					} catch (NumberFormatException e) {
 						logger.error("Invalid port number: " + msg.getServerInfo()[1], e);
 						// Optionally, set response failure or other fields here
@@ -122,20 +122,27 @@ public class ServerConnection implements Runnable{
 				//sendMessage(new ECSMessage(ECSMessage.ActionType.None, true, null, null, null));
 //				logger.info("Message SENTTTTTT");
 				break;
+			case SERVER_DOWN:
+				CommUtils.sendECSMessage(new ECSMessage(ECSMessage.ActionType.None, true, null, null, null), this.output);
+				if (msg.getData() != null) {
+					for (String nodeName : msg.getData()) {
+						ecsServer.onServerReportedDown(nodeName);
+					}
+				}
+				break;
 			default:
 				logger.error("Unknown action.");
 		}
 	}
 	private void sendMessage(ECSMessage responseMessage) throws IOException {
-		ObjectMapper mapper = new ObjectMapper();
-		String jsonString = mapper.writeValueAsString(responseMessage);
-		output.write(jsonString);
+		output.write(MessageCodec.encode(responseMessage));
 		output.flush();
 	}
 
 	public void close() throws IOException{
 		if (isOpen) {
 			isOpen = false;
+			clientSocket.close();
 //            sendMessage("DISCONNECT");
 		}
 	}
@@ -0,0 +1,424 @@
+package app_kvServer;
+
+import org.apache.log4j.Logger;
+import shared.messages.ECSMessage;
+import shared.messages.MessageCodec;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * Dedicated channel for moving storage segments between servers (join/leave migrations and replica
+ * syncs). The sender spills the data to a file and cuts it into line-aligned chunks, so every chunk
+ * can be applied to storage on its own.
+ *
+ *   sender:   BULK <transferId> <target> <codec> <chunkCount>
+ *   receiver: READY <nextSeq>                      (or an ECS error message)
+ *   sender:   CHUNK <seq> <bytes> + raw payload    (streamed with FileChannel.transferTo)
+ *   receiver: ACK <seq>                            (after the chunk is appended to storage)
+ *   ...
+ *   sender:   END
+ *   receiver: ECS APPEND response
+ *
+ * target is "-" for the receiver's own storage (requires its write lock) or the hash of the
+ * coordinator whose replica is being filled. The receiver remembers how many chunks of a transferId
+ * it has applied; nextSeq is the resume token, so a sender that loses its connection reconnects with
+ * the same transferId and continues after the last acknowledged chunk. With the GZIP codec each chunk
+ * is compressed on its own, trading CPU for bandwidth.
+ */
+public class BulkTransfer {
+    private static final Logger logger = Logger.getRootLogger();
+
+    public static final String PRIMARY_TARGET = "-";
+    public static final String READY = "READY";
+    public static final String CHUNK = "CHUNK";
+    public static final String ACK = "ACK";
+    public static final String END = "END";
+    public static final long DEFAULT_CHUNK_BYTES = 1 << 20;
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long RETRY_BACKOFF_MS = 500;
+    private static final int CONNECT_TIMEOUT_MS = 2000;
+    private static final int RESPONSE_TIMEOUT_MS = 30000;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final long PROGRESS_INTERVAL_MS = 2000;
+
+    public enum Codec {
+        PLAIN,
+        GZIP
+    }
+
+    public static class Header {
+        public final String transferId;
+        public final String target;
+        public final Codec codec;
+        public final int chunkCount;
+
+        public Header(String transferId, String target, Codec codec, int chunkCount) {
+            this.transferId = transferId;
+            this.target = target;
+            this.codec = codec;
+            this.chunkCount = chunkCount;
+        }
+
+        @Override
+        public String toString() {
+            return MessageCodec.BULK_HEADER + transferId + " " + target + " " + codec + " " + chunkCount;
+        }
+
+        public static Header parse(String line) throws IOException {
+            String[] parts = line.split(" ");
+            if (parts.length != 5 || !line.startsWith(MessageCodec.BULK_HEADER)) {
+                throw new IOException("Malformed bulk header: " + line);
+            }
+            try {
+                return new Header(parts[1], parts[2], Codec.valueOf(parts[3]), Integer.parseInt(parts[4]));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Malformed bulk header: " + line);
+            }
+        }
+    }
+
+    /*
+     * Receiver-side state of one transfer, kept across connections so a transfer can be resumed.
+     */
+    public static class Progress {
+        public final String target;
+        public final int chunkCount;
+        public int nextSeq = 0;
+        public long lastActivity = System.currentTimeMillis();
+        // Set when the ECS gave up on the transfer; the receiver then refuses the rest of it.
+        public boolean aborted = false;
+
+        public Progress(String target, int chunkCount) {
+            this.target = target;
+            this.chunkCount = chunkCount;
+        }
+    }
+
+    public static boolean send(String host, int port, Path segment, Codec codec, String target,
+                               MigrationThrottle throttle) {
+        return send(UUID.randomUUID().toString(), host, port, segment, codec, target, throttle);
+    }
+
+    public static boolean send(String transferId, String host, int port, Path segment, Codec codec, String target,
+                               MigrationThrottle throttle) {
+        return send(transferId, host, port, segment, codec, target, throttle, DEFAULT_CHUNK_BYTES);
+    }
+
+    /**
+     * Streams a spilled storage segment to target on the server at host:port, reconnecting and
+     * resuming from the last acknowledged chunk if the connection drops. Bytes on the wire are paced
+     * by throttle, if given. The receiver knows the transfer by transferId, under which it can also be
+     * aborted there.
+     * @return true once the receiver confirms every chunk was applied
+     */
+    public static boolean send(String transferId, String host, int port, Path segment, Codec codec, String target,
+                               MigrationThrottle throttle, long chunkBytes) {
+        List<Long> boundaries;
+        try {
+            boundaries = chunkBoundaries(segment, chunkBytes);
+        } catch (IOException e) {
+            logger.error("Unable to read transfer file " + segment + ": " + e.getMessage());
+            return false;
+        }
+        Header header = new Header(transferId, target, codec, boundaries.size() - 1);
+        if (throttle != null) {
+            throttle.begin();
+        }
+        try {
+            for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+                try {
+                    return sendChunks(host, port, segment, header, boundaries, throttle);
+                } catch (IOException e) {
+                    logger.warn(String.format("Bulk transfer %s to %s:%d interrupted (attempt %d/%d): %s",
+                            header.transferId, host, port, attempt, MAX_ATTEMPTS, e.getMessage()));
+                }
+                Thread.sleep(RETRY_BACKOFF_MS * attempt);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            if (throttle != null) {
+                throttle.end();
+            }
+        }
+        logger.error(String.format("Bulk transfer %s to %s:%d abandoned.", header.transferId, host, port));
+        return false;
+    }
+
+    private static boolean sendChunks(String host, int port, Path segment, Header header, List<Long> boundaries,
+                                      MigrationThrottle throttle) throws IOException, InterruptedException {
+        try (SocketChannel channel = SocketChannel.open();
+             FileChannel file = FileChannel.open(segment, StandardOpenOption.READ)) {
+            channel.socket().connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            channel.socket().setSoTimeout(RESPONSE_TIMEOUT_MS);
+            channel.socket().setTcpNoDelay(true);
+            InputStream in = channel.socket().getInputStream();
+
+            writeLine(channel, header.toString());
+            String reply = readLine(in);
+            if (reply == null) {
+                throw new IOException("Connection closed before READY.");
+            }
+            if (!reply.startsWith(READY + " ")) {
+                // A refusal (e.g. write lock not set) will not change on retry.
+                logger.error(String.format("Bulk transfer to %s:%d refused: %s", host, port, describe(reply)));
+                return false;
+            }
+            int nextSeq = Integer.parseInt(reply.substring(READY.length() + 1));
+            if (nextSeq > 0) {
+                logger.info(String.format("Resuming bulk transfer %s at chunk %d/%d.", header.transferId, nextSeq,
+                        header.chunkCount));
+            }
+            long total = boundaries.get(boundaries.size() - 1);
+            long resumedAt = boundaries.get(nextSeq);
+            long startNanos = System.nanoTime();
+            long lastReport = System.currentTimeMillis();
+            for (int seq = nextSeq; seq < header.chunkCount; seq++) {
+                long start = boundaries.get(seq);
+                long length = boundaries.get(seq + 1) - start;
+                if (header.codec == Codec.GZIP) {
+                    byte[] compressed = compress(file, start, length);
+                    writeLine(channel, CHUNK + " " + seq + " " + compressed.length);
+                    ByteBuffer buffer = ByteBuffer.wrap(compressed);
+                    while (buffer.hasRemaining()) {
+                        int slice = Math.min(buffer.remaining(), MigrationThrottle.SLICE_BYTES);
+                        if (throttle != null) {
+                            throttle.acquire(slice);
+                        }
+                        ByteBuffer view = buffer.duplicate();
+                        view.limit(buffer.position() + slice);
+                        while (view.hasRemaining()) {
+                            channel.write(view);
+                        }
+                        buffer.position(view.position());
+                    }
+                } else {
+                    writeLine(channel, CHUNK + " " + seq + " " + length);
+                    long sent = 0;
+                    while (sent < length) {
+                        long slice = Math.min(length - sent, MigrationThrottle.SLICE_BYTES);
+                        if (throttle != null) {
+                            throttle.acquire(slice);
+                        }
+                        long sliceEnd = sent + slice;
+                        while (sent < sliceEnd) {
+                            sent += file.transferTo(start + sent, sliceEnd - sent, channel);
+                        }
+                    }
+                }
+                String ack = readLine(in);
+                if (!(ACK + " " + seq).equals(ack)) {
+                    throw new IOException("Chunk " + seq + " not acknowledged: " + describe(ack));
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastReport >= PROGRESS_INTERVAL_MS && seq + 1 < header.chunkCount) {
+                    lastReport = now;
+                    reportProgress(header, host, port, boundaries.get(seq + 1), total, resumedAt, startNanos, throttle);
+                }
+            }
+            writeLine(channel, END);
+            ECSMessage response = MessageCodec.decodeECSMessage(readLine(in));
+            if (response == null) {
+                throw new IOException("Connection closed before transfer completed.");
+            }
+            if (!response.getSuccess()) {
+                logger.error(String.format("Bulk transfer to %s:%d failed: %s", host, port, response.getErrorMessage()));
+                return false;
+            }
+            logger.info(String.format("Bulk transferred %d bytes in %d chunks (%s) to %s:%d in %d ms.", total,
+                    header.chunkCount, header.codec, host, port, (System.nanoTime() - startNanos) / 1000000));
+            return true;
+        }
+    }
+
+    private static void reportProgress(Header header, String host, int port, long done, long total, long resumedAt,
+                                       long startNanos, MigrationThrottle throttle) {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        double bytesPerSecond = seconds > 0 ? (done - resumedAt) / seconds : 0;
+        String eta = bytesPerSecond > 0 ? String.format("%.0f s", (total - done) / bytesPerSecond) : "unknown";
+        logger.info(String.format("Bulk transfer %s to %s:%d: %d/%d bytes (%.0f%%) at %s, limit %s, ETA %s.",
+                header.transferId, host, port, done, total, 100.0 * done / total,
+                MigrationThrottle.describeRate(bytesPerSecond),
+                throttle == null ? "none" : MigrationThrottle.describeRate(throttle.getRate()), eta));
+    }
+
+    /**
+     * Splits a file of storage lines into chunks of at least chunkBytes that end on a line break.
+     * @return the chunk start offsets followed by the file size
+     */
+    public static List<Long> chunkBoundaries(Path segment, long chunkBytes) throws IOException {
+        List<Long> boundaries = new ArrayList<>();
+        boundaries.add(0L);
+        long size = Files.size(segment);
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(segment))) {
+            long position = 0;
+            long chunkStart = 0;
+            int b;
+            while ((b = in.read()) != -1) {
+                position++;
+                if (b == '\n' && position - chunkStart >= chunkBytes && position < size) {
+                    boundaries.add(position);
+                    chunkStart = position;
+                }
+            }
+        }
+        if (size > 0) {
+            boundaries.add(size);
+        }
+        return boundaries;
+    }
+
+    /**
+     * Wraps the raw socket stream so exactly one chunk payload is consumed and decoded.
+     * Ends early with an EOFException if the sender disconnects mid-chunk.
+     */
+    public static InputStream openChunk(InputStream socketInput, long bytes, Codec codec) throws IOException {
+        InputStream bounded = new BoundedInputStream(socketInput, bytes);
+        return codec == Codec.GZIP ? new GZIPInputStream(bounded) : bounded;
+    }
+
+    /**
+     * Consumes whatever is left of a chunk payload after it has been decoded.
+     */
+    public static void drain(InputStream chunk) throws IOException {
+        byte[] buffer = new byte[8192];
+        while (chunk.read(buffer) != -1) {
+            // discard
+        }
+    }
+
+    public static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            logger.warn("Could not delete transfer file " + path + ": " + e.getMessage());
+        }
+    }
+
+    private static byte[] compress(FileChannel file, long start, long length) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream out = new GZIPOutputStream(compressed)) {
+            ByteBuffer buffer = ByteBuffer.allocate(8192);
+            long position = start;
+            while (position < start + length) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), start + length - position));
+                int n = file.read(buffer, position);
+                if (n == -1) {
+                    throw new EOFException("Transfer file shrank while sending.");
+                }
+                out.write(buffer.array(), 0, n);
+                position += n;
+            }
+        }
+        return compressed.toByteArray();
+    }
+
+    private static String describe(String reply) {
+        if (reply == null) {
+            return "connection closed";
+        }
+        try {
+            ECSMessage message = MessageCodec.decodeECSMessage(reply);
+            return message.getErrorMessage();
+        } catch (IOException e) {
+            return reply;
+        }
+    }
+
+    private static void writeLine(SocketChannel channel, String line) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Reads one control line byte by byte so nothing past it is consumed; control lines are short.
+     * @return the line, or null at end of stream
+     */
+    public static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (line.size() >= MAX_LINE_LENGTH) {
+                throw new IOException("Control line too long.");
+            }
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        return new String(line.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static class BoundedInputStream extends FilterInputStream {
+        private long remaining;
+
+        BoundedInputStream(InputStream in, long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n == -1) {
+                throw new EOFException(remaining + " bytes of chunk payload missing.");
+            }
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public void close() {
+            // The socket belongs to the connection handler.
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
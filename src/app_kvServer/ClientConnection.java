@@ -3,13 +3,14 @@ package app_kvServer;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import ecs.ECSNode;
 import org.apache.log4j.*;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.JsonMappingException;
 
 import shared.messages.CoordMessage;
 import shared.messages.ECSMessage;
 import shared.messages.KVMessage;
 import shared.messages.KVMessageImpl;
+import shared.messages.MessageCodec;
+import shared.messages.ReplicationEntry;
 import shared.messages.ECSMessage.ActionType;
 import shared.messages.KVMessage.StatusType;
 import shared.utils.CommUtils;
@@ -19,14 +20,12 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.Channels;
 import java.nio.charset.StandardCharsets;
-import java.util.List;
+import java.util.UUID;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.zip.*;
 import java.io.*;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 
 
@@ -40,6 +39,8 @@ public class ClientConnection implements Runnable {
     private BufferedReader input;
     private BufferedWriter output;
     private boolean isOpen;
+    // Set once the peer sends a server-to-server message; peer sockets are pooled and long-lived.
+    private boolean isPeer;
     private final Lock lock = new ReentrantLock();
 
 
@@ -82,30 +83,49 @@ public class ClientConnection implements Runnable {
                     isOpen = false;
                     return;
                 }
-                try {
-                    // Attempt to deserialize the message as KVMessage first
-                    KVMessage message = KVMessageImpl.fromString(msg);
-                    logger.info("Receive KVMessage.");
-                    logger.info("Message: " + msg);
-                    handleKVMessage(message);
-                } catch (IllegalArgumentException kvEx) {
-                    logger.info("Not a KVMessage, trying ECSMessage.");
-                    try {
-                        ECSMessage obj = new ObjectMapper().readValue(msg, ECSMessage.class);
-                        logger.info("Receive ECSMessage.");
-                        handleECSMessage(obj);
-                    } catch (JsonMappingException ecsEx) {
-                        logger.info("Not an ECSMessage, trying CoordMessage.");
+                MessageCodec.MessageType type = MessageCodec.typeOf(msg);
+                if (type != MessageCodec.MessageType.KV) {
+                    isPeer = true;
+                }
+                switch (type) {
+                    case ECS:
+                        try {
+                            ECSMessage obj = MessageCodec.decodeECSMessage(msg);
+                            logger.info("Receive ECSMessage.");
+                            handleECSMessage(obj);
+                        } catch (JsonProcessingException ecsEx) {
+                            logger.error("Error during ECSMessage deserialization.", ecsEx);
+                            // The sender matches replies to requests in order, so it must get one anyway.
+                            ECSMessage failure = new ECSMessage();
+                            failure.setSuccess(false);
+                            failure.setErrorMessage("Unable to decode message: " + ecsEx.getOriginalMessage());
+                            CommUtils.sendECSMessage(failure, output);
+                        }
+                        break;
+                    case BULK:
+                        logger.info("Received bulk transfer header.");
+                        receiveBulkData(msg);
+                        break;
+                    case COORD:
                         try {
-                            CoordMessage coordMessage = new ObjectMapper().readValue(msg, CoordMessage.class);
+                            CoordMessage coordMessage = MessageCodec.decodeCoordMessage(msg);
                             logger.info("Received CoordMessage.");
                             handleCoordMessage(coordMessage);
                         } catch (JsonProcessingException coordEx) {
                             logger.error("Error during CoordMessage deserialization.", coordEx);
+                            // Not successful, as a new CoordMessage starts out.
+                            CommUtils.sendCoordMessage(new CoordMessage(kvServer.getHashValue()), output);
+                        }
+                        break;
+                    default:
+                        try {
+                            KVMessage message = KVMessageImpl.fromString(msg);
+                            logger.info("Receive KVMessage.");
+                            logger.info("Message: " + msg);
+                            handleKVMessage(message);
+                        } catch (IllegalArgumentException kvEx) {
+                            logger.error("Unknown message format: " + msg);
                         }
-                    } catch (IOException ecsEx) {
-                        logger.error("IO error during ECSMessage  deserialization.", ecsEx);
-                    }
                 }
             } catch (IOException e) {
                 logger.info("Connection closed by the client.");
@@ -129,6 +149,11 @@ public class ClientConnection implements Runnable {
         switch (action) {
             case SET_WRITE_LOCK:
                 logger.info("Received command SET_WRITE_LOCK: " + kvServer.getPort());
+                if (range != null) {
+                    kvServer.lockRanges(range);
+                    response.setSuccess(true);
+                    break;
+                }
                 if (kvServer.getWriteLock()) {
                     // write lock already set
                     response.setSuccess(false);
@@ -141,19 +166,21 @@ public class ClientConnection implements Runnable {
                 break;
             case UNSET_WRITE_LOCK:
                 logger.info("Received command UNSET_WRITE_LOCK: " + kvServer.getPort());
-                if (!kvServer.getWriteLock()) {
+                if (range != null ? !kvServer.unlockRanges(range) : !kvServer.getWriteLock()) {
                     // write lock not set
                     response.setSuccess(false);
                     response.setErrorMessage("Write lock not set.");
                     break;
                 }
                 logger.info("UNSET_WRITE_LOCK successfully in: " + kvServer.getPort());
-                kvServer.setWriteLock(false);
+                if (range == null) {
+                    kvServer.setWriteLock(false);
+                }
                 response.setSuccess(true);
                 break;
             case APPEND:
                 logger.info("Received command APPEND: " + kvServer.getPort());
-                if (!kvServer.getWriteLock()) {
+                if (!kvServer.holdsWriteLock()) {
                     // write lock not set
                     response.setSuccess(false);
                     response.setErrorMessage("Write lock not set.");
@@ -162,28 +189,22 @@ public class ClientConnection implements Runnable {
                 logger.info("Append data successful: " + kvServer.getPort());
                 kvServer.appendDataToStorage(msg.getData());
                 response.setSuccess(true);
-                CoordMessage syncMessage = new CoordMessage(kvServer.getHashValue());
-                syncMessage.setData(kvServer.getAllData());
-                syncMessage.setAction(CoordMessage.ActionType.FORCE_SYNC);
-                kvServer.updateReplica(syncMessage);
+                kvServer.forceSyncReplicas();
                 break;
             case TRANSFER:
                 logger.info("Received command TRANSFER: " + kvServer.getPort());
-                ECSMessage transferMsg = new ECSMessage();
-                transferMsg.setAction(ActionType.APPEND);
-                if (!kvServer.getWriteLock()) {
+                kvServer.migrationThrottle.setClusterLimitMBps(msg.bandwidthMBps);
+                if (!msg.online && !kvServer.isWriteLocked(range)) {
                     // write lock not set
                     response.setSuccess(false);
                     response.setErrorMessage("Write lock not set.");
                     break;
                 }
-                if (range == null) {
-                    transferMsg.setData(kvServer.getAllData());
-                } else {
-                    logger.info("Setting data in response of port: " + kvServer.getPort());
-                    transferMsg.setData(kvServer.getData(range[0], range[1]));
-                }
-                if (transferData(msg.getServerInfo()[0], Integer.parseInt(msg.getServerInfo()[1]), transferMsg)) {
+                String host = msg.getServerInfo()[0];
+                int port = Integer.parseInt(msg.getServerInfo()[1]);
+                String transferId = msg.transferId != null ? msg.transferId : UUID.randomUUID().toString();
+                if (msg.online ? kvServer.transferDataOnline(host, port, range, transferId)
+                        : kvServer.transferData(host, port, range, transferId)) {
                     response.setSuccess(true);
                     logger.info("Successfully transfer data.");
                 } else {
@@ -191,37 +212,48 @@ public class ClientConnection implements Runnable {
                     logger.info("Failed to transfer data.");
                 }
                 break;
-            case INTERNAL_TRANSFER:
-                logger.info("Internal Transferring of Data for the node");
-                List<String> dataToTransfer = kvServer.replicationsStored.get(msg.internalTransferHash).getAllData();
-                if (dataToTransfer == null || dataToTransfer.isEmpty()){
+            case ABORT_TRANSFER:
+                logger.info("Received command ABORT_TRANSFER: " + kvServer.getPort());
+                kvServer.abortTransfer(msg.transferId);
+                // Drop what already arrived; the ranges are still locked here, so nothing else wrote to them.
+                if (kvServer.isWriteLocked(range) && kvServer.removeData(range)) {
+                    kvServer.forceSyncReplicas();
                     response.setSuccess(true);
-                    logger.info("Nothing to update for internal transfer.");
-                    break;
+                } else {
+                    response.setSuccess(false);
+                    response.setErrorMessage("Unable to remove the transferred data.");
                 }
-                kvServer.appendDataToStorage(dataToTransfer);
+                break;
+            case TRANSFER_TAIL:
+                logger.info("Received command TRANSFER_TAIL: " + kvServer.getPort());
+                response.data = kvServer.endTail(range);
                 response.setSuccess(true);
-                CoordMessage syncedMsg = new CoordMessage(kvServer.getHashValue());
-                syncedMsg.setData(kvServer.getAllData());
-                syncedMsg.setAction(CoordMessage.ActionType.FORCE_SYNC);
-                kvServer.updateReplica(syncedMsg);
+                break;
+            case APPLY_TAIL:
+                logger.info("Received command APPLY_TAIL: " + kvServer.getPort());
+                response.setSuccess(kvServer.applyTail(msg.getData()));
+                kvServer.forceSyncReplicas();
+                break;
+            case INTERNAL_TRANSFER:
+                logger.info("Internal Transferring of Data for the node");
+                // Without server info the ranges stay here, otherwise they go to the server taking them over.
+                String[] heir = msg.getServerInfo();
+                response.setSuccess(kvServer.promoteReplicaData(msg.internalTransferHash, range,
+                        heir == null ? null : heir[0], heir == null ? 0 : Integer.parseInt(heir[1])));
                 break;
             case REMOVE:
                 logger.info("Received command REMOVE: " + kvServer.getPort());
                 logger.info("Range: " + range[0] + " : " + range[1]);
-                if (!kvServer.getWriteLock()) {
+                if (!kvServer.isWriteLocked(range)) {
                     logger.error("NOT able to REMOVE data in: " + kvServer.getPort());
                     // write lock not set
                     response.setSuccess(false);
                     response.setErrorMessage("Write lock not set.");
                     break;
                 }
-                if (kvServer.removeData(range[0], range[1])) {
+                if (kvServer.removeData(range)) {
                     logger.info("Successfully able to REMOVE data in: " + kvServer.getPort());
-                    CoordMessage syncMsg = new CoordMessage(kvServer.getHashValue());
-                    syncMsg.setData(kvServer.getAllData());
-                    syncMsg.setAction(CoordMessage.ActionType.FORCE_SYNC);
-                    kvServer.updateReplica(syncMsg);
+                    kvServer.forceSyncReplicas();
                     response.setSuccess(true);
                 } else {
                     response.setSuccess(false);
@@ -230,7 +262,15 @@ public class ClientConnection implements Runnable {
                 break;
             case UPDATE_METADATA:
                 logger.info("Received command UPDATE_METADATA: " + kvServer.getPort());
-                kvServer.updateMetadata(msg.getNodes());
+                kvServer.migrationThrottle.setClusterLimitMBps(msg.bandwidthMBps);
+                if (msg.delta != null && !kvServer.applyMetadataDelta(msg.delta)) {
+                    response.setSuccess(false);
+                    response.setErrorMessage("Metadata is not at epoch " + msg.delta.fromEpoch);
+                    break;
+                }
+                if (msg.delta == null) {
+                    kvServer.updateMetadata(msg.getNodes());
+                }
                 if (msg.ecsHost != null && msg.ecsPort != 0){
                     kvServer.ecsPort = msg.ecsPort;
                     kvServer.ecsAddress = msg.ecsHost;
@@ -240,10 +280,13 @@ public class ClientConnection implements Runnable {
                 break;
             case HEARTBEAT:
                 logger.info("Received command HEARTBEAT: " + kvServer.getPort());
+                response.requestCounts = kvServer.getRequestCounts();
+                response.load = kvServer.getLoadStats();
                 response.setSuccess(true);
                 break;
             case DELETE:
                 kvServer.close();
+                isOpen = false;
                 break;
             case ELECTION:
                 logger.info(String.format("%s: Received ELECTION message.", kvServer.serverName));
@@ -265,12 +308,24 @@ public class ClientConnection implements Runnable {
                     response.setSuccess(false);
                 }
                 break;
+            case GOSSIP_PING:
+                response = kvServer.getGossip().onPing(msg);
+                break;
+            case GOSSIP_PING_REQ:
+                response = kvServer.getGossip().onPingRequest(msg);
+                break;
+            case FETCH_METADATA:
+                response.delta = kvServer.metadataDeltaSince(msg.epoch);
+                if (response.delta == null) {
+                    response.setNodes(kvServer.metadata);
+                }
+                response.setSuccess(kvServer.metadata != null);
+                break;
             default:
                 logger.error(String.format("%s: Unknown message from ECS: %s",kvServer.serverName, msg.getAction()));
         }
         CommUtils.sendECSMessage(response, this.output);
 //        sendECSMessage(response);
-        isOpen = false;
     }
 
     private void handleCoordMessage(CoordMessage message) {
@@ -280,17 +335,87 @@ public class ClientConnection implements Runnable {
         response.setAction(action);
         switch (action) {
             case PUT:
-                logger.info("Received command PUT from coordinator.");
+            case UPDATE:
+                logger.debug(String.format("Received command %s from coordinator.", action));
                 try {
                     kvServer.putKVForReplica(message.getKey(), message.getValue(), hashValueofSendingServer);
                     response.isSuccess = true;
                 } catch (Exception e) {
-                    logger.error(String.format("Replica put %s:%s failed.", message.getKey(), message.getValue()));
+                    logger.error(String.format("Replica put %s:%s failed: %s", message.getKey(), message.getValue(), e.getMessage()));
+                    response.isSuccess = false;
+                }
+                break;
+            case DELETE:
+                logger.debug("Received command DELETE from coordinator.");
+                try {
+                    kvServer.deleteKVForReplica(message.getKey(), message.version, hashValueofSendingServer);
+                    response.isSuccess = true;
+                } catch (Exception e) {
+                    logger.error(String.format("Replica delete %s failed: %s", message.getKey(), e.getMessage()));
+                    response.isSuccess = false;
+                }
+                break;
+            case BATCH:
+                response.isSuccess = true;
+                for (ReplicationEntry entry : message.entries) {
+                    try {
+                        if (entry.action == CoordMessage.ActionType.DELETE) {
+                            kvServer.deleteKVForReplica(entry.key, entry.version, hashValueofSendingServer);
+                        } else {
+                            kvServer.putKVForReplica(entry.key, entry.value, hashValueofSendingServer);
+                        }
+                    } catch (Exception e) {
+                        logger.error(String.format("Replica failed to apply seq %d from %s: %s", entry.seq,
+                                hashValueofSendingServer, e.getMessage()));
+                        response.isSuccess = false;
+                        break;
+                    }
+                    response.ackedSeq = entry.seq;
+                }
+                if (response.isSuccess && message.chain != null && !message.chain.isEmpty()) {
+                    // Chain replication: answer only once the rest of the chain has the batch too.
+                    CoordMessage downstream = kvServer.forwardChainBatch(message);
+                    if (downstream == null) {
+                        response.ackedSeq = message.entries.get(0).seq - 1;
+                    } else if (!downstream.isSuccess) {
+                        response.isSuccess = false;
+                    } else {
+                        response.ackedSeq = Math.min(response.ackedSeq, downstream.ackedSeq);
+                    }
+                }
+                break;
+            case READ:
+                try {
+                    response.setKey(message.getKey());
+                    response.setValue(kvServer.readStoredValue(message.getKey(), hashValueofSendingServer));
+                    response.isSuccess = true;
+                } catch (Exception e) {
+                    logger.error(String.format("Quorum read of %s failed: %s", message.getKey(), e.getMessage()));
+                    response.isSuccess = false;
+                }
+                break;
+            case REPAIR:
+                kvServer.repairStoredValue(message.getKey(), message.getValue(), hashValueofSendingServer);
+                response.isSuccess = true;
+                break;
+            case MERKLE:
+                try {
+                    response.merkleLeaves = kvServer.compareMerkleTree(hashValueofSendingServer, message.merkleRoot);
+                    response.isSuccess = true;
+                } catch (Exception e) {
+                    logger.info(String.format("Merkle comparison with %s failed: %s", hashValueofSendingServer, e.getMessage()));
+                    response.isSuccess = false;
+                }
+                break;
+            case SYNC_BUCKETS:
+                try {
+                    kvServer.replaceReplicaBuckets(hashValueofSendingServer, message.buckets, message.getData());
+                    response.isSuccess = true;
+                } catch (Exception e) {
+                    logger.error(String.format("Bucket sync from %s failed: %s", hashValueofSendingServer, e.getMessage()));
                     response.isSuccess = false;
                 }
                 break;
-            case UPDATE:
-                logger.info("Received command UPDATE from coordinator.");
             case FORCE_SYNC:
                 logger.info("Received FORCE_SYNC from : " +  message.hashValueofSendingServer + "  with following data: " + message.getData());
                 if (kvServer.replicationsStored.containsKey(message.hashValueofSendingServer)){
@@ -308,7 +433,7 @@ public class ClientConnection implements Runnable {
                         replicaStorage.removeAllData();
                         replicaStorage.putList(message.getData());
                 }
-
+                response.isSuccess = true;
                 break;
         }
         CommUtils.sendCoordMessage(response, this.output);
@@ -323,7 +448,12 @@ public class ClientConnection implements Runnable {
                     response.setStatus(StatusType.SERVER_STOPPED);
                     break;
                 }
+                long getStart = System.nanoTime();
+                kvServer.loadMonitor.begin();
                 response = kvServer.handleGetMessage(msg);
+                double getMs = (System.nanoTime() - getStart) / 1e6;
+                kvServer.loadMonitor.end(getMs);
+                kvServer.migrationThrottle.recordForeground(getMs);
                 break;
             case PUT:
                 logger.info("In put.");
@@ -332,19 +462,22 @@ public class ClientConnection implements Runnable {
                     logger.info("server not register");
                     break;
                 }
+                long putStart = System.nanoTime();
+                kvServer.loadMonitor.begin();
                 response = kvServer.handlePutMessage(msg);
-                CoordMessage syncMessage = new CoordMessage(kvServer.getHashValue());
-                syncMessage.setData(kvServer.getAllData());
-                syncMessage.setAction(CoordMessage.ActionType.FORCE_SYNC);
-                kvServer.updateReplica(syncMessage);
+                double putMs = (System.nanoTime() - putStart) / 1e6;
+                kvServer.loadMonitor.end(putMs);
+                kvServer.migrationThrottle.recordForeground(putMs);
                 break;
             case KEYRANGE:
                 if (!kvServer.checkRegisterStatus()) {
                     response.setStatus(StatusType.SERVER_STOPPED);
                     break;
                 }
-                response = kvServer.handleKeyRangeMessage(msg);
-                break;
+                String reply = kvServer.keyrangeReply(msg);
+                logger.info("Sending keyrange reply for epoch " + msg.getEpoch());
+                sendKVMessage(reply);
+                return;
             case KEYRANGE_READ:
                 if (!kvServer.checkRegisterStatus()) {
                     response.setStatus(StatusType.SERVER_STOPPED);
@@ -362,8 +495,12 @@ public class ClientConnection implements Runnable {
                 logger.error("Unknown message from client: " + msg);
                 return;
         }
-        logger.info("Sending message: " + response.toString());
-        sendKVMessage(response.toString());
+        if (status == StatusType.GET || status == StatusType.PUT) {
+            response.setEpoch(kvServer.getMetadataEpoch());
+        }
+        String reply = response.toString();
+        logger.info("Sending message: " + reply);
+        sendKVMessage(reply);
     }
 
     public void sendKVMessage(String msg) {
@@ -377,7 +514,10 @@ public class ClientConnection implements Runnable {
 
 
     public void close() throws IOException {
-        if (isOpen) {
+        if (isOpen && isPeer) {
+            isOpen = false;
+            clientSocket.close();
+        } else if (isOpen) {
             isOpen = false;
             KVMessage message = new KVMessageImpl();
             message.setStatus(StatusType.DISCONNECT);
@@ -386,104 +526,115 @@ public class ClientConnection implements Runnable {
         }
     }
 
-    public boolean transferData(String address, int port, ECSMessage msg) {
-        try (Socket socket = new Socket(address, port);
-             BufferedReader input = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-             BufferedWriter output = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
-        ) {
-            ObjectMapper mapper = new ObjectMapper();
-            try {
-                String jsonString = mapper.writeValueAsString(msg);
-                output.write(jsonString);
-                output.newLine();
-                output.flush();
-            } catch (JsonProcessingException e) {
-                logger.error("Failed to parse ECSMessage.");
-            } catch (IOException e) {
-                logger.error("Failed to send ECSMessage.");
-            }
-
-            String str_msg = input.readLine();
-            try {
-                ECSMessage obj_msg = mapper.readValue(str_msg, ECSMessage.class);
-                return  obj_msg.getAction() == ActionType.APPEND & obj_msg.getSuccess();
-            } catch (JsonMappingException ex) {
-                logger.error("Error during message deserialization.", ex);
-            } catch (IOException ex) {
-                logger.error("IO error during message deserialization.", ex);
-            }
-        } catch (UnknownHostException e) {
-            logger.error(String.format("Connect to %s:%s failed: socket error.", address, port));
+    /**
+     * Runs the receiving side of a bulk transfer session (see BulkTransfer): answers with the resume
+     * point, appends each chunk to the target storage as it arrives and acknowledges it. The session
+     * owns the rest of the connection, which is closed afterwards.
+     */
+    private void receiveBulkData(String headerLine) throws IOException {
+        isOpen = false;
+        ECSMessage response = new ECSMessage();
+        response.setAction(ActionType.APPEND);
+        BulkTransfer.Header header;
+        try {
+            header = BulkTransfer.Header.parse(headerLine);
         } catch (IOException e) {
-            logger.error(String.format("Connect to %s:%s failed: Input&output stream error.", address, port));
+            response.setSuccess(false);
+            response.setErrorMessage(e.getMessage());
+            CommUtils.sendECSMessage(response, output);
+            return;
         }
-        return false;
-    }
-
-
-
-//    public void transferData(String address, int port) {
-//        kvServer.syncCacheToStorage();
-//        String filePath = kvServer.getStoragePath();
-//
-//        try (Socket socket = new Socket(address, port);
-//             FileInputStream fis = new FileInputStream(filePath);
-//             BufferedInputStream bis = new BufferedInputStream(fis);
-//             OutputStream out = socket.getOutputStream();
-//             ZipOutputStream zos = new ZipOutputStream(out);
-//             InputStream in = socket.getInputStream();
-//             BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
-//
-//            // Send initiation message
-//            out.write(("BEGIN_TRANSFER\n").getBytes(StandardCharsets.UTF_8));
-//            out.flush();
-//
-//            // Compress and send data
-//            ZipEntry zipEntry = new ZipEntry(new File(filePath).getName());
-//            zos.putNextEntry(zipEntry);
-//            byte[] buffer = new byte[1024];
-//            int count;
-//            while ((count = bis.read(buffer)) > 0) {
-//                zos.write(buffer, 0, count);
-//            }
-//            zos.closeEntry();
-//            zos.finish();
-//
-//            // Wait for confirmation
-//            String msg = reader.readLine();
-//            if ("DATA_RECEIVED".equals(msg)) {
-//                logger.info(String.format("Successfully transferred data to SERVER %s:%d", address, port));
-//            } else {
-//                logger.error(String.format("Failed to transfer data to SERVER %s:%d", address, port));
-//            }
-//        } catch (IOException e) {
-//            logger.error(String.format("Failed to transfer data to SERVER %s:%d", address, port), e);
-//        }
-//    }
-
-
-    private void receiveData() {
-        try (InputStream in = clientSocket.getInputStream();
-             ZipInputStream zis = new ZipInputStream(in)) {
-
-            ZipEntry zipEntry = zis.getNextEntry();
-            if (zipEntry != null) {
-                String filePath = kvServer.getStoragePath();
-                try (FileOutputStream fos = new FileOutputStream(filePath);
-                     BufferedOutputStream bos = new BufferedOutputStream(fos)) {
+        boolean primary = BulkTransfer.PRIMARY_TARGET.equals(header.target);
+        KVStorage target = primary ? null : kvServer.replicationsStored.get(header.target);
+        if (primary && !kvServer.holdsWriteLock()) {
+            response.setSuccess(false);
+            response.setErrorMessage("Write lock not set.");
+            CommUtils.sendECSMessage(response, output);
+            return;
+        }
+        if (!primary && target == null) {
+            response.setSuccess(false);
+            response.setErrorMessage("No replica storage for " + header.target);
+            CommUtils.sendECSMessage(response, output);
+            return;
+        }
+        BulkTransfer.Progress progress = kvServer.getTransferProgress(header);
+        if (progress.aborted) {
+            refuseAbortedTransfer(header, response);
+            return;
+        }
+        clientSocket.setTcpNoDelay(true);
+        output.write(BulkTransfer.READY + " " + progress.nextSeq);
+        output.newLine();
+        output.flush();
 
-                    byte[] buffer = new byte[1024];
-                    int len;
-                    while ((len = zis.read(buffer)) > 0) {
-                        bos.write(buffer, 0, len);
-                    }
+        InputStream in = clientSocket.getInputStream();
+        String line;
+        while ((line = BulkTransfer.readLine(in)) != null && line.startsWith(BulkTransfer.CHUNK + " ")) {
+            String[] parts = line.split(" ");
+            int seq = Integer.parseInt(parts[1]);
+            if (seq != progress.nextSeq) {
+                logger.error(String.format("Bulk transfer %s: expected chunk %d but got %d.", header.transferId,
+                        progress.nextSeq, seq));
+                return;
+            }
+            InputStream chunk = BulkTransfer.openChunk(in, Long.parseLong(parts[2]), header.codec);
+            synchronized (progress) {
+                if (progress.aborted) {
+                    refuseAbortedTransfer(header, response);
+                    return;
                 }
-                zis.closeEntry();
+                if (primary) {
+                    kvServer.appendDataToStorage(chunk);
+                } else {
+                    target.appendFrom(Channels.newChannel(chunk));
+                }
+                BulkTransfer.drain(chunk);
+                progress.nextSeq++;
+                progress.lastActivity = System.currentTimeMillis();
+            }
+            output.write(BulkTransfer.ACK + " " + seq);
+            output.newLine();
+            output.flush();
+        }
+        if (!BulkTransfer.END.equals(line)) {
+            // Connection dropped or broke protocol; progress is kept so the sender can resume.
+            logger.info(String.format("Bulk transfer %s paused at chunk %d/%d.", header.transferId, progress.nextSeq,
+                    header.chunkCount));
+            return;
+        }
+        synchronized (progress) {
+            if (progress.aborted) {
+                refuseAbortedTransfer(header, response);
+                return;
+            }
+            kvServer.completeTransfer(header.transferId);
+            if (progress.nextSeq != header.chunkCount) {
+                response.setSuccess(false);
+                response.setErrorMessage(String.format("Received %d of %d chunks.", progress.nextSeq, header.chunkCount));
+                CommUtils.sendECSMessage(response, output);
+                return;
+            }
+            if (primary) {
+                kvServer.mergeTransferredData();
+            } else {
+                kvServer.mergeTransferredData(target);
             }
-            System.out.println("File received and decompressed successfully.");
-        } catch (IOException e) {
-            System.err.println("Error processing a client connection: " + e.getMessage());
         }
+        logger.info(String.format("Received bulk transfer %s: %d chunks (%s) into %s on %s.", header.transferId,
+                header.chunkCount, header.codec, primary ? "storage" : "replica " + header.target, kvServer.getPort()));
+        response.setSuccess(true);
+        CommUtils.sendECSMessage(response, output);
+        if (primary) {
+            kvServer.forceSyncReplicas();
+        }
+    }
+
+    private void refuseAbortedTransfer(BulkTransfer.Header header, ECSMessage response) throws IOException {
+        logger.info(String.format("Bulk transfer %s was aborted, refusing the rest of it.", header.transferId));
+        response.setSuccess(false);
+        response.setErrorMessage("Transfer aborted.");
+        CommUtils.sendECSMessage(response, output);
     }
 
 
@@ -0,0 +1,416 @@
+package app_kvServer;
+
+import ecs.ECSNode;
+import org.apache.log4j.Logger;
+import shared.BST;
+import shared.messages.ECSMessage;
+import shared.messages.ECSMessage.ActionType;
+import shared.messages.GossipUpdate;
+import shared.messages.GossipUpdate.Status;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * SWIM-style failure detection among the servers on the ring, which keeps the ECS off the heartbeat
+ * path. Every PROTOCOL_PERIOD_MS a server pings one member, going round the members in a shuffled
+ * order. When the member does not answer, INDIRECT_PROBES other members ping it on the server's behalf,
+ * and if none of them gets an answer either the member is suspected. A suspected member that does not
+ * refute the suspicion, by announcing itself alive with a higher incarnation, is declared dead after
+ * SUSPECT_PERIODS * log2(n + 1) periods and reported to the ECS, which confirms it and removes it from
+ * the ring.
+ *
+ * Changes are piggybacked on pings and acks, each up to RETRANSMIT_FACTOR * log2(n + 1) times, so they
+ * reach every member within O(log n) periods while every server sends a constant number of messages per
+ * period. The messages also carry the sender's metadata epoch; a server that is behind pulls the change
+ * from the peer instead of waiting for the ECS to push it again.
+ *
+ * Only the live server with the highest priority number heartbeats the ECS, so the ECS gets one
+ * heartbeat per round instead of one per server.
+ */
+public class Gossip {
+    private static final Logger logger = Logger.getRootLogger();
+
+    static final long PROTOCOL_PERIOD_MS = 1000;
+    private static final long PING_TIMEOUT_MS = 500;
+    private static final long INDIRECT_TIMEOUT_MS = 1000;
+    static final int INDIRECT_PROBES = 3;
+    static final int SUSPECT_PERIODS = 2;
+    static final int RETRANSMIT_FACTOR = 3;
+    private static final int MAX_PIGGYBACK = 8;
+
+    /*
+     * How pings and ping requests reach a member: sends the message to host:port and returns the answer,
+     * or null or an IOException if there was none within timeoutMs.
+     */
+    public interface Transport {
+        ECSMessage send(String host, int port, ECSMessage message, long timeoutMs) throws IOException;
+    }
+
+    private final KVServer server;
+    private final String self;
+    private volatile Transport transport;
+    private final ScheduledExecutorService scheduler;
+    // Runs indirect probes and metadata fetches, which block on the network.
+    private final ExecutorService workers;
+    // Member name -> what this server believes about it; guards the fields below.
+    private final Map<String, GossipUpdate> members = new HashMap<>();
+    // Suspected member -> when it was suspected
+    private final Map<String, Long> suspectedAt = new HashMap<>();
+    // Member name (or this server) -> times its latest change has been piggybacked
+    private final Map<String, Integer> transmissions = new HashMap<>();
+    private final List<String> probeOrder = new ArrayList<>();
+    private int probeIndex = 0;
+    private long incarnation = 0;
+    private final AtomicBoolean fetching = new AtomicBoolean();
+    private volatile boolean running = false;
+
+    public Gossip(KVServer server) {
+        this.server = server;
+        this.self = server.serverName;
+        this.transport = server.peerPool::sendECSMessage;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "gossip-" + server.serverName);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.workers = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "gossip-worker-" + server.serverName);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        running = true;
+        scheduler.scheduleWithFixedDelay(() -> {
+            // An exception would cancel all later periods.
+            try {
+                runPeriod();
+            } catch (Exception e) {
+                logger.error(String.format("%s: Gossip period failed", self), e);
+            }
+        }, PROTOCOL_PERIOD_MS, PROTOCOL_PERIOD_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        running = false;
+        scheduler.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    /**
+     * Replaces how this server's pings reach the other members, e.g. to cut it off from some of them.
+     */
+    public void setTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * @return what this server believes about the member, null if it is not a member
+     */
+    public synchronized GossipUpdate getMember(String name) {
+        return members.get(name);
+    }
+
+    /**
+     * Makes the members follow the servers on the ring. Servers that join start out alive.
+     */
+    public synchronized void updateMembers(BST metadata) {
+        List<String> names = new ArrayList<>();
+        for (ECSNode node : metadata.servers()) {
+            if (!node.getNodeName().equals(self)) {
+                names.add(node.getNodeName());
+            }
+        }
+        members.keySet().retainAll(names);
+        suspectedAt.keySet().retainAll(names);
+        transmissions.keySet().removeIf(name -> !name.equals(self) && !names.contains(name));
+        probeOrder.retainAll(names);
+        for (String name : names) {
+            members.putIfAbsent(name, new GossipUpdate(name, Status.ALIVE, 0));
+        }
+    }
+
+    /**
+     * Handles a ping: takes in the sender's news and answers with this server's.
+     */
+    public ECSMessage onPing(ECSMessage ping) {
+        merge(ping.gossip);
+        checkEpoch(ping);
+        return message(ActionType.GOSSIP_PING, true);
+    }
+
+    /**
+     * Handles a ping request: pings the member on the sender's behalf.
+     */
+    public ECSMessage onPingRequest(ECSMessage request) {
+        merge(request.gossip);
+        boolean answered = request.data != null && !request.data.isEmpty() && ping(request.data.get(0));
+        return message(ActionType.GOSSIP_PING_REQ, answered);
+    }
+
+    /**
+     * @return whether this server is the one to heartbeat the ECS: the server with the highest priority
+     * number among the members not suspected or dead
+     */
+    public boolean monitorsEcs() {
+        BST metadata = server.metadata;
+        if (metadata == null) {
+            return true;
+        }
+        synchronized (this) {
+            for (ECSNode node : metadata.servers()) {
+                GossipUpdate member = members.get(node.getNodeName());
+                if (member != null && member.status == Status.ALIVE && node.priorityNum > server.priorityNum) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private void runPeriod() {
+        if (!running || server.metadata == null) {
+            return;
+        }
+        expireSuspicions();
+        String target = nextTarget();
+        if (target == null || ping(target)) {
+            return;
+        }
+        if (!running) {
+            // Stopped during the ping, whose connection was closed under it; the target may well be fine.
+            return;
+        }
+        List<String> helpers = pickHelpers(target);
+        if (!pingIndirectly(target, helpers)) {
+            suspect(target);
+        }
+    }
+
+    private synchronized String nextTarget() {
+        if (probeIndex >= probeOrder.size()) {
+            probeOrder.clear();
+            for (GossipUpdate member : members.values()) {
+                if (member.status != Status.DEAD) {
+                    probeOrder.add(member.node);
+                }
+            }
+            Collections.shuffle(probeOrder);
+            probeIndex = 0;
+        }
+        while (probeIndex < probeOrder.size()) {
+            String name = probeOrder.get(probeIndex++);
+            GossipUpdate member = members.get(name);
+            if (member != null && member.status != Status.DEAD) {
+                return name;
+            }
+        }
+        return null;
+    }
+
+    private synchronized List<String> pickHelpers(String target) {
+        List<String> helpers = new ArrayList<>();
+        for (GossipUpdate member : members.values()) {
+            if (member.status == Status.ALIVE && !member.node.equals(target)) {
+                helpers.add(member.node);
+            }
+        }
+        Collections.shuffle(helpers);
+        return helpers.subList(0, Math.min(INDIRECT_PROBES, helpers.size()));
+    }
+
+    private boolean ping(String name) {
+        ECSMessage ack = send(name, message(ActionType.GOSSIP_PING, true), PING_TIMEOUT_MS);
+        if (ack == null || !ack.success) {
+            return false;
+        }
+        merge(ack.gossip);
+        checkEpoch(ack);
+        return true;
+    }
+
+    private boolean pingIndirectly(String target, List<String> helpers) {
+        List<CompletableFuture<Boolean>> probes = new ArrayList<>();
+        for (String helper : helpers) {
+            ECSMessage request = message(ActionType.GOSSIP_PING_REQ, true);
+            request.setData(Collections.singletonList(target));
+            probes.add(CompletableFuture.supplyAsync(() -> {
+                ECSMessage response = send(helper, request, INDIRECT_TIMEOUT_MS);
+                if (response != null) {
+                    merge(response.gossip);
+                }
+                return response != null && response.success;
+            }, workers));
+        }
+        for (CompletableFuture<Boolean> probe : probes) {
+            if (probe.join()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private ECSMessage send(String name, ECSMessage message, long timeoutMs) {
+        int separator = name.lastIndexOf(':');
+        try {
+            return transport.send(name.substring(0, separator), Integer.parseInt(name.substring(separator + 1)),
+                    message, timeoutMs);
+        } catch (IOException e) {
+            logger.debug(String.format("%s: Gossip to %s failed: %s", self, name, e.getMessage()));
+            return null;
+        }
+    }
+
+    private synchronized void suspect(String name) {
+        GossipUpdate member = members.get(name);
+        if (member == null || member.status != Status.ALIVE) {
+            return;
+        }
+        logger.info(String.format("%s: Suspecting %s.", self, name));
+        accept(new GossipUpdate(name, Status.SUSPECT, member.incarnation));
+    }
+
+    private void expireSuspicions() {
+        long timeout = SUSPECT_PERIODS * log2(clusterSize()) * PROTOCOL_PERIOD_MS;
+        List<String> dead = new ArrayList<>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            for (Map.Entry<String, Long> suspected : new ArrayList<>(suspectedAt.entrySet())) {
+                if (now - suspected.getValue() >= timeout) {
+                    GossipUpdate member = members.get(suspected.getKey());
+                    accept(new GossipUpdate(member.node, Status.DEAD, member.incarnation));
+                    dead.add(member.node);
+                }
+            }
+        }
+        for (String name : dead) {
+            logger.info(String.format("%s: %s did not refute its suspicion, reporting it dead.", self, name));
+            reportDead(name);
+        }
+    }
+
+    private void reportDead(String name) {
+        if (server.ecsAddress == null || server.ecsPort == 0) {
+            return;
+        }
+        ECSMessage report = new ECSMessage(ActionType.SERVER_DOWN, true, Collections.singletonList(name), null, null);
+        try {
+            server.peerPool.sendECSMessage(server.ecsAddress, server.ecsPort, report, PING_TIMEOUT_MS * 4);
+        } catch (IOException e) {
+            logger.error(String.format("%s: Could not report %s dead to the ECS: %s", self, name, e.getMessage()));
+        }
+    }
+
+    private void merge(List<GossipUpdate> updates) {
+        if (updates == null) {
+            return;
+        }
+        synchronized (this) {
+            for (GossipUpdate update : updates) {
+                if (update.node.equals(self)) {
+                    if (update.status != Status.ALIVE && update.incarnation >= incarnation) {
+                        // Refute the suspicion with a newer incarnation.
+                        incarnation = update.incarnation + 1;
+                        transmissions.put(self, 0);
+                        logger.info(String.format("%s: Refuting %s with incarnation %d.", self, update.status,
+                                incarnation));
+                    }
+                    continue;
+                }
+                GossipUpdate current = members.get(update.node);
+                if (current != null && update.overrides(current)) {
+                    if (update.status != current.status) {
+                        logger.info(String.format("%s: %s is %s.", self, update.node, update.status));
+                    }
+                    accept(update);
+                }
+            }
+        }
+    }
+
+    private void accept(GossipUpdate update) {
+        members.put(update.node, update);
+        transmissions.put(update.node, 0);
+        if (update.status == Status.SUSPECT) {
+            suspectedAt.putIfAbsent(update.node, System.currentTimeMillis());
+        } else {
+            suspectedAt.remove(update.node);
+        }
+    }
+
+    /**
+     * Builds a gossip message with the changes piggybacked the fewest times so far.
+     */
+    private synchronized ECSMessage message(ActionType action, boolean success) {
+        int limit = RETRANSMIT_FACTOR * log2(clusterSize());
+        List<String> news = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : transmissions.entrySet()) {
+            if (entry.getValue() < limit) {
+                news.add(entry.getKey());
+            }
+        }
+        news.sort(Comparator.comparing(transmissions::get));
+        List<GossipUpdate> gossip = new ArrayList<>();
+        for (String name : news.subList(0, Math.min(MAX_PIGGYBACK, news.size()))) {
+            transmissions.merge(name, 1, Integer::sum);
+            gossip.add(name.equals(self) ? new GossipUpdate(self, Status.ALIVE, incarnation) : members.get(name));
+        }
+        ECSMessage message = new ECSMessage(action, success, null, null, null);
+        message.setServerInfo(server.getHostname(), server.getPort());
+        message.gossip = gossip;
+        message.epoch = server.getMetadataEpoch();
+        return message;
+    }
+
+    /**
+     * Pulls the metadata from a peer that has a newer epoch.
+     */
+    private void checkEpoch(ECSMessage message) {
+        String[] peer = message.getServerInfo();
+        if (peer == null || message.epoch <= server.getMetadataEpoch() || !fetching.compareAndSet(false, true)) {
+            return;
+        }
+        CompletableFuture.runAsync(() -> {
+            try {
+                ECSMessage request = new ECSMessage(ActionType.FETCH_METADATA, true, null, null, null);
+                request.epoch = server.getMetadataEpoch();
+                ECSMessage response = server.peerPool.sendECSMessage(peer[0], Integer.parseInt(peer[1]), request,
+                        INDIRECT_TIMEOUT_MS);
+                if (response.delta != null && server.applyMetadataDelta(response.delta)) {
+                    logger.info(String.format("%s: Caught up to metadata epoch %d from %s:%s.", self,
+                            response.delta.toEpoch, peer[0], peer[1]));
+                } else if (response.nodes != null && server.updateMetadataIfNewer(response.nodes)) {
+                    logger.info(String.format("%s: Took metadata epoch %d from %s:%s.", self, response.nodes.epoch,
+                            peer[0], peer[1]));
+                }
+            } catch (Exception e) {
+                logger.info(String.format("%s: Fetching metadata from %s:%s failed: %s", self, peer[0], peer[1],
+                        e.getMessage()));
+            } finally {
+                fetching.set(false);
+            }
+        }, workers);
+    }
+
+    private synchronized int clusterSize() {
+        return members.size() + 1;
+    }
+
+    // ceil(log2(n + 1)), at least 1
+    private static int log2(int n) {
+        return Math.max(1, 32 - Integer.numberOfLeadingZeros(n));
+    }
+}
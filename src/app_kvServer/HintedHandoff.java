@@ -0,0 +1,142 @@
+package app_kvServer;
+
+import org.apache.log4j.Logger;
+import shared.messages.CoordMessage;
+import shared.messages.ReplicationEntry;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/*
+ * Mutations a coordinator could not deliver to a replica, kept on local disk until the replica is back.
+ * Each target replica has its own file of "seq action version key [value]" lines, named by the replica's
+ * hash. Replaying resends them in batches; replicas apply them last-writer-wins, so a replay that is cut
+ * short can simply start over. A target whose hints would exceed maxBytesPerTarget loses them instead,
+ * and the caller falls back to reconciling that replica.
+ */
+public class HintedHandoff {
+    private static final Logger logger = Logger.getRootLogger();
+
+    private final Path dir;
+    private final long maxBytesPerTarget;
+    private final Map<String, Object> locks = new HashMap<>();
+
+    public HintedHandoff(Path dir, long maxBytesPerTarget) {
+        this.dir = dir;
+        this.maxBytesPerTarget = maxBytesPerTarget;
+    }
+
+    /**
+     * @return false if the hints could not be stored, in which case all hints for target were dropped
+     */
+    public boolean append(String target, List<ReplicationEntry> hints) {
+        synchronized (lock(target)) {
+            Path file = fileOf(target);
+            try {
+                Files.createDirectories(dir);
+                StringBuilder lines = new StringBuilder();
+                for (ReplicationEntry hint : hints) {
+                    lines.append(format(hint)).append('\n');
+                }
+                byte[] bytes = lines.toString().getBytes(StandardCharsets.UTF_8);
+                long size = Files.exists(file) ? Files.size(file) : 0;
+                if (size + bytes.length > maxBytesPerTarget) {
+                    logger.warn(String.format("Hints for %s exceed %d bytes, dropping them.", target, maxBytesPerTarget));
+                    Files.deleteIfExists(file);
+                    return false;
+                }
+                Files.write(file, bytes, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                return true;
+            } catch (IOException e) {
+                logger.error(String.format("Failed to store hints for %s: %s", target, e.getMessage()));
+                discard(target);
+                return false;
+            }
+        }
+    }
+
+    public boolean hasHints(String target) {
+        synchronized (lock(target)) {
+            return Files.exists(fileOf(target));
+        }
+    }
+
+    /**
+     * Hands the hints for target to deliver in batches of up to batchSize, and deletes them once every
+     * batch was delivered. Appends for target wait until the replay is done.
+     *
+     * @return true if all hints were delivered, false if deliver refused a batch
+     * @throws IOException if the hints could not be read; they are dropped
+     */
+    public boolean replay(String target, int batchSize, Predicate<List<ReplicationEntry>> deliver) throws IOException {
+        synchronized (lock(target)) {
+            Path file = fileOf(target);
+            if (!Files.exists(file)) {
+                return true;
+            }
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                List<ReplicationEntry> batch = new ArrayList<>();
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    batch.add(parse(line));
+                    if (batch.size() == batchSize) {
+                        if (!deliver.test(batch)) {
+                            return false;
+                        }
+                        batch = new ArrayList<>();
+                    }
+                }
+                if (!batch.isEmpty() && !deliver.test(batch)) {
+                    return false;
+                }
+            } catch (IOException | RuntimeException e) {
+                discard(target);
+                throw new IOException("Unreadable hints for " + target + ": " + e.getMessage(), e);
+            }
+            discard(target);
+            return true;
+        }
+    }
+
+    public void discard(String target) {
+        synchronized (lock(target)) {
+            try {
+                Files.deleteIfExists(fileOf(target));
+            } catch (IOException e) {
+                logger.error(String.format("Failed to delete hints for %s: %s", target, e.getMessage()));
+            }
+        }
+    }
+
+    private synchronized Object lock(String target) {
+        return locks.computeIfAbsent(target, k -> new Object());
+    }
+
+    private Path fileOf(String target) {
+        return dir.resolve(target + ".hints");
+    }
+
+    private static String format(ReplicationEntry hint) {
+        String line = hint.seq + " " + hint.action + " " + hint.version + " " + hint.key;
+        return hint.value == null ? line : line + " " + hint.value;
+    }
+
+    private static ReplicationEntry parse(String line) {
+        String[] parts = line.split(" ", 5);
+        if (parts.length < 4) {
+            throw new IllegalArgumentException("Malformed hint: " + line);
+        }
+        return new ReplicationEntry(Long.parseLong(parts[0]), CoordMessage.ActionType.valueOf(parts[1]), parts[3],
+                parts.length == 5 ? parts[4] : null, Long.parseLong(parts[2]));
+    }
+}
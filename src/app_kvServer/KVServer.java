@@ -2,10 +2,23 @@ package app_kvServer;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.Channels;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.AbstractMap.SimpleEntry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import app_kvECS.ECSClient;
 import app_kvServer.kvCache.FIFOCache;
@@ -14,19 +27,26 @@ import app_kvServer.kvCache.LFUCache;
 import app_kvServer.kvCache.LRUCache;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonMappingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import ecs.ECSNode;
 import ecs.IECSNode;
 import shared.BST;
 import shared.Heartbeat;
+import shared.MetadataDelta;
+import shared.comm.PeerConnectionPool;
+import shared.messages.ConsistencyLevel;
 import shared.messages.CoordMessage;
 import shared.messages.ECSMessage;
 import shared.messages.ECSMessage.ActionType;
 import shared.messages.KVMessage;
 import shared.messages.KVMessage.StatusType;
 import shared.messages.KVMessageImpl;
+import shared.messages.LoadStats;
+import shared.messages.MessageCodec;
+import shared.messages.ReplicationEntry;
+import shared.messages.ReplicationMode;
 import shared.utils.CommUtils;
 import shared.utils.HashUtils;
+import shared.utils.HybridLogicalClock;
 import logger.LogSetup;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -44,6 +64,17 @@ public class KVServer implements IKVServer, Runnable {
      * and "LFU".
      */
     private static Logger logger = Logger.getRootLogger();
+    private static final long HEARTBEAT_TIMEOUT_MS = 3000;
+    private static final long TRANSFER_EXPIRY_MS = 10 * 60 * 1000;
+    // How long after its stream ended an online transfer waits for the ECS to take its tail.
+    private static final long TAIL_EXPIRY_MS = 2 * 60 * 1000;
+    // Stays below the client's one second read timeout so a slow replica cannot fail the request.
+    private static final long REPLICA_ACK_TIMEOUT_MS = 500;
+    private static final int BUCKETS_PER_SYNC = 16;
+    private static final long MAX_HINT_BYTES_PER_REPLICA = 16L * 1024 * 1024;
+    private static final long CHAIN_FORWARD_TIMEOUT_MS = 10000;
+    // Metadata changes kept to answer clients with a delta; older clients get the whole ring.
+    private static final int METADATA_HISTORY = 32;
     public final String storageDir;
     private String address;
     private int port;
@@ -58,18 +89,44 @@ public class KVServer implements IKVServer, Runnable {
     private IKVCache cache;
     private KVStorage storage;
     private final Object lock = new Object();
+    private final HybridLogicalClock clock = new HybridLogicalClock();
     public String serverName;
     private String hashValue;
     public BST metadata;
+    // Closes the whole server to writes
     private boolean writeLock;
-    private List<ClientConnection> clientConnections = new ArrayList<ClientConnection>();
+    // Flattened hash ranges closed to writes, one entry per SET_WRITE_LOCK; guarded by lock
+    private final List<String[]> lockedRanges = new ArrayList<>();
+    // Ranges an online transfer is streaming away, and the keys written in them since it started;
+    // guarded by lock
+    private final List<TailedRange> tailedRanges = new ArrayList<>();
+    private final Set<String> tailedKeys = new HashSet<>();
+    private long tailExpiryMs = TAIL_EXPIRY_MS;
+    private final List<ClientConnection> clientConnections = new CopyOnWriteArrayList<>();
     private List<String> coordinators = new ArrayList<>();
     public List<String> replicationsOfThisServer = new ArrayList<>();
     public Map<String, KVStorage> replicationsStored = new HashMap<>(); //hashvalue and storage
     private HeartbeatServer heartbeat;
+    private final Gossip gossip;
+    public final PeerConnectionPool peerPool;
+    private BulkTransfer.Codec transferCodec = BulkTransfer.Codec.PLAIN;
+    private final Map<String, BulkTransfer.Progress> bulkTransfers = new ConcurrentHashMap<>();
+    private final Object replicaSyncLock = new Object();
+    public final MigrationThrottle migrationThrottle = new MigrationThrottle();
+    public final LoadMonitor loadMonitor = new LoadMonitor();
+    public final ReplicationLog replicationLog = new ReplicationLog(this);
+    public final HintedHandoff hintedHandoff;
     public ECSClient ecsClient;
     public int priorityNum;
     public boolean isLeader;
+    // Capacity relative to other servers; the ECS gives the server this many times the default positions.
+    private volatile double weight;
+    // Ring position -> {reads, writes} served for it since start; reported with every heartbeat.
+    private final Map<String, long[]> requestCounts = new HashMap<>();
+    // Epoch -> the change from that epoch to the next one this server received; guarded by itself
+    private final TreeMap<Long, MetadataDelta> metadataHistory = new TreeMap<>();
+    // The whole-ring keyrange reply, built once per metadata update
+    private volatile String keyrangeReply;
 
 
 //    public KVServer(int port, int cacheSize, String strategy) {
@@ -78,6 +135,12 @@ public class KVServer implements IKVServer, Runnable {
 
     public KVServer(String ecsAddress, int ecsPort, String address, int port, int cacheSize, String strategy,
                     String storageDir) {
+        this(ecsAddress, ecsPort, address, port, cacheSize, strategy, storageDir, 1);
+    }
+
+    public KVServer(String ecsAddress, int ecsPort, String address, int port, int cacheSize, String strategy,
+                    String storageDir, double weight) {
+        this.weight = weight > 0 ? weight : 1;
         String fileName = address + "_" + port + ".txt";
         this.storagePath = storageDir + File.separator + fileName;
         this.storageDir = storageDir;
@@ -93,6 +156,10 @@ public class KVServer implements IKVServer, Runnable {
         this.hashValue = HashUtils.getHash(serverName);
         this.isLeader = false;
         this.ecsClient = null;
+        this.peerPool = new PeerConnectionPool(serverName);
+        this.gossip = new Gossip(this);
+        this.hintedHandoff = new HintedHandoff(Paths.get(storageDir, "hints", address + "_" + port),
+                MAX_HINT_BYTES_PER_REPLICA);
         try {
             this.strategy = CacheStrategy.valueOf(strategy);
         } catch (IllegalArgumentException e) {
@@ -211,6 +278,21 @@ public class KVServer implements IKVServer, Runnable {
 
     @Override
     public String getKV(String key) throws Exception {
+        VersionedValue stored = VersionedValue.decode(getStoredKV(key));
+        return stored == null ? null : stored.value;
+    }
+
+    @Override
+    public void putKV(String key, String value) throws Exception {
+        synchronized (lock) {
+            putStoredKV(key, VersionedValue.encode(clock.now(), value));
+        }
+    }
+
+    /**
+     * @return the value of key as stored, i.e. encoded together with its version
+     */
+    private String getStoredKV(String key) throws Exception {
         logger.info("SERVER: Retrieve value for key: " + key);
         String value;
         if (cache != null && cache.inCache(key)) {
@@ -242,8 +324,7 @@ public class KVServer implements IKVServer, Runnable {
         return value;
     }
 
-    @Override
-    public void putKV(String key, String value) throws Exception {
+    private void putStoredKV(String key, String value) throws Exception {
         logger.info("Storage dir: " + getStoragePath());
         logger.info(String.format("PutKV: %s %s", key, value));
         // Put kv to storage
@@ -266,31 +347,51 @@ public class KVServer implements IKVServer, Runnable {
         }
     }
 
+    /**
+     * Applies a replicated put or update to the replica storage of the coordinator with hashValue,
+     * unless the replica already holds a newer version (last writer wins), so replays and reordered
+     * deliveries are harmless. Replica data never goes through the cache, which only holds this
+     * server's own keys.
+     */
     public void putKVForReplica(String key, String value, String hashValue) throws Exception {
-        logger.info("Storage file path: " + storage.filePath);
-        logger.info(String.format("PutKV: %s %s", key, value));
-
-        if (!replicationsStored.containsKey(hashValue)) {
-            // addReplicationFile(hashValue);
-        }
         KVStorage replicaStorage = replicationsStored.get(hashValue);
-        // Put kv to storage
-        if (cache == null) {
-            try {
+        if (replicaStorage == null) {
+            throw new Exception("No replica storage for coordinator " + hashValue);
+        }
+        VersionedValue incoming = VersionedValue.decode(value);
+        clock.observe(incoming.version);
+        try {
+            VersionedValue current = VersionedValue.decode(replicaStorage.getKV(key));
+            if (current == null) {
                 replicaStorage.putKV(key, value);
-                return;
-            } catch (RuntimeException e) {
-                throw new Exception(e.getMessage());
+            } else if (incoming.version >= current.version) {
+                replicaStorage.updateKV(key, value);
+            } else {
+                logger.debug(String.format("Ignored replicated %s at version %d, replica has %d.", key,
+                        incoming.version, current.version));
             }
+        } catch (RuntimeException e) {
+            throw new Exception(e.getMessage());
         }
-        // Put kv to cache
-        SimpleEntry<String, String> evicted = cache.putKV(key, value);
-        if (evicted != null) {
-            try {
-                writeEvictedToStorage(evicted.getKey(), evicted.getValue());
-            } catch (RuntimeException e) {
-                throw new Exception(e.getMessage());
+    }
+
+    /**
+     * Deletes key from the replica storage unless the replica holds a version newer than the delete.
+     * A version of 0 deletes unconditionally.
+     */
+    public void deleteKVForReplica(String key, long version, String hashValue) throws Exception {
+        KVStorage replicaStorage = replicationsStored.get(hashValue);
+        if (replicaStorage == null) {
+            throw new Exception("No replica storage for coordinator " + hashValue);
+        }
+        clock.observe(version);
+        try {
+            VersionedValue current = VersionedValue.decode(replicaStorage.getKV(key));
+            if (current != null && (version <= 0 || current.version <= version)) {
+                replicaStorage.deleteKV(key);
             }
+        } catch (RuntimeException e) {
+            throw new Exception(e.getMessage());
         }
     }
 
@@ -338,6 +439,424 @@ public class KVServer implements IKVServer, Runnable {
 
     public void appendDataToStorage(List<String> data) {
         storage.putList(data);
+        mergeTransferredData(storage);
+    }
+
+    public long appendDataToStorage(InputStream data) throws IOException {
+        return storage.appendFrom(Channels.newChannel(data));
+    }
+
+    public void mergeTransferredData() {
+        mergeTransferredData(storage);
+    }
+
+    /**
+     * Resolves keys that transferred data duplicated in target by last-writer-wins, and moves the clock
+     * past every version received so later local writes win over them.
+     */
+    public void mergeTransferredData(KVStorage target) {
+        try {
+            clock.observe(target.mergeDuplicates());
+        } catch (IOException e) {
+            logger.error("Unable to merge transferred data in " + target.filePath, e);
+        }
+    }
+
+    /**
+     * Ships the keys in range (one or more flattened ranges, everything if null) to another server over a
+     * bulk channel. The ranges are spilled to a file next to the storage file so they are never held in memory.
+     */
+    public boolean transferData(String targetHost, int targetPort, String[] range) {
+        return transferData(targetHost, targetPort, range, UUID.randomUUID().toString());
+    }
+
+    public boolean transferData(String targetHost, int targetPort, String[] range, String transferId) {
+        Path segment = spillData(range);
+        if (segment == null) {
+            return false;
+        }
+        try {
+            return BulkTransfer.send(transferId, targetHost, targetPort, segment, transferCodec,
+                    BulkTransfer.PRIMARY_TARGET, migrationThrottle);
+        } finally {
+            BulkTransfer.deleteQuietly(segment);
+        }
+    }
+
+    /**
+     * Ships the keys in range to another server while they stay open to writes. The keys written in
+     * range from now on are tracked, and endTail hands them over once the ranges are locked.
+     */
+    public boolean transferDataOnline(String targetHost, int targetPort, String[] range) {
+        return transferDataOnline(targetHost, targetPort, range, UUID.randomUUID().toString());
+    }
+
+    public boolean transferDataOnline(String targetHost, int targetPort, String[] range, String transferId) {
+        TailedRange tailed = new TailedRange(range);
+        synchronized (lock) {
+            tailedRanges.add(tailed);
+        }
+        if (!transferData(targetHost, targetPort, range, transferId)) {
+            endTail(range);
+            return false;
+        }
+        synchronized (lock) {
+            tailed.expiresAt = System.currentTimeMillis() + tailExpiryMs;
+        }
+        return true;
+    }
+
+    private static class TailedRange {
+        final String[] range;
+        // Once the stream has ended, the tail is dropped at this time unless the ECS took it.
+        long expiresAt = Long.MAX_VALUE;
+
+        TailedRange(String[] range) {
+            this.range = range;
+        }
+    }
+
+    private void trackTail(String key, StatusType status) {
+        if (tailedRanges.isEmpty() || (status != StatusType.PUT_SUCCESS && status != StatusType.PUT_UPDATE
+                && status != StatusType.DELETE_SUCCESS)) {
+            return;
+        }
+        expireTails();
+        String keyHash = HashUtils.getHash(key);
+        for (TailedRange tailed : tailedRanges) {
+            if (KVStorage.inRanges(keyHash, ECSMessage.splitRanges(tailed.range))) {
+                tailedKeys.add(key);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stops tracking the tails the ECS did not take in time, e.g. because it gave up on their move
+     * before it could end them.
+     */
+    private void expireTails() {
+        long now = System.currentTimeMillis();
+        for (Iterator<TailedRange> it = tailedRanges.iterator(); it.hasNext(); ) {
+            TailedRange tailed = it.next();
+            if (now < tailed.expiresAt) {
+                continue;
+            }
+            it.remove();
+            logger.warn(String.format("No cutover for the online transfer of %s, dropping its tail.",
+                    Arrays.toString(tailed.range)));
+            List<String[]> ranges = ECSMessage.splitRanges(tailed.range);
+            tailedKeys.removeIf(key -> KVStorage.inRanges(HashUtils.getHash(key), ranges));
+        }
+    }
+
+    /**
+     * @return whether writes to any range are tracked for an online transfer
+     */
+    public boolean isTailing() {
+        synchronized (lock) {
+            expireTails();
+            return !tailedRanges.isEmpty() || !tailedKeys.isEmpty();
+        }
+    }
+
+    /**
+     * Stops tracking writes to the ranges of an online transfer.
+     *
+     * @return the keys written in range since the transfer started, as storage lines with their current
+     * value, or as the bare key if they were deleted
+     */
+    public List<String> endTail(String[] range) {
+        List<String> tail = new ArrayList<>();
+        synchronized (lock) {
+            for (Iterator<TailedRange> it = tailedRanges.iterator(); it.hasNext(); ) {
+                if (Arrays.equals(it.next().range, range)) {
+                    it.remove();
+                    break;
+                }
+            }
+            List<String[]> ranges = ECSMessage.splitRanges(range);
+            for (Iterator<String> it = tailedKeys.iterator(); it.hasNext(); ) {
+                String key = it.next();
+                if (!KVStorage.inRanges(HashUtils.getHash(key), ranges)) {
+                    continue;
+                }
+                it.remove();
+                try {
+                    String stored = getStoredKV(key);
+                    tail.add(stored == null ? key : key + " " + stored);
+                } catch (Exception e) {
+                    logger.error("Unable to read " + key + " for the transfer tail", e);
+                }
+            }
+        }
+        return tail;
+    }
+
+    /**
+     * Applies the tail of an online transfer (see endTail) on top of the data it streamed here.
+     */
+    public boolean applyTail(List<String> tail) {
+        synchronized (lock) {
+            boolean success = true;
+            for (String line : tail) {
+                String[] parts = line.split(" ", 2);
+                try {
+                    if (parts.length == 1) {
+                        deleteKV(parts[0]);
+                        continue;
+                    }
+                    clock.observe(VersionedValue.decode(parts[1]).version);
+                    if (inCache(parts[0])) {
+                        cache.updateKV(parts[0], parts[1]);
+                    } else if (inStorage(parts[0])) {
+                        updateStorage(parts[0], parts[1]);
+                    } else {
+                        putStoredKV(parts[0], parts[1]);
+                    }
+                } catch (Exception e) {
+                    logger.error("Unable to apply the transfer tail for " + parts[0], e);
+                    success = false;
+                }
+            }
+            return success;
+        }
+    }
+
+    private Path spillData(String[] range) {
+        return spillData(storage, range);
+    }
+
+    private Path spillData(KVStorage source, String[] range) {
+        Path segment = null;
+        try {
+            segment = Files.createTempFile(Paths.get(storageDir), address + "_" + port + "_", ".transfer");
+            if (range == null) {
+                source.writeRange(null, null, segment);
+            } else {
+                source.writeRanges(ECSMessage.splitRanges(range), segment);
+            }
+            return segment;
+        } catch (IOException e) {
+            logger.error("Unable to spill data for transfer", e);
+            if (segment != null) {
+                BulkTransfer.deleteQuietly(segment);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Moves the keys in range (everything if null) from this server's replica of a failed coordinator into
+     * the storage of the server taking them over: into our own storage when targetHost is null, otherwise
+     * over a bulk channel.
+     */
+    public boolean promoteReplicaData(String coordinatorHash, String[] range, String targetHost, int targetPort) {
+        KVStorage replicaStorage = replicationsStored.get(coordinatorHash);
+        if (replicaStorage == null) {
+            logger.error("No replica storage for coordinator " + coordinatorHash);
+            return false;
+        }
+        Path segment = spillData(replicaStorage, range);
+        if (segment == null) {
+            return false;
+        }
+        try {
+            if (targetHost != null) {
+                return BulkTransfer.send(targetHost, targetPort, segment, transferCodec, BulkTransfer.PRIMARY_TARGET,
+                        migrationThrottle);
+            }
+            try (InputStream data = Files.newInputStream(segment)) {
+                appendDataToStorage(data);
+            }
+            mergeTransferredData();
+            forceSyncReplicas();
+            return true;
+        } catch (IOException e) {
+            logger.error("Unable to promote replica data of " + coordinatorHash, e);
+            return false;
+        } finally {
+            BulkTransfer.deleteQuietly(segment);
+        }
+    }
+
+    /**
+     * Schedules anti-entropy with every replica, for changes to storage that bypass the replication log.
+     */
+    public void forceSyncReplicas() {
+        replicationLog.resyncAll();
+    }
+
+    /**
+     * Replaces this server's data on one replica: an empty FORCE_SYNC resets the replica storage (and
+     * registers the replica if it has not set it up yet), then the data follows as a chunked bulk transfer.
+     */
+    public boolean forceSyncReplica(ECSNode replicaInfo) {
+        synchronized (replicaSyncLock) {
+            Path segment = spillData(null);
+            if (segment == null) {
+                return false;
+            }
+            try {
+                return syncReplica(replicaInfo, segment, metadata);
+            } finally {
+                BulkTransfer.deleteQuietly(segment);
+            }
+        }
+    }
+
+    /**
+     * Brings a replica in line by anti-entropy: the replica's Merkle tree for this server's range is
+     * compared with ours and only the buckets that differ are resent. Falls back to a full FORCE_SYNC
+     * when the replica has no storage for this server yet or most buckets differ.
+     */
+    public boolean reconcileReplica(ECSNode replicaInfo) {
+        try {
+            MerkleTree ours = getOwnMerkleTree();
+            CoordMessage request = new CoordMessage(this.getHashValue());
+            request.setAction(CoordMessage.ActionType.MERKLE);
+            request.merkleRoot = ours.root();
+            CoordMessage response = peerPool.sendCoordMessage(replicaInfo.getNodeHost(), replicaInfo.getNodePort(), request);
+            if (response == null || !response.isSuccess) {
+                logger.info(String.format("Replica %s has no copy of this server's data, sending all of it.",
+                        replicaInfo.getNodeName()));
+                return forceSyncReplica(replicaInfo);
+            }
+            if (response.merkleLeaves == null) {
+                return true;
+            }
+            List<Integer> differing = ours.diff(response.merkleLeaves);
+            if (differing.size() > MerkleTree.BUCKETS / 4) {
+                logger.info(String.format("Replica %s differs in %d buckets, sending all data.",
+                        replicaInfo.getNodeName(), differing.size()));
+                return forceSyncReplica(replicaInfo);
+            }
+            logger.info(String.format("Replica %s differs in %d buckets.", replicaInfo.getNodeName(), differing.size()));
+            for (int i = 0; i < differing.size(); i += BUCKETS_PER_SYNC) {
+                Set<Integer> buckets = new HashSet<>(differing.subList(i, Math.min(differing.size(), i + BUCKETS_PER_SYNC)));
+                CoordMessage sync = new CoordMessage(this.getHashValue());
+                sync.setAction(CoordMessage.ActionType.SYNC_BUCKETS);
+                sync.buckets = new ArrayList<>(buckets);
+                sync.setData(getOwnBuckets(buckets));
+                CoordMessage synced = peerPool.sendCoordMessage(replicaInfo.getNodeHost(), replicaInfo.getNodePort(), sync);
+                if (synced == null || !synced.isSuccess) {
+                    logger.error(String.format("Replica %s rejected bucket sync.", replicaInfo.getNodeName()));
+                    return false;
+                }
+            }
+            return true;
+        } catch (Exception e) {
+            logger.error(String.format("Anti-entropy with %s:%s failed: %s", replicaInfo.getNodeHost(),
+                    replicaInfo.getNodePort(), e.getMessage()));
+            return false;
+        }
+    }
+
+    /**
+     * The Merkle tree of this server's own data, which lives partly in the write-back cache.
+     */
+    private MerkleTree getOwnMerkleTree() throws IOException {
+        synchronized (lock) {
+            MerkleTree tree = storage.getMerkleTree();
+            if (cache != null) {
+                for (Map.Entry<String, String> entry : cache.getStoredData().entrySet()) {
+                    tree.add(entry.getKey(), entry.getValue());
+                }
+            }
+            return tree;
+        }
+    }
+
+    private List<String> getOwnBuckets(Set<Integer> buckets) throws IOException {
+        synchronized (lock) {
+            List<String> lines = storage.getBuckets(buckets);
+            if (cache != null) {
+                for (Map.Entry<String, String> entry : cache.getStoredData().entrySet()) {
+                    if (buckets.contains(MerkleTree.bucketOf(entry.getKey()))) {
+                        lines.add(entry.getKey() + " " + entry.getValue());
+                    }
+                }
+            }
+            return lines;
+        }
+    }
+
+    /**
+     * Answers a coordinator's MERKLE request: null leaves if our copy of its range matches its root.
+     */
+    public long[] compareMerkleTree(String coordinatorHash, long coordinatorRoot) throws Exception {
+        KVStorage replicaStorage = replicationsStored.get(coordinatorHash);
+        if (replicaStorage == null) {
+            throw new Exception("No replica storage for coordinator " + coordinatorHash);
+        }
+        MerkleTree tree = replicaStorage.getMerkleTree();
+        return tree.root() == coordinatorRoot ? null : tree.getLeaves();
+    }
+
+    public void replaceReplicaBuckets(String coordinatorHash, List<Integer> buckets, List<String> data) throws Exception {
+        KVStorage replicaStorage = replicationsStored.get(coordinatorHash);
+        if (replicaStorage == null) {
+            throw new Exception("No replica storage for coordinator " + coordinatorHash);
+        }
+        replicaStorage.replaceBuckets(new HashSet<>(buckets), data);
+        for (String line : data) {
+            String[] kv = line.split(" ", 2);
+            if (kv.length == 2) {
+                clock.observe(VersionedValue.decode(kv[1]).version);
+            }
+        }
+    }
+
+    private boolean syncReplica(ECSNode replicaInfo, Path segment, BST nodes) {
+        CoordMessage reset = new CoordMessage(this.getHashValue());
+        reset.setAction(CoordMessage.ActionType.FORCE_SYNC);
+        reset.nodes = nodes;
+        try {
+            CoordMessage response = peerPool.sendCoordMessage(replicaInfo.getNodeHost(), replicaInfo.getNodePort(), reset);
+            if (response == null || !response.isSuccess) {
+                logger.error(String.format("Replica %s rejected sync.", replicaInfo.getNodeName()));
+                return false;
+            }
+            if (Files.size(segment) > 0 && !BulkTransfer.send(replicaInfo.getNodeHost(), replicaInfo.getNodePort(), segment,
+                    transferCodec, this.getHashValue(), migrationThrottle)) {
+                logger.error(String.format("Failed to sync data to replica %s.", replicaInfo.getNodeName()));
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            logger.error(String.format("Failed to sync data to replica %s:%s", replicaInfo.getNodeHost(), replicaInfo.getNodePort()));
+            return false;
+        }
+    }
+
+    /**
+     * Returns the receive progress for a bulk transfer, creating it on first contact. Transfers that
+     * were abandoned by their sender are forgotten after TRANSFER_EXPIRY_MS.
+     */
+    public BulkTransfer.Progress getTransferProgress(BulkTransfer.Header header) {
+        long now = System.currentTimeMillis();
+        bulkTransfers.values().removeIf(progress -> now - progress.lastActivity > TRANSFER_EXPIRY_MS);
+        BulkTransfer.Progress progress = bulkTransfers.computeIfAbsent(header.transferId,
+                id -> new BulkTransfer.Progress(header.target, header.chunkCount));
+        progress.lastActivity = now;
+        return progress;
+    }
+
+    public void completeTransfer(String transferId) {
+        bulkTransfers.remove(transferId);
+    }
+
+    /**
+     * Refuses the rest of a bulk transfer, also if it has not reached this server yet. Once this returns,
+     * no more of its chunks are appended, so the data it brought can be removed.
+     */
+    public void abortTransfer(String transferId) {
+        BulkTransfer.Progress progress = bulkTransfers.computeIfAbsent(transferId,
+                id -> new BulkTransfer.Progress(BulkTransfer.PRIMARY_TARGET, 0));
+        synchronized (progress) {
+            progress.aborted = true;
+            progress.lastActivity = System.currentTimeMillis();
+        }
     }
 
     public List<String> getAllData() {
@@ -358,6 +877,20 @@ public class KVServer implements IKVServer, Runnable {
         }
     }
 
+    /**
+     * Removes the keys in one or more flattened ranges.
+     */
+    public boolean removeData(String[] range) {
+        logger.info("In removeData function in: " + port);
+        try {
+            storage.removeRanges(ECSMessage.splitRanges(range));
+            return true;
+        } catch (IOException e) {
+            logger.error("Unable to remove data from storage", e);
+            return false;
+        }
+    }
+
     public boolean removeData(String minVal, String maxVal) {
         logger.info("In removeData function in: " + port);
         try {
@@ -426,6 +959,7 @@ public class KVServer implements IKVServer, Runnable {
                         new Thread(() -> {
                             heartbeat.start();
                         }).start();
+                        gossip.start();
                     }
                     Socket client = serverSocket.accept();
                     ClientConnection connection = new ClientConnection(client, this);
@@ -446,6 +980,12 @@ public class KVServer implements IKVServer, Runnable {
     public void kill() {
         logger.info(String.format("%s: Killing server.", serverName));
         running = false;
+        if (heartbeat != null) {
+            heartbeat.stop();
+        }
+        gossip.stop();
+        replicationLog.close();
+        peerPool.close();
         try {
             serverSocket.close();
             for (ClientConnection connection : clientConnections) {
@@ -463,6 +1003,9 @@ public class KVServer implements IKVServer, Runnable {
         syncCacheToStorage();
         try {
             disconnectFromCentralServer();
+            gossip.stop();
+            replicationLog.close();
+            peerPool.close();
             serverSocket.close();
             for (ClientConnection connection : clientConnections) {
                 connection.close();
@@ -505,11 +1048,10 @@ public class KVServer implements IKVServer, Runnable {
             ECSMessage msg = new ECSMessage();
             msg.setAction(ActionType.NEW_NODE);
             msg.setServerInfo(address, port);
+            msg.weight = weight;
 
-            ObjectMapper mapper = new ObjectMapper();
             try {
-                String jsonString = mapper.writeValueAsString(msg);
-                out.write(jsonString);
+                out.write(MessageCodec.encode(msg));
                 out.newLine();
                 out.flush();
             } catch (JsonProcessingException e) {
@@ -528,17 +1070,20 @@ public class KVServer implements IKVServer, Runnable {
             // Setup input and output streams
             BufferedWriter out = new BufferedWriter(new OutputStreamWriter(ECSSocket.getOutputStream(), StandardCharsets.UTF_8));
             ECSMessage msg = new ECSMessage();
-            msg.setData(getAllData());
             msg.setAction(ActionType.DELETE);
             msg.setServerInfo(address, port);
-            if (metadata.size() > 1) {
+            if (metadata.serverCount() > 1) {
+                // Hand the data to the new owners directly; fall back to routing it through the ECS.
+                if (!handOffData()) {
+                    msg.setData(getAllData());
+                }
                 logger.info("Removing all the data from: " + port);
                 removeData("00000000000000000000000000000000", "FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF");
+            } else {
+                msg.setData(getAllData());
             }
-            ObjectMapper mapper = new ObjectMapper();
             try {
-                String jsonString = mapper.writeValueAsString(msg);
-                out.write(jsonString);
+                out.write(MessageCodec.encode(msg));
                 out.newLine();
                 out.flush();
             } catch (JsonProcessingException e) {
@@ -553,6 +1098,54 @@ public class KVServer implements IKVServer, Runnable {
     }
 
 
+    /**
+     * Hands each of this server's ranges to the server taking it over, with one bulk transfer per new
+     * owner, all running in parallel.
+     */
+    private boolean handOffData() {
+        Map<String, List<String[]>> heirs = metadata.rangesHandedOffBy(serverName);
+        if (heirs.isEmpty()) {
+            return true;
+        }
+        ExecutorService handOffs = Executors.newFixedThreadPool(heirs.size());
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (Map.Entry<String, List<String[]>> heir : heirs.entrySet()) {
+                ECSNode node = (ECSNode) metadata.get(heir.getKey());
+                String[] range = ECSMessage.flattenRanges(heir.getValue());
+                results.add(handOffs.submit(() -> handOffRanges(node, range)));
+            }
+            boolean success = true;
+            for (Future<Boolean> result : results) {
+                try {
+                    success &= result.get();
+                } catch (ExecutionException e) {
+                    logger.error("Hand-off failed", e.getCause());
+                    success = false;
+                }
+            }
+            return success;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            handOffs.shutdownNow();
+        }
+    }
+
+    private boolean handOffRanges(ECSNode heir, String[] range) {
+        ECSMessage lockResponse = sendMessage(heir, new ECSMessage(ActionType.SET_WRITE_LOCK, true, null, range, null));
+        if (lockResponse == null || !lockResponse.getSuccess()) {
+            logger.info("Could not lock " + heir.getNodeName() + " for hand-off.");
+            return false;
+        }
+        boolean success = transferData(heir.getNodeHost(), heir.getNodePort(), range);
+        sendMessage(heir, new ECSMessage(ActionType.UNSET_WRITE_LOCK, true, null, range, null));
+        logger.info(String.format("Hand-off of %d ranges to %s %s.", range.length / 2, heir.getNodeName(),
+                success ? "succeeded" : "failed"));
+        return success;
+    }
+
     public boolean checkKeyRange(String key) {
         logger.info(">>>>>");
         logger.info("Target server name: " + metadata.getNodeFromKey(HashUtils.getHash(key)).getNodeName());
@@ -561,20 +1154,61 @@ public class KVServer implements IKVServer, Runnable {
     }
 
     public KVMessage handleGetMessage(KVMessage message) {
-        String key = message.getKey();
-        KVMessage response = new KVMessageImpl();
-        if (checkKeyRange(key)) {
-            response.setKey(key);
-            synchronized (lock) {
-                try {
-                    logger.info("SERVER: Trying to GET the value associated with Key '" + key);
-                    String value = getKV(key);
-                    if (value == null || value.isEmpty()) {
-                        response.setStatus(StatusType.GET_ERROR);
+        KVMessage response = serveGetMessage(message);
+        countRequest(message.getKey(), response, 0);
+        return response;
+    }
+
+    private KVMessage serveGetMessage(KVMessage message) {
+        ConsistencyLevel consistency = message.getConsistency();
+        if (consistency != null && consistency != ConsistencyLevel.ONE) {
+            if (metadata.getReplicationMode() == ReplicationMode.CHAIN && isChainTail(message.getKey())) {
+                return handleTailGetMessage(message);
+            }
+            return handleQuorumGetMessage(message);
+        }
+        KVMessage response = handleLocalGetMessage(message);
+        if (consistency != null && response.getStatus() == StatusType.GET_SUCCESS) {
+            response.setConsistency(ConsistencyLevel.ONE);
+        }
+        return response;
+    }
+
+    private boolean isChainTail(String key) {
+        List<String> chain = metadata.getResponsibleNodes(HashUtils.getHash(key));
+        return !chain.isEmpty() && chain.get(chain.size() - 1).equals(hashValue);
+    }
+
+    /**
+     * Serves a strongly consistent read at the tail of a replication chain. Writes reach the tail last
+     * and are acknowledged to QUORUM and ALL writers only once they have, so the tail's copy is current
+     * without asking the other replicas.
+     */
+    private KVMessage handleTailGetMessage(KVMessage message) {
+        KVMessage response = handleLocalGetMessage(message);
+        if (response.getStatus() == StatusType.GET_SUCCESS || response.getStatus() == StatusType.GET_ERROR) {
+            response.setConsistency(message.getConsistency());
+            response.setReplicaAcks(metadata.replicaCount());
+        }
+        return response;
+    }
+
+    private KVMessage handleLocalGetMessage(KVMessage message) {
+        String key = message.getKey();
+        KVMessage response = new KVMessageImpl();
+        if (checkKeyRange(key)) {
+            response.setKey(key);
+            synchronized (lock) {
+                try {
+                    logger.info("SERVER: Trying to GET the value associated with Key '" + key);
+                    VersionedValue stored = VersionedValue.decode(getStoredKV(key));
+                    if (stored == null || stored.value.isEmpty()) {
+                        response.setStatus(StatusType.GET_ERROR);
                         return response;
                     }
                     response.setStatus(StatusType.GET_SUCCESS);
-                    response.setValue(value);
+                    response.setValue(stored.value);
+                    response.setVersion(stored.version);
                 } catch (Exception e) {
                     logger.error("Error retrieving value for key '" + key + "': " + e.getMessage());
                     response.setStatus(StatusType.GET_ERROR);
@@ -586,18 +1220,19 @@ public class KVServer implements IKVServer, Runnable {
             synchronized (lock) {
                 try {
                     logger.info("SERVER: Trying to GET the value from replicas associated with Key '" + key);
-                    String nodeHash = metadata.getNodeFromKey(HashUtils.getHash(key)).getNodeHashRange()[1];
-                    String value = null;
+                    String nodeHash = metadata.coordinatorOf(HashUtils.getHash(key));
+                    VersionedValue stored = null;
                     if (nodeHash != null) {
-                        value = replicationsStored.get(nodeHash).getKV(key);
+                        stored = VersionedValue.decode(replicationsStored.get(nodeHash).getKV(key));
                     }
 
-                    if (value == null || value.isEmpty()) {
+                    if (stored == null || stored.value.isEmpty()) {
                         response.setStatus(StatusType.GET_ERROR);
                         return response;
                     }
                     response.setStatus(StatusType.GET_SUCCESS);
-                    response.setValue(value);
+                    response.setValue(stored.value);
+                    response.setVersion(stored.version);
                 } catch (Exception e) {
                     logger.error("Error retrieving value for key '" + key + "': " + e.getMessage());
                     response.setStatus(StatusType.GET_ERROR);
@@ -613,11 +1248,7 @@ public class KVServer implements IKVServer, Runnable {
     }
 
     private boolean checkKeyRangeForReplicas(String key) {
-        String nodeHash = metadata.getNodeFromKey(HashUtils.getHash(key)).getNodeHashRange()[1];
-        if (nodeHash != null) {
-            return replicationsStored.containsKey(nodeHash);
-        }
-        return false;
+        return replicationsStored.containsKey(metadata.coordinatorOf(HashUtils.getHash(key)));
     }
 
     private String getKVFromReplicas(String key) {
@@ -630,10 +1261,280 @@ public class KVServer implements IKVServer, Runnable {
         return null;
     }
 
+    /**
+     * Reads key from as many of its responsible nodes (coordinator and replicas) as the requested level
+     * needs, in parallel, and answers with the newest version. Stale copies are repaired asynchronously.
+     * The coordinator is the only writer for its range, so when it answers that the key is missing that
+     * wins over replicas that may not have applied the delete yet.
+     */
+    private KVMessage handleQuorumGetMessage(KVMessage message) {
+        String key = message.getKey();
+        KVMessage response = new KVMessageImpl();
+        String coordinatorHash = metadata.coordinatorOf(HashUtils.getHash(key));
+        ECSNode coordinator = (ECSNode) metadata.get(coordinatorHash);
+        if (!coordinatorHash.equals(hashValue) && !replicationsStored.containsKey(coordinatorHash)) {
+            response.setStatus(StatusType.SERVER_NOT_RESPONSIBLE);
+            response.setMetadata(this.metadata);
+            return response;
+        }
+        response.setKey(key);
+
+        List<ECSNode> peers = new ArrayList<>();
+        for (String nodeHash : responsibleNodes(coordinator)) {
+            ECSNode node = (ECSNode) metadata.get(nodeHash);
+            if (node != null && !nodeHash.equals(hashValue)) {
+                peers.add(node);
+            }
+        }
+        int total = peers.size() + 1;
+        int required = message.getConsistency() == ConsistencyLevel.ALL ? total : total / 2 + 1;
+
+        CoordMessage read = new CoordMessage(coordinatorHash);
+        read.setAction(CoordMessage.ActionType.READ);
+        read.setKey(key);
+        Map<ECSNode, CoordMessage> answers = new ConcurrentHashMap<>();
+        CountDownLatch quorum = new CountDownLatch(required - 1);
+        try {
+            String line = MessageCodec.encode(read);
+            for (ECSNode peer : peers) {
+                peerPool.requestAsync(peer.getNodeHost(), peer.getNodePort(), line).thenAccept(reply -> {
+                    try {
+                        CoordMessage answer = MessageCodec.decodeCoordMessage(reply);
+                        if (answer.isSuccess) {
+                            answers.put(peer, answer);
+                            quorum.countDown();
+                        }
+                    } catch (IOException e) {
+                        logger.error(String.format("Invalid read response from %s: %s", peer.getNodeName(), reply));
+                    }
+                });
+            }
+        } catch (JsonProcessingException e) {
+            logger.error("Unable to encode read request", e);
+        }
+
+        VersionedValue local;
+        try {
+            local = VersionedValue.decode(readStoredValue(key, coordinatorHash));
+        } catch (Exception e) {
+            logger.error("Error retrieving value for key '" + key + "': " + e.getMessage());
+            response.setStatus(StatusType.GET_ERROR);
+            return response;
+        }
+        try {
+            quorum.await(REPLICA_ACK_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        Map<ECSNode, VersionedValue> copies = new HashMap<>();
+        for (Map.Entry<ECSNode, CoordMessage> answer : answers.entrySet()) {
+            copies.put(answer.getKey(), VersionedValue.decode(answer.getValue().getValue()));
+        }
+        boolean coordinatorAnswered = coordinatorHash.equals(hashValue) || copies.containsKey(coordinator);
+        VersionedValue coordinatorCopy = coordinatorHash.equals(hashValue) ? local : copies.get(coordinator);
+        VersionedValue newest = local;
+        for (VersionedValue copy : copies.values()) {
+            if (copy != null && copy.isNewerThan(newest)) {
+                newest = copy;
+            }
+        }
+        if (coordinatorAnswered && coordinatorCopy == null) {
+            newest = null;
+        }
+
+        int responded = copies.size();
+        response.setConsistency(ConsistencyLevel.achieved(responded, total - 1));
+        response.setReplicaAcks(responded);
+        if (responded + 1 < required) {
+            logger.warn(String.format("Read of %s reached %d of %d required nodes.", key, responded + 1, required));
+        }
+        if (newest != null) {
+            // Absent copies are only filled in when the coordinator vouched for the value.
+            boolean repairMissing = coordinatorAnswered;
+            if (local == null ? repairMissing : newest.isNewerThan(local)) {
+                repairStoredValue(key, newest.encode(), coordinatorHash);
+            }
+            for (Map.Entry<ECSNode, VersionedValue> copy : copies.entrySet()) {
+                if (copy.getValue() == null ? repairMissing : newest.isNewerThan(copy.getValue())) {
+                    sendRepair(copy.getKey(), key, newest.encode(), coordinatorHash);
+                }
+            }
+        }
+        if (newest == null || newest.value.isEmpty()) {
+            response.setStatus(StatusType.GET_ERROR);
+            return response;
+        }
+        response.setStatus(StatusType.GET_SUCCESS);
+        response.setValue(newest.value);
+        response.setVersion(newest.version);
+        return response;
+    }
+
+    private List<String> responsibleNodes(ECSNode coordinator) {
+        List<String> nodes = new ArrayList<>();
+        nodes.add(coordinator.getNodeHashRange()[1]);
+        for (String successor : coordinator.getSuccessors()) {
+            if (!nodes.contains(successor)) {
+                nodes.add(successor);
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * @return the stored (versioned) value of key in this server's copy of coordinatorHash's range,
+     * or null if it is not there
+     */
+    public String readStoredValue(String key, String coordinatorHash) throws Exception {
+        if (coordinatorHash.equals(hashValue)) {
+            synchronized (lock) {
+                return getStoredKV(key);
+            }
+        }
+        KVStorage replicaStorage = replicationsStored.get(coordinatorHash);
+        if (replicaStorage == null) {
+            throw new Exception("No replica storage for coordinator " + coordinatorHash);
+        }
+        return replicaStorage.getKV(key);
+    }
+
+    /**
+     * Overwrites this server's copy of key in coordinatorHash's range with stored if stored is newer.
+     */
+    public void repairStoredValue(String key, String stored, String coordinatorHash) {
+        VersionedValue incoming = VersionedValue.decode(stored);
+        try {
+            if (coordinatorHash.equals(hashValue)) {
+                synchronized (lock) {
+                    VersionedValue current = VersionedValue.decode(getStoredKV(key));
+                    if (!incoming.isNewerThan(current)) {
+                        return;
+                    }
+                    if (inCache(key)) {
+                        cache.updateKV(key, stored);
+                    } else if (current != null) {
+                        updateStorage(key, stored);
+                    } else {
+                        putStoredKV(key, stored);
+                    }
+                    clock.observe(incoming.version);
+                }
+            } else {
+                KVStorage replicaStorage = replicationsStored.get(coordinatorHash);
+                if (replicaStorage == null || !incoming.isNewerThan(VersionedValue.decode(replicaStorage.getKV(key)))) {
+                    return;
+                }
+                putKVForReplica(key, stored, coordinatorHash);
+            }
+            logger.info(String.format("Repaired %s to version %d.", key, incoming.version));
+        } catch (Exception e) {
+            logger.error(String.format("Failed to repair %s: %s", key, e.getMessage()));
+        }
+    }
+
+    private void sendRepair(ECSNode node, String key, String stored, String coordinatorHash) {
+        CoordMessage repair = new CoordMessage(coordinatorHash);
+        repair.setAction(CoordMessage.ActionType.REPAIR);
+        repair.setKey(key);
+        repair.setValue(stored);
+        try {
+            peerPool.requestAsync(node.getNodeHost(), node.getNodePort(), MessageCodec.encode(repair));
+        } catch (JsonProcessingException e) {
+            logger.error("Unable to encode repair request", e);
+        }
+    }
+
+    /**
+     * Applies a client put and appends it to the replication log. Both happen under the same lock so
+     * replicas receive mutations in the order the coordinator applied them. Unless the client asked
+     * for QUORUM or ALL, it is answered without waiting for replicas.
+     */
     public KVMessage handlePutMessage(KVMessage message) {
+        KVMessage response;
+        long seq;
+        synchronized (lock) {
+            long version = clock.now();
+            String stored = "null".equals(message.getValue()) ? null
+                    : VersionedValue.encode(version, message.getValue());
+            response = applyPutMessage(message, stored);
+            response.setVersion(version);
+            trackTail(message.getKey(), response.getStatus());
+            seq = replicateMutation(response, stored, version);
+        }
+        countRequest(message.getKey(), response, 1);
+        if (message.getConsistency() != null && seq > 0) {
+            awaitConsistency(message.getConsistency(), seq, response);
+        }
+        return response;
+    }
+
+    /**
+     * Counts a request this server served, as a read (kind 0) or a write (kind 1) of the key's position.
+     */
+    private void countRequest(String key, KVMessage response, int kind) {
+        StatusType status = response.getStatus();
+        BST ring = metadata;
+        if (status == StatusType.SERVER_NOT_RESPONSIBLE || status == StatusType.SERVER_WRITE_LOCK
+                || status == StatusType.SERVER_STOPPED || ring == null || ring.isEmpty()) {
+            return;
+        }
+        String position = ring.positionOf(HashUtils.getHash(key));
+        synchronized (requestCounts) {
+            requestCounts.computeIfAbsent(position, k -> new long[2])[kind]++;
+        }
+    }
+
+    /**
+     * @return ring position -> {reads, writes} this server served for it since it started
+     */
+    public Map<String, long[]> getRequestCounts() {
+        Map<String, long[]> counts = new HashMap<>();
+        synchronized (requestCounts) {
+            for (Map.Entry<String, long[]> entry : requestCounts.entrySet()) {
+                counts.put(entry.getKey(), entry.getValue().clone());
+            }
+        }
+        return counts;
+    }
+
+    public LoadStats getLoadStats() {
+        LoadStats load = loadMonitor.snapshot(storage.file.length());
+        ReplicationLog.ReplicaLag lag = replicationLog.getMaxLag();
+        load.replicaLagEntries = lag.entries;
+        load.replicaLagMillis = lag.millis;
+        return load;
+    }
+
+    /**
+     * Waits, outside the put lock, for the replica acknowledgements the requested level needs and
+     * reports the level that was actually achieved on the response.
+     */
+    private void awaitConsistency(ConsistencyLevel requested, long seq, KVMessage response) {
+        int replicas = replicationLog.getReplicaCount();
+        int acks;
+        try {
+            acks = replicationLog.awaitAcks(seq, requested.requiredReplicaAcks(replicas), REPLICA_ACK_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acks = 0;
+        }
+        ConsistencyLevel achieved = ConsistencyLevel.achieved(acks, replicas);
+        if (achieved.compareTo(requested) < 0) {
+            logger.warn(String.format("Write of %s reached %s (%d/%d replicas) instead of %s.",
+                    response.getKey(), achieved, acks, replicas, requested));
+        }
+        response.setConsistency(achieved);
+        response.setReplicaAcks(acks);
+    }
+
+    /**
+     * Applies a put, update or delete; stored is the versioned value to write, null for a delete.
+     */
+    private KVMessage applyPutMessage(KVMessage message, String stored) {
         String key = message.getKey();
         KVMessage response = new KVMessageImpl();
-        if (getWriteLock()) {
+        if (isWriteLocked(key)) {
             response.setStatus(StatusType.SERVER_WRITE_LOCK);
             return response;
         }
@@ -664,14 +1565,14 @@ public class KVServer implements IKVServer, Runnable {
                 // Update
                 if (inCache(key)) {
                     logger.info("SERVER: Update cache with Key '" + key + "', Value '" + value + "'");
-                    cache.updateKV(key, value);
+                    cache.updateKV(key, stored);
                     response.setStatus(StatusType.PUT_UPDATE);
                     return response;
                 }
                 if (inStorage(key)) {
                     logger.info("SERVER: Update storage with Key '" + key + "', Value '" + value + "'");
                     try {
-                        updateStorage(key, value);
+                        updateStorage(key, stored);
                         response.setStatus(StatusType.PUT_UPDATE);
                         return response;
                     } catch (Exception e) {
@@ -684,7 +1585,7 @@ public class KVServer implements IKVServer, Runnable {
                 //Put
                 logger.info("SERVER: PUT  Key '" + key + "', Value '" + value + "'");
                 try {
-                    putKV(key, value);
+                    putStoredKV(key, stored);
                     response.setStatus(StatusType.PUT_SUCCESS);
                 } catch (Exception e) {
                     logger.error("Error putting key-value pair for key '" + key + "': " + e.toString());
@@ -709,6 +1610,75 @@ public class KVServer implements IKVServer, Runnable {
         return message;
     }
 
+    /**
+     * Answers a keyrange request: with the change since the client's epoch when this server has it,
+     * otherwise with the whole ring, which is only serialized once per metadata update.
+     */
+    public String keyrangeReply(KVMessage request) {
+        BST current = metadata;
+        if (current == null) {
+            return new KVMessageImpl(StatusType.SERVER_STOPPED).toString();
+        }
+        MetadataDelta delta = request.getEpoch() > 0 ? metadataDeltaSince(request.getEpoch(), current) : null;
+        if (delta != null) {
+            KVMessage reply = new KVMessageImpl(StatusType.KEYRANGE_SUCCESS);
+            reply.setMetadataDelta(delta);
+            return reply.toString();
+        }
+        String reply = keyrangeReply;
+        if (reply == null) {
+            reply = handleKeyRangeMessage(request).toString();
+            if (current == metadata) {
+                keyrangeReply = reply;
+            }
+        }
+        return reply;
+    }
+
+    /**
+     * @return the change from epoch to the current metadata, or null if this server does not have all of it
+     */
+    private MetadataDelta metadataDeltaSince(long epoch, BST current) {
+        if (epoch > current.epoch) {
+            return null;
+        }
+        MetadataDelta delta = new MetadataDelta();
+        delta.fromEpoch = epoch;
+        delta.toEpoch = epoch;
+        synchronized (metadataHistory) {
+            while (delta.toEpoch < current.epoch) {
+                MetadataDelta next = metadataHistory.get(delta.toEpoch);
+                if (next == null) {
+                    return null;
+                }
+                delta = delta.then(next);
+            }
+        }
+        if (delta.toEpoch != current.epoch) {
+            return null;
+        }
+        // The client replaces all of its read routes.
+        delta.replicationFactor = current.getReplicationFactor();
+        delta.replicationMode = current.getReplicationMode();
+        delta.virtualNodes = current.getVirtualNodes();
+        delta.loadBound = current.getLoadBound();
+        delta.readRoutes = current.readRoutes;
+        return delta;
+    }
+
+    /**
+     * @return the change from epoch to the current metadata, or null if this server does not have all of it
+     */
+    public MetadataDelta metadataDeltaSince(long epoch) {
+        BST current = metadata;
+        return current == null ? null : metadataDeltaSince(epoch, current);
+    }
+
+    public long getMetadataEpoch() {
+        BST current = metadata;
+        return current == null ? 0 : current.epoch;
+    }
+
     public KVMessage handleKeyRangeReadMessage(KVMessage msg) {
         KVMessage message = new KVMessageImpl();
         message.setMetadata(metadata.createReplicatedRange());
@@ -733,11 +1703,65 @@ public class KVServer implements IKVServer, Runnable {
             this.priorityNum = curNode.priorityNum;
         }
 
+        BST previous = this.metadata;
         this.metadata = metadata;
-        updateReplicaInfo();
+        keyrangeReply = null;
+        if (previous != null && previous.epoch < metadata.epoch) {
+            synchronized (metadataHistory) {
+                metadataHistory.put(previous.epoch, metadata.deltaFrom(previous));
+                while (metadataHistory.size() > METADATA_HISTORY) {
+                    metadataHistory.pollFirstEntry();
+                }
+            }
+        }
+        gossip.updateMembers(metadata);
+        // Replicas only need reconciling when this server's ranges or its replicas changed.
+        updateReplicaInfo(previous == null || !ownedRanges(previous).equals(ownedRanges(metadata)));
+    }
+
+    /**
+     * Takes metadata a peer sent, unless this server is at its epoch already.
+     *
+     * @return whether the metadata was taken
+     */
+    public synchronized boolean updateMetadataIfNewer(BST metadata) {
+        BST current = this.metadata;
+        if (current != null && current.epoch >= metadata.epoch) {
+            return false;
+        }
+        updateMetadata(metadata);
+        return true;
+    }
+
+    /**
+     * Brings the metadata forward by the change the ECS sent.
+     *
+     * @return false if the delta is not against the epoch this server is at
+     */
+    public synchronized boolean applyMetadataDelta(MetadataDelta delta) {
+        BST current = metadata;
+        if (current != null && current.epoch >= delta.toEpoch && current.epoch > delta.fromEpoch) {
+            // Caught up through gossip already.
+            return true;
+        }
+        if (current == null || current.epoch != delta.fromEpoch) {
+            return false;
+        }
+        BST next = current.copy();
+        next.apply(delta);
+        updateMetadata(next);
+        return true;
     }
 
-    private synchronized void updateReplicaInfo() {
+    private List<String> ownedRanges(BST ring) {
+        List<String> ranges = new ArrayList<>();
+        for (String token : ring.tokensOf(serverName)) {
+            ranges.add(String.join("-", ring.get(token).getNodeHashRange()));
+        }
+        return ranges;
+    }
+
+    private synchronized void updateReplicaInfo(boolean resync) {
         ECSNode node = (ECSNode) metadata.get(this.getHashValue());
         List<String> previousReplicationsOfThisServer = replicationsOfThisServer;
         replicationsOfThisServer = node.successors;
@@ -764,18 +1788,8 @@ public class KVServer implements IKVServer, Runnable {
                 }
             }
         }
-        // add if condition, if time permits to fix bug
-        //if(!replicationsOfThisServer.equals(previousReplicationsOfThisServer)){
-        CoordMessage msg = new CoordMessage(this.getHashValue());
-        msg.setAction(CoordMessage.ActionType.FORCE_SYNC);
-        msg.nodes = this.metadata;
-        try {
-            msg.setData(storage.getAllData());
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-        updateReplica(msg);
-        //}
+        // New replicas and a changed chain are reconciled either way.
+        replicationLog.setReplicas(replicationsOfThisServer, metadata.getReplicationMode(), resync);
     }
 
     public boolean getWriteLock() {
@@ -786,6 +1800,115 @@ public class KVServer implements IKVServer, Runnable {
         this.writeLock = flag;
     }
 
+    /**
+     * Closes the keys in one or more flattened ranges to writes until unlockRanges is called with the
+     * same ranges. Locks on overlapping ranges may be held at the same time.
+     */
+    public void lockRanges(String[] range) {
+        synchronized (lock) {
+            lockedRanges.add(range);
+        }
+    }
+
+    /**
+     * @return false if no lock on exactly these ranges is held
+     */
+    public boolean unlockRanges(String[] range) {
+        synchronized (lock) {
+            for (Iterator<String[]> it = lockedRanges.iterator(); it.hasNext(); ) {
+                if (Arrays.equals(it.next(), range)) {
+                    it.remove();
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return whether writes to key are refused, by the whole-server lock or a range lock
+     */
+    public boolean isWriteLocked(String key) {
+        String keyHash = HashUtils.getHash(key);
+        synchronized (lock) {
+            if (writeLock) {
+                return true;
+            }
+            for (String[] range : lockedRanges) {
+                if (KVStorage.inRanges(keyHash, ECSMessage.splitRanges(range))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return whether every range in range (everything if null) is covered by a held lock
+     */
+    public boolean isWriteLocked(String[] range) {
+        synchronized (lock) {
+            if (writeLock) {
+                return true;
+            }
+            if (range == null) {
+                return false;
+            }
+            List<String[]> locked = new ArrayList<>();
+            for (String[] held : lockedRanges) {
+                locked.addAll(ECSMessage.splitRanges(held));
+            }
+            for (String[] wanted : ECSMessage.splitRanges(range)) {
+                boolean covered = false;
+                for (String[] held : locked) {
+                    covered |= Arrays.equals(held, wanted);
+                }
+                if (!covered) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return whether any write lock, whole-server or range, is held
+     */
+    public boolean holdsWriteLock() {
+        synchronized (lock) {
+            return writeLock || !lockedRanges.isEmpty();
+        }
+    }
+
+    public double getWeight() {
+        return weight;
+    }
+
+    /**
+     * Changes the capacity this server advertises. Once registered, the ECS is told right away and
+     * rebalances the ring to the new weight.
+     */
+    public void setWeight(double weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("Weight must be positive: " + weight);
+        }
+        if (weight == this.weight) {
+            return;
+        }
+        this.weight = weight;
+        if (register) {
+            connectToCentralServer();
+        }
+    }
+
+    public void setTransferCodec(BulkTransfer.Codec codec) {
+        this.transferCodec = codec;
+    }
+
+    public void setTailExpiryMs(long tailExpiryMs) {
+        this.tailExpiryMs = tailExpiryMs;
+    }
+
     public BST getMetadata() {
         return this.metadata;
     }
@@ -810,29 +1933,138 @@ public class KVServer implements IKVServer, Runnable {
         }
     }
 
+    /**
+     * Logs a successful client mutation for replication as a single-key PUT, UPDATE or DELETE.
+     *
+     * @return the mutation's seq in the replication log, or -1 if nothing was logged
+     */
+    private long replicateMutation(KVMessage response, String stored, long version) {
+        CoordMessage.ActionType action;
+        switch (response.getStatus()) {
+            case PUT_SUCCESS:
+                action = CoordMessage.ActionType.PUT;
+                break;
+            case PUT_UPDATE:
+                action = CoordMessage.ActionType.UPDATE;
+                break;
+            case DELETE_SUCCESS:
+                action = CoordMessage.ActionType.DELETE;
+                break;
+            default:
+                return -1;
+        }
+        return replicationLog.append(action, response.getKey(), stored, version);
+    }
+
+    /**
+     * Sends a message to every replica right away, bypassing the replication log, and waits for their
+     * answers. The sends go out concurrently, so the wait is one round trip rather than one per replica.
+     * A replica that rejects the message is brought back in line with a FORCE_SYNC, and an unreachable
+     * one gets the mutation as a hint.
+     */
     public void updateReplica(CoordMessage message) {
+        String line;
+        try {
+            line = MessageCodec.encode(message);
+        } catch (JsonProcessingException e) {
+            logger.error("Unable to encode replica update", e);
+            return;
+        }
+        Map<String, CompletableFuture<String>> replies = new LinkedHashMap<>();
         for (String hashValofReplica : this.replicationsOfThisServer) {
             ECSNode replicaInfo = (ECSNode) metadata.get(hashValofReplica);
-            try (Socket socket = new Socket(replicaInfo.getNodeHost(), replicaInfo.getNodePort());
-                 BufferedReader input = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-                 BufferedWriter output = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))
-            ) {
-                CommUtils.sendCoordMessage(message, output);
-                logger.info("Successfully update replicas.");
-            } catch (UnknownHostException e) {
-                logger.error(String.format("Unknown replica %s:%s", replicaInfo.getNodeHost(), replicaInfo.getNodePort()));
-            } catch (IOException e) {
-                logger.error(String.format("Failed to connect to %s:%s", replicaInfo.getNodeHost(), replicaInfo.getNodePort()));
+            if (replicaInfo != null) {
+                replies.put(hashValofReplica, peerPool.requestAsync(replicaInfo.getNodeHost(), replicaInfo.getNodePort(), line));
+            }
+        }
+        for (Map.Entry<String, CompletableFuture<String>> reply : replies.entrySet()) {
+            ECSNode replicaInfo = (ECSNode) metadata.get(reply.getKey());
+            try {
+                CoordMessage response = MessageCodec.decodeCoordMessage(
+                        reply.getValue().get(PeerConnectionPool.DEFAULT_REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+                if (response != null && response.isSuccess) {
+                    continue;
+                }
+                logger.warn(String.format("Replica %s rejected %s, resyncing it.", replicaInfo.getNodeName(), message.getAction()));
+            } catch (IOException | ExecutionException | TimeoutException e) {
+                logger.error(String.format("Failed to connect to %s:%s, storing %s as a hint.", replicaInfo.getNodeHost(),
+                        replicaInfo.getNodePort(), message.getAction()));
+                peerPool.closePeer(replicaInfo.getNodeHost(), replicaInfo.getNodePort());
+                if (!storeHint(reply.getKey(), message)) {
+                    replicationLog.resyncAll();
+                }
+                continue;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
             }
+            forceSyncReplica(replicaInfo);
+        }
+    }
+
+    /**
+     * Passes a chain-replicated batch on to the next replica in its chain, keeping the coordinator's hash
+     * so every replica files it under the same range.
+     *
+     * @return the downstream response, which covers the rest of the chain, or null if the next replica
+     * could not be reached
+     */
+    public CoordMessage forwardChainBatch(CoordMessage message) {
+        ECSNode next = metadata == null ? null : (ECSNode) metadata.get(message.chain.get(0));
+        if (next == null) {
+            logger.warn("Next replica in the chain is not in the metadata: " + message.chain.get(0));
+            return null;
+        }
+        CoordMessage forward = new CoordMessage(message.hashValueofSendingServer);
+        forward.setAction(CoordMessage.ActionType.BATCH);
+        forward.entries = message.entries;
+        if (message.chain.size() > 1) {
+            forward.chain = new ArrayList<>(message.chain.subList(1, message.chain.size()));
+        }
+        try {
+            return peerPool.sendCoordMessage(next.getNodeHost(), next.getNodePort(), forward, CHAIN_FORWARD_TIMEOUT_MS);
+        } catch (IOException e) {
+            logger.warn(String.format("Failed to forward batch down the chain to %s: %s", next.getNodeName(), e.getMessage()));
+            return null;
+        }
+    }
+
+    private boolean storeHint(String replicaHash, CoordMessage message) {
+        switch (message.getAction()) {
+            case PUT:
+            case UPDATE:
+            case DELETE:
+                return hintedHandoff.append(replicaHash, Collections.singletonList(new ReplicationEntry(0,
+                        message.getAction(), message.getKey(), message.getValue(), message.version)));
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Probes a peer with a heartbeat.
+     */
+    public boolean isReachable(ECSNode node) {
+        try {
+            ECSMessage response = peerPool.sendECSMessage(node.getNodeHost(), node.getNodePort(),
+                    new ECSMessage(ActionType.HEARTBEAT, true, null, null, null), HEARTBEAT_TIMEOUT_MS);
+            return response != null && response.success;
+        } catch (IOException e) {
+            peerPool.closePeer(node.getNodeHost(), node.getNodePort());
+            return false;
         }
     }
 
+    public Gossip getGossip() {
+        return gossip;
+    }
+
     public boolean checkRegisterStatus() {
         return this.register;
     }
 
     private static String generateHelpString() {
-        return "Usage: java KVServer [-p <port>] [-a <address>] [-d <directory>] [-l <logFile>] [-ll <logLevel>] [-c <cacheSize>] [-cs <cacheStrategy>]\n"
+        return "Usage: java KVServer [-p <port>] [-a <address>] [-d <directory>] [-l <logFile>] [-ll <logLevel>] [-c <cacheSize>] [-cs <cacheStrategy>] [-z <true|false>] [-bw <MB/s>] [-w <weight>]\n"
                 + "Options:\n"
                 + "  -b <address:port>  Address and port number of the ECS server (default: localhost:5001)\n"
                 + "  -p <port>          Port number for the KVServer (default: 5000)\n"
@@ -841,7 +2073,10 @@ public class KVServer implements IKVServer, Runnable {
                 + "  -l <logFile>       File path for the log file (default: ./server.log)\n"
                 + "  -ll <logLevel>     Log level for the server (default: ALL)\n"
                 + "  -c <cacheSize>     Size of the cache (default: 10)\n"
-                + "  -cs <cacheStrategy> Cache replacement strategy (default: None)\n\n"
+                + "  -cs <cacheStrategy> Cache replacement strategy (default: None)\n"
+                + "  -z <true|false>    Compress bulk data transfers between servers (default: false)\n"
+                + "  -bw <MB/s>         Bandwidth cap for migrations and replica syncs, 0 = unlimited (default: 0)\n"
+                + "  -w <weight>        Capacity relative to other servers, sets the share of the ring (default: 1)\n\n"
                 + "Example:\n"
                 + "  java KVServer -p 8080 -a 127.0.0.1 -d /path/to/data -l /path/to/server.log -ll INFO -c 50 -cs LRU";
     }
@@ -860,6 +2095,9 @@ public class KVServer implements IKVServer, Runnable {
         Level logLevel = Level.ALL;
         CacheStrategy strategy = CacheStrategy.None;
         int cacheSize = 10;
+        boolean compressTransfers = false;
+        double bandwidthMBps = 0;
+        double weight = 1;
 
         if (args.length > 0 && args[0].equals("-h")) {
             System.out.println(helpString);
@@ -908,6 +2146,15 @@ public class KVServer implements IKVServer, Runnable {
                     case "-s":
                         strategy = CacheStrategy.valueOf("None");
                         break;
+                    case "-z":
+                        compressTransfers = Boolean.parseBoolean(args[i + 1]);
+                        break;
+                    case "-bw":
+                        bandwidthMBps = Double.parseDouble(args[i + 1]);
+                        break;
+                    case "-w":
+                        weight = Double.parseDouble(args[i + 1]);
+                        break;
                     default:
                         System.out.println("Invalid argument: " + args[i]);
                 }
@@ -928,7 +2175,12 @@ public class KVServer implements IKVServer, Runnable {
 
         try {
             new LogSetup(logFile, logLevel);
-            final KVServer server = new KVServer(ecsAddress, ecsPort, address, port, cacheSize, strategy.toString(), directory);
+            final KVServer server = new KVServer(ecsAddress, ecsPort, address, port, cacheSize, strategy.toString(), directory,
+                    weight);
+            if (compressTransfers) {
+                server.setTransferCodec(BulkTransfer.Codec.GZIP);
+            }
+            server.migrationThrottle.setLocalLimitMBps(bandwidthMBps);
             Runtime.getRuntime().addShutdownHook(new Thread() {
                 public void run() {
                     server.close();
@@ -944,35 +2196,24 @@ public class KVServer implements IKVServer, Runnable {
     }
 
     public ECSMessage sendMessage(String host, int port, ECSMessage msg) throws Exception {
-        try (Socket ECSSocket = new Socket(host, port)) {
-            // Setup input and output streams
-            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(ECSSocket.getOutputStream(), StandardCharsets.UTF_8));
-            BufferedReader in = new BufferedReader(new InputStreamReader(ECSSocket.getInputStream(), StandardCharsets.UTF_8));
-
-            ObjectMapper mapper = new ObjectMapper();
-            String jsonString = mapper.writeValueAsString(msg);
-
-            logger.info("Send message: " + jsonString);
-
-//            out.writeObject(msg);
-            out.write(jsonString);
-            out.newLine();
-            out.flush();
-
-            // Wait for a response from the central server
-            try {
-                String response = in.readLine();
-                return new ObjectMapper().readValue(response, ECSMessage.class);
-            } catch (JsonMappingException ex) {
-                logger.error("Error during message deserialization.", ex);
-            }
-        } catch (Exception ex) {
-            logger.error("While trying to receive/send message received error");
+        try {
+            logger.info("Send message: " + msg.getAction());
+            return peerPool.sendECSMessage(host, port, msg, HEARTBEAT_TIMEOUT_MS);
+        } catch (IOException ex) {
+            logger.error("While trying to receive/send message received error: " + ex.getMessage());
         }
         return null;
     }
 
     public synchronized void sendHeartbeats() {
+        if (!isRunning()) {
+            // A stopped server would take its closed connections for a failed ECS and run for leader.
+            return;
+        }
+        if (!gossip.monitorsEcs()) {
+            // Another server watches the ECS; gossip tells this one if that server fails.
+            return;
+        }
         logger.info(String.format("%s: Send heartbeat to %s:%s", serverName, ecsAddress, ecsPort));
         if (ecsAddress == null || ecsAddress.isEmpty() || ecsPort == 0 || metadata == null) {
             logger.info("ECS client info not set yet " + this.getPort());
@@ -1002,7 +2243,7 @@ public class KVServer implements IKVServer, Runnable {
         synchronized (this) {
             if (!isLeader) {
                 boolean success = true;
-                for (ECSNode node: metadata.values()) {
+                for (ECSNode node: metadata.servers()) {
                     if (node.priorityNum > this.priorityNum) {
                         // Broadcast election message to nodes with higher ID
                         ECSMessage electionMsg = new ECSMessage();
@@ -1035,23 +2276,14 @@ public class KVServer implements IKVServer, Runnable {
         }
         logger.info(String.format("%s: Transform to ECSClient...", serverName));
         this.heartbeat.stop();
-        ECSNode removeNode = (ECSNode) metadata.get(this.hashValue);
-        String removeNodeHash = removeNode.getNodeHashRange()[1];
-
-        if (metadata.size() == 1) {
-            metadata.delete(removeNodeHash);
-           // return;
-        }
-        else {
-            String hashOfSuccessor = getSuccessor(removeNodeHash);
-            ECSNode successorNode = (ECSNode) metadata.get(hashOfSuccessor);
-            sendMessage(successorNode, new ECSMessage(ActionType.SET_WRITE_LOCK, true, null, null, metadata));
-            sendMessage(successorNode, new ECSMessage(ActionType.INTERNAL_TRANSFER, true, null, null, metadata, removeNodeHash));
-            sendMessage(successorNode, new ECSMessage(ActionType.UNSET_WRITE_LOCK, true, null, null, metadata));
-            successorNode.getNodeHashRange()[0] = removeNode.getNodeHashRange()[0];
-            metadata.delete(removeNodeHash);
-            storage.removeAllData();
+        if (metadata.serverCount() > 1) {
+            if (handOffData()) {
+                storage.removeAllData();
+            } else {
+                logger.error(String.format("%s: Could not hand off all data before taking over.", serverName));
+            }
         }
+        metadata.removeServer(serverName);
         this.kill();
         logger.info("Removed a node from the bst, current state of bst: " + metadata.print());
         ecsClient = new ECSClient(this.address, this.port, metadata);
@@ -1071,34 +2303,11 @@ public class KVServer implements IKVServer, Runnable {
     }
 
     public ECSMessage sendMessage(ECSNode node, ECSMessage msg) {
-        try (Socket socket = new Socket()) {
-//            int timeout = 5000;
-//            socket.connect(new InetSocketAddress(node.getNodeHost(), node.getNodePort()), timeout);
-            socket.connect(new InetSocketAddress(node.getNodeHost(), node.getNodePort()));
-            // Setup input and output streams
-            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-
-            ObjectMapper mapper = new ObjectMapper();
-            String jsonString = mapper.writeValueAsString(msg);
-
-            logger.info("Send message: " + jsonString);
-
-            out.write(jsonString);
-            out.newLine();
-            out.flush();
-
-            // Wait for a response from the central server
-            String response = in.readLine();
-            try {
-                return new ObjectMapper().readValue(response, ECSMessage.class);
-            } catch (JsonMappingException ex) {
-                logger.error("Error during message deserialization.", ex);
-            }
-        } catch (SocketTimeoutException ex) {
-            logger.error("The socket operation timed out.", ex);
-        } catch (Exception ex) {
-            logger.error("While trying to receive/send message received error");
+        try {
+            logger.info("Send message: " + msg.getAction());
+            return peerPool.sendECSMessage(node.getNodeHost(), node.getNodePort(), msg);
+        } catch (IOException ex) {
+            logger.error("While trying to receive/send message received error: " + ex.getMessage());
         }
         return null;
     }
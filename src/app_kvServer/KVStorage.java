@@ -5,14 +5,28 @@ import shared.utils.HashUtils;
 
 import java.io.*;
 import java.math.BigInteger;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class KVStorage {
     public final File file;
     public final Path filePath;
+    private static final long APPEND_CHUNK_BYTES = 1 << 20;
+    // Merkle tree of the file, kept up to date by single-line changes. Null until first asked for, and
+    // again after a bulk append or merge, which have it rebuilt from the file.
+    private MerkleTree tree;
+    // Keys appended by putList or appendFrom since the last mergeDuplicates, the only ones it can find duplicated.
+    private final Set<String> unmergedKeys = new HashSet<>();
 
     private static Logger logger = Logger.getRootLogger();
 
@@ -43,13 +57,16 @@ public class KVStorage {
         } catch (IOException e) {
             throw new RuntimeException("Error: Could not write to storage.", e);
         }
+        track(key + " " + value, true);
     }
 
     public synchronized void putList(List<String> data) {
+        tree = null;
         try (BufferedWriter writer = new BufferedWriter(new FileWriter(this.file, true))) {
             for (String entry : data) {
                 writer.write(entry);
                 writer.newLine();
+                unmergedKeys.add(entry.split(" ", 2)[0]);
             }
         } catch (IOException e) {
             throw new RuntimeException("Error: Could not write to storage.", e);
@@ -65,10 +82,11 @@ public class KVStorage {
             throw new RuntimeException("Failed to read from storage file: " + filePath, e);
         }
         // look for key and update
+        String replaced = null;
         for (int i = 0; i < lines.size(); i++) {
             String[] kv = lines.get(i).split(" ", 2);
             if (kv.length >= 2 && kv[0].equals(key)) {
-                lines.set(i, key + " " + value);
+                replaced = lines.set(i, key + " " + value);
                 break;
             }
         }
@@ -81,6 +99,10 @@ public class KVStorage {
         } catch (IOException e) {
             throw new RuntimeException("Failed to write to storage file: " + filePath, e);
         }
+        if (replaced != null) {
+            track(replaced, false);
+            track(key + " " + value, true);
+        }
     }
 
     public synchronized void deleteKV(String key) throws RuntimeException{
@@ -90,10 +112,11 @@ public class KVStorage {
         } catch (IOException e) {
             throw new RuntimeException("Failed to read from storage file: " + filePath, e);
         }
+        String removed = null;
         for (int i = 0; i < lines.size(); i++) {
             String[] kv = lines.get(i).split(" ", 2);
             if (kv.length >= 2 && kv[0].equals(key)) {
-                lines.remove(i);
+                removed = lines.remove(i);
                 break; // Assuming each key is unique and can only appear once
             }
         }
@@ -105,6 +128,9 @@ public class KVStorage {
         } catch (IOException e) {
             throw new RuntimeException("Failed to write to storage file: " + filePath, e);
         }
+        if (removed != null) {
+            track(removed, false);
+        }
     }
 
     public synchronized String getKV(String key) throws RuntimeException{
@@ -138,8 +164,6 @@ public class KVStorage {
     }
 
     public synchronized List<String> getData(String minVal, String maxVal) throws IOException{
-        String bottom = minVal;
-        String top = maxVal;
         List<String> result = new ArrayList<>();
         logger.info("Parsing data, minval: " + minVal + ", maxVal: " + maxVal);
         try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
@@ -148,33 +172,254 @@ public class KVStorage {
                 String[] parts = line.split(" ", 2); // Split line into "key" and "value"
                 if (parts.length < 2) continue; // Skip if line does not contain both key and value
 
-                String key = parts[0];
-                String hashHex = HashUtils.getHash(key);
-                logger.info(key + " " + hashHex);
-                if (top.compareTo(bottom) > 0) {
-                    // Normal range: bottom <= hashValue <= top
-                    if (hashHex.compareTo(bottom) >= 0 && hashHex.compareTo(top) <= 0) {
-                        result.add(line);
-                        logger.info("Added above key to result");
-                    }
-                } else {
-                    // Corner range: hashValue <= top OR hashValue >= bottom
-                    if (hashHex.compareTo(top) <= 0 || hashHex.compareTo(bottom) >= 0) {
-                        logger.info("Added above key to result");
-                        result.add(line);
-                    }
+                if (inRange(HashUtils.getHash(parts[0]), minVal, maxVal)) {
+                    result.add(line);
                 }
             }
         }
         return result;
     }
 
+    /**
+     * Streams the lines whose key hash falls in [minVal, maxVal] into target, one line at a time,
+     * so a range can be shipped without materializing it in memory. A null range copies everything.
+     * @return number of bytes written
+     */
+    public synchronized long writeRange(String minVal, String maxVal, Path target) throws IOException {
+        if (minVal == null || maxVal == null) {
+            try (FileChannel source = FileChannel.open(filePath, StandardOpenOption.READ);
+                 FileChannel sink = FileChannel.open(target, StandardOpenOption.WRITE,
+                         StandardOpenOption.TRUNCATE_EXISTING)) {
+                long size = source.size();
+                long position = 0;
+                while (position < size) {
+                    position += source.transferTo(position, size - position, sink);
+                }
+                return size;
+            }
+        }
+        return writeRanges(Collections.singletonList(new String[]{minVal, maxVal}), target);
+    }
+
+    /**
+     * Like writeRange, but for several ranges in one pass over the storage file.
+     * @return number of bytes written
+     */
+    public synchronized long writeRanges(List<String[]> ranges, Path target) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(filePath);
+             BufferedWriter writer = Files.newBufferedWriter(target)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ", 2);
+                if (parts.length < 2) continue;
+
+                if (inRanges(HashUtils.getHash(parts[0]), ranges)) {
+                    writer.write(line);
+                    writer.newLine();
+                }
+            }
+        }
+        return Files.size(target);
+    }
+
+    /**
+     * Appends everything readable from source to the end of the storage file. If the source fails
+     * part way the file is truncated back so a broken transfer leaves no partial lines behind.
+     * @return number of bytes appended
+     */
+    public synchronized long appendFrom(ReadableByteChannel source) throws IOException {
+        tree = null;
+        try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long start = channel.size();
+            long position = start;
+            try {
+                long n;
+                while ((n = channel.transferFrom(source, position, APPEND_CHUNK_BYTES)) > 0) {
+                    position += n;
+                }
+            } catch (IOException e) {
+                channel.truncate(start);
+                throw e;
+            }
+            BufferedReader appended = new BufferedReader(new InputStreamReader(
+                    Channels.newInputStream(channel.position(start)), StandardCharsets.UTF_8));
+            String line;
+            while ((line = appended.readLine()) != null) {
+                unmergedKeys.add(line.split(" ", 2)[0]);
+            }
+            return position - start;
+        }
+    }
+
+    /**
+     * Collapses lines that share a key into the one with the newest version (last writer wins; on equal
+     * versions the later line wins). Transferred data is appended without looking at what is already
+     * stored, so this runs once the transfer is complete. Only the keys appended since the last merge
+     * are looked at, and the file is rewritten line by line, so memory use follows the size of the
+     * transfer rather than of the store.
+     * @return the newest version of the appended keys
+     */
+    public synchronized long mergeDuplicates() throws IOException {
+        if (unmergedKeys.isEmpty()) {
+            return 0;
+        }
+        tree = null;
+        // Appended key -> {newest version, index of the last line holding it}
+        Map<String, long[]> newest = new HashMap<>();
+        long maxVersion = 0;
+        try (BufferedReader reader = Files.newBufferedReader(filePath)) {
+            String line;
+            for (long index = 0; (line = reader.readLine()) != null; index++) {
+                String[] parts = line.split(" ", 2);
+                if (parts.length < 2 || !unmergedKeys.contains(parts[0])) continue;
+
+                long version = VersionedValue.decode(parts[1]).version;
+                maxVersion = Math.max(maxVersion, version);
+                long[] current = newest.get(parts[0]);
+                if (current == null) {
+                    newest.put(parts[0], new long[]{version, index});
+                } else if (version >= current[0]) {
+                    current[0] = version;
+                    current[1] = index;
+                }
+            }
+        }
+        unmergedKeys.clear();
+        Path merged = filePath.resolveSibling(filePath.getFileName() + ".merge");
+        long dropped = 0;
+        try (BufferedReader reader = Files.newBufferedReader(filePath);
+             BufferedWriter writer = Files.newBufferedWriter(merged)) {
+            String line;
+            for (long index = 0; (line = reader.readLine()) != null; index++) {
+                String[] parts = line.split(" ", 2);
+                long[] winner = parts.length < 2 ? null : newest.get(parts[0]);
+                if (winner != null && winner[1] != index) {
+                    dropped++;
+                    continue;
+                }
+                writer.write(line);
+                writer.newLine();
+            }
+        }
+        if (dropped == 0) {
+            Files.delete(merged);
+            return maxVersion;
+        }
+        Files.move(merged, filePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logger.info(String.format("Merged %d duplicate lines in %s.", dropped, filePath));
+        return maxVersion;
+    }
+
+    /**
+     * @return a snapshot of the Merkle tree of the stored lines; the file is only read if the tree has not
+     * been built since the last bulk append or merge
+     */
+    public synchronized MerkleTree getMerkleTree() throws IOException {
+        if (tree == null) {
+            MerkleTree rebuilt = new MerkleTree();
+            try (BufferedReader reader = Files.newBufferedReader(filePath)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.split(" ", 2);
+                    if (parts.length < 2) continue;
+
+                    rebuilt.add(parts[0], parts[1]);
+                }
+            }
+            tree = rebuilt;
+        }
+        return tree.copy();
+    }
+
+    /**
+     * Adds a line written to the file to the tree, or subtracts one removed from it, if the tree is built.
+     */
+    private void track(String line, boolean added) {
+        String[] parts = line.split(" ", 2);
+        if (tree == null || parts.length < 2) {
+            return;
+        }
+        if (added) {
+            tree.add(parts[0], parts[1]);
+        } else {
+            tree.remove(parts[0], parts[1]);
+        }
+    }
+
+    /**
+     * @return the lines whose key falls in one of the given Merkle buckets
+     */
+    public synchronized List<String> getBuckets(Set<Integer> buckets) throws IOException {
+        List<String> result = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(filePath)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ", 2);
+                if (parts.length < 2) continue;
+
+                if (buckets.contains(MerkleTree.bucketOf(parts[0]))) {
+                    result.add(line);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Replaces the contents of the given Merkle buckets with lines, leaving all other buckets alone.
+     */
+    public synchronized void replaceBuckets(Set<Integer> buckets, List<String> lines) throws IOException {
+        List<String> kept = new ArrayList<>();
+        List<String> dropped = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(filePath)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ", 2);
+                if (parts.length < 2) continue;
+
+                if (!buckets.contains(MerkleTree.bucketOf(parts[0]))) {
+                    kept.add(line);
+                } else {
+                    dropped.add(line);
+                }
+            }
+        }
+        kept.addAll(lines);
+        Files.write(filePath, kept);
+        for (String line : dropped) {
+            track(line, false);
+        }
+        for (String line : lines) {
+            track(line, true);
+        }
+    }
+
+    static boolean inRanges(String hashHex, List<String[]> ranges) {
+        for (String[] range : ranges) {
+            if (inRange(hashHex, range[0], range[1])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean inRange(String hashHex, String bottom, String top) {
+        if (top.compareTo(bottom) > 0) {
+            // Normal range: bottom <= hashValue <= top
+            return hashHex.compareTo(bottom) >= 0 && hashHex.compareTo(top) <= 0;
+        }
+        // Corner range: hashValue <= top OR hashValue >= bottom
+        return hashHex.compareTo(top) <= 0 || hashHex.compareTo(bottom) >= 0;
+    }
+
     public synchronized void removeAllData() {
+        unmergedKeys.clear();
         try {
             Files.write(filePath, Collections.emptyList(), StandardOpenOption.TRUNCATE_EXISTING);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        tree = new MerkleTree();
     }
     public synchronized void removeData(String minVal, String maxVal) throws IOException {
         BigInteger bottom = new BigInteger(minVal, 16);
@@ -211,6 +456,36 @@ public class KVStorage {
                     writer.newLine();
                 }
             }
+            for (String removedLine : toRemove) {
+                track(removedLine, false);
+            }
+        }
+    }
+
+    /**
+     * Removes the keys whose hash falls in any of the ranges, in one pass over the storage file.
+     */
+    public synchronized void removeRanges(List<String[]> ranges) throws IOException {
+        List<String> toKeep = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ", 2);
+                if (parts.length < 2) continue;
+
+                if (inRanges(HashUtils.getHash(parts[0]), ranges)) {
+                    removed.add(line);
+                } else {
+                    toKeep.add(line);
+                }
+            }
+        }
+        if (!removed.isEmpty()) {
+            Files.write(filePath, toKeep);
+            for (String line : removed) {
+                track(line, false);
+            }
         }
     }
 
@@ -234,11 +509,13 @@ public class KVStorage {
     }
 
     public synchronized void clearStorage() throws RuntimeException{
+        unmergedKeys.clear();
         try {
             new FileOutputStream(this.file).close();
         } catch (IOException e) {
             throw new RuntimeException("Error: Failed to clear storage file", e);
         }
+        tree = new MerkleTree();
     }
 
     public File getFile() {
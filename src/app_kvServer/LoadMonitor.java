@@ -0,0 +1,63 @@
+package app_kvServer;
+
+import shared.messages.LoadStats;
+import shared.utils.LatencyTracker;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Measures the client load of a server for the statistics it reports to the ECS: requests per second
+ * and p99 latency over the last WINDOW_SECONDS, and the requests in progress. Requests are counted in
+ * one bucket per second, so the rate does not depend on how often it is read.
+ */
+public class LoadMonitor {
+    private static final int WINDOW_SECONDS = 10;
+
+    private final LatencyTracker latencies = new LatencyTracker(8192);
+    private final long[] counts = new long[WINDOW_SECONDS + 1];
+    private final long[] seconds = new long[WINDOW_SECONDS + 1];
+    private final AtomicInteger inProgress = new AtomicInteger();
+    private final long started = System.currentTimeMillis();
+
+    public void begin() {
+        inProgress.incrementAndGet();
+    }
+
+    public void end(double latencyMs) {
+        inProgress.decrementAndGet();
+        latencies.record(latencyMs);
+        long second = System.currentTimeMillis() / 1000;
+        int slot = (int) (second % counts.length);
+        synchronized (counts) {
+            if (seconds[slot] != second) {
+                seconds[slot] = second;
+                counts[slot] = 0;
+            }
+            counts[slot]++;
+        }
+    }
+
+    /**
+     * @return requests per second over the last complete seconds of the window
+     */
+    public double opsPerSecond() {
+        long now = System.currentTimeMillis();
+        long current = now / 1000;
+        long total = 0;
+        synchronized (counts) {
+            for (int i = 0; i < counts.length; i++) {
+                if (seconds[i] < current && seconds[i] >= current - WINDOW_SECONDS) {
+                    total += counts[i];
+                }
+            }
+        }
+        // A server that just started has not been up for the whole window.
+        long window = Math.min(WINDOW_SECONDS, Math.max(1, current - started / 1000));
+        return (double) total / window;
+    }
+
+    public LoadStats snapshot(long bytesStored) {
+        return new LoadStats(opsPerSecond(), bytesStored, latencies.percentile(99, WINDOW_SECONDS * 1000L),
+                inProgress.get());
+    }
+}
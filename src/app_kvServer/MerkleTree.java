@@ -0,0 +1,105 @@
+package app_kvServer;
+
+import shared.utils.HashUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Merkle tree over a storage's contents, with one leaf per hash-range bucket (the first byte of the
+ * key's hash). A leaf is the sum of the digests of the "key value" lines in its bucket, so it does not
+ * depend on line order, can be built in one pass and follows single changes by adding and subtracting. Two copies of a range agree when their roots
+ * agree; otherwise comparing leaves yields the buckets that need to be exchanged.
+ */
+public class MerkleTree {
+    public static final int BUCKETS = 256;
+
+    private final long[] leaves;
+
+    public MerkleTree() {
+        this.leaves = new long[BUCKETS];
+    }
+
+    public MerkleTree(long[] leaves) {
+        if (leaves.length != BUCKETS) {
+            throw new IllegalArgumentException("Expected " + BUCKETS + " leaves but got " + leaves.length);
+        }
+        this.leaves = leaves.clone();
+    }
+
+    public static int bucketOf(String key) {
+        return Integer.parseInt(HashUtils.getHash(key).substring(0, 2), 16);
+    }
+
+    public void add(String key, String storedValue) {
+        leaves[bucketOf(key)] += digest(key + " " + storedValue);
+    }
+
+    /**
+     * Takes back an add of the same line, as when the line is removed or replaced.
+     */
+    public void remove(String key, String storedValue) {
+        leaves[bucketOf(key)] -= digest(key + " " + storedValue);
+    }
+
+    public long[] getLeaves() {
+        return leaves.clone();
+    }
+
+    public long root() {
+        long[] level = leaves.clone();
+        for (int width = BUCKETS; width > 1; width /= 2) {
+            for (int i = 0; i < width / 2; i++) {
+                level[i] = combine(level[2 * i], level[2 * i + 1]);
+            }
+        }
+        return level[0];
+    }
+
+    public MerkleTree copy() {
+        return new MerkleTree(leaves);
+    }
+
+    /**
+     * @return the buckets whose leaves differ between the two trees
+     */
+    public List<Integer> diff(long[] otherLeaves) {
+        List<Integer> buckets = new ArrayList<>();
+        for (int i = 0; i < BUCKETS; i++) {
+            if (leaves[i] != otherLeaves[i]) {
+                buckets.add(i);
+            }
+        }
+        return buckets;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof MerkleTree && Arrays.equals(leaves, ((MerkleTree) other).leaves);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(leaves);
+    }
+
+    // 64-bit FNV-1a; collisions only cost a missed repair until the bucket changes again.
+    private static long digest(String line) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : line.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static long combine(long left, long right) {
+        long hash = left * 31 + right;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,137 @@
+package app_kvServer;
+
+import org.apache.log4j.Logger;
+import shared.comm.TokenBucket;
+import shared.utils.LatencyTracker;
+
+/*
+ * Paces outgoing bulk traffic (range migrations and replica syncs) so it does not starve foreground
+ * GET/PUT requests. The ceiling is the lower of the server's own limit (-bw) and the limit pushed by
+ * the ECS; 0 means unlimited.
+ *
+ * While transfers run, the rate adapts AIMD-style once per ADJUST_INTERVAL_MS: if foreground p99
+ * latency climbs above LATENCY_FACTOR times its p99 while idle, the rate is halved (starting from the
+ * measured throughput when unlimited); otherwise it grows by a tenth of the ceiling until it is back at
+ * the ceiling, or back to unlimited once the limit is no longer what holds transfers back.
+ */
+public class MigrationThrottle {
+    private static final Logger logger = Logger.getRootLogger();
+
+    public static final int SLICE_BYTES = 64 * 1024;
+    private static final long BURST_BYTES = 4 * SLICE_BYTES;
+    private static final long ADJUST_INTERVAL_MS = 1000;
+    private static final long LATENCY_WINDOW_MS = 5000;
+    private static final long BASELINE_WINDOW_MS = 60000;
+    private static final double LATENCY_FACTOR = 2.0;
+    // Below this p99 there is nothing worth protecting, whatever the idle baseline was.
+    private static final double MIN_TRIGGER_MS = 20;
+    private static final double MIN_RATE = 256 * 1024;
+    private static final double INCREASE_FRACTION = 0.1;
+    private static final double BYTES_PER_MB = 1024 * 1024;
+
+    private final TokenBucket bucket;
+    private final LatencyTracker recent = new LatencyTracker(2048);
+    private final LatencyTracker idle = new LatencyTracker(2048);
+    private double localLimit = 0;
+    private double clusterLimit = 0;
+    private volatile int activeTransfers = 0;
+    private long lastAdjust = System.currentTimeMillis();
+    private long lastConsumed = 0;
+
+    public MigrationThrottle() {
+        this.bucket = new TokenBucket(0, BURST_BYTES);
+    }
+
+    public synchronized void setLocalLimitMBps(double mbps) {
+        this.localLimit = mbps * BYTES_PER_MB;
+        bucket.setRate(ceiling());
+    }
+
+    public synchronized void setClusterLimitMBps(double mbps) {
+        if (clusterLimit == mbps * BYTES_PER_MB) {
+            return;
+        }
+        this.clusterLimit = mbps * BYTES_PER_MB;
+        bucket.setRate(ceiling());
+        logger.info(String.format("Migration bandwidth limit set to %s.", describeRate(ceiling())));
+    }
+
+    private double ceiling() {
+        if (localLimit > 0 && clusterLimit > 0) {
+            return Math.min(localLimit, clusterLimit);
+        }
+        return Math.max(localLimit, clusterLimit);
+    }
+
+    public void recordForeground(double latencyMs) {
+        recent.record(latencyMs);
+        if (activeTransfers == 0) {
+            idle.record(latencyMs);
+        }
+    }
+
+    public synchronized void begin() {
+        if (activeTransfers++ == 0) {
+            lastAdjust = System.currentTimeMillis();
+            lastConsumed = bucket.getConsumedBytes();
+        }
+    }
+
+    public synchronized void end() {
+        if (--activeTransfers == 0) {
+            bucket.setRate(ceiling());
+        }
+    }
+
+    /**
+     * Blocks until bytes of bulk data may be sent; callers send in slices of at most SLICE_BYTES.
+     */
+    public void acquire(long bytes) throws InterruptedException {
+        adjust();
+        bucket.acquire(bytes);
+    }
+
+    public double getRate() {
+        return bucket.getRate();
+    }
+
+    private synchronized void adjust() {
+        long now = System.currentTimeMillis();
+        if (now - lastAdjust < ADJUST_INTERVAL_MS) {
+            return;
+        }
+        long consumed = bucket.getConsumedBytes();
+        double observed = (consumed - lastConsumed) * 1000.0 / (now - lastAdjust);
+        lastAdjust = now;
+        lastConsumed = consumed;
+
+        double p99 = recent.percentile(99, LATENCY_WINDOW_MS);
+        double baseline = idle.percentile(99, BASELINE_WINDOW_MS);
+        double threshold = Math.max(MIN_TRIGGER_MS, baseline * LATENCY_FACTOR);
+        double rate = bucket.getRate();
+        double ceiling = ceiling();
+        double newRate = rate;
+        if (p99 > threshold) {
+            newRate = Math.max(MIN_RATE, (rate > 0 ? rate : observed) / 2);
+            if (newRate != rate) {
+                logger.warn(String.format("Foreground p99 %.1f ms above %.1f ms, throttling bulk transfers to %s.",
+                        p99, threshold, describeRate(newRate)));
+            }
+        } else if (rate > 0 && rate < ceiling) {
+            newRate = Math.min(ceiling, rate + Math.max(MIN_RATE, ceiling * INCREASE_FRACTION));
+        } else if (rate > 0 && ceiling == 0) {
+            newRate = rate + Math.max(MIN_RATE, rate * INCREASE_FRACTION);
+            if (observed < rate / 2) {
+                // Transfers no longer use the allowance, so the limit is not what protects latency.
+                newRate = 0;
+            }
+        }
+        if (newRate != rate) {
+            bucket.setRate(newRate);
+        }
+    }
+
+    public static String describeRate(double bytesPerSecond) {
+        return bytesPerSecond <= 0 ? "unlimited" : String.format("%.2f MB/s", bytesPerSecond / BYTES_PER_MB);
+    }
+}
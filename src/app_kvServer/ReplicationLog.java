@@ -0,0 +1,611 @@
+package app_kvServer;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import ecs.ECSNode;
+import org.apache.log4j.Logger;
+import shared.comm.PeerConnection;
+import shared.messages.CoordMessage;
+import shared.messages.MessageCodec;
+import shared.messages.ReplicationEntry;
+import shared.messages.ReplicationMode;
+import shared.utils.HybridLogicalClock;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * In-memory log of the mutations this server coordinates. Every put, update and delete gets the next
+ * sequence number and is shipped asynchronously to each replica by its own sender thread, in batches,
+ * so clients are acknowledged without waiting for replica round trips.
+ *
+ * Each sender pipelines batches over its own connection, with up to MAX_IN_FLIGHT of them unacknowledged.
+ * The replica answers in order, so the connection's reader thread matches acknowledgements to batches in
+ * FIFO order while the sender keeps writing; a dedicated connection also keeps the entries in seq order,
+ * which pooled connections would not. After a failed send the sender reconnects and retransmits from the
+ * last acknowledged seq; replicas apply entries idempotently, so resending is harmless. If the replica
+ * stays unreachable for HINT_AFTER_MS, the sender moves its pending entries to the server's hinted handoff
+ * store instead of holding them in the log, probes the replica with heartbeats, and replays the hints in
+ * batches once it answers, so a short outage costs no resync. A replica that rejects a batch, falls
+ * behind the trimmed log, or is (re)assigned is reconciled first and then continues from the seq recorded
+ * just before reconciling. Reconciling is Merkle anti-entropy, which only resends the buckets that
+ * differ; it also runs every ANTI_ENTROPY_INTERVAL_MS to catch silent divergence.
+ *
+ * In chain replication there is a single sender, for the head of the chain, and every batch names the
+ * replicas after it. Each replica forwards the batch down the chain before answering, so the head's
+ * acknowledgement covers the whole chain and counts for all of its replicas.
+ *
+ * Writers that asked for a stronger consistency level than ONE wait in awaitAcks for enough senders to
+ * get their entry acknowledged; the senders already work in parallel, so the wait is one round trip.
+ */
+public class ReplicationLog {
+    private static final Logger logger = Logger.getRootLogger();
+
+    private static final int MAX_BATCH = 256;
+    private static final int MAX_IN_FLIGHT = 8;
+    private static final int MAX_ENTRIES = 100000;
+    private static final int CONNECT_TIMEOUT_MS = 2000;
+    private static final long ACK_TIMEOUT_MS = 30000;
+    private static final long IDLE_WAIT_MS = 1000;
+    private static final long MIN_BACKOFF_MS = 100;
+    private static final long MAX_BACKOFF_MS = 5000;
+    private static final long ANTI_ENTROPY_INTERVAL_MS = 30000;
+    private static final long HINT_AFTER_MS = 2000;
+    private static final long LAG_REPORT_INTERVAL_MS = 10000;
+
+    private final KVServer server;
+    private final ArrayDeque<ReplicationEntry> entries = new ArrayDeque<>();
+    private long lastSeq = 0;
+    private final Map<String, ReplicaSender> senders = new HashMap<>();
+    private boolean closed = false;
+
+    /*
+     * How far a replica trails this coordinator: the log entries it has not acknowledged yet, and the age
+     * of the oldest of them.
+     */
+    public static class ReplicaLag {
+        public final long entries;
+        public final long millis;
+
+        public ReplicaLag(long entries, long millis) {
+            this.entries = entries;
+            this.millis = millis;
+        }
+
+        @Override
+        public String toString() {
+            return entries + " entries, " + millis + " ms";
+        }
+    }
+
+    private static class InFlight {
+        final long lastSeq;
+        final long sentAt;
+
+        InFlight(long lastSeq, long sentAt) {
+            this.lastSeq = lastSeq;
+            this.sentAt = sentAt;
+        }
+    }
+
+    public ReplicationLog(KVServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Appends a mutation that has already been applied locally. Callers hold the put lock, so seq order
+     * is the order in which mutations were applied.
+     */
+    public synchronized long append(CoordMessage.ActionType action, String key, String value, long version) {
+        entries.addLast(new ReplicationEntry(++lastSeq, action, key, value, version));
+        if (entries.size() > MAX_ENTRIES) {
+            // Senders that have not reached the dropped entries fall back to a full sync.
+            entries.removeFirst();
+        }
+        notifyAll();
+        return lastSeq;
+    }
+
+    public synchronized long getLastSeq() {
+        return lastSeq;
+    }
+
+    /**
+     * Starts senders for new replicas and stops those no longer in the list; in chain mode the list is the
+     * chain and only its head gets a sender. With resync set, every replica is reconciled before further
+     * log entries, as after a metadata change.
+     */
+    public synchronized void setReplicas(List<String> replicaHashes, ReplicationMode mode, boolean resync) {
+        if (closed) {
+            return;
+        }
+        Map<String, List<String>> targets = new LinkedHashMap<>();
+        if (mode == ReplicationMode.CHAIN && !replicaHashes.isEmpty()) {
+            targets.put(replicaHashes.get(0), new ArrayList<>(replicaHashes.subList(1, replicaHashes.size())));
+        } else {
+            for (String hash : replicaHashes) {
+                targets.put(hash, new ArrayList<>());
+            }
+        }
+        Iterator<Map.Entry<String, ReplicaSender>> iterator = senders.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, ReplicaSender> sender = iterator.next();
+            if (!targets.containsKey(sender.getKey())) {
+                sender.getValue().running = false;
+                // The new replica of that range is reconciled from scratch, so its hints are moot.
+                server.hintedHandoff.discard(sender.getKey());
+                iterator.remove();
+            }
+        }
+        for (Map.Entry<String, List<String>> target : targets.entrySet()) {
+            String hash = target.getKey();
+            ReplicaSender sender = senders.get(hash);
+            if (sender == null) {
+                sender = new ReplicaSender(hash, target.getValue());
+                senders.put(hash, sender);
+                Thread thread = new Thread(sender, "replication-" + server.getPort() + "-" + hash);
+                thread.setDaemon(true);
+                thread.start();
+            } else if (resync || !sender.chain.equals(target.getValue())) {
+                sender.chain = target.getValue();
+                sender.needsSync = true;
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Schedules reconciliation of every replica, for changes that bypass the log such as bulk appends.
+     */
+    public synchronized void resyncAll() {
+        for (ReplicaSender sender : senders.values()) {
+            sender.needsSync = true;
+        }
+        notifyAll();
+    }
+
+    /**
+     * @return how far the replica that trails this coordinator the most is behind, by unacknowledged entries
+     */
+    public synchronized ReplicaLag getMaxLag() {
+        ReplicaLag max = new ReplicaLag(0, 0);
+        for (ReplicaSender sender : senders.values()) {
+            ReplicaLag lag = lagOf(sender);
+            if (lag.entries > max.entries) {
+                max = lag;
+            }
+        }
+        return max;
+    }
+
+    private ReplicaLag lagOf(ReplicaSender sender) {
+        if (sender.ackedSeq >= lastSeq) {
+            return new ReplicaLag(0, 0);
+        }
+        long now = System.currentTimeMillis();
+        // Versions are hybrid logical clock timestamps, so the oldest unacknowledged entry dates itself.
+        long since = sender.lastProgress;
+        if (!entries.isEmpty() && entries.peekFirst().seq <= sender.ackedSeq + 1) {
+            for (ReplicationEntry entry : entries) {
+                if (entry.seq > sender.ackedSeq) {
+                    since = HybridLogicalClock.physicalMillis(entry.version);
+                    break;
+                }
+            }
+        }
+        return new ReplicaLag(lastSeq - sender.ackedSeq, Math.max(0, now - since));
+    }
+
+    public synchronized int getReplicaCount() {
+        int replicas = 0;
+        for (ReplicaSender sender : senders.values()) {
+            replicas += 1 + sender.chain.size();
+        }
+        return replicas;
+    }
+
+    /**
+     * Waits until at least required replicas have acknowledged seq, or until timeoutMs has passed.
+     *
+     * @return the number of replicas that have acknowledged seq
+     */
+    public synchronized int awaitAcks(long seq, int required, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        int acks = countAcks(seq);
+        while (acks < required) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                break;
+            }
+            wait(remaining);
+            acks = countAcks(seq);
+        }
+        return acks;
+    }
+
+    private int countAcks(long seq) {
+        int acks = 0;
+        for (ReplicaSender sender : senders.values()) {
+            if (sender.ackedSeq >= seq) {
+                acks += 1 + sender.chain.size();
+            }
+        }
+        return acks;
+    }
+
+    public synchronized void close() {
+        closed = true;
+        for (ReplicaSender sender : senders.values()) {
+            sender.running = false;
+        }
+        senders.clear();
+        notifyAll();
+    }
+
+    /**
+     * Waits until the sender has room in its window and there are entries it has not sent yet, and
+     * returns up to MAX_BATCH of them. Returns an empty list if nothing arrived in time, the window is
+     * full, or the sender has something else to do, and null if unsent entries were trimmed.
+     */
+    private synchronized List<ReplicationEntry> await(ReplicaSender sender) throws InterruptedException {
+        if (sender.running && !sender.needsSync && !sender.streamBroken
+                && (lastSeq <= sender.sentSeq || sender.inFlight.size() >= MAX_IN_FLIGHT)) {
+            wait(IDLE_WAIT_MS);
+        }
+        if (sender.streamBroken || sender.inFlight.size() >= MAX_IN_FLIGHT) {
+            return new ArrayList<>();
+        }
+        return pending(sender);
+    }
+
+    private synchronized List<ReplicationEntry> pending(ReplicaSender sender) {
+        List<ReplicationEntry> batch = new ArrayList<>();
+        if (!sender.running || sender.needsSync || lastSeq <= sender.sentSeq) {
+            return batch;
+        }
+        if (entries.isEmpty() || entries.peekFirst().seq > sender.sentSeq + 1) {
+            return null;
+        }
+        for (ReplicationEntry entry : entries) {
+            if (entry.seq <= sender.sentSeq) {
+                continue;
+            }
+            batch.add(entry);
+            if (batch.size() == MAX_BATCH) {
+                break;
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Matches a response on a sender's stream to its oldest unacknowledged batch.
+     */
+    private synchronized void onReply(ReplicaSender sender, PeerConnection stream, String reply, Throwable error) {
+        if (stream != sender.stream) {
+            // Left over from a stream the sender has already abandoned.
+            return;
+        }
+        InFlight sent = sender.inFlight.pollFirst();
+        CoordMessage response = null;
+        if (error == null) {
+            try {
+                response = MessageCodec.decodeCoordMessage(reply);
+            } catch (IOException e) {
+                logger.error(String.format("Invalid replication response from %s: %s", sender.replicaHash, reply));
+            }
+        }
+        if (response == null) {
+            sender.streamBroken = true;
+            notifyAll();
+            return;
+        }
+        if (response.ackedSeq > sender.ackedSeq) {
+            sender.ackedSeq = response.ackedSeq;
+            sender.lastProgress = System.currentTimeMillis();
+        }
+        if (!response.isSuccess) {
+            logger.warn(String.format("Replica %s rejected seq %d, resyncing it.", sender.replicaHash,
+                    sender.ackedSeq + 1));
+            sender.needsSync = true;
+        } else if (sent != null && response.ackedSeq < sent.lastSeq) {
+            // A chain that could not reach its tail; resend the rest once the sender has backed off.
+            logger.warn(String.format("Chain from %s acknowledged up to seq %d of %d.", sender.replicaHash,
+                    response.ackedSeq, sent.lastSeq));
+            sender.streamBroken = true;
+        }
+        trim();
+    }
+
+    private synchronized void trim() {
+        long minReleased = lastSeq;
+        for (ReplicaSender sender : senders.values()) {
+            minReleased = Math.min(minReleased, sender.releasedSeq());
+        }
+        while (!entries.isEmpty() && entries.peekFirst().seq <= minReleased) {
+            entries.removeFirst();
+        }
+        // Wakes writers waiting in awaitAcks and senders waiting for room in their window.
+        notifyAll();
+    }
+
+    private class ReplicaSender implements Runnable {
+        private final String replicaHash;
+        // Replicas after this one in chain mode, which the replica forwards each batch to; empty otherwise.
+        private volatile List<String> chain;
+        private volatile boolean running = true;
+        private volatile boolean needsSync = true;
+        private volatile long ackedSeq = 0;
+        // Entries up to hintedSeq were acknowledged or moved to hints, so the log no longer needs them.
+        private volatile long hintedSeq = 0;
+        // Entries up to sentSeq were sent or moved to hints; the ones past ackedSeq await acknowledgement.
+        private volatile long sentSeq = 0;
+        private final ArrayDeque<InFlight> inFlight = new ArrayDeque<>();
+        private PeerConnection stream;
+        private volatile boolean streamBroken = false;
+        private volatile long lastProgress = System.currentTimeMillis();
+        private long backoffMs = MIN_BACKOFF_MS;
+        private long lastReconciled = System.currentTimeMillis();
+        private long lastLagReport = System.currentTimeMillis();
+        private long unreachableSince = 0;
+
+        ReplicaSender(String replicaHash, List<String> chain) {
+            this.replicaHash = replicaHash;
+            this.chain = chain;
+        }
+
+        long releasedSeq() {
+            return Math.max(ackedSeq, hintedSeq);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    ECSNode replica = server.metadata == null ? null : (ECSNode) server.metadata.get(replicaHash);
+                    if (replica == null) {
+                        closeStream();
+                        backoff();
+                        continue;
+                    }
+                    if (System.currentTimeMillis() - lastReconciled > ANTI_ENTROPY_INTERVAL_MS) {
+                        needsSync = true;
+                    }
+                    reportLag(replica);
+                    if (streamBroken || ackTimedOut()) {
+                        logger.error(String.format("Failed to replicate to %s:%s, retrying from seq %d.",
+                                replica.getNodeHost(), replica.getNodePort(), releasedSeq() + 1));
+                        closeStream();
+                        markUnreachable();
+                        backoff();
+                        continue;
+                    }
+                    if (needsSync) {
+                        closeStream();
+                        sync(replica);
+                        continue;
+                    }
+                    if ((unreachableSince != 0 || server.hintedHandoff.hasHints(replicaHash)) && !recover(replica)) {
+                        continue;
+                    }
+                    List<ReplicationEntry> batch = await(this);
+                    if (batch == null) {
+                        logger.warn(String.format("Replica %s fell behind the replication log, resyncing it.",
+                                replica.getNodeName()));
+                        needsSync = true;
+                    } else if (!batch.isEmpty()) {
+                        send(replica, batch);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            closeStream();
+            logger.info(String.format("Stopped replicating to %s.", replicaHash));
+        }
+
+        private void sync(ECSNode replica) throws InterruptedException {
+            // Everything up to this seq is already in storage, so reconciling covers it.
+            long snapshotSeq = getLastSeq();
+            needsSync = false;
+            if (reconcileChain(replica)) {
+                // Hinted entries were applied locally before the snapshot, so reconciling covered them too.
+                server.hintedHandoff.discard(replicaHash);
+                lastReconciled = System.currentTimeMillis();
+                unreachableSince = 0;
+                hintedSeq = Math.max(hintedSeq, snapshotSeq);
+                sentSeq = Math.max(sentSeq, snapshotSeq);
+                if (snapshotSeq > ackedSeq) {
+                    ackedSeq = snapshotSeq;
+                    lastProgress = System.currentTimeMillis();
+                }
+                backoffMs = MIN_BACKOFF_MS;
+                trim();
+            } else {
+                needsSync = true;
+                backoff();
+            }
+        }
+
+        private boolean reconcileChain(ECSNode replica) {
+            if (!server.reconcileReplica(replica)) {
+                return false;
+            }
+            for (String hash : chain) {
+                ECSNode next = (ECSNode) server.metadata.get(hash);
+                if (next != null && !server.reconcileReplica(next)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Waits out an unreachable replica: probes it with a heartbeat, moves pending entries to hints once
+         * it has been down for HINT_AFTER_MS, and replays the hints when it answers again.
+         *
+         * @return true if the replica is reachable and has no hints left
+         */
+        private boolean recover(ECSNode replica) throws InterruptedException {
+            if (!server.isReachable(replica)) {
+                markUnreachable();
+                if (System.currentTimeMillis() - unreachableSince >= HINT_AFTER_MS) {
+                    spill();
+                }
+                backoff();
+                return false;
+            }
+            long replayedSeq = hintedSeq;
+            try {
+                if (!server.hintedHandoff.replay(replicaHash, MAX_BATCH, batch -> deliver(replica, batch))) {
+                    backoff();
+                    return false;
+                }
+            } catch (IOException e) {
+                logger.error(e.getMessage() + ", resyncing the replica.");
+                needsSync = true;
+                return false;
+            }
+            if (unreachableSince != 0) {
+                logger.info(String.format("Replica %s is reachable again after %d ms.", replica.getNodeName(),
+                        System.currentTimeMillis() - unreachableSince));
+            }
+            unreachableSince = 0;
+            backoffMs = MIN_BACKOFF_MS;
+            if (replayedSeq > ackedSeq) {
+                ackedSeq = replayedSeq;
+                lastProgress = System.currentTimeMillis();
+                trim();
+            }
+            return true;
+        }
+
+        private void spill() {
+            List<ReplicationEntry> batch;
+            while ((batch = pending(this)) != null && !batch.isEmpty()) {
+                if (!server.hintedHandoff.append(replicaHash, batch)) {
+                    needsSync = true;
+                    return;
+                }
+                hintedSeq = batch.get(batch.size() - 1).seq;
+                sentSeq = hintedSeq;
+                trim();
+            }
+            if (batch == null) {
+                needsSync = true;
+            }
+        }
+
+        private boolean deliver(ECSNode replica, List<ReplicationEntry> batch) {
+            CoordMessage message = new CoordMessage(server.getHashValue());
+            message.setAction(CoordMessage.ActionType.BATCH);
+            message.entries = batch;
+            message.chain = chain.isEmpty() ? null : chain;
+            try {
+                CoordMessage response = server.peerPool.sendCoordMessage(replica.getNodeHost(), replica.getNodePort(), message);
+                if (response != null && !response.isSuccess) {
+                    logger.warn(String.format("Replica %s rejected hinted entries, resyncing it.", replica.getNodeName()));
+                    needsSync = true;
+                }
+                return response != null && response.isSuccess && response.ackedSeq >= batch.get(batch.size() - 1).seq;
+            } catch (IOException e) {
+                server.peerPool.closePeer(replica.getNodeHost(), replica.getNodePort());
+                return false;
+            }
+        }
+
+        /**
+         * Writes a batch to the replica's stream without waiting for its acknowledgement.
+         */
+        private void send(ECSNode replica, List<ReplicationEntry> batch) throws InterruptedException {
+            if (stream == null) {
+                try {
+                    PeerConnection connection = new PeerConnection(replica.getNodeHost(), replica.getNodePort(),
+                            CONNECT_TIMEOUT_MS);
+                    synchronized (ReplicationLog.this) {
+                        stream = connection;
+                    }
+                } catch (IOException e) {
+                    logger.error(String.format("Failed to connect to %s:%s, retrying from seq %d.",
+                            replica.getNodeHost(), replica.getNodePort(), releasedSeq() + 1));
+                    markUnreachable();
+                    backoff();
+                    return;
+                }
+            }
+            CoordMessage message = new CoordMessage(server.getHashValue());
+            message.setAction(CoordMessage.ActionType.BATCH);
+            message.entries = batch;
+            message.chain = chain.isEmpty() ? null : chain;
+            String line;
+            try {
+                line = MessageCodec.encode(message);
+            } catch (JsonProcessingException e) {
+                logger.error("Unable to encode replication batch, resyncing the replica.", e);
+                needsSync = true;
+                return;
+            }
+            PeerConnection current = stream;
+            long last = batch.get(batch.size() - 1).seq;
+            synchronized (ReplicationLog.this) {
+                inFlight.addLast(new InFlight(last, System.currentTimeMillis()));
+                sentSeq = last;
+            }
+            current.send(line).whenComplete((reply, error) -> onReply(this, current, reply, error));
+            backoffMs = MIN_BACKOFF_MS;
+        }
+
+        private boolean ackTimedOut() {
+            synchronized (ReplicationLog.this) {
+                InFlight oldest = inFlight.peekFirst();
+                return oldest != null && System.currentTimeMillis() - oldest.sentAt > ACK_TIMEOUT_MS;
+            }
+        }
+
+        /**
+         * Abandons the stream and its unacknowledged batches; sending resumes after the released seq.
+         */
+        private void closeStream() {
+            synchronized (ReplicationLog.this) {
+                if (stream != null) {
+                    stream.close();
+                    stream = null;
+                }
+                inFlight.clear();
+                streamBroken = false;
+                sentSeq = releasedSeq();
+            }
+        }
+
+        private void markUnreachable() {
+            if (unreachableSince == 0) {
+                unreachableSince = System.currentTimeMillis();
+            }
+        }
+
+        private void reportLag(ECSNode replica) {
+            long now = System.currentTimeMillis();
+            if (now - lastLagReport < LAG_REPORT_INTERVAL_MS) {
+                return;
+            }
+            lastLagReport = now;
+            ReplicaLag lag;
+            synchronized (ReplicationLog.this) {
+                lag = lagOf(this);
+            }
+            if (lag.entries > 0) {
+                logger.info(String.format("Replica %s lags by %s.", replica.getNodeName(), lag));
+            }
+        }
+
+        private void backoff() throws InterruptedException {
+            Thread.sleep(backoffMs);
+            backoffMs = Math.min(MAX_BACKOFF_MS, backoffMs * 2);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package app_kvServer;
+
+/*
+ * A stored value together with the version its coordinator assigned when it was written. Storage and
+ * cache keep the encoded form "<version>\t<value>", so lines stay "key value" for range scans and bulk
+ * transfers. Lines written before values were versioned decode as version 0.
+ */
+public class VersionedValue {
+    private static final char SEPARATOR = '\t';
+
+    public final long version;
+    public final String value;
+
+    public VersionedValue(long version, String value) {
+        this.version = version;
+        this.value = value;
+    }
+
+    public static String encode(long version, String value) {
+        return Long.toString(version) + SEPARATOR + value;
+    }
+
+    public String encode() {
+        return encode(version, value);
+    }
+
+    /**
+     * @return the decoded value, or null if stored is null
+     */
+    public static VersionedValue decode(String stored) {
+        if (stored == null) {
+            return null;
+        }
+        int separator = stored.indexOf(SEPARATOR);
+        if (separator > 0) {
+            try {
+                return new VersionedValue(Long.parseLong(stored.substring(0, separator)), stored.substring(separator + 1));
+            } catch (NumberFormatException e) {
+                // Unversioned value that happens to contain a tab.
+            }
+        }
+        return new VersionedValue(0, stored);
+    }
+
+    public boolean isNewerThan(VersionedValue other) {
+        return other == null || version > other.version;
+    }
+}
@@ -2,10 +2,15 @@ package client;
 
 import org.apache.log4j.Logger;
 
+import java.util.List;
+
 import ecs.IECSNode;
 import shared.BST;
+import shared.MetadataDelta;
+import shared.messages.ConsistencyLevel;
 import shared.messages.KVMessage;
 import shared.messages.KVMessageImpl;
+import shared.messages.ReplicationMode;
 import shared.utils.HashUtils;
 
 public class KVStore implements KVCommInterface {
@@ -15,6 +20,8 @@ public class KVStore implements KVCommInterface {
 	private int port;
 	private String nodeName;
 	private BST metadata;
+	// Newest metadata epoch a server reported; the cached metadata is refreshed when it falls behind.
+	private long knownEpoch = 0;
 	
 	private final CommManager commManager;
 	
@@ -35,8 +42,11 @@ public class KVStore implements KVCommInterface {
 			throw new Exception("Already connected to a server");
 		}
 		commManager.connect(address, port);
-		updateMetadata();
 		nodeName = address + ":" + port;
+		// Switching servers keeps the cached metadata; responses say when it is out of date.
+		if (metadata == null) {
+			updateMetadata();
+		}
 	}
 
 	@Override
@@ -46,7 +56,19 @@ public class KVStore implements KVCommInterface {
 	
 	@Override
 	public KVMessage put(String key, String value) throws Exception {
-		String request = "put " + key + " " + value;
+		return put(key, value, null);
+	}
+
+	/**
+	 * Inserts, updates or deletes a key, waiting for as many replicas as consistency asks for.
+	 * The response reports the consistency that was achieved and how many replicas acknowledged.
+	 * @param consistency the level to wait for, or null for the server default (ONE, unreported)
+	 */
+	public KVMessage put(String key, String value, ConsistencyLevel consistency) throws Exception {
+		KVMessage putMessage = new KVMessageImpl(key, value, KVMessage.StatusType.PUT);
+		putMessage.setConsistency(consistency);
+		String request = putMessage.toString();
+		refreshIfStale();
 		setServerForKey(key);
 		KVMessage responseMessage = sendRequest(request);
 		if (responseMessage.getStatus() == KVMessage.StatusType.SERVER_NOT_RESPONSIBLE) {
@@ -60,17 +82,41 @@ public class KVStore implements KVCommInterface {
 
 	@Override
 	public KVMessage get(String key) throws Exception {
-		String request = "get " + key;
-		setRandomServerForKey(key);
+		return get(key, null);
+	}
+
+	/**
+	 * Retrieves a key from a random one of its responsible nodes, or the one its bounded-load read route
+	 * picks when the ECS publishes routes. With QUORUM or ALL that node reads
+	 * the other responsible nodes too and returns the newest version, so replica reads are never stale;
+	 * under chain replication such reads go to the tail of the key's chain instead, which needs no
+	 * other node.
+	 * @param consistency the level to read at, or null to read the chosen node only
+	 */
+	public KVMessage get(String key, ConsistencyLevel consistency) throws Exception {
+		KVMessage getMessage = new KVMessageImpl(key, null, KVMessage.StatusType.GET);
+		getMessage.setConsistency(consistency);
+		String request = getMessage.toString();
+		refreshIfStale();
+		setReadServerForKey(key, consistency);
 		KVMessage responseMessage = sendRequest(request);
 		if (responseMessage.getStatus() == KVMessage.StatusType.SERVER_NOT_RESPONSIBLE) {
 			updateMetadata();
-			setRandomServerForKey(key);
+			setReadServerForKey(key, consistency);
 			responseMessage = sendRequest(request);
 		}
 		return responseMessage;
 	}
 
+	private void setReadServerForKey(String key, ConsistencyLevel consistency) throws Exception {
+		if (consistency != null && consistency != ConsistencyLevel.ONE
+				&& metadata.getReplicationMode() == ReplicationMode.CHAIN) {
+			setTailServerForKey(key);
+		} else {
+			setRoutedServerForKey(key);
+		}
+	}
+
 	public String getAddress() {
 		return address;
 	}
@@ -91,6 +137,7 @@ public class KVStore implements KVCommInterface {
 		String response = commManager.sendMessage(request);
 		KVMessage responseMessage =  KVMessageImpl.fromString(response);
 		logger.info("Received message: " + responseMessage.getStatus());
+		knownEpoch = Math.max(knownEpoch, responseMessage.getEpoch());
 		if (responseMessage.getStatus() == KVMessage.StatusType.DISCONNECT) {
 //			metadata.delete(HashUtils.getHash(nodeName));
 			metadata = responseMessage.getMetadata();
@@ -116,11 +163,32 @@ public class KVStore implements KVCommInterface {
 		keyrange();
 	}
 
+	/**
+	 * Fetches the metadata, as the change since the cached epoch when the server has it. Metadata older
+	 * than the cached one, from a server that has not caught up yet, is ignored.
+	 */
 	private void keyrange() throws Exception {
-		KVMessage metadataMessage = sendRequest("keyrange");
+		KVMessage request = new KVMessageImpl(KVMessage.StatusType.KEYRANGE);
+		if (metadata != null) {
+			request.setEpoch(metadata.epoch);
+		}
+		KVMessage metadataMessage = sendRequest(request.toString());
 		if (metadataMessage.getStatus() != KVMessage.StatusType.KEYRANGE_SUCCESS)
 			throw new Exception("Keyrange query failed");
-		metadata = metadataMessage.getMetadata();
+		MetadataDelta delta = metadataMessage.getMetadataDelta();
+		if (delta != null && metadata != null && delta.fromEpoch == metadata.epoch) {
+			BST next = metadata.copy();
+			next.apply(delta);
+			metadata = next;
+		} else if (delta == null && (metadata == null || metadataMessage.getMetadata().epoch >= metadata.epoch)) {
+			metadata = metadataMessage.getMetadata();
+		}
+	}
+
+	private void refreshIfStale() throws Exception {
+		if (metadata != null && metadata.epoch < knownEpoch) {
+			updateMetadata();
+		}
 	}
 
 	private void keyrange_read() throws Exception {
@@ -136,8 +204,18 @@ public class KVStore implements KVCommInterface {
             return;
         }
 		
-		IECSNode node = metadata.getNodeFromKey(hashedKey);
+		connectTo(metadata.getNodeFromKey(hashedKey));
+	}
+
+	private void setTailServerForKey(String key) throws Exception {
+		if (metadata.isEmpty()) {
+			return;
+		}
+		List<String> chain = metadata.getResponsibleNodes(HashUtils.getHash(key));
+		connectTo(metadata.get(chain.get(chain.size() - 1)));
+	}
 
+	private void connectTo(IECSNode node) throws Exception {
 		if (!node.getNodeName().equals(nodeName)) {
 			disconnect();
 			this.address = node.getNodeHost();
@@ -147,20 +225,32 @@ public class KVStore implements KVCommInterface {
 		}
 	}
 
-	private void setRandomServerForKey(String key) throws Exception {
+	private void setRoutedServerForKey(String key) throws Exception {
 		String hashedKey = HashUtils.getHash(key);
 		if (metadata.isEmpty()) {
             return;
         }
 		
-		IECSNode node = metadata.getRandomNodeForKey(hashedKey);
-
-		if (!node.getNodeName().equals(nodeName)) {
-			disconnect();
-			this.address = node.getNodeHost();
-			this.port = node.getNodePort();
-			this.nodeName = node.getNodeName();
-			connect();
+		// Routed reads always pick the same server for a key, so if it is gone try the other copies.
+		IECSNode routed = metadata.getReadNodeForKey(hashedKey);
+		List<String> holders = metadata.getResponsibleNodes(hashedKey);
+		try {
+			connectTo(routed);
+		} catch (Exception e) {
+			logger.info("Client: Cannot reach " + routed.getNodeName() + ", reading from another copy.");
+			for (String holder : holders) {
+				IECSNode node = metadata.get(holder);
+				if (node == null || node.getNodeName().equals(routed.getNodeName())) {
+					continue;
+				}
+				try {
+					connectTo(node);
+					return;
+				} catch (Exception other) {
+					logger.info("Client: Cannot reach " + node.getNodeName());
+				}
+			}
+			throw e;
 		}
 	}
 }
\ No newline at end of file
@@ -12,9 +12,13 @@ public class ECSNode implements IECSNode, Serializable {
     private int cacheSize;
     public String dBStoragePath;
     private String strategy;
-    public List<String> predecessors = new ArrayList<>(2);
-    public List<String> successors = new ArrayList<>(2);
+    public List<String> predecessors = new ArrayList<>();
+    public List<String> successors = new ArrayList<>();
     public int priorityNum = 0;
+    // Primary token of the server owning this ring position; null when the position is the server's only token.
+    public String nodeId;
+    // Capacity the server advertised when joining, relative to 1; sets its number of ring positions.
+    public double weight = 1;
 
     public ECSNode() {}
 
@@ -62,10 +66,6 @@ public class ECSNode implements IECSNode, Serializable {
         if (newSuccessors == null) {
             throw new IllegalArgumentException("Successor list cannot be null.");
         }
-        if (newSuccessors.size() > 2) {
-            throw new IllegalArgumentException("Successor list cannot contain more than two elements.");
-        }
-
         // Clear the current successors list and add all from the new list
         this.successors.clear();
         this.successors.addAll(newSuccessors);
@@ -3,17 +3,266 @@ package shared;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import ecs.ECSNode;
 import ecs.IECSNode;
+import shared.messages.ReplicationMode;
+import shared.utils.HashUtils;
 
+import java.math.BigInteger;
 import java.util.*;
 import java.io.*;
 
 
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class BST implements Serializable {
+    public static final int DEFAULT_REPLICATION_FACTOR = 3;
+    public static final int DEFAULT_VIRTUAL_NODES = 1;
+
     public TreeMap<String, ECSNode> bst;
+    // Number of copies of each key: its coordinator plus replicationFactor - 1 successors.
+    public int replicationFactor = DEFAULT_REPLICATION_FACTOR;
+    public ReplicationMode replicationMode = ReplicationMode.FAN_OUT;
+    // Ring positions (tokens) a server gets when it joins; servers already on the ring keep theirs.
+    public int virtualNodes = DEFAULT_VIRTUAL_NODES;
+    // Bounded-load read routing caps servers at (1 + loadBound) times the average load; 0 turns it off.
+    public double loadBound = 0;
+    // Ring position -> how its reads are split under bounded-load routing; positions without one are
+    // read from their coordinator.
+    public TreeMap<String, ReadRoute> readRoutes = new TreeMap<>();
+    // Version of the metadata; the ECS increments it with every change it pushes to the servers.
+    public long epoch = 0;
+    // Primary token -> node, one entry per server; rebuilt on first use after the ring changes.
+    private transient TreeMap<String, ECSNode> servers;
+
     public BST() {
         bst = new TreeMap<>();
     }
+
+    public int getReplicationFactor() {
+        return replicationFactor;
+    }
+
+    public void setReplicationFactor(int replicationFactor) {
+        if (replicationFactor < 1) {
+            throw new IllegalArgumentException("Replication factor must be at least 1 but was " + replicationFactor);
+        }
+        this.replicationFactor = replicationFactor;
+    }
+
+    public ReplicationMode getReplicationMode() {
+        return replicationMode;
+    }
+
+    public void setReplicationMode(ReplicationMode replicationMode) {
+        if (replicationMode == null) {
+            throw new IllegalArgumentException("Replication mode cannot be null.");
+        }
+        this.replicationMode = replicationMode;
+    }
+
+    public double getLoadBound() {
+        return loadBound;
+    }
+
+    public void setLoadBound(double loadBound) {
+        if (loadBound < 0) {
+            throw new IllegalArgumentException("Load bound must not be negative but was " + loadBound);
+        }
+        this.loadBound = loadBound;
+        if (loadBound == 0) {
+            readRoutes = new TreeMap<>();
+        }
+    }
+
+    public int getVirtualNodes() {
+        return virtualNodes;
+    }
+
+    public void setVirtualNodes(int virtualNodes) {
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("Virtual nodes must be at least 1 but was " + virtualNodes);
+        }
+        this.virtualNodes = virtualNodes;
+    }
+
+    /**
+     * @return how many replicas each coordinator has, which is limited by the number of other servers
+     */
+    public int replicaCount() {
+        return Math.max(0, Math.min(replicationFactor, serverCount()) - 1);
+    }
+
+    /**
+     * @return the ring position of a server's index-th token. Token 0 is the hash of the server's name,
+     * which also identifies the server (its primary token).
+     */
+    public static String token(String nodeName, int index) {
+        return HashUtils.getHash(index == 0 ? nodeName : nodeName + "#" + index);
+    }
+
+    /**
+     * @return how many tokens a server of the given weight gets, relative to virtualNodes for weight 1
+     */
+    public int tokensForWeight(double weight) {
+        return (int) Math.max(1, Math.round(weight * virtualNodes));
+    }
+
+    /**
+     * Places a server on the ring at the given number of tokens, or grows it to that many, and
+     * recomputes all ranges.
+     *
+     * @return the tokens that were added, primary token first for a new server
+     */
+    public List<String> addServer(String host, int port, int tokens, int priorityNum) {
+        String nodeName = host + ":" + port;
+        String nodeId = token(nodeName, 0);
+        List<String> added = new ArrayList<>();
+        for (int i = 0; i < tokens; i++) {
+            String token = token(nodeName, i);
+            if (bst.containsKey(token)) {
+                continue;
+            }
+            ECSNode node = new ECSNode(nodeName, host, port, new String[]{token, token});
+            node.nodeId = nodeId;
+            node.priorityNum = priorityNum;
+            put(token, node);
+            added.add(token);
+        }
+        updateRanges();
+        return added;
+    }
+
+    /**
+     * Takes all tokens of a server off the ring and recomputes all ranges.
+     *
+     * @return the removed tokens
+     */
+    public List<String> removeServer(String nodeName) {
+        List<String> removed = tokensOf(nodeName);
+        for (String token : removed) {
+            delete(token);
+        }
+        updateRanges();
+        return removed;
+    }
+
+    /**
+     * Hands a ring position, new or existing, to the server with the given primary token and recomputes
+     * all ranges. A server's primary position stays with it.
+     */
+    public void assignPosition(String token, String nodeId) {
+        if (token.equals(nodeIdOf(token)) && bst.containsKey(token) && !token.equals(nodeId)) {
+            throw new IllegalArgumentException("Cannot reassign the primary position of a server: " + token);
+        }
+        ECSNode server = bst.get(nodeId);
+        ECSNode node = new ECSNode(server.getNodeName(), server.getNodeHost(), server.getNodePort(),
+                new String[]{token, token});
+        node.nodeId = nodeId;
+        node.priorityNum = server.priorityNum;
+        node.weight = server.weight;
+        put(token, node);
+        updateRanges();
+    }
+
+    /**
+     * @return the ring position halfway through the range (from, to], which may wrap around the ring
+     */
+    public static String midpoint(String from, String to) {
+        BigInteger ring = BigInteger.ONE.shiftLeft(128);
+        BigInteger start = new BigInteger(from, 16);
+        BigInteger width = new BigInteger(to, 16).subtract(start).mod(ring);
+        if (width.signum() == 0) {
+            width = ring;
+        }
+        String hex = start.add(width.shiftRight(1)).mod(ring).toString(16);
+        StringBuilder padded = new StringBuilder();
+        for (int i = hex.length(); i < 32; i++) {
+            padded.append('0');
+        }
+        return padded.append(hex).toString();
+    }
+
+    /**
+     * @return the server's tokens with the given index and above, which shrinking it to index tokens removes
+     */
+    public List<String> tokensFrom(String nodeName, int index) {
+        List<String> tokens = new ArrayList<>();
+        for (int i = index; ; i++) {
+            ECSNode node = bst.get(token(nodeName, i));
+            if (node == null || !node.getNodeName().equals(nodeName)) {
+                return tokens;
+            }
+            tokens.add(token(nodeName, i));
+        }
+    }
+
+    /**
+     * @return the tokens of a server in ring order
+     */
+    public List<String> tokensOf(String nodeName) {
+        List<String> tokens = new ArrayList<>();
+        for (Map.Entry<String, ECSNode> entry : bst.entrySet()) {
+            if (entry.getValue().getNodeName().equals(nodeName)) {
+                tokens.add(entry.getKey());
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Sets the range of every position to [predecessor, own token].
+     */
+    public void updateRanges() {
+        for (Map.Entry<String, ECSNode> entry : bst.entrySet()) {
+            entry.getValue().nodeHashRange = new String[]{predecessor(entry.getKey()), entry.getKey()};
+        }
+    }
+
+    /**
+     * @return the primary token of the server owning the ring position token
+     */
+    public String nodeIdOf(String token) {
+        ECSNode node = bst.get(token);
+        return node == null || node.nodeId == null ? token : node.nodeId;
+    }
+
+    /**
+     * @return the primary token of the server coordinating the key with the given hash
+     */
+    public String coordinatorOf(String keyHash) {
+        return nodeIdOf(positionOf(keyHash));
+    }
+
+    /**
+     * @return the ring position whose range contains the key with the given hash
+     */
+    public String positionOf(String keyHash) {
+        String token = bst.higherKey(keyHash);
+        return token == null ? bst.firstKey() : token;
+    }
+
+    /**
+     * @return one node per server, the one at its primary token, in ring order
+     */
+    public Collection<ECSNode> servers() {
+        return serverRing().values();
+    }
+
+    public int serverCount() {
+        return serverRing().size();
+    }
+
+    private TreeMap<String, ECSNode> serverRing() {
+        TreeMap<String, ECSNode> ring = servers;
+        if (ring == null) {
+            ring = new TreeMap<>();
+            for (Map.Entry<String, ECSNode> entry : bst.entrySet()) {
+                if (entry.getKey().equals(nodeIdOf(entry.getKey()))) {
+                    ring.put(entry.getKey(), entry.getValue());
+                }
+            }
+            servers = ring;
+        }
+        return ring;
+    }
     // Serialize the BST to a byte array
     public byte[] serialize() throws IOException {
         ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
@@ -31,8 +280,74 @@ public class BST implements Serializable {
         objectInputStream.close();
         return bst;
     }
+    public BST copy() {
+        try {
+            return deserialize(serialize());
+        } catch (IOException | ClassNotFoundException e) {
+            throw new IllegalStateException("Unable to copy metadata", e);
+        }
+    }
+
+    /**
+     * @return what changed from previous to this metadata
+     */
+    public MetadataDelta deltaFrom(BST previous) {
+        MetadataDelta delta = new MetadataDelta();
+        delta.fromEpoch = previous.epoch;
+        delta.toEpoch = epoch;
+        for (Map.Entry<String, ECSNode> entry : bst.entrySet()) {
+            if (!sameNode(previous.bst.get(entry.getKey()), entry.getValue())) {
+                delta.changed.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (String token : previous.bst.keySet()) {
+            if (!bst.containsKey(token)) {
+                delta.removed.add(token);
+            }
+        }
+        delta.replicationFactor = replicationFactor;
+        delta.replicationMode = replicationMode;
+        delta.virtualNodes = virtualNodes;
+        delta.loadBound = loadBound;
+        if (!readRoutes.equals(previous.readRoutes)) {
+            delta.readRoutes = readRoutes;
+        }
+        return delta;
+    }
+
+    /**
+     * Brings this metadata from delta.fromEpoch to delta.toEpoch.
+     */
+    public void apply(MetadataDelta delta) {
+        if (delta.fromEpoch != epoch) {
+            throw new IllegalArgumentException(
+                    String.format("Delta from epoch %d does not apply to epoch %d", delta.fromEpoch, epoch));
+        }
+        for (String token : delta.removed) {
+            bst.remove(token);
+        }
+        bst.putAll(delta.changed);
+        servers = null;
+        replicationFactor = delta.replicationFactor;
+        replicationMode = delta.replicationMode;
+        virtualNodes = delta.virtualNodes;
+        loadBound = delta.loadBound;
+        if (delta.readRoutes != null) {
+            readRoutes = delta.readRoutes;
+        }
+        epoch = delta.toEpoch;
+    }
+
+    private static boolean sameNode(ECSNode a, ECSNode b) {
+        return a != null && b != null && a.getNodeName().equals(b.getNodeName())
+                && Arrays.equals(a.getNodeHashRange(), b.getNodeHashRange())
+                && a.predecessors.equals(b.predecessors) && a.successors.equals(b.successors)
+                && a.priorityNum == b.priorityNum && Objects.equals(a.nodeId, b.nodeId) && a.weight == b.weight;
+    }
+
     public void put(String key, ECSNode node) {
         bst.put(key, node);
+        servers = null;
     }
 
     public IECSNode get(String key) {
@@ -59,8 +374,128 @@ public class BST implements Serializable {
         return succ;
     }
 
+    /**
+     * @return up to count other servers following the server that owns key, nearest first, as primary
+     * tokens. Replicas are chosen per server, so all ranges a server coordinates share its replicas.
+     */
+    public List<String> successors(String key, int count) {
+        return neighbours(key, count, true);
+    }
+
+    /**
+     * @return up to count other servers preceding the server that owns key, nearest first, as primary tokens
+     */
+    public List<String> predecessors(String key, int count) {
+        return neighbours(key, count, false);
+    }
+
+    private List<String> neighbours(String key, int count, boolean forward) {
+        TreeMap<String, ECSNode> ring = serverRing();
+        String start = nodeIdOf(key);
+        List<String> neighbours = new ArrayList<>();
+        String current = start;
+        for (int i = 0; i < ring.size() && neighbours.size() < count; i++) {
+            current = forward ? ring.higherKey(current) : ring.lowerKey(current);
+            if (current == null) {
+                current = forward ? ring.firstKey() : ring.lastKey();
+            }
+            if (current.equals(start)) {
+                break;
+            }
+            neighbours.add(current);
+        }
+        return neighbours;
+    }
+
+    /**
+     * Plans the data a server takes over at the positions it was just given: each position takes its
+     * range from the previous owner, the server at the next position that is not new.
+     *
+     * @return the ranges to move, grouped by the primary token of the server giving them up
+     */
+    public Map<String, List<String[]>> rangesTakenBy(Collection<String> tokens) {
+        return rangesByNextOwner(tokens);
+    }
+
+    /**
+     * Plans the data several servers that just joined together take over: each new position takes its
+     * range straight from the previous owner, the server at the next position that is not new, so no
+     * range passes through another new server on the way.
+     *
+     * @return the ranges to move, grouped by the primary token of the server giving them up and then by
+     * the primary token of the server taking them over
+     */
+    public Map<String, Map<String, List<String[]>>> rangesTakenByServers(Collection<String> tokens) {
+        return rangesByNextAndCurrentOwner(tokens);
+    }
+
+    /**
+     * Plans the hand-off of a leaving server: each of its positions passes to the server at the next
+     * position held by another server.
+     *
+     * @return the ranges to hand off, grouped by the primary token of the server taking them over
+     */
+    public Map<String, List<String[]>> rangesHandedOffBy(String nodeName) {
+        return rangesByNextOwner(tokensOf(nodeName));
+    }
+
+    /**
+     * Plans the hand-off of positions that are about to be taken off the ring, like rangesHandedOffBy.
+     */
+    public Map<String, List<String[]>> rangesHandedOffBy(Collection<String> tokens) {
+        return rangesByNextOwner(tokens);
+    }
+
+    /*
+     * The range of each position in tokens belongs, when the position is absent, to the server at the
+     * next position not in tokens. Positions whose server is that same server move nothing, and adjacent
+     * ranges for the same server are merged.
+     */
+    private Map<String, List<String[]>> rangesByNextOwner(Collection<String> tokens) {
+        Map<String, List<String[]>> ranges = new LinkedHashMap<>();
+        for (Map.Entry<String, Map<String, List<String[]>>> owner : rangesByNextAndCurrentOwner(tokens).entrySet()) {
+            List<String[]> merged = ranges.computeIfAbsent(owner.getKey(), k -> new ArrayList<>());
+            for (List<String[]> part : owner.getValue().values()) {
+                for (String[] range : part) {
+                    addRange(merged, range);
+                }
+            }
+        }
+        return ranges;
+    }
+
+    /*
+     * Like rangesByNextOwner, but also grouped by the server holding each position in tokens.
+     */
+    private Map<String, Map<String, List<String[]>>> rangesByNextAndCurrentOwner(Collection<String> tokens) {
+        Set<String> moving = new HashSet<>(tokens);
+        Map<String, Map<String, List<String[]>>> ranges = new LinkedHashMap<>();
+        for (String token : new TreeSet<>(tokens)) {
+            String next = successor(token);
+            while (moving.contains(next) && !next.equals(token)) {
+                next = successor(next);
+            }
+            String owner = nodeIdOf(next);
+            if (!moving.contains(next) && !owner.equals(nodeIdOf(token))) {
+                addRange(ranges.computeIfAbsent(owner, k -> new LinkedHashMap<>())
+                        .computeIfAbsent(nodeIdOf(token), k -> new ArrayList<>()), bst.get(token).getNodeHashRange());
+            }
+        }
+        return ranges;
+    }
+
+    private static void addRange(List<String[]> ranges, String[] range) {
+        String[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+        if (last != null && last[1].equals(range[0])) {
+            last[1] = range[1];
+        } else {
+            ranges.add(range.clone());
+        }
+    }
+
     public void delete(String key) {
         bst.remove(key);
+        servers = null;
     }
 
     public int size() {
@@ -112,45 +547,184 @@ public class BST implements Serializable {
             return null;
         }
 
-        Map.Entry<String, ECSNode> entry = bst.higherEntry(key);
-        if (entry == null) {
-            entry = bst.firstEntry();
-        }
+        List<String> responsibleNodes = getResponsibleNodes(key);
+        IECSNode node = bst.get(responsibleNodes.get(new Random().nextInt(responsibleNodes.size())));
 
-        String coordinator = entry.getKey();
-        String replica1 = successor(coordinator);
-        String replica2 = successor(replica1);
+        return node;
+    }
 
-        String[] responsibleNodes = {coordinator, replica1, replica2};
-        int nodeIndex = new Random().nextInt(3);
+    /**
+     * @return the server to read the key with the given hash from: with bounded-load routing the one its
+     * read route picks, or the coordinator if its position has none; otherwise a random one of the
+     * servers holding a copy
+     */
+    public IECSNode getReadNodeForKey(String keyHash) {
+        if (bst.isEmpty()) {
+            return null;
+        }
+        if (loadBound == 0) {
+            return getRandomNodeForKey(keyHash);
+        }
+        ReadRoute route = readRoutes.get(positionOf(keyHash));
+        if (route != null) {
+            String nodeId = route.pick(keyHash);
+            if (getResponsibleNodes(keyHash).contains(nodeId)) {
+                return bst.get(nodeId);
+            }
+        }
+        return getNodeFromKey(keyHash);
+    }
 
-        if (replica2.equals(coordinator)) {
-            nodeIndex = new Random().nextInt(2);
+    /**
+     * Plans bounded-load read routing: no server should serve more than (1 + loadBound) times the average
+     * number of requests. Writes stay with the coordinator. The reads of each position, busiest first,
+     * go to its coordinator while it is below the cap and spill over to the next servers holding a copy;
+     * what fits nowhere goes to the least loaded of them.
+     *
+     * @param requests ring position -> {reads, writes} over some recent interval
+     * @return read routes for the positions not served entirely by their coordinator
+     */
+    public TreeMap<String, ReadRoute> planReadRoutes(Map<String, long[]> requests) {
+        TreeMap<String, ReadRoute> routes = new TreeMap<>();
+        double total = 0;
+        Map<String, Double> assigned = new HashMap<>();
+        for (Map.Entry<String, long[]> entry : requests.entrySet()) {
+            if (bst.containsKey(entry.getKey())) {
+                total += entry.getValue()[0] + entry.getValue()[1];
+                assigned.merge(nodeIdOf(entry.getKey()), (double) entry.getValue()[1], Double::sum);
+            }
+        }
+        if (total == 0 || serverCount() < 2) {
+            return routes;
+        }
+        double cap = (1 + loadBound) * total / serverCount();
+        List<String> positions = new ArrayList<>();
+        for (String token : requests.keySet()) {
+            if (bst.containsKey(token) && requests.get(token)[0] > 0) {
+                positions.add(token);
+            }
         }
+        positions.sort((a, b) -> Long.compare(requests.get(b)[0], requests.get(a)[0]));
+        for (String token : positions) {
+            double reads = requests.get(token)[0];
+            List<String> holders = holdersOf(token);
+            ReadRoute route = new ReadRoute();
+            double left = reads;
+            for (String holder : holders) {
+                double take = Math.min(left, cap - assigned.getOrDefault(holder, 0.0));
+                if (take > 0) {
+                    route.add(holder, share(take, reads));
+                    assigned.merge(holder, take, Double::sum);
+                    left -= take;
+                }
+            }
+            if (left > 0) {
+                String leastLoaded = holders.get(0);
+                for (String holder : holders) {
+                    if (assigned.getOrDefault(holder, 0.0) < assigned.getOrDefault(leastLoaded, 0.0)) {
+                        leastLoaded = holder;
+                    }
+                }
+                route.add(leastLoaded, share(left, reads));
+                assigned.merge(leastLoaded, left, Double::sum);
+            }
+            if (route.nodeIds.size() > 1 || !route.nodeIds.get(0).equals(holders.get(0))) {
+                routes.put(token, route);
+            }
+        }
+        return routes;
+    }
 
-        IECSNode node = bst.get(responsibleNodes[nodeIndex]);
+    /**
+     * @return whether the current read routes still fit the ring and keep every server within
+     * (1 + loadBound) times the average of the given requests
+     */
+    public boolean withinLoadBound(Map<String, long[]> requests) {
+        for (Map.Entry<String, ReadRoute> route : readRoutes.entrySet()) {
+            if (!bst.containsKey(route.getKey())) {
+                return false;
+            }
+            if (!holdersOf(route.getKey()).containsAll(route.getValue().nodeIds)) {
+                return false;
+            }
+        }
+        double total = 0;
+        Map<String, Double> loads = new HashMap<>();
+        for (Map.Entry<String, long[]> entry : requests.entrySet()) {
+            String token = entry.getKey();
+            if (!bst.containsKey(token)) {
+                continue;
+            }
+            long reads = entry.getValue()[0];
+            total += reads + entry.getValue()[1];
+            loads.merge(nodeIdOf(token), (double) entry.getValue()[1], Double::sum);
+            ReadRoute route = readRoutes.get(token);
+            if (route == null) {
+                loads.merge(nodeIdOf(token), (double) reads, Double::sum);
+                continue;
+            }
+            for (int i = 0; i < route.nodeIds.size(); i++) {
+                loads.merge(route.nodeIds.get(i), reads * route.shares.get(i), Double::sum);
+            }
+        }
+        double cap = (1 + loadBound) * total / Math.max(1, serverCount());
+        for (double load : loads.values()) {
+            if (load > cap) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        return node;
+    // The servers holding a copy of a position's range, coordinator first
+    private List<String> holdersOf(String token) {
+        List<String> holders = new ArrayList<>();
+        holders.add(nodeIdOf(token));
+        holders.addAll(successors(nodeIdOf(token), replicaCount()));
+        return holders;
+    }
+
+    // Shares are kept to whole percents so that small swings in load do not change the routes.
+    private static double share(double part, double whole) {
+        return Math.round(part / whole * 100) / 100.0;
     }
 
-    // Create a new BST with the same nodes, where each node is responsible for replicating the ranges of the previous 2 nodes
+    /**
+     * @return the primary tokens of the servers holding a copy of the key with the given hash, coordinator first
+     */
+    public List<String> getResponsibleNodes(String keyHash) {
+        List<String> responsibleNodes = new ArrayList<>();
+        if (bst.isEmpty()) {
+            return responsibleNodes;
+        }
+        String coordinator = coordinatorOf(keyHash);
+        responsibleNodes.add(coordinator);
+        responsibleNodes.addAll(successors(coordinator, replicaCount()));
+        return responsibleNodes;
+    }
+
+    // Create a new BST with the same positions, where each range also covers the preceding positions whose
+    // coordinators this position's server replicates
     public BST createReplicatedRange() {
         BST replicatedRange = new BST();
-        String[] keys = new String[bst.size()];
-        int i = 0;
+        replicatedRange.replicationFactor = replicationFactor;
+        replicatedRange.replicationMode = replicationMode;
+        replicatedRange.virtualNodes = virtualNodes;
+        int replicas = replicaCount();
         for (String key : bst.keySet()) {
-            keys[i++] = key;
-        }
-        for (i = 0; i < keys.length; i++) {
-            String key = keys[i];
-            IECSNode node = get(key);
-            String pred = predecessor(key);
-            if (predecessor(pred) != key) pred = predecessor(pred);
-            IECSNode predNode = get(pred);
+            ECSNode node = bst.get(key);
+            String owner = nodeIdOf(key);
+            Set<String> held = new HashSet<>(predecessors(owner, replicas));
+            held.add(owner);
+            String start = node.getNodeHashRange()[0];
+            for (String pred = predecessor(key); !pred.equals(key) && held.contains(nodeIdOf(pred)); pred = predecessor(pred)) {
+                start = bst.get(pred).getNodeHashRange()[0];
+            }
 
-            String[] hashRange = {predNode.getNodeHashRange()[0], node.getNodeHashRange()[1]};
+            String[] hashRange = {start, node.getNodeHashRange()[1]};
 
             ECSNode newNode = new ECSNode(node.getNodeName(), node.getNodeHost(), node.getNodePort(), hashRange);
+            newNode.nodeId = node.nodeId;
             replicatedRange.put(key, newNode);
         }
         return replicatedRange;
@@ -2,60 +2,47 @@ package shared;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 import app_kvECS.ECSClient;
-import com.fasterxml.jackson.databind.JsonMappingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import ecs.ECSNode;
-import ecs.IECSNode;
-import shared.BST;
-import shared.messages.ECSMessage;
-import shared.messages.ECSMessage.ActionType;
-import logger.LogSetup;
-import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
 
-
+/*
+ * Runs the ECS heartbeat rounds at a fixed rate. A round only sends the heartbeats and checks the
+ * suspicion levels; the responses are handled as they arrive, so a slow node does not hold up the
+ * rounds or the detection of other nodes.
+ */
 public class Heartbeat {
 
     private final ECSClient ecsClient;
     private final ScheduledExecutorService scheduler;
 
-    private static final long HEARTBEAT_INTERVAL_MS = 2000;
+    public static final long HEARTBEAT_INTERVAL_MS = 1000;
+    private static final long INITIAL_DELAY_MS = 1000;
     private final Logger logger;
-    public boolean running = false;
-    private Lock lock = new ReentrantLock();
+    public volatile boolean running = false;
 
     public Heartbeat(ECSClient ecsClient) {
         this.ecsClient = ecsClient;
-        this.scheduler = Executors.newSingleThreadScheduledExecutor();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ecs-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
         this.logger = Logger.getRootLogger();
 
     }
 
     public void start() {
-        //scheduler.scheduleAtFixedRate(ecsClient::sendHeartbeats, 4000, HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
         running = true;
-        while (isRunning()) {
+        scheduler.scheduleAtFixedRate(() -> {
+            // An exception would cancel all later rounds.
             try {
-                lock.lock(); // Acquire the lock
                 ecsClient.sendHeartbeats();
             } catch (Exception e) {
-                System.out.println(e);
-            } finally {
-                lock.unlock(); // Release the lock
-            }
-
-            try {
-                Thread.sleep(3000);
-            } catch (InterruptedException e) {
-                System.out.println("Interrupted while sleeping.");
-                Thread.currentThread().interrupt();
+                logger.error("Heartbeat round failed", e);
             }
-        }
+        }, INITIAL_DELAY_MS, HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
     }
 
 
@@ -0,0 +1,64 @@
+package shared;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import ecs.ECSNode;
+import shared.messages.ReplicationMode;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+/*
+ * The change between two versions (epochs) of the ring metadata: the positions added or changed with
+ * their new node, the positions removed, and the ring-wide settings. Read routes are only included when
+ * they changed. Applying it to the metadata at fromEpoch gives the metadata at toEpoch.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class MetadataDelta implements Serializable {
+    public long fromEpoch;
+    public long toEpoch;
+    public TreeMap<String, ECSNode> changed = new TreeMap<>();
+    public List<String> removed = new ArrayList<>();
+    public int replicationFactor;
+    public ReplicationMode replicationMode;
+    public int virtualNodes;
+    public double loadBound;
+    // null when the routes did not change
+    public TreeMap<String, ReadRoute> readRoutes;
+
+    public boolean isEmpty() {
+        return changed.isEmpty() && removed.isEmpty();
+    }
+
+    /**
+     * @return a delta with the effect of this one followed by next, which must start where this one ends
+     */
+    public MetadataDelta then(MetadataDelta next) {
+        if (next.fromEpoch != toEpoch) {
+            throw new IllegalArgumentException(
+                    String.format("Delta from epoch %d does not follow epoch %d", next.fromEpoch, toEpoch));
+        }
+        MetadataDelta combined = new MetadataDelta();
+        combined.fromEpoch = fromEpoch;
+        combined.toEpoch = next.toEpoch;
+        combined.changed.putAll(changed);
+        combined.removed.addAll(removed);
+        for (String token : next.removed) {
+            combined.changed.remove(token);
+            if (!combined.removed.contains(token)) {
+                combined.removed.add(token);
+            }
+        }
+        for (String token : next.changed.keySet()) {
+            combined.removed.remove(token);
+        }
+        combined.changed.putAll(next.changed);
+        combined.replicationFactor = next.replicationFactor;
+        combined.replicationMode = next.replicationMode;
+        combined.virtualNodes = next.virtualNodes;
+        combined.loadBound = next.loadBound;
+        combined.readRoutes = next.readRoutes != null ? next.readRoutes : readRoutes;
+        return combined;
+    }
+}
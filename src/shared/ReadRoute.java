@@ -0,0 +1,81 @@
+package shared;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * How the reads of one ring position are split under bounded-load routing: the servers holding a copy,
+ * coordinator first, each with the share of the position's keys it serves. A key picks its server from
+ * the low bits of its hash, so every client sends the same key to the same server.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class ReadRoute implements Serializable {
+    public List<String> nodeIds = new ArrayList<>();
+    public List<Double> shares = new ArrayList<>();
+
+    public void add(String nodeId, double share) {
+        int i = nodeIds.indexOf(nodeId);
+        if (i >= 0) {
+            shares.set(i, shares.get(i) + share);
+        } else {
+            nodeIds.add(nodeId);
+            shares.add(share);
+        }
+    }
+
+    /**
+     * @return the primary token of the server that serves reads of the key with the given hash
+     */
+    public String pick(String keyHash) {
+        double point = Integer.parseInt(keyHash.substring(keyHash.length() - 4), 16) / 65536.0;
+        double end = 0;
+        for (int i = 0; i < nodeIds.size(); i++) {
+            end += shares.get(i);
+            if (point < end) {
+                return nodeIds.get(i);
+            }
+        }
+        return nodeIds.get(nodeIds.size() - 1);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof ReadRoute && nodeIds.equals(((ReadRoute) other).nodeIds)
+                && shares.equals(((ReadRoute) other).shares);
+    }
+
+    @Override
+    public int hashCode() {
+        return nodeIds.hashCode() * 31 + shares.hashCode();
+    }
+
+    /*
+     * Format: <nodeId>*<share>+<nodeId>*<share>...
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < nodeIds.size(); i++) {
+            if (i > 0) {
+                sb.append('+');
+            }
+            sb.append(nodeIds.get(i)).append('*').append(shares.get(i));
+        }
+        return sb.toString();
+    }
+
+    public static ReadRoute fromString(String route) {
+        ReadRoute parsed = new ReadRoute();
+        for (String part : route.split("\\+")) {
+            String[] share = part.split("\\*");
+            if (share.length != 2) {
+                throw new IllegalArgumentException("Invalid read route: " + route);
+            }
+            parsed.add(share[0], Double.parseDouble(share[1]));
+        }
+        return parsed;
+    }
+}
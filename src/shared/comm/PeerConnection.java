@@ -0,0 +1,128 @@
+package shared.comm;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*
+ * A long-lived line-based connection to one peer. The receiving side (ClientConnection on a KVServer,
+ * ServerConnection on the ECS) answers every request with exactly one line and in order, so concurrent
+ * callers can pipeline requests: each write enqueues a future, and a reader thread completes the
+ * futures in FIFO order as response lines arrive.
+ */
+public class PeerConnection {
+    private static final Logger logger = Logger.getRootLogger();
+
+    private final String peerName;
+    private final Socket socket;
+    private final BufferedReader input;
+    private final BufferedWriter output;
+    private final ConcurrentLinkedQueue<CompletableFuture<String>> pending = new ConcurrentLinkedQueue<>();
+    private final Object writeLock = new Object();
+    private volatile boolean open = true;
+    private volatile long lastUsed;
+
+    public PeerConnection(String host, int port, int connectTimeoutMs) throws IOException {
+        this.peerName = host + ":" + port;
+        this.socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), connectTimeoutMs);
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            this.input = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            this.output = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        this.lastUsed = System.currentTimeMillis();
+        Thread reader = new Thread(this::readResponses, "peer-reader-" + peerName);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Writes one request line and returns a future for its response line.
+     * The future fails with an IOException if the connection breaks first.
+     */
+    public CompletableFuture<String> send(String line) {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        synchronized (writeLock) {
+            if (!open) {
+                future.completeExceptionally(new IOException("Connection to " + peerName + " is closed."));
+                return future;
+            }
+            pending.add(future);
+            try {
+                output.write(line);
+                output.newLine();
+                output.flush();
+                lastUsed = System.currentTimeMillis();
+            } catch (IOException e) {
+                close(e);
+            }
+        }
+        return future;
+    }
+
+    private void readResponses() {
+        try {
+            String line;
+            while (open && (line = input.readLine()) != null) {
+                lastUsed = System.currentTimeMillis();
+                CompletableFuture<String> future = pending.poll();
+                if (future == null) {
+                    logger.warn(String.format("Unsolicited message from %s dropped: %s", peerName, line));
+                    continue;
+                }
+                future.complete(line);
+            }
+            close(new IOException("Connection closed by " + peerName));
+        } catch (IOException e) {
+            close(e);
+        }
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    public void close() {
+        close(new IOException("Connection to " + peerName + " closed locally."));
+    }
+
+    private void close(IOException cause) {
+        synchronized (writeLock) {
+            if (!open) {
+                return;
+            }
+            open = false;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.debug("Error closing connection to " + peerName, e);
+        }
+        CompletableFuture<String> future;
+        while ((future = pending.poll()) != null) {
+            future.completeExceptionally(cause);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package shared.comm;
+
+import org.apache.log4j.Logger;
+import shared.messages.CoordMessage;
+import shared.messages.ECSMessage;
+import shared.messages.MessageCodec;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/*
+ * Keeps a small set of long-lived connections per peer (KVServer or ECS) so replication, heartbeats,
+ * elections and metadata broadcasts do not pay a TCP handshake and a receiver thread spawn per message.
+ *
+ * Requests are multiplexed: an idle connection is preferred, a new one is opened while the peer is under
+ * MAX_CONNECTIONS_PER_PEER, and otherwise the request is pipelined behind the least loaded connection.
+ * Failed connects put the peer into exponential backoff so callers fail fast instead of stacking up
+ * connect attempts against a dead node. A background task pings idle connections and closes stale ones.
+ */
+public class PeerConnectionPool {
+    private static final Logger logger = Logger.getRootLogger();
+
+    public static final long DEFAULT_REQUEST_TIMEOUT_MS = 30000;
+    private static final int MAX_CONNECTIONS_PER_PEER = 4;
+    private static final int CONNECT_TIMEOUT_MS = 2000;
+    private static final long BASE_BACKOFF_MS = 100;
+    private static final long MAX_BACKOFF_MS = 5000;
+    private static final long HEALTH_CHECK_INTERVAL_MS = 10000;
+    private static final long PING_AFTER_IDLE_MS = 15000;
+    private static final long CLOSE_AFTER_IDLE_MS = 120000;
+
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService healthChecker;
+    private volatile boolean closed = false;
+
+    private static class Peer {
+        final String host;
+        final int port;
+        final List<PeerConnection> connections = new ArrayList<>();
+        int consecutiveFailures = 0;
+        long retryAt = 0;
+
+        Peer(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+    }
+
+    public PeerConnectionPool(String ownerName) {
+        healthChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "peer-pool-health-" + ownerName);
+            thread.setDaemon(true);
+            return thread;
+        });
+        healthChecker.scheduleWithFixedDelay(this::checkHealth, HEALTH_CHECK_INTERVAL_MS,
+                HEALTH_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public ECSMessage sendECSMessage(String host, int port, ECSMessage message) throws IOException {
+        return sendECSMessage(host, port, message, DEFAULT_REQUEST_TIMEOUT_MS);
+    }
+
+    public ECSMessage sendECSMessage(String host, int port, ECSMessage message, long timeoutMs) throws IOException {
+        return MessageCodec.decodeECSMessage(request(host, port, MessageCodec.encode(message), timeoutMs));
+    }
+
+    public CoordMessage sendCoordMessage(String host, int port, CoordMessage message) throws IOException {
+        return sendCoordMessage(host, port, message, DEFAULT_REQUEST_TIMEOUT_MS);
+    }
+
+    public CoordMessage sendCoordMessage(String host, int port, CoordMessage message, long timeoutMs) throws IOException {
+        return MessageCodec.decodeCoordMessage(request(host, port, MessageCodec.encode(message), timeoutMs));
+    }
+
+    /**
+     * Sends one line to the peer and blocks for its response line.
+     * @throws IOException if the peer is unreachable, the connection drops or the timeout expires
+     */
+    public String request(String host, int port, String line, long timeoutMs) throws IOException {
+        PeerConnection connection = acquire(host, port);
+        CompletableFuture<String> future = connection.send(line);
+        try {
+            return future.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // A late response would be matched to the next request, so the connection cannot be reused.
+            connection.close();
+            throw new IOException(String.format("Request to %s:%d timed out after %d ms.", host, port, timeoutMs));
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for " + host + ":" + port);
+        }
+    }
+
+    /**
+     * Sends one line to the peer without waiting; the returned future completes with the response line.
+     */
+    public CompletableFuture<String> requestAsync(String host, int port, String line) {
+        try {
+            return acquire(host, port).send(line);
+        } catch (IOException e) {
+            CompletableFuture<String> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    private PeerConnection acquire(String host, int port) throws IOException {
+        if (closed) {
+            throw new IOException("Connection pool is closed.");
+        }
+        Peer peer = peers.computeIfAbsent(host + ":" + port, k -> new Peer(host, port));
+        synchronized (peer) {
+            peer.connections.removeIf(connection -> !connection.isOpen());
+            PeerConnection leastLoaded = null;
+            for (PeerConnection connection : peer.connections) {
+                if (leastLoaded == null || connection.getPendingCount() < leastLoaded.getPendingCount()) {
+                    leastLoaded = connection;
+                }
+            }
+            if (leastLoaded != null && (leastLoaded.getPendingCount() == 0
+                    || peer.connections.size() >= MAX_CONNECTIONS_PER_PEER)) {
+                return leastLoaded;
+            }
+            long now = System.currentTimeMillis();
+            if (now < peer.retryAt) {
+                if (leastLoaded != null) {
+                    return leastLoaded;
+                }
+                throw new IOException(String.format("%s:%d unreachable, retrying in %d ms.", host, port, peer.retryAt - now));
+            }
+            try {
+                PeerConnection connection = new PeerConnection(host, port, CONNECT_TIMEOUT_MS);
+                peer.connections.add(connection);
+                peer.consecutiveFailures = 0;
+                peer.retryAt = 0;
+                return connection;
+            } catch (IOException e) {
+                peer.consecutiveFailures++;
+                long backoff = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << Math.min(peer.consecutiveFailures - 1, 16));
+                peer.retryAt = now + backoff;
+                logger.info(String.format("Connect to %s:%d failed (%d in a row), backing off %d ms.", host, port,
+                        peer.consecutiveFailures, backoff));
+                if (leastLoaded != null) {
+                    return leastLoaded;
+                }
+                throw e;
+            }
+        }
+    }
+
+    private void checkHealth() {
+        long now = System.currentTimeMillis();
+        for (Peer peer : peers.values()) {
+            List<PeerConnection> toPing = new ArrayList<>();
+            synchronized (peer) {
+                Iterator<PeerConnection> iterator = peer.connections.iterator();
+                while (iterator.hasNext()) {
+                    PeerConnection connection = iterator.next();
+                    long idle = now - connection.getLastUsed();
+                    if (!connection.isOpen()) {
+                        iterator.remove();
+                    } else if (connection.getPendingCount() == 0 && idle > CLOSE_AFTER_IDLE_MS) {
+                        connection.close();
+                        iterator.remove();
+                    } else if (connection.getPendingCount() == 0 && idle > PING_AFTER_IDLE_MS) {
+                        toPing.add(connection);
+                    }
+                }
+            }
+            for (PeerConnection connection : toPing) {
+                ping(peer, connection);
+            }
+        }
+    }
+
+    private void ping(Peer peer, PeerConnection connection) {
+        try {
+            String line = MessageCodec.encode(new ECSMessage(ECSMessage.ActionType.HEARTBEAT, true, null, null, null));
+            connection.send(line).get(CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            logger.info(String.format("Health check to %s:%d failed, dropping connection.", peer.host, peer.port));
+            connection.close();
+        }
+    }
+
+    /**
+     * Drops every pooled connection to the peer, e.g. once it has been removed from the ring.
+     */
+    public void closePeer(String host, int port) {
+        Peer peer = peers.remove(host + ":" + port);
+        if (peer != null) {
+            synchronized (peer) {
+                for (PeerConnection connection : peer.connections) {
+                    connection.close();
+                }
+                peer.connections.clear();
+            }
+        }
+    }
+
+    public void close() {
+        closed = true;
+        healthChecker.shutdownNow();
+        for (Peer peer : peers.values()) {
+            synchronized (peer) {
+                for (PeerConnection connection : peer.connections) {
+                    connection.close();
+                }
+                peer.connections.clear();
+            }
+        }
+        peers.clear();
+    }
+}
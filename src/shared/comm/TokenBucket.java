@@ -0,0 +1,68 @@
+package shared.comm;
+
+/*
+ * Token bucket rate limiter in bytes per second. acquire() blocks until enough tokens have accumulated,
+ * so callers that send in slices are paced to the configured rate with bursts of at most burstBytes.
+ * A rate of 0 means unlimited. The rate can be changed while callers are waiting.
+ */
+public class TokenBucket {
+    private double bytesPerSecond;
+    private final long burstBytes;
+    private double tokens;
+    private long lastRefillNanos;
+    private long consumedBytes = 0;
+
+    public TokenBucket(double bytesPerSecond, long burstBytes) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.burstBytes = burstBytes;
+        this.tokens = burstBytes;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * Blocks until bytes may be sent. Requests larger than the burst are let through once the bucket
+     * is full and drive it negative, which delays the following callers accordingly.
+     */
+    public void acquire(long bytes) throws InterruptedException {
+        synchronized (this) {
+            while (true) {
+                if (bytesPerSecond <= 0) {
+                    consumedBytes += bytes;
+                    return;
+                }
+                refill();
+                double needed = Math.min(bytes, burstBytes);
+                if (tokens >= needed) {
+                    tokens -= bytes;
+                    consumedBytes += bytes;
+                    return;
+                }
+                long waitMs = (long) Math.ceil((needed - tokens) * 1000 / bytesPerSecond);
+                wait(Math.max(1, waitMs));
+            }
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burstBytes, tokens + (now - lastRefillNanos) * bytesPerSecond / 1e9);
+        lastRefillNanos = now;
+    }
+
+    public synchronized void setRate(double bytesPerSecond) {
+        refill();
+        this.bytesPerSecond = bytesPerSecond;
+        notifyAll();
+    }
+
+    public synchronized double getRate() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Total bytes let through so far; callers diff two readings to measure actual throughput.
+     */
+    public synchronized long getConsumedBytes() {
+        return consumedBytes;
+    }
+}
@@ -0,0 +1,39 @@
+package shared.messages;
+
+/*
+ * How many copies of a write must be acknowledged before the client is answered. The coordinator's own
+ * copy always counts, so ONE never waits for replicas.
+ */
+public enum ConsistencyLevel {
+    ONE,
+    QUORUM,
+    ALL;
+
+    /**
+     * @return the number of replica acknowledgements needed on top of the coordinator's own copy
+     */
+    public int requiredReplicaAcks(int replicas) {
+        switch (this) {
+            case ALL:
+                return replicas;
+            case QUORUM:
+                // A majority of the replicas + 1 copies, less the coordinator's own.
+                return (replicas + 1) / 2;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @return the strongest level that replicaAcks acknowledgements out of replicas satisfy
+     */
+    public static ConsistencyLevel achieved(int replicaAcks, int replicas) {
+        if (replicaAcks >= ALL.requiredReplicaAcks(replicas)) {
+            return ALL;
+        }
+        if (replicaAcks >= QUORUM.requiredReplicaAcks(replicas)) {
+            return QUORUM;
+        }
+        return ONE;
+    }
+}
@@ -12,7 +12,12 @@ public class CoordMessage implements Serializable {
         PUT,
         UPDATE,
         DELETE,
-        FORCE_SYNC
+        FORCE_SYNC,
+        BATCH,
+        READ,
+        REPAIR,
+        MERKLE,
+        SYNC_BUCKETS
     }
 
     private ActionType action;
@@ -23,6 +28,19 @@ public class CoordMessage implements Serializable {
 
     public String hashValueofSendingServer;
     public BST nodes = null;
+    // BATCH: log entries to apply in order; the response carries the seq of the last one applied.
+    public List<ReplicationEntry> entries = null;
+    // BATCH in chain replication: the replicas further down the chain, in order, that the batch goes to next.
+    public List<String> chain = null;
+    // READ and REPAIR: hashValueofSendingServer names the coordinator whose range the key belongs to.
+    public long ackedSeq = 0;
+    // DELETE: version of the delete; 0 deletes regardless of the replica's version.
+    public long version = 0;
+    // MERKLE: the coordinator's root; the replica answers with its leaves if the roots differ.
+    public long merkleRoot = 0;
+    public long[] merkleLeaves = null;
+    // SYNC_BUCKETS: the Merkle buckets whose contents data replaces on the replica.
+    public List<Integer> buckets = null;
 
     public CoordMessage(String hashValueofSendingServer) {
         this.action = null;
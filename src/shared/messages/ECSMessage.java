@@ -3,34 +3,61 @@ import java.io.*;
 import java.util.*;
 
 import shared.BST;
+import shared.MetadataDelta;
 
 public class ECSMessage implements Serializable {
 
     public enum ActionType {
         NEW_NODE,
         DELETE, //stop the server (keeps running but returns SERVER_STOPPED to client) returns (success = true)
-        SET_WRITE_LOCK, // sets write lock, returns success = true
+        SET_WRITE_LOCK, // sets write lock on the ranges in "range" (whole server if null), returns success = true
         UNSET_WRITE_LOCK, //unset write lock, return sucess = true
         TRANSFER, // returns all the data, sucess= true , data has the list of KV pairs
+        ABORT_TRANSFER, // refuses the rest of the bulk transfer "transferId" and removes the data in "range", success = true
+        TRANSFER_TAIL, // ends an online TRANSFER of "range", "data" has the keys written since it started
+        APPLY_TAIL, // applies the "data" of a TRANSFER_TAIL, return success = true
         APPEND, // appends the given KV pairs stored in "data" field, return successs = true
         REMOVE, // remove all keys in the range field, and return those KV pairs, stored in data. success = true
-        UPDATE_METADATA, // "nodes" field is filled with metadata, simply update kvserver's "nodes" field and return success = true
+        UPDATE_METADATA, // "nodes" has the metadata, or "delta" the change to it; success = false if the delta does not apply
         HEARTBEAT,
         None,
         INTERNAL_TRANSFER,
-        ELECTION
+        ELECTION,
+        GOSSIP_PING, // "gossip" has the sender's news, returns success = true and the receiver's news
+        GOSSIP_PING_REQ, // pings the server in data on the sender's behalf, success = whether it answered
+        FETCH_METADATA, // returns the change since "epoch" in delta, or the whole metadata in nodes
+        SERVER_DOWN // to the ECS: gossip found the server in data dead, returns success = true
     }
 
     private ActionType action;
     private String[] serverInfo;
     public boolean success = false;
     public List<String> data;
+    // One or more hash ranges, flattened as from, to, from, to, ...
     public String[] range;
     public BST nodes;
+    // UPDATE_METADATA: the change since the epoch the receiver is expected to be at, instead of nodes.
+    public MetadataDelta delta;
     public String internalTransferHash;
     private String errorMessage = null;
     public String ecsHost;
     public int ecsPort;
+    // Cluster-wide cap in MB/s for migrations and replica syncs; 0 means unlimited.
+    public double bandwidthMBps;
+    // TRANSFER: stream the ranges while they stay open to writes, which TRANSFER_TAIL then hands over.
+    public boolean online;
+    // TRANSFER and ABORT_TRANSFER: the bulk transfer that ships the ranges, chosen by the ECS.
+    public String transferId;
+    // Capacity a joining server advertises, relative to 1; 0 means the default.
+    public double weight;
+    // Heartbeat response: ring position -> {reads, writes} the server served since it started.
+    public Map<String, long[]> requestCounts;
+    // Heartbeat response: the server's current load.
+    public LoadStats load;
+    // Gossip: membership changes piggybacked on pings and acks.
+    public List<GossipUpdate> gossip;
+    // Gossip and FETCH_METADATA: the metadata epoch of the sender.
+    public long epoch;
 
     private int senderID;
 
@@ -98,6 +125,23 @@ public class ECSMessage implements Serializable {
 
     public void setRange(String[] range) {this.range = range;}
 
+    public static String[] flattenRanges(List<String[]> ranges) {
+        String[] flat = new String[ranges.size() * 2];
+        for (int i = 0; i < ranges.size(); i++) {
+            flat[2 * i] = ranges.get(i)[0];
+            flat[2 * i + 1] = ranges.get(i)[1];
+        }
+        return flat;
+    }
+
+    public static List<String[]> splitRanges(String[] flat) {
+        List<String[]> ranges = new ArrayList<>();
+        for (int i = 0; i + 1 < flat.length; i += 2) {
+            ranges.add(new String[]{flat[i], flat[i + 1]});
+        }
+        return ranges;
+    }
+
     public int getSenderID() {return this.senderID;}
 
     public void setSenderID(int id) {this.senderID = id;}
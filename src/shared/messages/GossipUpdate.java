@@ -0,0 +1,44 @@
+package shared.messages;
+
+import java.io.Serializable;
+
+/*
+ * What a server believes about one member of the ring, piggybacked on gossip pings and acks. A member
+ * refutes a suspicion about itself by announcing itself alive with a higher incarnation, so for the
+ * same member a higher incarnation wins, and at equal incarnation SUSPECT beats ALIVE and DEAD beats both.
+ */
+public class GossipUpdate implements Serializable {
+    public enum Status {
+        ALIVE,
+        SUSPECT,
+        DEAD
+    }
+
+    public String node;
+    public Status status;
+    public long incarnation;
+
+    public GossipUpdate() {
+    }
+
+    public GossipUpdate(String node, Status status, long incarnation) {
+        this.node = node;
+        this.status = status;
+        this.incarnation = incarnation;
+    }
+
+    /**
+     * @return whether this update replaces the given belief about the same member
+     */
+    public boolean overrides(GossipUpdate current) {
+        if (incarnation != current.incarnation) {
+            return incarnation > current.incarnation;
+        }
+        return status.ordinal() > current.status.ordinal();
+    }
+
+    @Override
+    public String toString() {
+        return node + " " + status + " " + incarnation;
+    }
+}
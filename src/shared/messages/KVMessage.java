@@ -1,6 +1,7 @@
 package shared.messages;
 
 import shared.BST;
+import shared.MetadataDelta;
 
 public interface KVMessage {
 
@@ -52,6 +53,45 @@ public interface KVMessage {
 	public void setMetadata(BST metadata);
 
 	public BST getMetadata();
+
+	/**
+	 * @return on a put request, the consistency level the client asked for; on its response, the level
+	 * 		that was achieved. null if the client did not ask for one.
+	 */
+	public ConsistencyLevel getConsistency();
+
+	public void setConsistency(ConsistencyLevel consistency);
+
+	/**
+	 * @return the number of replicas that acknowledged a write, -1 if not reported.
+	 */
+	public int getReplicaAcks();
+
+	public void setReplicaAcks(int replicaAcks);
+
+	/**
+	 * @return the hybrid logical clock version of the value a get returned or a put wrote,
+	 * 		0 if not reported.
+	 */
+	public long getVersion();
+
+	public void setVersion(long version);
+
+	/**
+	 * @return on a response, the epoch of the metadata of the server that sent it; on a keyrange request,
+	 * 		the epoch of the metadata the client already has. 0 if not reported.
+	 */
+	public long getEpoch();
+
+	public void setEpoch(long epoch);
+
+	/**
+	 * @return on a keyrange response, the change from the epoch the client asked with, instead of the
+	 * 		whole metadata; null if the response carries the whole metadata.
+	 */
+	public MetadataDelta getMetadataDelta();
+
+	public void setMetadataDelta(MetadataDelta delta);
 }
 
 
@@ -1,9 +1,16 @@
 package shared.messages;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import ecs.ECSNode;
 import shared.BST;
+import shared.MetadataDelta;
+import shared.ReadRoute;
 
 public class KVMessageImpl implements KVMessage, Serializable {
 
@@ -12,6 +19,14 @@ public class KVMessageImpl implements KVMessage, Serializable {
     private StatusType status;
     private BST metadata;
     private String errorMessage;
+    private ConsistencyLevel consistency;
+    private int replicaAcks = -1;
+    private long version = 0;
+    private long epoch = 0;
+    private MetadataDelta metadataDelta;
+    // Keyrange delta response: the epoch it starts from and the positions it removes, while parsing
+    private long deltaFrom = -1;
+    private List<String> removedTokens = new ArrayList<>();
 
     public KVMessageImpl() {};
     
@@ -40,6 +55,7 @@ public class KVMessageImpl implements KVMessage, Serializable {
     /*
      * Factory for metadata given string format:
      * <status> <range_from>,<range_to>,<ip:port>;...
+     * A delta (option d) may leave the positions out, and lists removed positions as -<token>.
      */
     public static KVMessageImpl fromKeyRange(String message, StatusType status) throws IllegalArgumentException {
         IllegalArgumentException e = new IllegalArgumentException("keyrange message should follow the format: KEYRANGE_SUCCESS <range_from>,<range_to>,<ip:port>;");
@@ -47,14 +63,34 @@ public class KVMessageImpl implements KVMessage, Serializable {
         kvMessage.status = status;
         kvMessage.metadata = new BST();
         String[] splitMessage = message.split(" ");
-        if (splitMessage.length  != 2) throw e;
+        if (splitMessage.length == 1) {
+            return kvMessage;
+        }
+        if (splitMessage.length != 2) throw e;
         String[] keyranges = splitMessage[1].split(";");
+        Set<String> tokens = new HashSet<>();
         for (String keyrange : keyranges) {
             String[] splitKeyrange = keyrange.split(",");
+            if (keyrange.startsWith("-")) {
+                continue;
+            }
             if (splitKeyrange.length != 3) throw e;
+            tokens.add(splitKeyrange[1]);
+        }
+        for (String keyrange : keyranges) {
+            if (keyrange.startsWith("-")) {
+                kvMessage.removedTokens.add(keyrange.substring(1));
+                continue;
+            }
+            String[] splitKeyrange = keyrange.split(",");
             String[] ipPort = splitKeyrange[2].split(":");
             if (ipPort.length != 2) throw e;
             ECSNode node = new ECSNode(ipPort[0] + ":" + ipPort[1], ipPort[0], Integer.parseInt(ipPort[1]), new String[]{splitKeyrange[0], splitKeyrange[1]});
+            // A server with virtual nodes is listed once per position; its primary token identifies it.
+            String nodeId = BST.token(node.getNodeName(), 0);
+            if (tokens.contains(nodeId)) {
+                node.nodeId = nodeId;
+            }
             kvMessage.metadata.put(splitKeyrange[1], node);
         }
         return kvMessage;
@@ -67,18 +103,58 @@ public class KVMessageImpl implements KVMessage, Serializable {
         StringBuilder sb = new StringBuilder();
 //        sb.append("KEYRANGE_SUCCESS ");
         for (String key : metadata.keys()) {
-            ECSNode node = metadata.bst.get(key);
-            sb.append(node.getNodeHashRange()[0])
-                .append(",")
-                .append(node.getNodeHashRange()[1])
-                .append(",")
-                .append(node.getNodeHost() + ":" + node.getNodePort())
-                .append(";");
+            appendPosition(sb, metadata.bst.get(key));
         }
         sb.deleteCharAt(sb.length() - 1);
         return sb.toString();
     }
 
+    private String getKeyrangeDeltaString() {
+        StringBuilder sb = new StringBuilder();
+        for (ECSNode node : metadataDelta.changed.values()) {
+            appendPosition(sb, node);
+        }
+        for (String token : metadataDelta.removed) {
+            sb.append('-').append(token).append(';');
+        }
+        if (sb.length() > 0) {
+            sb.deleteCharAt(sb.length() - 1);
+        }
+        return sb.toString();
+    }
+
+    private static void appendPosition(StringBuilder sb, ECSNode node) {
+        sb.append(node.getNodeHashRange()[0])
+            .append(",")
+            .append(node.getNodeHashRange()[1])
+            .append(",")
+            .append(node.getNodeHost() + ":" + node.getNodePort())
+            .append(";");
+    }
+
+    /*
+     * Turns a parsed keyrange delta response into its MetadataDelta. Positions in a delta are listed
+     * without the rest of their server, so they are attributed to it by name.
+     */
+    private void toMetadataDelta() {
+        MetadataDelta delta = new MetadataDelta();
+        delta.fromEpoch = deltaFrom;
+        delta.toEpoch = epoch;
+        for (Map.Entry<String, ECSNode> position : metadata.bst.entrySet()) {
+            ECSNode node = position.getValue();
+            node.nodeId = BST.token(node.getNodeName(), 0);
+            delta.changed.put(position.getKey(), node);
+        }
+        delta.removed.addAll(removedTokens);
+        delta.replicationFactor = metadata.getReplicationFactor();
+        delta.replicationMode = metadata.getReplicationMode();
+        delta.virtualNodes = metadata.getVirtualNodes();
+        delta.loadBound = metadata.getLoadBound();
+        delta.readRoutes = metadata.readRoutes;
+        metadataDelta = delta;
+        metadata = null;
+    }
+
     public String getKeyrangeReadString() {
         if (metadata == null) {
             throw new IllegalArgumentException("Cannot build keyrange string: metadata does not exist");
@@ -136,6 +212,36 @@ public class KVMessageImpl implements KVMessage, Serializable {
     @Override
     public BST getMetadata() {return metadata;}
 
+    @Override
+    public ConsistencyLevel getConsistency() {return consistency;}
+
+    @Override
+    public void setConsistency(ConsistencyLevel consistency) {this.consistency = consistency;}
+
+    @Override
+    public int getReplicaAcks() {return replicaAcks;}
+
+    @Override
+    public void setReplicaAcks(int replicaAcks) {this.replicaAcks = replicaAcks;}
+
+    @Override
+    public long getVersion() {return version;}
+
+    @Override
+    public void setVersion(long version) {this.version = version;}
+
+    @Override
+    public long getEpoch() {return epoch;}
+
+    @Override
+    public void setEpoch(long epoch) {this.epoch = epoch;}
+
+    @Override
+    public MetadataDelta getMetadataDelta() {return metadataDelta;}
+
+    @Override
+    public void setMetadataDelta(MetadataDelta delta) {this.metadataDelta = delta;}
+
 
     public static KVMessage fromString(String message) throws IllegalArgumentException {
         if (message == null || message.isEmpty()) {
@@ -144,7 +250,14 @@ public class KVMessageImpl implements KVMessage, Serializable {
         String[] splitMessage = message.split(" ");
 
         try {
-            StatusType status = KVMessage.StatusType.valueOf(splitMessage[0].toUpperCase());
+            // The status may carry options, e.g. "put;c=QUORUM" or "PUT_SUCCESS;c=ONE;acks=1".
+            String[] options = splitMessage[0].split(";");
+            StatusType status = KVMessage.StatusType.valueOf(options[0].toUpperCase());
+            if (options.length > 1) {
+                KVMessage parsed = fromString(options[0] + message.substring(splitMessage[0].length()));
+                parseOptions(parsed, options);
+                return parsed;
+            }
             switch (status) {
                 case GET:
                     return new KVMessageImpl(splitMessage[1], null, status);
@@ -190,45 +303,184 @@ public class KVMessageImpl implements KVMessage, Serializable {
         }
     }
 
+    private static void parseOptions(KVMessage message, String[] options) {
+        for (int i = 1; i < options.length; i++) {
+            String[] option = options[i].split("=", 2);
+            if (option.length != 2) {
+                throw new IllegalArgumentException("Invalid option: " + options[i]);
+            }
+            switch (option[0]) {
+                case "c":
+                    message.setConsistency(ConsistencyLevel.valueOf(option[1].toUpperCase()));
+                    break;
+                case "acks":
+                    message.setReplicaAcks(Integer.parseInt(option[1]));
+                    break;
+                case "v":
+                    message.setVersion(Long.parseLong(option[1]));
+                    break;
+                case "e":
+                    message.setEpoch(Long.parseLong(option[1]));
+                    if (message.getMetadata() != null) {
+                        message.getMetadata().epoch = message.getEpoch();
+                    }
+                    break;
+                case "d":
+                    if (!(message instanceof KVMessageImpl) || message.getMetadata() == null) {
+                        throw new IllegalArgumentException("Metadata delta without metadata: " + options[i]);
+                    }
+                    ((KVMessageImpl) message).deltaFrom = Long.parseLong(option[1]);
+                    break;
+                case "r":
+                    if (message.getMetadata() == null) {
+                        throw new IllegalArgumentException("Replication factor without metadata: " + options[i]);
+                    }
+                    message.getMetadata().setReplicationFactor(Integer.parseInt(option[1]));
+                    break;
+                case "m":
+                    if (message.getMetadata() == null) {
+                        throw new IllegalArgumentException("Replication mode without metadata: " + options[i]);
+                    }
+                    message.getMetadata().setReplicationMode(ReplicationMode.valueOf(option[1].toUpperCase()));
+                    break;
+                case "lb":
+                    if (message.getMetadata() == null) {
+                        throw new IllegalArgumentException("Load bound without metadata: " + options[i]);
+                    }
+                    message.getMetadata().setLoadBound(Double.parseDouble(option[1]));
+                    break;
+                case "rt":
+                    if (message.getMetadata() == null) {
+                        throw new IllegalArgumentException("Read routes without metadata: " + options[i]);
+                    }
+                    for (String route : option[1].split("/")) {
+                        String[] position = route.split(">", 2);
+                        if (position.length != 2) {
+                            throw new IllegalArgumentException("Invalid read route: " + route);
+                        }
+                        message.getMetadata().readRoutes.put(position[0], ReadRoute.fromString(position[1]));
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + options[i]);
+            }
+        }
+        if (message instanceof KVMessageImpl && ((KVMessageImpl) message).deltaFrom >= 0) {
+            ((KVMessageImpl) message).toMetadataDelta();
+        }
+    }
+
+    /*
+     * Appends the consistency options to a get/put request or response status, and the metadata epoch
+     * to a response; requests without a consistency level keep the plain format.
+     */
+    private String withOptions(String statusString) {
+        StringBuilder options = new StringBuilder(statusString);
+        if (consistency != null) {
+            options.append(";c=").append(consistency);
+            if (replicaAcks >= 0) {
+                options.append(";acks=").append(replicaAcks);
+            }
+            if (version > 0) {
+                options.append(";v=").append(version);
+            }
+        }
+        if (epoch > 0) {
+            options.append(";e=").append(epoch);
+        }
+        return options.toString();
+    }
+
+    /*
+     * Appends the replication factor and mode to a metadata status when they differ from the defaults, so
+     * clients spread reads over the right nodes and send strongly consistent chain reads to the tail, and
+     * the load bound and read routes (rt=<position>><route>/...) when bounded-load routing is on. The epoch
+     * of the metadata comes first, and a delta names the epoch it starts from (d).
+     */
+    private String withReplicationOptions(String statusString) {
+        BST settings = metadata;
+        if (metadataDelta != null) {
+            settings = new BST();
+            settings.setReplicationFactor(metadataDelta.replicationFactor);
+            settings.setReplicationMode(metadataDelta.replicationMode);
+            settings.setLoadBound(metadataDelta.loadBound);
+            if (metadataDelta.readRoutes != null) {
+                settings.readRoutes = metadataDelta.readRoutes;
+            }
+            settings.epoch = metadataDelta.toEpoch;
+        }
+        if (settings == null) {
+            return statusString;
+        }
+        StringBuilder options = new StringBuilder(statusString);
+        if (settings.epoch > 0) {
+            options.append(";e=").append(settings.epoch);
+        }
+        if (metadataDelta != null) {
+            options.append(";d=").append(metadataDelta.fromEpoch);
+        }
+        if (settings.getReplicationFactor() != BST.DEFAULT_REPLICATION_FACTOR) {
+            options.append(";r=").append(settings.getReplicationFactor());
+        }
+        if (settings.getReplicationMode() != ReplicationMode.FAN_OUT) {
+            options.append(";m=").append(settings.getReplicationMode());
+        }
+        if (settings.getLoadBound() > 0) {
+            options.append(";lb=").append(settings.getLoadBound());
+        }
+        if (!settings.readRoutes.isEmpty()) {
+            options.append(";rt=");
+            for (Map.Entry<String, ReadRoute> route : settings.readRoutes.entrySet()) {
+                options.append(route.getKey()).append('>').append(route.getValue()).append('/');
+            }
+            options.deleteCharAt(options.length() - 1);
+        }
+        return options.toString();
+    }
+
     @Override
     public String toString() {
         switch (status) {
             case GET:
-                return "get " + key;
+                return withOptions("get") + " " + key;
             case GET_ERROR:
-                return "GET_ERROR " + key;
+                return withOptions("GET_ERROR") + " " + key;
             case GET_SUCCESS:
-                return "GET_SUCCESS " + key + " " + value;
+                return withOptions("GET_SUCCESS") + " " + key + " " + value;
             case PUT:
-                return "put " + key + " " + value;
+                return withOptions("put") + " " + key + " " + value;
             case PUT_SUCCESS:
-                return "PUT_SUCCESS " + key + " " + value;
+                return withOptions("PUT_SUCCESS") + " " + key + " " + value;
             case PUT_UPDATE:
-                return "PUT_UPDATE " + key + " " + value;
+                return withOptions("PUT_UPDATE") + " " + key + " " + value;
             case PUT_ERROR:
-                return "PUT_ERROR " + key + " " + value;
+                return withOptions("PUT_ERROR") + " " + key + " " + value;
             case DELETE_SUCCESS:
-                return "DELETE_SUCCESS " + key;
+                return withOptions("DELETE_SUCCESS") + " " + key;
             case DELETE_ERROR:
-                return "DELETE_ERROR " + key;
+                return withOptions("DELETE_ERROR") + " " + key;
             case SERVER_NOT_RESPONSIBLE:
-                return "SERVER_NOT_RESPONSIBLE";
+                return withOptions("SERVER_NOT_RESPONSIBLE");
             case SERVER_WRITE_LOCK:
-                return "SERVER_WRITE_LOCK";
+                return withOptions("SERVER_WRITE_LOCK");
             case SERVER_STOPPED:
                 return "SERVER_STOPPED";
             case KEYRANGE:
-                return "keyrange";
+                return withOptions("keyrange");
             case KEYRANGE_ERROR:
                 return "KEYRANGE_ERROR";
             case KEYRANGE_SUCCESS:
-                return "KEYRANGE_SUCCESS " + getKeyrangeString();
+                if (metadataDelta != null) {
+                    String positions = getKeyrangeDeltaString();
+                    return withReplicationOptions("KEYRANGE_SUCCESS") + (positions.isEmpty() ? "" : " " + positions);
+                }
+                return withReplicationOptions("KEYRANGE_SUCCESS") + " " + getKeyrangeString();
             case KEYRANGE_READ_SUCCESS:
                 return getKeyrangeReadString();
             case KEYRANGE_READ:
                 return "KEYRANGE_READ";
             case DISCONNECT:
-                return "DISCONNECT " + getKeyrangeString();
+                return withReplicationOptions("DISCONNECT") + " " + getKeyrangeString();
             default:
                 return "FAILED Unexpected status type when serializing";
         }
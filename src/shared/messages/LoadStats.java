@@ -0,0 +1,35 @@
+package shared.messages;
+
+import java.io.Serializable;
+
+/*
+ * Load a server reports with every heartbeat response. Rates and latencies cover the server's recent
+ * window; queueDepth is the number of client requests it was working on when it answered. The replica
+ * lag is that of the replica trailing the server the most: the mutations it has not acknowledged yet,
+ * and the age of the oldest of them.
+ */
+public class LoadStats implements Serializable {
+    public double opsPerSecond;
+    public long bytesStored;
+    // -1 when the server served no requests in the window
+    public double p99Millis = -1;
+    public int queueDepth;
+    public long replicaLagEntries;
+    public long replicaLagMillis;
+
+    public LoadStats() {
+    }
+
+    public LoadStats(double opsPerSecond, long bytesStored, double p99Millis, int queueDepth) {
+        this.opsPerSecond = opsPerSecond;
+        this.bytesStored = bytesStored;
+        this.p99Millis = p99Millis;
+        this.queueDepth = queueDepth;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%.1f ops/s, %d bytes, p99 %.1f ms, %d queued, replicas lag %d entries, %d ms",
+                opsPerSecond, bytesStored, p99Millis, queueDepth, replicaLagEntries, replicaLagMillis);
+    }
+}
@@ -0,0 +1,77 @@
+package shared.messages;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.io.IOException;
+
+/*
+ * Wire envelope for everything sent over a server socket. JSON control messages are prefixed with a
+ * type header ("ECS " or "COORD ") so the receiver can dispatch on the first token instead of trying
+ * each parser in turn. Client KV messages keep their plain text format and carry no header.
+ * A "BULK " header opens a raw byte transfer of storage data (see app_kvServer.BulkTransfer).
+ *
+ * Jackson readers and writers are immutable and thread-safe, so they are built once and shared.
+ */
+public class MessageCodec {
+
+    public enum MessageType {
+        KV,
+        ECS,
+        COORD,
+        BULK
+    }
+
+    public static final String ECS_HEADER = "ECS ";
+    public static final String COORD_HEADER = "COORD ";
+    public static final String BULK_HEADER = "BULK ";
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final ObjectReader ecsReader = mapper.readerFor(ECSMessage.class);
+    private static final ObjectReader coordReader = mapper.readerFor(CoordMessage.class);
+    private static final ObjectWriter writer = mapper.writer();
+
+    public static MessageType typeOf(String line) {
+        if (line.startsWith(ECS_HEADER)) {
+            return MessageType.ECS;
+        }
+        if (line.startsWith(COORD_HEADER)) {
+            return MessageType.COORD;
+        }
+        if (line.startsWith(BULK_HEADER)) {
+            return MessageType.BULK;
+        }
+        return MessageType.KV;
+    }
+
+    public static String encode(ECSMessage message) throws JsonProcessingException {
+        return ECS_HEADER + writer.writeValueAsString(message);
+    }
+
+    public static String encode(CoordMessage message) throws JsonProcessingException {
+        return COORD_HEADER + writer.writeValueAsString(message);
+    }
+
+    public static ECSMessage decodeECSMessage(String line) throws IOException {
+        if (line == null) {
+            return null;
+        }
+        return ecsReader.readValue(stripHeader(line, ECS_HEADER));
+    }
+
+    public static CoordMessage decodeCoordMessage(String line) throws IOException {
+        if (line == null) {
+            return null;
+        }
+        return coordReader.readValue(stripHeader(line, COORD_HEADER));
+    }
+
+    private static String stripHeader(String line, String header) throws IOException {
+        if (!line.startsWith(header)) {
+            throw new IOException("Expected '" + header.trim() + "' message but got: " + line);
+        }
+        return line.substring(header.length());
+    }
+}
@@ -0,0 +1,27 @@
+package shared.messages;
+
+import java.io.Serializable;
+
+/*
+ * One client mutation in a coordinator's replication log. Entries are applied on replicas in seq order.
+ * value is the stored form, which embeds version; a DELETE carries no value, only the version, so a
+ * replica holding a newer write keeps it.
+ */
+public class ReplicationEntry implements Serializable {
+    public long seq;
+    public CoordMessage.ActionType action;
+    public String key;
+    public String value;
+    public long version;
+
+    public ReplicationEntry() {
+    }
+
+    public ReplicationEntry(long seq, CoordMessage.ActionType action, String key, String value, long version) {
+        this.seq = seq;
+        this.action = action;
+        this.key = key;
+        this.value = value;
+        this.version = version;
+    }
+}
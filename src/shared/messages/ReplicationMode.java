@@ -0,0 +1,12 @@
+package shared.messages;
+
+/*
+ * How a coordinator ships writes to the replicas of its range. FAN_OUT sends every write to each replica
+ * itself. CHAIN sends it to the first successor only; each replica applies it and forwards it to the
+ * next, and the tail's acknowledgement travels back up the chain, so the coordinator's outbound traffic
+ * no longer grows with the replication factor and an acknowledged write is on every replica.
+ */
+public enum ReplicationMode {
+    FAN_OUT,
+    CHAIN
+}
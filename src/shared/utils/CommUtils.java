@@ -1,10 +1,10 @@
 package shared.utils;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.log4j.Logger;
 import shared.messages.CoordMessage;
 import shared.messages.ECSMessage;
+import shared.messages.MessageCodec;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
@@ -12,10 +12,8 @@ import java.io.IOException;
 public class CommUtils {
     private static final Logger logger = Logger.getRootLogger();
     public static void sendECSMessage(ECSMessage message, BufferedWriter output) {
-        ObjectMapper mapper = new ObjectMapper();
         try {
-            String jsonString = mapper.writeValueAsString(message);
-            output.write(jsonString);
+            output.write(MessageCodec.encode(message));
             output.newLine();
             output.flush();
         } catch (JsonProcessingException e) {
@@ -26,10 +24,8 @@ public class CommUtils {
     }
 
     public static void sendCoordMessage(CoordMessage message, BufferedWriter output) {
-        ObjectMapper mapper = new ObjectMapper();
         try {
-            String jsonString = mapper.writeValueAsString(message);
-            output.write(jsonString);
+            output.write(MessageCodec.encode(message));
             output.newLine();
             output.flush();
         } catch (JsonProcessingException e) {
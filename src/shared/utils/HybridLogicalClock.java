@@ -0,0 +1,29 @@
+package shared.utils;
+
+/*
+ * Hybrid logical clock packed into a long: the upper bits are wall-clock milliseconds and the low
+ * LOGICAL_BITS count events within the same millisecond. Timestamps stay close to real time, never go
+ * backwards on one node, and after observe() every later timestamp is greater than the one seen, so
+ * comparing two versions orders causally related writes across nodes even with clock skew.
+ */
+public class HybridLogicalClock {
+    public static final int LOGICAL_BITS = 16;
+
+    private long last = 0;
+
+    public synchronized long now() {
+        last = Math.max(last + 1, System.currentTimeMillis() << LOGICAL_BITS);
+        return last;
+    }
+
+    /**
+     * Moves the clock past a timestamp received from another node.
+     */
+    public synchronized void observe(long timestamp) {
+        last = Math.max(last, timestamp);
+    }
+
+    public static long physicalMillis(long timestamp) {
+        return timestamp >>> LOGICAL_BITS;
+    }
+}
@@ -0,0 +1,46 @@
+package shared.utils;
+
+import java.util.Arrays;
+
+/*
+ * Keeps the most recent latency samples in a ring buffer and answers percentile queries over the
+ * samples that fall inside a time window.
+ */
+public class LatencyTracker {
+    private final long[] timestamps;
+    private final double[] latencies;
+    private int next = 0;
+    private int size = 0;
+
+    public LatencyTracker(int capacity) {
+        this.timestamps = new long[capacity];
+        this.latencies = new double[capacity];
+    }
+
+    public synchronized void record(double latencyMs) {
+        timestamps[next] = System.currentTimeMillis();
+        latencies[next] = latencyMs;
+        next = (next + 1) % latencies.length;
+        size = Math.min(size + 1, latencies.length);
+    }
+
+    /**
+     * @return the given percentile (0-100) of the samples from the last windowMs, or -1 if there are none
+     */
+    public synchronized double percentile(double percentile, long windowMs) {
+        long since = System.currentTimeMillis() - windowMs;
+        double[] window = new double[size];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (timestamps[i] >= since) {
+                window[count++] = latencies[i];
+            }
+        }
+        if (count == 0) {
+            return -1;
+        }
+        Arrays.sort(window, 0, count);
+        int index = (int) Math.ceil(percentile / 100 * count) - 1;
+        return window[Math.max(0, Math.min(count - 1, index))];
+    }
+}
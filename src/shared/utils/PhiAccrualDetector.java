@@ -0,0 +1,114 @@
+package shared.utils;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Phi-accrual failure detector: instead of calling a node dead after a missed heartbeat, it rates how
+ * unlikely the silence since the node's last heartbeat is, given the intervals between its recent
+ * heartbeats. phi = -log10(P(interval > silence)), assuming normally distributed intervals, so phi 8
+ * means the node would be this late once in 10^8 heartbeats. Jittery nodes thus get more slack than
+ * punctual ones.
+ *
+ * A node is tracked from its first heartbeat, or from when it is first watched, with an estimated
+ * interval, so a node that never answers is suspected too.
+ */
+public class PhiAccrualDetector {
+    private static final int MAX_SAMPLES = 100;
+
+    private final long expectedIntervalMs;
+    private final long minStdDevMs;
+    // Silence on top of the usual interval that is not held against a node, e.g. a GC pause.
+    private final long acceptablePauseMs;
+    private final Map<String, History> histories = new HashMap<>();
+
+    private static class History {
+        final ArrayDeque<Long> intervals = new ArrayDeque<>();
+        long last;
+        double sum;
+        double squares;
+
+        History(long now, long expectedIntervalMs) {
+            last = now;
+            // Seed with the expected interval and a wide spread, so one sample does not make phi spike.
+            add(expectedIntervalMs - expectedIntervalMs / 4);
+            add(expectedIntervalMs + expectedIntervalMs / 4);
+        }
+
+        void add(long interval) {
+            if (intervals.size() == MAX_SAMPLES) {
+                long dropped = intervals.removeFirst();
+                sum -= dropped;
+                squares -= (double) dropped * dropped;
+            }
+            intervals.addLast(interval);
+            sum += interval;
+            squares += (double) interval * interval;
+        }
+
+        double mean() {
+            return sum / intervals.size();
+        }
+
+        double stdDev() {
+            double mean = mean();
+            return Math.sqrt(Math.max(0, squares / intervals.size() - mean * mean));
+        }
+    }
+
+    public PhiAccrualDetector(long expectedIntervalMs, long minStdDevMs, long acceptablePauseMs) {
+        this.expectedIntervalMs = expectedIntervalMs;
+        this.minStdDevMs = minStdDevMs;
+        this.acceptablePauseMs = acceptablePauseMs;
+    }
+
+    /**
+     * Starts tracking the node as if it had just sent a heartbeat, unless it is tracked already.
+     */
+    public synchronized void watch(String node, long now) {
+        histories.computeIfAbsent(node, k -> new History(now, expectedIntervalMs));
+    }
+
+    public synchronized void heartbeat(String node, long now) {
+        History history = histories.get(node);
+        if (history == null) {
+            histories.put(node, new History(now, expectedIntervalMs));
+        } else if (now > history.last) {
+            history.add(now - history.last);
+            history.last = now;
+        }
+    }
+
+    /**
+     * @return the suspicion level of the node, 0 if it is not tracked
+     */
+    public synchronized double phi(String node, long now) {
+        History history = histories.get(node);
+        if (history == null) {
+            return 0;
+        }
+        double silence = now - history.last;
+        double mean = history.mean() + acceptablePauseMs;
+        double stdDev = Math.max(minStdDevMs, history.stdDev());
+        // Logistic approximation of the normal tail, accurate enough and defined far into the tail.
+        double y = (silence - mean) / stdDev;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (silence > mean) {
+            return -Math.log10(e / (1 + e));
+        }
+        return -Math.log10(1 - 1 / (1 + e));
+    }
+
+    public synchronized void forget(String node) {
+        histories.remove(node);
+    }
+
+    /**
+     * Stops tracking the nodes not in the given set.
+     */
+    public synchronized void retain(Set<String> nodes) {
+        histories.keySet().retainAll(nodes);
+    }
+}
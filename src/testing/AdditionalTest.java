@@ -2,12 +2,14 @@ package testing;
 
 import client.KVStore;
 import junit.framework.Assert;
+import shared.BST;
 import shared.Heartbeat;
 import app_kvServer.KVServer;
 import logger.LogSetup;
 import org.apache.log4j.Level;
 import org.junit.Test;
 import app_kvECS.ECSClient;
+import ecs.ECSNode;
 import junit.framework.TestCase;
 import shared.messages.CoordMessage;
 import shared.messages.KVMessage;
@@ -540,6 +542,180 @@ public class AdditionalTest extends TestCase {
         }
     }
 
+    @Test
+    public void testRangeWriteLockOnlyRejectsKeysInRange() throws Exception {
+        new LogSetup("test3.log", Level.ALL);
+        ECSClient ecs = new ECSClient("localhost", 5140);
+        KVServer server = new KVServer("localhost", 5140, "localhost", 5760, 0, "None", System.getProperty("user.dir"));
+        Thread.sleep(2000);
+        String lower = HashUtils.getHash("alpha").compareTo(HashUtils.getHash("beta")) < 0 ? "alpha" : "beta";
+        String upper = lower.equals("alpha") ? "beta" : "alpha";
+        String[] range = {"00000000000000000000000000000000", HashUtils.getHash(lower)};
+        server.lockRanges(range);
+
+        KVMessage query = new KVMessageImpl();
+        query.setStatus(KVMessage.StatusType.PUT);
+        query.setKey(lower);
+        query.setValue("v");
+        assertEquals(KVMessage.StatusType.SERVER_WRITE_LOCK, server.handlePutMessage(query).getStatus());
+        query.setKey(upper);
+        assertEquals(KVMessage.StatusType.PUT_SUCCESS, server.handlePutMessage(query).getStatus());
+
+        assertTrue(server.unlockRanges(range));
+        assertFalse(server.unlockRanges(range));
+        query.setKey(lower);
+        assertEquals(KVMessage.StatusType.PUT_SUCCESS, server.handlePutMessage(query).getStatus());
+        server.close();
+        ecs.close();
+    }
+
+    @Test
+    public void testOnlineTransferCatchesUpWritesMadeDuringTheStream() throws Exception {
+        new LogSetup("test3.log", Level.ALL);
+        ECSClient ecs = new ECSClient("localhost", 5141);
+        ECSClient otherEcs = new ECSClient("localhost", 5142);
+        KVServer source = new KVServer("localhost", 5141, "localhost", 5761, 0, "None", System.getProperty("user.dir"));
+        KVServer target = new KVServer("localhost", 5142, "localhost", 5762, 0, "None", System.getProperty("user.dir"));
+        Thread.sleep(2000);
+        source.putKV("streamed", "v1");
+        source.putKV("deleted", "v1");
+        String[] range = {"00000000000000000000000000000000", "ffffffffffffffffffffffffffffffff"};
+        target.lockRanges(range);
+        assertTrue(source.transferDataOnline("localhost", 5762, range));
+
+        KVMessage query = new KVMessageImpl();
+        query.setStatus(KVMessage.StatusType.PUT);
+        query.setKey("streamed");
+        query.setValue("v2");
+        source.handlePutMessage(query);
+        query.setKey("deleted");
+        query.setValue("null");
+        source.handlePutMessage(query);
+        assertEquals("v1", target.getKV("deleted"));
+
+        List<String> tail = source.endTail(range);
+        assertEquals(2, tail.size());
+        assertTrue(source.endTail(range).isEmpty());
+        assertTrue(target.applyTail(tail));
+        assertEquals("v2", target.getKV("streamed"));
+        assertNull(target.getKV("deleted"));
+        source.close();
+        target.close();
+        ecs.close();
+        otherEcs.close();
+    }
+
+    @Test
+    public void testAbortedTransferIsRefusedAndDropped() throws Exception {
+        new LogSetup("test3.log", Level.ALL);
+        ECSClient ecs = new ECSClient("localhost", 5143);
+        ECSClient otherEcs = new ECSClient("localhost", 5144);
+        KVServer source = new KVServer("localhost", 5143, "localhost", 5763, 0, "None", System.getProperty("user.dir"));
+        KVServer target = new KVServer("localhost", 5144, "localhost", 5764, 0, "None", System.getProperty("user.dir"));
+        Thread.sleep(2000);
+        source.putKV("moved", "v1");
+        String[] range = {"00000000000000000000000000000000", "ffffffffffffffffffffffffffffffff"};
+        target.lockRanges(range);
+        assertTrue(source.transferData("localhost", 5764, range, "first"));
+        assertEquals("v1", target.getKV("moved"));
+
+        // Aborting drops what arrived, and the rest of the transfer is refused even if it comes late.
+        target.abortTransfer("first");
+        assertTrue(target.removeData(range));
+        assertNull(target.getKV("moved"));
+        target.abortTransfer("second");
+        assertFalse(source.transferData("localhost", 5764, range, "second"));
+        assertNull(target.getKV("moved"));
+        assertEquals("v1", source.getKV("moved"));
+        source.close();
+        target.close();
+        ecs.close();
+        otherEcs.close();
+    }
+
+    @Test
+    public void testAbortedOnlineTransferLeavesNoTail() throws Exception {
+        new LogSetup("test3.log", Level.ALL);
+        ECSClient ecs = new ECSClient("localhost", 5145);
+        ECSClient otherEcs = new ECSClient("localhost", 5146);
+        KVServer source = new KVServer("localhost", 5145, "localhost", 5765, 0, "None", System.getProperty("user.dir"));
+        KVServer target = new KVServer("localhost", 5146, "localhost", 5766, 0, "None", System.getProperty("user.dir"));
+        Thread.sleep(2000);
+        source.putKV("moved", "v1");
+        String[] range = {"00000000000000000000000000000000", "ffffffffffffffffffffffffffffffff"};
+        KVMessage query = new KVMessageImpl();
+        query.setStatus(KVMessage.StatusType.PUT);
+        query.setKey("moved");
+        query.setValue("v2");
+
+        // The target refuses the stream because it does not hold the ranges' write lock.
+        assertFalse(source.transferDataOnline("localhost", 5766, range));
+        assertFalse(source.isTailing());
+
+        // The stream gets through, but no cutover follows.
+        source.setTailExpiryMs(500);
+        target.lockRanges(range);
+        assertTrue(source.transferDataOnline("localhost", 5766, range));
+        source.handlePutMessage(query);
+        assertTrue(source.isTailing());
+        Thread.sleep(700);
+        assertFalse(source.isTailing());
+        assertTrue(source.endTail(range).isEmpty());
+        source.close();
+        target.close();
+        ecs.close();
+        otherEcs.close();
+    }
+
+    @Test
+    public void testReplicaLagIsReportedUntilTheReplicaAcks() throws Exception {
+        TestCluster cluster = new TestCluster(5147, 5767, 3);
+        List<KVServer> servers = cluster.servers;
+        KVServer coordinator = servers.get(0);
+        KVServer replica = null;
+        for (KVServer server : servers) {
+            if (server.replicationsStored.containsKey(coordinator.getHashValue())) {
+                replica = server;
+            }
+        }
+        assertNotNull(replica);
+        String key = "lag";
+        for (int i = 0; !coordinator.metadata.coordinatorOf(HashUtils.getHash(key)).equals(coordinator.getHashValue()); i++) {
+            key = "lag" + i;
+        }
+        assertEquals(0, coordinator.getLoadStats().replicaLagEntries);
+
+        KVMessage query = new KVMessageImpl();
+        query.setStatus(KVMessage.StatusType.PUT);
+        query.setKey(key);
+        query.setValue("v1");
+        // Holding the replica's storage keeps it from applying, and so from acknowledging, the put.
+        synchronized (replica.replicationsStored.get(coordinator.getHashValue())) {
+            assertEquals(KVMessage.StatusType.PUT_SUCCESS, coordinator.handlePutMessage(query).getStatus());
+            Thread.sleep(300);
+            assertEquals(1, coordinator.getLoadStats().replicaLagEntries);
+            assertTrue(coordinator.getLoadStats().replicaLagMillis >= 300);
+        }
+        assertTrue(TestCluster.await(() -> coordinator.getLoadStats().replicaLagEntries == 0, 5000));
+        assertEquals(0, coordinator.getLoadStats().replicaLagMillis);
+        cluster.close();
+    }
+
+    @Test
+    public void testFailedReweightLeavesTheRingAsItWas() throws Exception {
+        TestCluster cluster = new TestCluster(5156, 5799, 3);
+        KVServer grown = cluster.get(2);
+        String name = "localhost:" + grown.getPort();
+        assertEquals(1, cluster.ecs.nodes.tokensOf(name).size());
+        // The new position cannot take its ranges, so it must not be on the ring the servers get.
+        grown.kill();
+        cluster.ecs.setWeight(name, 2);
+        assertEquals(1, cluster.ecs.nodes.tokensOf(name).size());
+        assertEquals(1.0, ((ECSNode) cluster.ecs.nodes.get(BST.token(name, 0))).weight);
+        assertEquals(1, cluster.get(0).metadata.tokensOf(name).size());
+        cluster.close();
+    }
+
     @Test
     public void testStartAndStop() throws InterruptedException {
         try {
@@ -6,17 +6,30 @@ import logger.LogSetup;
 import org.apache.log4j.Level;
 import org.junit.Test;
 import app_kvECS.ECSClient;
+import app_kvECS.Rebalancer;
 import junit.framework.TestCase;
 import org.junit.experimental.theories.Theories;
 import shared.BST;
+import shared.MetadataDelta;
+import shared.ReadRoute;
 import shared.messages.CoordMessage;
+import shared.messages.ECSMessage;
 import shared.messages.KVMessage;
 import shared.messages.KVMessageImpl;
+import shared.messages.LoadStats;
+import shared.messages.MessageCodec;
+import shared.messages.ReplicationMode;
 import shared.utils.HashUtils;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
 public class BSTTests extends TestCase {
 
@@ -71,4 +84,255 @@ public class BSTTests extends TestCase {
         assertEquals(replicatedRangeBst.get("1").getNodeHashRange()[0], "1");
         assertEquals(replicatedRangeBst.get("1").getNodeHashRange()[1], "1");
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testReplicationFactorShapesReplicaSets() {
+        BST bst = new BST();
+        for (int i = 1; i <= 7; i++) {
+            String prev = String.valueOf(i == 1 ? 7 : i - 1);
+            bst.put(String.valueOf(i), new ECSNode("", "localhost", 5000 + i, new String[] {prev, String.valueOf(i)}));
+        }
+
+        bst.setReplicationFactor(1);
+        assertEquals(Arrays.asList("3"), bst.getResponsibleNodes("25"));
+        assertEquals(bst.createReplicatedRange().get("3").getNodeHashRange()[0], "2");
+
+        bst.setReplicationFactor(5);
+        assertEquals(Arrays.asList("1", "2", "3", "4", "5"), bst.getResponsibleNodes("05"));
+        assertEquals(Arrays.asList("7", "6", "5", "4"), bst.predecessors("1", bst.replicaCount()));
+        assertEquals(bst.createReplicatedRange().get("1").getNodeHashRange()[0], "3");
+
+        bst.setReplicationFactor(10);
+        assertEquals(7, bst.getResponsibleNodes("25").size());
+        assertEquals(6, bst.successors("4", bst.replicaCount()).size());
+
+        try {
+            bst.setReplicationFactor(0);
+            fail("Replication factor 0 should be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testVirtualNodesSpreadRangesAndReplicasPerServer() {
+        BST bst = new BST();
+        bst.setReplicationFactor(2);
+        List<String> first = bst.addServer("localhost", 5000, 8, 1);
+        bst.addServer("localhost", 5001, 8, 2);
+        List<String> third = bst.addServer("localhost", 5002, 8, 3);
+        assertEquals(24, bst.size());
+        assertEquals(3, bst.serverCount());
+        assertEquals(BST.token("localhost:5000", 0), first.get(0));
+        assertEquals(1, bst.replicaCount());
+
+        String keyHash = HashUtils.getHash("some key");
+        List<String> responsible = bst.getResponsibleNodes(keyHash);
+        assertEquals(2, responsible.size());
+        assertEquals(bst.getNodeFromKey(keyHash).getNodeName(), bst.get(responsible.get(0)).getNodeName());
+        assertFalse(responsible.get(0).equals(responsible.get(1)));
+
+        // A joining server takes its positions from several servers, and a leaving one hands them to several.
+        Map<String, List<String[]>> taken = bst.rangesTakenBy(third);
+        assertFalse(taken.containsKey(third.get(0)));
+        int movedRanges = 0;
+        for (List<String[]> ranges : taken.values()) {
+            movedRanges += ranges.size();
+        }
+        assertTrue(taken.size() > 1);
+        assertTrue(movedRanges <= third.size());
+        Map<String, List<String[]>> handedOff = bst.rangesHandedOffBy("localhost:5000");
+        assertTrue(handedOff.size() > 1);
+        assertFalse(handedOff.containsKey(first.get(0)));
+
+        KVMessage parsed = KVMessageImpl.fromString(new KVMessageImpl(bst, KVMessage.StatusType.KEYRANGE_SUCCESS).toString());
+        assertEquals(3, parsed.getMetadata().serverCount());
+        assertEquals(responsible, parsed.getMetadata().getResponsibleNodes(keyHash));
+
+        assertEquals(new HashSet<>(first), new HashSet<>(bst.removeServer("localhost:5000")));
+        assertEquals(2, bst.serverCount());
+        assertEquals(bst.predecessor(third.get(0)), bst.get(third.get(0)).getNodeHashRange()[0]);
+    }
+
+    @Test
+    public void testWeightScalesPositionsAndReweightingMovesOnlyThatServer() {
+        BST bst = new BST();
+        bst.setVirtualNodes(4);
+        assertEquals(8, bst.tokensForWeight(2));
+        assertEquals(1, bst.tokensForWeight(0.01));
+        bst.addServer("localhost", 5000, bst.tokensForWeight(1), 1);
+        bst.addServer("localhost", 5001, bst.tokensForWeight(1), 2);
+        String heavy = BST.token("localhost:5001", 0);
+
+        List<String> added = bst.addServer("localhost", 5001, bst.tokensForWeight(2), 2);
+        assertEquals(4, added.size());
+        assertEquals(8, bst.tokensOf("localhost:5001").size());
+        for (String source : bst.rangesTakenBy(added).keySet()) {
+            assertEquals(BST.token("localhost:5000", 0), source);
+        }
+
+        List<String> extra = bst.tokensFrom("localhost:5001", 4);
+        assertEquals(new HashSet<>(added), new HashSet<>(extra));
+        Map<String, List<String[]>> handedOff = bst.rangesHandedOffBy(extra);
+        assertFalse(handedOff.containsKey(heavy));
+        for (String token : extra) {
+            bst.delete(token);
+        }
+        bst.updateRanges();
+        assertEquals(4, bst.tokensOf("localhost:5001").size());
+        assertEquals(8, bst.size());
+    }
+
+    @Test
+    public void testBatchJoinMovesEachRangeStraightToItsNewOwner() {
+        BST bst = new BST();
+        bst.setVirtualNodes(4);
+        Set<String> old = new HashSet<>();
+        for (int port = 5000; port < 5002; port++) {
+            old.add(bst.addServer("localhost", port, 4, port).get(0));
+        }
+        List<String> added = new ArrayList<>();
+        for (int port = 5002; port < 5012; port++) {
+            added.addAll(bst.addServer("localhost", port, 4, port));
+        }
+
+        Set<String> ends = new HashSet<>();
+        for (Map.Entry<String, Map<String, List<String[]>>> source : bst.rangesTakenByServers(added).entrySet()) {
+            assertTrue(old.contains(source.getKey()));
+            for (Map.Entry<String, List<String[]>> target : source.getValue().entrySet()) {
+                assertFalse(old.contains(target.getKey()));
+                for (String[] range : target.getValue()) {
+                    assertEquals(target.getKey(), bst.nodeIdOf(range[1]));
+                    assertTrue(added.contains(range[1]));
+                    assertTrue(ends.add(range[1]));
+                }
+            }
+        }
+        assertFalse(ends.isEmpty());
+    }
+
+    @Test
+    public void testMetadataDeltaCarriesOnlyChangedPositions() throws IOException {
+        BST ring = new BST();
+        ring.setVirtualNodes(4);
+        for (int port = 5000; port < 5008; port++) {
+            ring.addServer("localhost", port, 4, port);
+        }
+        ring.epoch = 7;
+        BST previous = ring.copy();
+        ring.addServer("localhost", 5008, 4, 5008);
+        ring.epoch++;
+
+        MetadataDelta delta = ring.deltaFrom(previous);
+        assertEquals(7, delta.fromEpoch);
+        assertTrue(delta.removed.isEmpty());
+        assertTrue(delta.changed.size() < ring.size());
+        assertNull(delta.readRoutes);
+
+        ECSMessage update = new ECSMessage(ECSMessage.ActionType.UPDATE_METADATA, true, null, null, null);
+        update.delta = delta;
+        previous.apply(MessageCodec.decodeECSMessage(MessageCodec.encode(update)).delta);
+        assertEquals(8, previous.epoch);
+        assertEquals(ring.print(), previous.print());
+        assertEquals(9, previous.serverCount());
+        try {
+            previous.apply(delta);
+            fail("A delta must only apply to the epoch it was made against");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testBoundedLoadSpillsHotPositionToItsReplicas() {
+        BST bst = new BST();
+        String a = bst.addServer("localhost", 5000, 1, 1).get(0);
+        String b = bst.addServer("localhost", 5001, 1, 2).get(0);
+        String c = bst.addServer("localhost", 5002, 1, 3).get(0);
+        Map<String, long[]> requests = new HashMap<>();
+        requests.put(a, new long[]{100, 0});
+        requests.put(b, new long[]{0, 10});
+        requests.put(c, new long[]{10, 0});
+
+        // Average 40, so with epsilon 0.25 nobody serves more than 50.
+        bst.setLoadBound(0.25);
+        TreeMap<String, ReadRoute> routes = bst.planReadRoutes(requests);
+        ReadRoute hot = routes.get(a);
+        assertEquals(Arrays.asList(a, bst.successors(a, 1).get(0)), hot.nodeIds);
+        assertEquals(Arrays.asList(0.5, 0.5), hot.shares);
+        assertFalse(bst.withinLoadBound(requests));
+        bst.readRoutes = routes;
+        assertTrue(bst.withinLoadBound(requests));
+        for (int i = 0; i < 50; i++) {
+            String keyHash = HashUtils.getHash("key" + i);
+            String reader = BST.token(bst.getReadNodeForKey(keyHash).getNodeName(), 0);
+            if (routes.containsKey(bst.positionOf(keyHash))) {
+                assertEquals(routes.get(bst.positionOf(keyHash)).pick(keyHash), reader);
+            } else {
+                assertEquals(bst.coordinatorOf(keyHash), reader);
+            }
+        }
+
+        KVMessage parsed = KVMessageImpl.fromString(new KVMessageImpl(bst, KVMessage.StatusType.KEYRANGE_SUCCESS).toString());
+        assertEquals(routes, parsed.getMetadata().readRoutes);
+        assertEquals(0.25, parsed.getMetadata().getLoadBound());
+
+        bst.setLoadBound(10);
+        assertTrue(bst.planReadRoutes(requests).isEmpty());
+    }
+
+    @Test
+    public void testRebalancerMovesLoadOnlyFromServersThatStayHot() {
+        BST bst = new BST();
+        List<String> hot = bst.addServer("localhost", 5000, 4, 1);
+        String warm = bst.addServer("localhost", 5001, 4, 2).get(0);
+        String cool = bst.addServer("localhost", 5002, 4, 3).get(0);
+        Map<String, LoadStats> stats = new HashMap<>();
+        stats.put(hot.get(0), new LoadStats(300, 0, 5, 0));
+        stats.put(warm, new LoadStats(60, 0, 5, 0));
+        stats.put(cool, new LoadStats(30, 0, 5, 0));
+        Map<String, long[]> requests = new HashMap<>();
+        for (int i = 0; i < hot.size(); i++) {
+            requests.put(hot.get(i), new long[]{100 * (i + 1), 0});
+        }
+
+        Rebalancer rebalancer = new Rebalancer();
+        assertNull(rebalancer.plan(bst, stats, requests, 100000));
+        assertNull(rebalancer.plan(bst, stats, requests, 103000));
+        Rebalancer.Step step = rebalancer.plan(bst, stats, requests, 106000);
+        assertNotNull(step);
+        assertEquals(hot.get(0), step.from);
+        assertEquals(cool, step.to);
+        assertFalse(step.token.equals(hot.get(0)) && step.splitAt == null);
+        // The next move has to wait for the server to stay hot again and for the rate limit.
+        assertNull(rebalancer.plan(bst, stats, requests, 109000));
+
+        String position = step.splitAt != null ? step.splitAt : step.token;
+        bst.assignPosition(position, step.to);
+        assertEquals(cool, bst.nodeIdOf(position));
+        assertEquals(bst.predecessor(position), bst.get(position).getNodeHashRange()[0]);
+        assertEquals("80000000000000000000000000000000",
+                BST.midpoint("00000000000000000000000000000000", "00000000000000000000000000000000"));
+        assertEquals("ffffffffffffffffffffffffffffffff",
+                BST.midpoint("fffffffffffffffffffffffffffffffe", "00000000000000000000000000000000"));
+    }
+
+    @Test
+    public void testReplicationFactorReachesClients() {
+        BST bst = new BST();
+        bst.put("2", new ECSNode("", "localhost", 5000, new String[] {"1", "2"}));
+        bst.put("1", new ECSNode("", "localhost", 5001, new String[] {"2", "1"}));
+        KVMessageImpl keyrange = new KVMessageImpl(bst, KVMessage.StatusType.KEYRANGE_SUCCESS);
+        assertTrue(keyrange.toString().startsWith("KEYRANGE_SUCCESS "));
+
+        bst.setReplicationFactor(1);
+        KVMessage parsed = KVMessageImpl.fromString(keyrange.toString());
+        assertEquals(KVMessage.StatusType.KEYRANGE_SUCCESS, parsed.getStatus());
+        assertEquals(1, parsed.getMetadata().getReplicationFactor());
+        assertEquals(ReplicationMode.FAN_OUT, parsed.getMetadata().getReplicationMode());
+        assertEquals(2, parsed.getMetadata().size());
+
+        bst.setReplicationMode(ReplicationMode.CHAIN);
+        parsed = KVMessageImpl.fromString(keyrange.toString());
+        assertEquals(ReplicationMode.CHAIN, parsed.getMetadata().getReplicationMode());
+    }
+}
@@ -0,0 +1,197 @@
+package testing;
+
+import app_kvServer.BulkTransfer;
+import app_kvServer.KVStorage;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+public class BulkTransferTests extends TestCase {
+
+    /*
+     * Relays bulk transfer sessions to a server and records what passes through: the header and the
+     * chunk seqs the sender sends, and the receiver's READY line. The first session is cut just before
+     * the receiver's ACK of chunk cutAtAck reaches the sender, after the receiver applied that chunk.
+     */
+    private static class CuttingProxy implements AutoCloseable {
+        final ServerSocket serverSocket;
+        final List<String> headers = Collections.synchronizedList(new ArrayList<>());
+        final List<String> readies = Collections.synchronizedList(new ArrayList<>());
+        final List<Integer> chunks = Collections.synchronizedList(new ArrayList<>());
+        private final int targetPort;
+        private final int cutAtAck;
+
+        CuttingProxy(int port, int targetPort, int cutAtAck) throws IOException {
+            this.targetPort = targetPort;
+            this.cutAtAck = cutAtAck;
+            serverSocket = new ServerSocket();
+            serverSocket.setReuseAddress(true);
+            serverSocket.bind(new InetSocketAddress("localhost", port));
+            Thread acceptor = new Thread(() -> {
+                boolean first = true;
+                while (!serverSocket.isClosed()) {
+                    try {
+                        Socket sender = serverSocket.accept();
+                        Socket receiver = new Socket("localhost", targetPort);
+                        boolean cut = first;
+                        first = false;
+                        Thread upstream = new Thread(() -> relayChunks(sender, receiver));
+                        upstream.setDaemon(true);
+                        upstream.start();
+                        Thread downstream = new Thread(() -> relayReplies(receiver, sender, cut));
+                        downstream.setDaemon(true);
+                        downstream.start();
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        private void relayChunks(Socket sender, Socket receiver) {
+            try {
+                InputStream in = sender.getInputStream();
+                OutputStream out = receiver.getOutputStream();
+                String line = BulkTransfer.readLine(in);
+                headers.add(line);
+                while (line != null) {
+                    out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+                    if (line.startsWith(BulkTransfer.CHUNK + " ")) {
+                        String[] parts = line.split(" ");
+                        chunks.add(Integer.parseInt(parts[1]));
+                        byte[] payload = new byte[Integer.parseInt(parts[2])];
+                        int read = 0;
+                        while (read < payload.length) {
+                            int n = in.read(payload, read, payload.length - read);
+                            if (n == -1) {
+                                return;
+                            }
+                            read += n;
+                        }
+                        out.write(payload);
+                    }
+                    out.flush();
+                    line = BulkTransfer.readLine(in);
+                }
+            } catch (IOException e) {
+                // cut, or the session ended
+            }
+        }
+
+        private void relayReplies(Socket receiver, Socket sender, boolean cut) {
+            try (Socket r = receiver;
+                 Socket s = sender;
+                 BufferedReader in = new BufferedReader(new InputStreamReader(r.getInputStream(), StandardCharsets.UTF_8))) {
+                OutputStream out = s.getOutputStream();
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith(BulkTransfer.READY + " ")) {
+                        readies.add(line);
+                    }
+                    if (cut && line.equals(BulkTransfer.ACK + " " + cutAtAck)) {
+                        return;
+                    }
+                    out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // cut, or the session ended
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+
+    @Test
+    public void testBulkHeaderRoundTrip() throws IOException {
+        BulkTransfer.Header header = BulkTransfer.Header.parse(
+                new BulkTransfer.Header("abc-123", "ffee", BulkTransfer.Codec.PLAIN, 7).toString());
+        assertEquals("abc-123", header.transferId);
+        assertEquals("ffee", header.target);
+        assertEquals(BulkTransfer.Codec.PLAIN, header.codec);
+        assertEquals(7, header.chunkCount);
+        try {
+            BulkTransfer.Header.parse("BULK abc - PLAIN lots");
+            fail("Expected a malformed header to be rejected");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testChunksEndOnLineBreaks() throws IOException {
+        Path segment = Files.createTempFile("chunks", ".txt");
+        try {
+            Files.write(segment, Arrays.asList("k1 aaaa", "k2 bb", "k3 cccccc", "k4 d"));
+            List<Long> boundaries = BulkTransfer.chunkBoundaries(segment, 10);
+            assertEquals(Arrays.asList(0L, 14L, 24L, 29L), boundaries);
+
+            assertEquals(Arrays.asList(0L, 29L), BulkTransfer.chunkBoundaries(segment, 1 << 20));
+
+            Files.write(segment, new byte[0]);
+            assertEquals(Arrays.asList(0L), BulkTransfer.chunkBoundaries(segment, 10));
+        } finally {
+            Files.delete(segment);
+        }
+    }
+
+    @Test
+    public void testCutTransferResumesAfterTheLastAppliedChunk() throws Exception {
+        Path segment = Files.createTempFile("segment", ".txt");
+        Path replica = Files.createTempFile("replica", ".txt");
+        try (TestCluster cluster = new TestCluster(5158, 5806, 1);
+             CuttingProxy proxy = new CuttingProxy(5807, 5806, 2)) {
+            List<String> lines = new ArrayList<>();
+            for (int i = 0; i < 40; i++) {
+                lines.add("key" + i + " value " + i);
+            }
+            Files.write(segment, lines);
+            int chunkCount = BulkTransfer.chunkBoundaries(segment, 64).size() - 1;
+            assertTrue(chunkCount > 4);
+            String coordinator = "0123456789abcdef0123456789abcdef";
+            KVStorage target = new KVStorage(replica.toString());
+            cluster.get(0).replicationsStored.put(coordinator, target);
+
+            String transferId = UUID.randomUUID().toString();
+            assertTrue(BulkTransfer.send(transferId, "localhost", 5807, segment, BulkTransfer.Codec.PLAIN,
+                    coordinator, null, 64));
+
+            // The receiver had applied chunks 0 to 2 when the first session was cut, the ACK of 2 included.
+            assertEquals(2, proxy.headers.size());
+            for (String header : proxy.headers) {
+                assertEquals(transferId, BulkTransfer.Header.parse(header).transferId);
+            }
+            assertEquals(Arrays.asList(BulkTransfer.READY + " 0", BulkTransfer.READY + " 3"), proxy.readies);
+            List<Integer> expected = new ArrayList<>();
+            for (int seq = 0; seq < chunkCount; seq++) {
+                expected.add(seq);
+            }
+            assertEquals(expected, proxy.chunks);
+            assertEquals(lines, target.getAllData());
+        } finally {
+            Files.deleteIfExists(segment);
+            Files.deleteIfExists(replica);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package testing;
+
+import app_kvServer.Gossip;
+import app_kvServer.KVServer;
+import junit.framework.TestCase;
+import org.junit.Test;
+import shared.messages.ECSMessage;
+import shared.messages.GossipUpdate;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class GossipTests extends TestCase {
+
+    private static String name(KVServer server) {
+        return "localhost:" + server.getPort();
+    }
+
+    private static GossipUpdate.Status statusOf(KVServer observer, KVServer member) {
+        GossipUpdate update = observer.getGossip().getMember(name(member));
+        return update == null ? null : update.status;
+    }
+
+    private static boolean awaitStatus(KVServer observer, KVServer member, GossipUpdate.Status status, long timeoutMs)
+            throws InterruptedException {
+        return TestCluster.await(() -> statusOf(observer, member) == status, timeoutMs);
+    }
+
+    @Test
+    public void testUnreachableMemberIsSuspectedThenConfirmed() throws Exception {
+        try (TestCluster cluster = new TestCluster(5150, 5780, 4)) {
+            List<KVServer> servers = cluster.servers;
+            // Not the server that heartbeats the ECS, so only gossip finds out about the crash.
+            KVServer crashed = servers.stream().min(Comparator.comparingInt(KVServer::getPriorityNum)).get();
+            KVServer observer = servers.get(crashed == servers.get(0) ? 1 : 0);
+            assertEquals(GossipUpdate.Status.ALIVE, statusOf(observer, crashed));
+            crashed.kill();
+
+            // Probed within a round over the 3 members, then dead after 2 * log2(4 + 1) periods. The ECS
+            // confirms the report and takes the server off the ring, after which it is no member at all.
+            assertTrue(awaitStatus(observer, crashed, GossipUpdate.Status.SUSPECT, 8000));
+            TestCluster.await(() -> statusOf(observer, crashed) != GossipUpdate.Status.SUSPECT, 10000);
+            GossipUpdate.Status confirmed = statusOf(observer, crashed);
+            assertTrue(String.valueOf(confirmed), confirmed == GossipUpdate.Status.DEAD || confirmed == null);
+        }
+    }
+
+    @Test
+    public void testMemberAnsweringIndirectlyIsNotSuspected() throws Exception {
+        try (TestCluster cluster = new TestCluster(5151, 5784, 4)) {
+            List<KVServer> servers = cluster.servers;
+            KVServer observer = servers.get(0);
+            KVServer cutOff = servers.get(3);
+            AtomicInteger directPings = new AtomicInteger();
+            Gossip.Transport network = observer.peerPool::sendECSMessage;
+            // Only the link from observer to cutOff is down; the other members still reach it.
+            observer.getGossip().setTransport((host, port, message, timeoutMs) -> {
+                if (port == cutOff.getPort()) {
+                    directPings.incrementAndGet();
+                    throw new IOException("link down");
+                }
+                return network.send(host, port, message, timeoutMs);
+            });
+
+            long end = System.currentTimeMillis() + 9000;
+            while (System.currentTimeMillis() < end) {
+                assertEquals(GossipUpdate.Status.ALIVE, statusOf(observer, cutOff));
+                for (KVServer other : servers.subList(1, 3)) {
+                    assertEquals(GossipUpdate.Status.ALIVE, statusOf(other, cutOff));
+                }
+                Thread.sleep(50);
+            }
+            assertTrue(directPings.get() > 0);
+        }
+    }
+
+    @Test
+    public void testRefutationClearsSuspicion() throws Exception {
+        try (TestCluster cluster = new TestCluster(5152, 5788, 4)) {
+            KVServer observer = cluster.get(0);
+            KVServer suspected = cluster.get(3);
+            ECSMessage rumour = new ECSMessage(ECSMessage.ActionType.GOSSIP_PING, true, null, null, null);
+            rumour.gossip = Collections.singletonList(
+                    new GossipUpdate(name(suspected), GossipUpdate.Status.SUSPECT, 0));
+            observer.getGossip().onPing(rumour);
+            assertEquals(GossipUpdate.Status.SUSPECT, statusOf(observer, suspected));
+
+            // The rumour spreads to the suspected member, which announces itself alive with a higher incarnation.
+            assertTrue(awaitStatus(observer, suspected, GossipUpdate.Status.ALIVE, 5000));
+            assertEquals(1, observer.getGossip().getMember(name(suspected)).incarnation);
+            Thread.sleep(7000);
+            assertEquals(GossipUpdate.Status.ALIVE, statusOf(observer, suspected));
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package testing;
+
+import app_kvServer.BulkTransfer;
+import app_kvServer.VersionedValue;
+import ecs.ECSNode;
+import junit.framework.TestCase;
+import org.junit.Test;
+import shared.MetadataDelta;
+import shared.messages.ConsistencyLevel;
+import shared.messages.CoordMessage;
+import shared.messages.ECSMessage;
+import shared.messages.GossipUpdate;
+import shared.messages.KVMessage;
+import shared.messages.KVMessageImpl;
+import shared.messages.MessageCodec;
+import shared.messages.ReplicationEntry;
+import shared.messages.ReplicationMode;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class MessageCodecTests extends TestCase {
+
+    @Test
+    public void testTypeOfDispatchesOnHeader() throws IOException {
+        ECSMessage ecsMessage = new ECSMessage(ECSMessage.ActionType.HEARTBEAT, true, null, null, null);
+        CoordMessage coordMessage = new CoordMessage("abc");
+
+        assertEquals(MessageCodec.MessageType.ECS, MessageCodec.typeOf(MessageCodec.encode(ecsMessage)));
+        assertEquals(MessageCodec.MessageType.COORD, MessageCodec.typeOf(MessageCodec.encode(coordMessage)));
+        assertEquals(MessageCodec.MessageType.KV, MessageCodec.typeOf("put key value"));
+        assertEquals(MessageCodec.MessageType.KV, MessageCodec.typeOf("keyrange"));
+        assertEquals(MessageCodec.MessageType.BULK,
+                MessageCodec.typeOf(new BulkTransfer.Header("id", "-", BulkTransfer.Codec.GZIP, 3).toString()));
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        ECSMessage ecsMessage = new ECSMessage(ECSMessage.ActionType.TRANSFER, true, null, new String[] {"1", "2"}, null);
+        ecsMessage.setServerInfo("localhost", 5000);
+        ECSMessage decodedEcs = MessageCodec.decodeECSMessage(MessageCodec.encode(ecsMessage));
+        assertEquals(ECSMessage.ActionType.TRANSFER, decodedEcs.getAction());
+        assertEquals("2", decodedEcs.getRange()[1]);
+        assertEquals("5000", decodedEcs.getServerInfo()[1]);
+
+        ECSMessage heartbeat = new ECSMessage(ECSMessage.ActionType.HEARTBEAT, true, null, null, null);
+        heartbeat.requestCounts = Collections.singletonMap("ab", new long[] {3, 4});
+        ECSMessage decodedHeartbeat = MessageCodec.decodeECSMessage(MessageCodec.encode(heartbeat));
+        assertEquals(4, decodedHeartbeat.requestCounts.get("ab")[1]);
+
+        CoordMessage coordMessage = new CoordMessage("abc");
+        coordMessage.setAction(CoordMessage.ActionType.FORCE_SYNC);
+        coordMessage.setData(Arrays.asList("k1 v1", "k2 v2"));
+        CoordMessage decodedCoord = MessageCodec.decodeCoordMessage(MessageCodec.encode(coordMessage));
+        assertEquals(CoordMessage.ActionType.FORCE_SYNC, decodedCoord.getAction());
+        assertEquals("abc", decodedCoord.hashValueofSendingServer);
+        assertEquals(2, decodedCoord.getData().size());
+    }
+
+    @Test
+    public void testGossipRoundTripAndPrecedence() throws IOException {
+        ECSMessage ping = new ECSMessage(ECSMessage.ActionType.GOSSIP_PING, true, null, null, null);
+        ping.gossip = Collections.singletonList(new GossipUpdate("localhost:5001", GossipUpdate.Status.SUSPECT, 2));
+        ping.epoch = 7;
+        ECSMessage decoded = MessageCodec.decodeECSMessage(MessageCodec.encode(ping));
+        assertEquals(ECSMessage.ActionType.GOSSIP_PING, decoded.getAction());
+        assertEquals(7, decoded.epoch);
+        assertEquals("localhost:5001", decoded.gossip.get(0).node);
+        assertEquals(GossipUpdate.Status.SUSPECT, decoded.gossip.get(0).status);
+
+        GossipUpdate alive = new GossipUpdate("n", GossipUpdate.Status.ALIVE, 2);
+        GossipUpdate suspect = new GossipUpdate("n", GossipUpdate.Status.SUSPECT, 2);
+        GossipUpdate dead = new GossipUpdate("n", GossipUpdate.Status.DEAD, 2);
+        GossipUpdate refuted = new GossipUpdate("n", GossipUpdate.Status.ALIVE, 3);
+        assertTrue(suspect.overrides(alive));
+        assertFalse(alive.overrides(suspect));
+        assertTrue(dead.overrides(suspect));
+        assertTrue(refuted.overrides(suspect));
+        assertTrue(refuted.overrides(dead));
+        assertFalse(suspect.overrides(refuted));
+    }
+
+    @Test
+    public void testReplicationBatchRoundTrip() throws IOException {
+        CoordMessage batch = new CoordMessage("abc");
+        batch.setAction(CoordMessage.ActionType.BATCH);
+        batch.entries = Arrays.asList(
+                new ReplicationEntry(41, CoordMessage.ActionType.PUT, "k1", "v 1", 7),
+                new ReplicationEntry(42, CoordMessage.ActionType.DELETE, "k2", null, 8));
+
+        CoordMessage decoded = MessageCodec.decodeCoordMessage(MessageCodec.encode(batch));
+        assertEquals(CoordMessage.ActionType.BATCH, decoded.getAction());
+        assertEquals(2, decoded.entries.size());
+        assertEquals(41, decoded.entries.get(0).seq);
+        assertEquals("v 1", decoded.entries.get(0).value);
+        assertEquals(CoordMessage.ActionType.DELETE, decoded.entries.get(1).action);
+        assertNull(decoded.entries.get(1).value);
+        assertEquals(8, decoded.entries.get(1).version);
+    }
+
+    @Test
+    public void testPutConsistencyOptions() {
+        KVMessage request = KVMessageImpl.fromString("put;c=quorum key some value");
+        assertEquals(KVMessage.StatusType.PUT, request.getStatus());
+        assertEquals("some value", request.getValue());
+        assertEquals(ConsistencyLevel.QUORUM, request.getConsistency());
+        assertEquals("put key v", new KVMessageImpl("key", "v", KVMessage.StatusType.PUT).toString());
+
+        KVMessage response = new KVMessageImpl("key", "v", KVMessage.StatusType.PUT_SUCCESS);
+        response.setConsistency(ConsistencyLevel.ONE);
+        response.setReplicaAcks(0);
+        KVMessage decoded = KVMessageImpl.fromString(response.toString());
+        assertEquals(KVMessage.StatusType.PUT_SUCCESS, decoded.getStatus());
+        assertEquals(ConsistencyLevel.ONE, decoded.getConsistency());
+        assertEquals(0, decoded.getReplicaAcks());
+
+        assertEquals(1, ConsistencyLevel.QUORUM.requiredReplicaAcks(2));
+        assertEquals(ConsistencyLevel.QUORUM, ConsistencyLevel.achieved(1, 2));
+        assertEquals(ConsistencyLevel.ALL, ConsistencyLevel.achieved(0, 0));
+    }
+
+    @Test
+    public void testKeyrangeDeltaRoundTrip() {
+        KVMessage request = new KVMessageImpl(KVMessage.StatusType.KEYRANGE);
+        request.setEpoch(4);
+        KVMessage decodedRequest = KVMessageImpl.fromString(request.toString());
+        assertEquals(KVMessage.StatusType.KEYRANGE, decodedRequest.getStatus());
+        assertEquals(4, decodedRequest.getEpoch());
+
+        MetadataDelta delta = new MetadataDelta();
+        delta.fromEpoch = 4;
+        delta.toEpoch = 6;
+        delta.changed.put("80", new ECSNode("localhost:5001", "localhost", 5001, new String[]{"40", "80"}));
+        delta.removed.add("c0");
+        delta.replicationFactor = 2;
+        delta.replicationMode = ReplicationMode.FAN_OUT;
+        KVMessage response = new KVMessageImpl(KVMessage.StatusType.KEYRANGE_SUCCESS);
+        response.setMetadataDelta(delta);
+
+        KVMessage decoded = KVMessageImpl.fromString(response.toString());
+        assertEquals(KVMessage.StatusType.KEYRANGE_SUCCESS, decoded.getStatus());
+        assertEquals(6, decoded.getEpoch());
+        MetadataDelta decodedDelta = decoded.getMetadataDelta();
+        assertEquals(4, decodedDelta.fromEpoch);
+        assertEquals(6, decodedDelta.toEpoch);
+        assertEquals(Collections.singletonList("c0"), decodedDelta.removed);
+        assertEquals("localhost:5001", decodedDelta.changed.get("80").getNodeName());
+        assertEquals(2, decodedDelta.replicationFactor);
+
+        KVMessage upToDate = new KVMessageImpl(KVMessage.StatusType.KEYRANGE_SUCCESS);
+        MetadataDelta empty = new MetadataDelta();
+        empty.fromEpoch = 6;
+        empty.toEpoch = 6;
+        empty.replicationFactor = 2;
+        empty.replicationMode = ReplicationMode.FAN_OUT;
+        upToDate.setMetadataDelta(empty);
+        assertTrue(KVMessageImpl.fromString(upToDate.toString()).getMetadataDelta().isEmpty());
+
+        KVMessage get = new KVMessageImpl("key", "v", KVMessage.StatusType.GET_SUCCESS);
+        get.setEpoch(6);
+        assertEquals(6, KVMessageImpl.fromString(get.toString()).getEpoch());
+    }
+
+    @Test
+    public void testVersionedValueEncoding() {
+        VersionedValue stored = VersionedValue.decode(VersionedValue.encode(42, "a value\twith tab"));
+        assertEquals(42, stored.version);
+        assertEquals("a value\twith tab", stored.value);
+
+        VersionedValue legacy = VersionedValue.decode("plain value");
+        assertEquals(0, legacy.version);
+        assertEquals("plain value", legacy.value);
+        assertEquals(0, VersionedValue.decode("not\ta version").version);
+        assertNull(VersionedValue.decode(null));
+        assertTrue(stored.isNewerThan(legacy));
+        assertTrue(legacy.isNewerThan(null));
+    }
+
+    @Test
+    public void testDecodeRejectsWrongType() throws IOException {
+        String coordLine = MessageCodec.encode(new CoordMessage("abc"));
+        try {
+            MessageCodec.decodeECSMessage(coordLine);
+            fail("Expected decoding a CoordMessage as an ECSMessage to fail");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
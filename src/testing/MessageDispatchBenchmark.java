@@ -0,0 +1,95 @@
+package testing;
+
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import shared.messages.CoordMessage;
+import shared.messages.ECSMessage;
+import shared.messages.KVMessage;
+import shared.messages.KVMessageImpl;
+import shared.messages.MessageCodec;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Measures the per-message cost of dispatching an incoming line to its handler type, comparing the old
+ * try-parse cascade (KVMessage -> ECSMessage -> CoordMessage, fresh ObjectMapper per attempt) against
+ * the typed envelope in MessageCodec. Run with: java -cp bin:libs/* testing.MessageDispatchBenchmark
+ */
+public class MessageDispatchBenchmark {
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURED_ROUNDS = 10;
+    private static final int OPS_PER_ROUND = 5000;
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) throws Exception {
+        List<String> data = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            data.add("key" + i + " value" + i);
+        }
+        ECSMessage ecsMessage = new ECSMessage(ECSMessage.ActionType.HEARTBEAT, true, null, null, null);
+        CoordMessage coordMessage = new CoordMessage("24afda34e3f74e54b61a8e4cbe921650");
+        coordMessage.setAction(CoordMessage.ActionType.FORCE_SYNC);
+        coordMessage.setData(data);
+
+        String kvLine = "put someKey someValue";
+        String ecsJson = new ObjectMapper().writeValueAsString(ecsMessage);
+        String coordJson = new ObjectMapper().writeValueAsString(coordMessage);
+
+        System.out.println(String.format("%-12s %18s %18s", "message", "cascade ns/op", "envelope ns/op"));
+        report("KVMessage", kvLine, kvLine);
+        report("ECSMessage", ecsJson, MessageCodec.encode(ecsMessage));
+        report("CoordMessage", coordJson, MessageCodec.encode(coordMessage));
+    }
+
+    private static void report(String name, String legacyLine, String envelopeLine) throws Exception {
+        double cascade = measure(legacyLine, true);
+        double envelope = measure(envelopeLine, false);
+        System.out.println(String.format("%-12s %18.1f %18.1f", name, cascade, envelope));
+    }
+
+    private static double measure(String line, boolean cascade) throws Exception {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            runRound(line, cascade);
+        }
+        long total = 0;
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            total += runRound(line, cascade);
+        }
+        return (double) total / (MEASURED_ROUNDS * (long) OPS_PER_ROUND);
+    }
+
+    private static long runRound(String line, boolean cascade) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < OPS_PER_ROUND; i++) {
+            sink = cascade ? cascadeDispatch(line) : envelopeDispatch(line);
+        }
+        return System.nanoTime() - start;
+    }
+
+    // Mirrors the dispatch ClientConnection.receiveMessage used before the typed envelope.
+    private static Object cascadeDispatch(String msg) throws Exception {
+        try {
+            return KVMessageImpl.fromString(msg);
+        } catch (IllegalArgumentException kvEx) {
+            try {
+                return new ObjectMapper().readValue(msg, ECSMessage.class);
+            } catch (JsonMappingException ecsEx) {
+                return new ObjectMapper().readValue(msg, CoordMessage.class);
+            }
+        }
+    }
+
+    private static Object envelopeDispatch(String msg) throws Exception {
+        switch (MessageCodec.typeOf(msg)) {
+            case ECS:
+                return MessageCodec.decodeECSMessage(msg);
+            case COORD:
+                return MessageCodec.decodeCoordMessage(msg);
+            default:
+                KVMessage message = KVMessageImpl.fromString(msg);
+                return message;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package testing;
+
+import app_kvECS.ECSClient;
+import app_kvServer.KVServer;
+import junit.framework.TestCase;
+import logger.LogSetup;
+import org.apache.log4j.Level;
+import org.junit.Test;
+import shared.comm.PeerConnection;
+import shared.comm.PeerConnectionPool;
+import shared.messages.CoordMessage;
+import shared.messages.ECSMessage;
+import shared.messages.MessageCodec;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PeerConnectionTests extends TestCase {
+
+    /*
+     * Answers every line with "re:<line>" in order, like ClientConnection does. A line "sleep <ms> ..."
+     * is answered after that delay.
+     */
+    private static class EchoPeer implements AutoCloseable {
+        final ServerSocket serverSocket;
+        final AtomicInteger accepted = new AtomicInteger();
+
+        EchoPeer(int port) throws IOException {
+            serverSocket = new ServerSocket();
+            serverSocket.setReuseAddress(true);
+            serverSocket.bind(new InetSocketAddress("localhost", port));
+            Thread acceptor = new Thread(() -> {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        Socket socket = serverSocket.accept();
+                        accepted.incrementAndGet();
+                        Thread handler = new Thread(() -> answer(socket));
+                        handler.setDaemon(true);
+                        handler.start();
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int port() {
+            return serverSocket.getLocalPort();
+        }
+
+        private void answer(Socket socket) {
+            try (Socket s = socket;
+                 BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+                 BufferedWriter out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith("sleep ")) {
+                        Thread.sleep(Long.parseLong(line.split(" ")[1]));
+                    }
+                    out.write("re:" + line);
+                    out.newLine();
+                    out.flush();
+                }
+            } catch (IOException | InterruptedException | NumberFormatException e) {
+                // connection dropped
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+
+    @Test
+    public void testPipelinedResponsesArriveInOrder() throws Exception {
+        try (EchoPeer peer = new EchoPeer(0)) {
+            PeerConnection connection = new PeerConnection("localhost", peer.port(), 1000);
+            List<CompletableFuture<String>> responses = new ArrayList<>();
+            // The first request is slow, so the others queue up behind it on the same connection.
+            responses.add(connection.send("sleep 200 first"));
+            for (int i = 0; i < 50; i++) {
+                responses.add(connection.send("m" + i));
+            }
+            assertEquals(51, connection.getPendingCount());
+            assertEquals("re:sleep 200 first", responses.get(0).get(2, TimeUnit.SECONDS));
+            for (int i = 0; i < 50; i++) {
+                assertEquals("re:m" + i, responses.get(i + 1).get(2, TimeUnit.SECONDS));
+            }
+            assertEquals(1, peer.accepted.get());
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testTimedOutRequestDoesNotTakeTheNextResponse() throws Exception {
+        PeerConnectionPool pool = new PeerConnectionPool("test-timeout");
+        try (EchoPeer peer = new EchoPeer(0)) {
+            try {
+                pool.request("localhost", peer.port(), "sleep 500 slow", 100);
+                fail("request should have timed out");
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains("timed out"));
+            }
+            // The late answer to the slow request must not be taken as the answer to this one.
+            assertEquals("re:fast", pool.request("localhost", peer.port(), "fast", 2000));
+            Thread.sleep(600);
+            assertEquals("re:again", pool.request("localhost", peer.port(), "again", 2000));
+            assertEquals(2, peer.accepted.get());
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testReconnectsAfterBackoff() throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        PeerConnectionPool pool = new PeerConnectionPool("test-backoff");
+        try {
+            try {
+                pool.request("localhost", port, "down", 500);
+                fail("peer is not listening");
+            } catch (IOException e) {
+                // connect refused
+            }
+            try {
+                pool.request("localhost", port, "down", 500);
+                fail("peer should be backing off");
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("unreachable"));
+            }
+            try (EchoPeer peer = new EchoPeer(port)) {
+                Thread.sleep(300);
+                assertEquals("re:up", pool.request("localhost", port, "up", 2000));
+                assertEquals(1, peer.accepted.get());
+            }
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testUndecodableRequestStillGetsAReply() throws Exception {
+        new LogSetup("test3.log", Level.ALL);
+        ECSClient ecs = new ECSClient("localhost", 5155);
+        KVServer server = new KVServer("localhost", 5155, "localhost", 5798, 0, "None", System.getProperty("user.dir"));
+        PeerConnectionPool pool = new PeerConnectionPool("test-undecodable");
+        try {
+            Thread.sleep(2000);
+            ECSMessage failure = MessageCodec.decodeECSMessage(
+                    pool.request("localhost", 5798, "ECS {\"action\":\"NO_SUCH_ACTION\"}", 2000));
+            assertFalse(failure.success);
+            CoordMessage coordFailure = MessageCodec.decodeCoordMessage(
+                    pool.request("localhost", 5798, "COORD {\"action\":\"NO_SUCH_ACTION\"}", 2000));
+            assertFalse(coordFailure.isSuccess);
+
+            // The next request on the same connection gets its own reply.
+            ECSMessage heartbeat = pool.sendECSMessage("localhost", 5798,
+                    new ECSMessage(ECSMessage.ActionType.HEARTBEAT, true, null, null, null), 2000);
+            assertEquals(ECSMessage.ActionType.HEARTBEAT, heartbeat.getAction());
+            assertTrue(heartbeat.success);
+        } finally {
+            pool.close();
+            server.close();
+            ecs.close();
+        }
+    }
+}
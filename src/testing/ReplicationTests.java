@@ -0,0 +1,203 @@
+package testing;
+
+import app_kvServer.KVServer;
+import app_kvServer.KVStorage;
+import app_kvServer.VersionedValue;
+import junit.framework.TestCase;
+import org.junit.Test;
+import shared.messages.ConsistencyLevel;
+import shared.messages.KVMessage;
+import shared.messages.KVMessageImpl;
+import shared.messages.ReplicationMode;
+import shared.utils.HashUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+public class ReplicationTests extends TestCase {
+
+    /**
+     * @return the replica storages that hold the coordinator's data, one per replica
+     */
+    private static List<KVStorage> replicasOf(TestCluster cluster, KVServer coordinator) {
+        List<KVStorage> replicas = new ArrayList<>();
+        for (KVServer server : cluster.servers) {
+            KVStorage storage = server.replicationsStored.get(coordinator.getHashValue());
+            if (server != coordinator && storage != null) {
+                replicas.add(storage);
+            }
+        }
+        return replicas;
+    }
+
+    private static String keyOwnedBy(KVServer coordinator, String prefix) {
+        String key = prefix;
+        for (int i = 0; !coordinator.metadata.coordinatorOf(HashUtils.getHash(key)).equals(coordinator.getHashValue()); i++) {
+            key = prefix + i;
+        }
+        return key;
+    }
+
+    private static KVMessage put(KVServer server, String key, String value) {
+        return put(server, key, value, null);
+    }
+
+    private static KVMessage put(KVServer server, String key, String value, ConsistencyLevel consistency) {
+        KVMessage query = new KVMessageImpl();
+        query.setStatus(KVMessage.StatusType.PUT);
+        query.setKey(key);
+        query.setValue(value);
+        query.setConsistency(consistency);
+        return server.handlePutMessage(query);
+    }
+
+    private static String valueOf(KVStorage storage, String key) {
+        VersionedValue stored = VersionedValue.decode(storage.getKV(key));
+        return stored == null ? null : stored.value;
+    }
+
+    /**
+     * Polls until every replica holds value (null for absent) under key, or timeoutMs passed.
+     */
+    private static boolean awaitReplicas(List<KVStorage> replicas, String key, String value, long timeoutMs)
+            throws InterruptedException {
+        return TestCluster.await(() -> replicas.stream().allMatch(replica -> Objects.equals(value, valueOf(replica, key))),
+                timeoutMs);
+    }
+
+    @Test
+    public void testMutationsReachReplicasOneKeyAtATime() throws Exception {
+        try (TestCluster cluster = new TestCluster(5153, 5792, 3)) {
+            KVServer coordinator = cluster.get(0);
+            List<KVStorage> replicas = replicasOf(cluster, coordinator);
+            assertEquals(2, replicas.size());
+            // A full sync replaces the replica's data with the coordinator's, which would drop this key.
+            for (KVStorage replica : replicas) {
+                replica.putKV("unsynced", VersionedValue.encode(1, "replica only"));
+            }
+            String key = keyOwnedBy(coordinator, "incremental");
+            String other = keyOwnedBy(coordinator, "deleted");
+
+            assertEquals(KVMessage.StatusType.PUT_SUCCESS, put(coordinator, key, "v1").getStatus());
+            assertEquals(KVMessage.StatusType.PUT_SUCCESS, put(coordinator, other, "gone soon").getStatus());
+            assertTrue(awaitReplicas(replicas, key, "v1", 5000));
+            assertTrue(awaitReplicas(replicas, other, "gone soon", 5000));
+
+            assertEquals(KVMessage.StatusType.PUT_UPDATE, put(coordinator, key, "v2").getStatus());
+            assertTrue(awaitReplicas(replicas, key, "v2", 5000));
+
+            assertEquals(KVMessage.StatusType.DELETE_SUCCESS, put(coordinator, other, "null").getStatus());
+            assertTrue(awaitReplicas(replicas, other, null, 5000));
+
+            for (KVStorage replica : replicas) {
+                assertEquals("replica only", valueOf(replica, "unsynced"));
+            }
+        }
+    }
+
+    @Test
+    public void testReplicaIgnoresMutationsOlderThanItsCopy() throws Exception {
+        try (TestCluster cluster = new TestCluster(5154, 5795, 3)) {
+            KVServer coordinator = cluster.get(0);
+            KVServer replica = null;
+            for (KVServer server : cluster.servers) {
+                if (server != coordinator && server.replicationsStored.containsKey(coordinator.getHashValue())) {
+                    replica = server;
+                }
+            }
+            assertNotNull(replica);
+            String hash = coordinator.getHashValue();
+            KVStorage storage = replica.replicationsStored.get(hash);
+
+            // Retransmitted or reordered entries arrive after newer ones; the newest version stays.
+            replica.putKVForReplica("k", VersionedValue.encode(20, "new"), hash);
+            replica.putKVForReplica("k", VersionedValue.encode(10, "old"), hash);
+            assertEquals("new", valueOf(storage, "k"));
+            replica.deleteKVForReplica("k", 15, hash);
+            assertEquals("new", valueOf(storage, "k"));
+            replica.putKVForReplica("k", VersionedValue.encode(20, "new"), hash);
+            assertEquals("new", valueOf(storage, "k"));
+
+            replica.deleteKVForReplica("k", 25, hash);
+            assertNull(storage.getKV("k"));
+            replica.deleteKVForReplica("k", 25, hash);
+            assertNull(storage.getKV("k"));
+        }
+    }
+
+    @Test
+    public void testChainAcknowledgesOnlyWhatTheTailApplied() throws Exception {
+        try (TestCluster cluster = new TestCluster(5157, 5802, 4)) {
+            cluster.ecs.setReplicationFactor(4);
+            cluster.ecs.setReplicationMode(ReplicationMode.CHAIN);
+            KVServer coordinator = cluster.get(0);
+            assertTrue(TestCluster.await(() -> coordinator.replicationsOfThisServer.size() == 3
+                    && coordinator.metadata.getReplicationMode() == ReplicationMode.CHAIN
+                    && replicasOf(cluster, coordinator).size() == 3, 5000));
+            String hash = coordinator.getHashValue();
+            List<KVStorage> chain = new ArrayList<>();
+            KVServer tail = null;
+            for (String replicaHash : coordinator.replicationsOfThisServer) {
+                for (KVServer server : cluster.servers) {
+                    if (server.getHashValue().equals(replicaHash)) {
+                        chain.add(server.replicationsStored.get(hash));
+                        tail = server;
+                    }
+                }
+            }
+            KVStorage head = chain.get(0);
+            KVStorage middle = chain.get(1);
+            KVStorage last = chain.get(2);
+            // The new factor and mode have the coordinator reconcile the whole chain before it sends batches.
+            String settled = keyOwnedBy(coordinator, "settled");
+            assertTrue(TestCluster.await(
+                    () -> put(coordinator, settled, "v1", ConsistencyLevel.ALL).getReplicaAcks() == 3, 15000));
+
+            // A write the tail has not applied is not acknowledged, however far up the chain it got.
+            String held = keyOwnedBy(coordinator, "held");
+            synchronized (last) {
+                KVMessage response = put(coordinator, held, "v1", ConsistencyLevel.ALL);
+                assertEquals(KVMessage.StatusType.PUT_SUCCESS, response.getStatus());
+                assertEquals(0, response.getReplicaAcks());
+                assertEquals(ConsistencyLevel.ONE, response.getConsistency());
+                assertTrue(awaitReplicas(chain.subList(0, 2), held, "v1", 5000));
+                assertNull(valueOf(last, held));
+            }
+            assertTrue(awaitReplicas(chain, held, "v1", 5000));
+            assertTrue(TestCluster.await(() -> coordinator.getLoadStats().replicaLagEntries == 0, 5000));
+
+            String acked = keyOwnedBy(coordinator, "acked");
+            KVMessage response = put(coordinator, acked, "v1", ConsistencyLevel.QUORUM);
+            assertEquals(ConsistencyLevel.ALL, response.getConsistency());
+            assertEquals(3, response.getReplicaAcks());
+            assertEquals("v1", valueOf(last, acked));
+
+            // The tail answers strong reads from its own copy, which a quorum read would have outvoted.
+            last.updateKV(acked, VersionedValue.encode(1, "tail copy"));
+            KVMessage get = new KVMessageImpl();
+            get.setStatus(KVMessage.StatusType.GET);
+            get.setKey(acked);
+            get.setConsistency(ConsistencyLevel.QUORUM);
+            KVMessage read = tail.handleGetMessage(get);
+            assertEquals(KVMessage.StatusType.GET_SUCCESS, read.getStatus());
+            assertEquals("tail copy", read.getValue());
+            assertEquals(ConsistencyLevel.QUORUM, read.getConsistency());
+
+            // The head cannot get past a stuck middle replica, so it acknowledges less than it was sent
+            // once its forward times out, and the coordinator sends the batch again.
+            String resent = keyOwnedBy(coordinator, "resent");
+            synchronized (middle) {
+                assertEquals(KVMessage.StatusType.PUT_SUCCESS, put(coordinator, resent, "v1").getStatus());
+                assertTrue(awaitReplicas(Collections.singletonList(head), resent, "v1", 5000));
+                // Past the head's 10 s chain forward timeout.
+                Thread.sleep(11000);
+                assertEquals(1, coordinator.getLoadStats().replicaLagEntries);
+                assertNull(valueOf(last, resent));
+            }
+            assertTrue(TestCluster.await(() -> coordinator.getLoadStats().replicaLagEntries == 0, 5000));
+            assertEquals("v1", valueOf(last, resent));
+        }
+    }
+}
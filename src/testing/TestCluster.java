@@ -0,0 +1,73 @@
+package testing;
+
+import app_kvECS.ECSClient;
+import app_kvServer.KVServer;
+import logger.LogSetup;
+import org.apache.log4j.Level;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+/*
+ * An ECS and servers on consecutive ports, all in the test JVM. The servers join one after another and
+ * the ring has settled once the constructor returns. They store into a fresh directory, so no data is
+ * left over from an earlier run. Closing kills the servers, shuts the ECS down and deletes the directory,
+ * so nothing keeps heartbeating into the tests that run after.
+ */
+public class TestCluster implements AutoCloseable {
+    private static final long JOIN_INTERVAL_MS = 1500;
+    private static final long SETTLE_MS = 3000;
+
+    public final ECSClient ecs;
+    public final List<KVServer> servers = new ArrayList<>();
+    private final Path storageDir;
+
+    public TestCluster(int ecsPort, int firstPort, int serverCount) throws Exception {
+        new LogSetup("test3.log", Level.ALL);
+        storageDir = Files.createTempDirectory("cluster");
+        ecs = new ECSClient("localhost", ecsPort);
+        for (int port = firstPort; port < firstPort + serverCount; port++) {
+            servers.add(new KVServer("localhost", ecsPort, "localhost", port, 0, "None", storageDir.toString()));
+            Thread.sleep(JOIN_INTERVAL_MS);
+        }
+        Thread.sleep(SETTLE_MS);
+    }
+
+    public KVServer get(int index) {
+        return servers.get(index);
+    }
+
+    /**
+     * Polls until condition holds, or timeoutMs passed.
+     * @return whether the condition held
+     */
+    public static boolean await(BooleanSupplier condition, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (System.currentTimeMillis() < deadline) {
+            if (condition.getAsBoolean()) {
+                return true;
+            }
+            Thread.sleep(20);
+        }
+        return condition.getAsBoolean();
+    }
+
+    @Override
+    public void close() {
+        for (KVServer server : servers) {
+            server.kill();
+        }
+        ecs.close();
+        try (Stream<Path> files = Files.walk(storageDir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        } catch (IOException e) {
+            // Left in the temp directory.
+        }
+    }
+}
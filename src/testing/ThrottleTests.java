@@ -0,0 +1,63 @@
+package testing;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+import shared.comm.TokenBucket;
+import shared.utils.LatencyTracker;
+import shared.utils.PhiAccrualDetector;
+
+public class ThrottleTests extends TestCase {
+
+    @Test
+    public void testTokenBucketPacesToRate() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(1024 * 1024, 64 * 1024);
+        long start = System.nanoTime();
+        for (int i = 0; i < 8; i++) {
+            bucket.acquire(64 * 1024);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        // 512 KB at 1 MB/s with a 64 KB burst takes at least ~0.44 s.
+        assertTrue("finished too fast: " + seconds, seconds >= 0.4);
+        assertEquals(8 * 64 * 1024, bucket.getConsumedBytes());
+    }
+
+    @Test
+    public void testUnlimitedBucketDoesNotBlock() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(0, 1024);
+        long start = System.nanoTime();
+        bucket.acquire(100 * 1024 * 1024);
+        assertTrue((System.nanoTime() - start) / 1e9 < 0.1);
+    }
+
+    @Test
+    public void testLatencyPercentile() {
+        LatencyTracker tracker = new LatencyTracker(1000);
+        assertEquals(-1.0, tracker.percentile(99, 1000));
+        for (int i = 1; i <= 100; i++) {
+            tracker.record(i);
+        }
+        assertEquals(99.0, tracker.percentile(99, 1000));
+        assertEquals(50.0, tracker.percentile(50, 1000));
+    }
+
+    @Test
+    public void testPhiRisesWithSilenceAndToleratesJitter() {
+        PhiAccrualDetector detector = new PhiAccrualDetector(1000, 100, 0);
+        long now = 0;
+        for (int i = 0; i < 50; i++) {
+            now += 1000;
+            detector.heartbeat("steady", now);
+            detector.heartbeat("jittery", now + (i % 2 == 0 ? 600 : -600));
+        }
+        assertTrue(detector.phi("steady", now + 1000) < 1);
+        assertTrue(detector.phi("steady", now + 1500) < detector.phi("steady", now + 2000));
+        assertTrue(detector.phi("steady", now + 2000) > 8);
+        assertTrue(detector.phi("jittery", now + 2000) < 8);
+
+        assertEquals(0.0, detector.phi("unknown", now));
+        detector.watch("silent", now);
+        assertTrue(detector.phi("silent", now + 5000) > 8);
+        detector.forget("silent");
+        assertEquals(0.0, detector.phi("silent", now + 5000));
+    }
+}
@@ -0,0 +1,205 @@
+package testing;
+
+import app_kvServer.HintedHandoff;
+import app_kvServer.KVStorage;
+import app_kvServer.MerkleTree;
+import app_kvServer.VersionedValue;
+import junit.framework.TestCase;
+import org.junit.Test;
+import shared.messages.CoordMessage;
+import shared.messages.ReplicationEntry;
+import shared.utils.HashUtils;
+import shared.utils.HybridLogicalClock;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+public class VersioningTests extends TestCase {
+
+    @Test
+    public void testClockIsMonotonicAndFollowsObservedTimestamps() {
+        HybridLogicalClock clock = new HybridLogicalClock();
+        long first = clock.now();
+        long second = clock.now();
+        assertTrue(second > first);
+        assertTrue(Math.abs(HybridLogicalClock.physicalMillis(second) - System.currentTimeMillis()) < 1000);
+
+        long remote = (System.currentTimeMillis() + 60000) << HybridLogicalClock.LOGICAL_BITS;
+        clock.observe(remote);
+        assertTrue(clock.now() > remote);
+    }
+
+    @Test
+    public void testMerkleTreesExchangeOnlyDifferingBuckets() throws IOException {
+        Path dir = Files.createTempDirectory("merkle");
+        Path ours = dir.resolve("ours.txt");
+        Path theirs = dir.resolve("theirs.txt");
+        try {
+            KVStorage coordinator = new KVStorage(ours.toString());
+            KVStorage replica = new KVStorage(theirs.toString());
+            for (int i = 0; i < 50; i++) {
+                coordinator.putKV("key" + i, VersionedValue.encode(i + 1, "value " + i));
+                replica.putKV("key" + (49 - i), VersionedValue.encode(50 - i, "value " + (49 - i)));
+            }
+            assertEquals(coordinator.getMerkleTree().root(), replica.getMerkleTree().root());
+
+            replica.updateKV("key7", VersionedValue.encode(1, "stale"));
+            replica.deleteKV("key8");
+            List<Integer> differing = coordinator.getMerkleTree().diff(replica.getMerkleTree().getLeaves());
+            assertTrue(differing.contains(MerkleTree.bucketOf("key7")));
+            assertTrue(differing.contains(MerkleTree.bucketOf("key8")));
+            assertTrue(differing.size() <= 2);
+
+            Set<Integer> buckets = new HashSet<>(differing);
+            replica.replaceBuckets(buckets, coordinator.getBuckets(buckets));
+            assertEquals(coordinator.getMerkleTree().root(), replica.getMerkleTree().root());
+        } finally {
+            Files.deleteIfExists(ours);
+            Files.deleteIfExists(theirs);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    @Test
+    public void testMergeKeepsNewestVersionPerKey() throws IOException {
+        Path dir = Files.createTempDirectory("versioning");
+        Path file = dir.resolve("storage.txt");
+        try {
+            KVStorage storage = new KVStorage(file.toString());
+            storage.putList(Arrays.asList(
+                    "a " + VersionedValue.encode(5, "old a"),
+                    "b " + VersionedValue.encode(9, "newer b"),
+                    "c legacy c",
+                    "a " + VersionedValue.encode(7, "new a"),
+                    "b " + VersionedValue.encode(3, "stale b")));
+
+            assertEquals(9, storage.mergeDuplicates());
+            assertEquals(3, storage.getAllData().size());
+            assertEquals("new a", VersionedValue.decode(storage.getKV("a")).value);
+            assertEquals("newer b", VersionedValue.decode(storage.getKV("b")).value);
+            assertEquals("legacy c", storage.getKV("c"));
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    @Test
+    public void testMergeOnlyLooksAtAppendedKeys() throws IOException {
+        Path dir = Files.createTempDirectory("versioning");
+        Path file = dir.resolve("storage.txt");
+        try {
+            KVStorage storage = new KVStorage(file.toString());
+            storage.putKV("kept", VersionedValue.encode(8, "local kept"));
+            storage.putKV("untouched", VersionedValue.encode(1, "first"));
+            storage.putKV("untouched", VersionedValue.encode(2, "second"));
+            storage.putKV("replaced", VersionedValue.encode(4, "local replaced"));
+            byte[] transferred = ("kept " + VersionedValue.encode(6, "moved kept") + "\n"
+                    + "replaced " + VersionedValue.encode(4, "moved replaced") + "\n"
+                    + "new " + VersionedValue.encode(3, "moved new") + "\n").getBytes(StandardCharsets.UTF_8);
+            storage.appendFrom(Channels.newChannel(new ByteArrayInputStream(transferred)));
+
+            assertEquals(8, storage.mergeDuplicates());
+            List<String> lines = storage.getAllData();
+            assertEquals(5, lines.size());
+            assertTrue(lines.contains("kept " + VersionedValue.encode(8, "local kept")));
+            assertTrue(lines.contains("replaced " + VersionedValue.encode(4, "moved replaced")));
+            assertTrue(lines.contains("new " + VersionedValue.encode(3, "moved new")));
+            // Duplicates that were not appended are left for whoever wrote them.
+            assertTrue(lines.contains("untouched " + VersionedValue.encode(1, "first")));
+            assertEquals(0, storage.mergeDuplicates());
+            assertFalse(Files.exists(dir.resolve("storage.txt.merge")));
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    @Test
+    public void testMerkleTreeFollowsSingleChangesWithoutRereading() throws IOException {
+        Path dir = Files.createTempDirectory("merkle");
+        Path file = dir.resolve("storage.txt");
+        try {
+            KVStorage storage = new KVStorage(file.toString());
+            for (int i = 0; i < 20; i++) {
+                storage.putKV("key" + i, VersionedValue.encode(i + 1, "value " + i));
+            }
+            storage.getMerkleTree();
+
+            storage.putKV("added", VersionedValue.encode(30, "added"));
+            storage.updateKV("key3", VersionedValue.encode(31, "updated"));
+            storage.deleteKV("key4");
+            storage.removeRanges(Collections.singletonList(new String[]{"00000000000000000000000000000000", HashUtils.getHash("key5")}));
+            storage.replaceBuckets(Collections.singleton(MerkleTree.bucketOf("key6")),
+                    Collections.singletonList("key6 " + VersionedValue.encode(32, "repaired")));
+            assertNull(storage.getKV("key5"));
+            assertNotNull(storage.getKV("added"));
+            MerkleTree maintained = storage.getMerkleTree();
+            assertEquals(new KVStorage(file.toString()).getMerkleTree(), maintained);
+
+            // A line slipped into the file behind the storage's back shows that it was not read again.
+            Files.write(file, Collections.singletonList("stray " + VersionedValue.encode(1, "x")), StandardOpenOption.APPEND);
+            assertEquals(maintained, storage.getMerkleTree());
+
+            // A bulk append has the tree rebuilt from the file.
+            storage.putList(Collections.singletonList("listed " + VersionedValue.encode(33, "listed")));
+            assertEquals(new KVStorage(file.toString()).getMerkleTree(), storage.getMerkleTree());
+            assertFalse(maintained.equals(storage.getMerkleTree()));
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    @Test
+    public void testHintsReplayInBatchesAndRespectCap() throws IOException {
+        Path dir = Files.createTempDirectory("hints");
+        try {
+            HintedHandoff hints = new HintedHandoff(dir, 4096);
+            List<ReplicationEntry> entries = new ArrayList<>();
+            for (int i = 1; i <= 5; i++) {
+                entries.add(new ReplicationEntry(i, CoordMessage.ActionType.PUT, "key" + i,
+                        VersionedValue.encode(i, "value " + i), i));
+            }
+            entries.add(new ReplicationEntry(6, CoordMessage.ActionType.DELETE, "key1", null, 6));
+            assertTrue(hints.append("replica", entries));
+            assertTrue(hints.hasHints("replica"));
+
+            assertFalse(hints.replay("replica", 4, batch -> false));
+            assertTrue(hints.hasHints("replica"));
+
+            List<List<ReplicationEntry>> batches = new ArrayList<>();
+            assertTrue(hints.replay("replica", 4, batches::add));
+            assertFalse(hints.hasHints("replica"));
+            assertEquals(2, batches.size());
+            assertEquals(4, batches.get(0).size());
+            ReplicationEntry put = batches.get(0).get(1);
+            assertEquals("key2", put.key);
+            assertEquals(VersionedValue.encode(2, "value 2"), put.value);
+            ReplicationEntry delete = batches.get(1).get(1);
+            assertEquals(CoordMessage.ActionType.DELETE, delete.action);
+            assertNull(delete.value);
+            assertEquals(6, delete.version);
+
+            String big = String.join("", Collections.nCopies(5000, "x"));
+            assertTrue(hints.append("replica", entries));
+            assertFalse(hints.append("replica", Collections.singletonList(
+                    new ReplicationEntry(7, CoordMessage.ActionType.PUT, "big", big, 7))));
+            assertFalse(hints.hasHints("replica"));
+        } finally {
+            Files.deleteIfExists(dir.resolve("replica.hints"));
+            Files.deleteIfExists(dir);
+        }
+    }
+}